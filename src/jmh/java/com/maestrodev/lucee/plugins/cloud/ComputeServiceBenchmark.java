@@ -0,0 +1,92 @@
+package com.maestrodev.lucee.plugins.cloud;
+
+import java.util.concurrent.TimeUnit;
+
+import org.jclouds.compute.ComputeService;
+import org.jclouds.compute.ComputeServiceContext;
+import org.jclouds.compute.domain.Template;
+import org.jclouds.domain.LoginCredentials;
+import org.jclouds.logging.slf4j.config.SLF4JLoggingModule;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.google.common.collect.ImmutableSet;
+import com.google.inject.Module;
+
+/**
+ * Context initialization and template resolution against the stub provider, with and without the plugin caches
+ */
+@State( Scope.Benchmark )
+@BenchmarkMode( { Mode.Throughput, Mode.SampleTime } )
+@OutputTimeUnit( TimeUnit.MILLISECONDS )
+@Warmup( iterations = 3, time = 5 )
+@Measurement( iterations = 5, time = 5 )
+@Fork( 1 )
+public class ComputeServiceBenchmark
+{
+
+    private ComputeServiceContext context;
+
+    private LaunchSpec spec;
+
+    @Setup
+    public void setup()
+    {
+        context = ComputeServiceContextPool.getInstance().acquire( "stub", "benchmark", "benchmark", null );
+        spec =
+            new LaunchSpec().provider( "stub" ).imageId( "1" ).flavorId( "small" ).availabilityZone( "stub" )
+                .nameTag( "benchmark" )
+                .loginCredentials( LoginCredentials.builder().user( "root" ).password( "benchmark" ).build() );
+    }
+
+    @TearDown
+    public void tearDown()
+    {
+        ComputeServiceContextPool.getInstance().release( context );
+    }
+
+    /**
+     * What every task paid before contexts were pooled
+     */
+    @Benchmark
+    public ComputeServiceContext initComputeServiceCold()
+    {
+        ComputeServiceContext cold =
+            ProviderRegistry.getInstance().newContextBuilder( "stub" ).credentials( "benchmark", "cold" )
+                .modules( ImmutableSet.<Module> of( new SLF4JLoggingModule() ) ).buildView( ComputeServiceContext.class );
+        cold.close();
+        return cold;
+    }
+
+    @Benchmark
+    public ComputeServiceContext initComputeServicePooled()
+    {
+        ComputeServiceContext pooled =
+            ComputeServiceContextPool.getInstance().acquire( "stub", "benchmark", "benchmark", null );
+        ComputeServiceContextPool.getInstance().release( pooled );
+        return pooled;
+    }
+
+    @Benchmark
+    public Template resolveTemplateUncached()
+    {
+        ComputeService compute = context.getComputeService();
+        return compute.templateBuilder().imageId( spec.getImageId() ).hardwareId( spec.getFlavorId() )
+            .locationId( spec.getAvailabilityZone() ).build();
+    }
+
+    @Benchmark
+    public Template resolveTemplate()
+    {
+        return TaskNodeLauncher.buildTemplate( context.getComputeService(), spec );
+    }
+}
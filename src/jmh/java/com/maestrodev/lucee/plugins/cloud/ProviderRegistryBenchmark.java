@@ -0,0 +1,54 @@
+package com.maestrodev.lucee.plugins.cloud;
+
+import java.util.SortedMap;
+import java.util.concurrent.TimeUnit;
+
+import org.jclouds.ContextBuilder;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Startup cost of finding the provider of the first task, in a fresh JVM per fork: the full classpath scan that
+ * CloudWorker used to run when it was loaded, against the lookup in the build time index that only loads the
+ * metadata of the provider used
+ */
+@State( Scope.Benchmark )
+@BenchmarkMode( Mode.SingleShotTime )
+@OutputTimeUnit( TimeUnit.MILLISECONDS )
+@Warmup( iterations = 0 )
+@Measurement( iterations = 1 )
+@Fork( 10 )
+public class ProviderRegistryBenchmark
+{
+
+    private static final String PROVIDER = "aws-ec2";
+
+    @Benchmark
+    public SortedMap<String, String> fullScan()
+    {
+        SortedMap<String, String> providers = ProviderRegistry.scan();
+        if ( !providers.containsKey( PROVIDER ) )
+        {
+            throw new IllegalStateException( PROVIDER + " not found" );
+        }
+        return providers;
+    }
+
+    @Benchmark
+    public ContextBuilder indexLookup()
+    {
+        ProviderRegistry registry = new ProviderRegistry( ProviderRegistry.INDEX );
+        if ( !registry.contains( PROVIDER ) )
+        {
+            throw new IllegalStateException( PROVIDER + " not found" );
+        }
+        return registry.newContextBuilder( PROVIDER );
+    }
+}
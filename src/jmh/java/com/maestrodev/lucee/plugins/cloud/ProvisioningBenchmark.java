@@ -0,0 +1,160 @@
+package com.maestrodev.lucee.plugins.cloud;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.jclouds.compute.ComputeService;
+import org.jclouds.compute.ComputeServiceContext;
+import org.jclouds.compute.RunScriptOnNodesException;
+import org.jclouds.compute.domain.ExecResponse;
+import org.jclouds.compute.domain.NodeMetadata;
+import org.jclouds.domain.LoginCredentials;
+import org.json.simple.JSONArray;
+import org.json.simple.JSONObject;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
+
+/**
+ * Provision, deprovision and script execution for 1, 10 and 100 nodes against the stub provider
+ */
+@State( Scope.Benchmark )
+@BenchmarkMode( { Mode.Throughput, Mode.SampleTime } )
+@OutputTimeUnit( TimeUnit.MILLISECONDS )
+@Warmup( iterations = 2, time = 10 )
+@Measurement( iterations = 5, time = 10 )
+@Fork( 1 )
+public class ProvisioningBenchmark
+{
+
+    private static final List<String> COMMANDS = ImmutableList.of( "echo benchmark", "uname -a" );
+
+    @Param( { "1", "10", "100" } )
+    public int nodes;
+
+    private ComputeServiceContext context;
+
+    private ComputeService instantScripts;
+
+    private List<NodeMetadata> running;
+
+    private LoginCredentials loginCredentials;
+
+    @Setup
+    public void setup()
+        throws Exception
+    {
+        context = ComputeServiceContextPool.getInstance().acquire( "stub", "benchmark", "benchmark", null );
+        loginCredentials = LoginCredentials.builder().user( "root" ).password( "benchmark" ).build();
+        LaunchSpec spec =
+            new LaunchSpec().provider( "stub" ).imageId( "1" ).flavorId( "small" ).availabilityZone( "stub" )
+                .nameTag( "benchmark" ).loginCredentials( loginCredentials );
+        ComputeService compute = context.getComputeService();
+        running =
+            Lists.newArrayList( compute.createNodesInGroup( "maestro", nodes,
+                                                            TaskNodeLauncher.buildTemplate( compute, spec ) ) );
+        instantScripts = instantScripts( compute );
+    }
+
+    @TearDown
+    public void tearDown()
+    {
+        for ( NodeMetadata node : running )
+        {
+            context.getComputeService().destroyNode( node.getId() );
+        }
+        ComputeServiceContextPool.getInstance().release( context );
+    }
+
+    @Benchmark
+    public CloudWorker provisionAndDeprovision()
+    {
+        CloudWorker worker = new CloudWorker();
+        worker.setWorkitem( workitem( nodes ) );
+        worker.provision();
+        worker.deprovision();
+        if ( worker.getError() != null )
+        {
+            throw new IllegalStateException( worker.getError() );
+        }
+        return worker;
+    }
+
+    /**
+     * Script dispatch and output handling, the stub provider has no ssh so scripts return immediately
+     */
+    @Benchmark
+    public CloudWorker executeScripts()
+        throws RunScriptOnNodesException
+    {
+        CloudWorker worker = new CloudWorker();
+        worker.setWorkitem( workitem( nodes ) );
+        worker.executeScripts( instantScripts, loginCredentials, running, COMMANDS, null );
+        return worker;
+    }
+
+    @SuppressWarnings( "unchecked" )
+    private static JSONObject workitem( int count )
+    {
+        JSONObject fields = new JSONObject();
+        fields.put( "key_id", "benchmark" );
+        fields.put( "key", "benchmark" );
+        fields.put( "type", "stub" );
+        fields.put( "image_id", "1" );
+        fields.put( "flavor_id", "small" );
+        fields.put( "availability_zone", "stub" );
+        fields.put( "hostname", "benchmark" );
+        fields.put( "private_key_path", "src/test/resources/test-key" );
+        fields.put( "groups", new JSONArray() );
+        fields.put( "count", count );
+        JSONObject workitem = new JSONObject();
+        workitem.put( "fields", fields );
+        return workitem;
+    }
+
+    /**
+     * The stub compute service, answering scripts without running them
+     */
+    private static ComputeService instantScripts( final ComputeService compute )
+    {
+        final ExecResponse response = new ExecResponse( "benchmark\n", "", 0 );
+        return (ComputeService) Proxy.newProxyInstance( ComputeService.class.getClassLoader(),
+                                                        new Class<?>[] { ComputeService.class },
+                                                        new InvocationHandler()
+                                                        {
+                                                            public Object invoke( Object proxy, Method method,
+                                                                                  Object[] args )
+                                                                throws Throwable
+                                                            {
+                                                                if ( "runScriptOnNode".equals( method.getName() ) )
+                                                                {
+                                                                    return response;
+                                                                }
+                                                                try
+                                                                {
+                                                                    return method.invoke( compute, args );
+                                                                }
+                                                                catch ( InvocationTargetException e )
+                                                                {
+                                                                    throw e.getCause();
+                                                                }
+                                                            }
+                                                        } );
+    }
+}
@@ -0,0 +1,214 @@
+package com.maestrodev.lucee.plugins.cloud;
+
+import java.io.PrintStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.lang.management.ThreadMXBean;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.json.simple.JSONArray;
+import org.json.simple.JSONObject;
+
+import com.google.common.collect.Lists;
+import com.maestrodev.lucee.plugins.cloud.metrics.LatencyHistogram;
+
+/**
+ * Runs many pipelines at the same time against the stub provider seen through the {@link SimulatedCloud}, each one a
+ * provision with ssh commands followed by a deprovision, and reports the throughput, latency percentiles, errors,
+ * threads and heap used. Runs offline: <code>mvn -Ploadtest verify -DskipTests</code>, with the load set by system
+ * properties <code>loadtest.pipelines</code>, <code>loadtest.concurrency</code> and <code>loadtest.nodes</code>, and
+ * the simulation by the <code>maestro.cloud.simulated.*</code> ones.
+ */
+public class LoadTest
+{
+
+    private final int pipelines;
+
+    private final int concurrency;
+
+    private final int nodes;
+
+    /** contexts of the stub provider seen through the simulated cloud */
+    private final ComputeServiceContextPool contextPool =
+        new ComputeServiceContextPool( TimeUnit.MINUTES.toMillis( 10 ), SimulatedCloud.getInstance() );
+
+    private final LatencyHistogram provisions = new LatencyHistogram();
+
+    private final LatencyHistogram deprovisions = new LatencyHistogram();
+
+    private final AtomicInteger errors = new AtomicInteger();
+
+    private final AtomicInteger peakThreads = new AtomicInteger();
+
+    private final AtomicLong peakHeap = new AtomicLong();
+
+    public LoadTest( int pipelines, int concurrency, int nodes )
+    {
+        this.pipelines = pipelines;
+        this.concurrency = concurrency;
+        this.nodes = nodes;
+    }
+
+    public static void main( String[] args )
+        throws Exception
+    {
+        int pipelines = Integer.getInteger( "loadtest.pipelines", 500 );
+        int concurrency = Integer.getInteger( "loadtest.concurrency", 200 );
+        LoadTest test = new LoadTest( pipelines, concurrency, Integer.getInteger( "loadtest.nodes", 1 ) );
+        long millis = test.run();
+        test.report( System.out, millis );
+        System.exit( 0 );
+    }
+
+    /**
+     * @return milliseconds taken to run all the pipelines
+     */
+    public long run()
+        throws InterruptedException
+    {
+        ScheduledExecutorService sampler = Executors.newSingleThreadScheduledExecutor();
+        sampler.scheduleAtFixedRate( new Runnable()
+        {
+            public void run()
+            {
+                sample();
+            }
+        }, 0, 200, TimeUnit.MILLISECONDS );
+
+        ExecutorService executor = Executors.newFixedThreadPool( concurrency );
+        long start = System.nanoTime();
+        try
+        {
+            List<Future<?>> futures = Lists.newArrayList();
+            for ( int i = 0; i < pipelines; i++ )
+            {
+                final int pipeline = i;
+                futures.add( executor.submit( new Callable<Void>()
+                {
+                    public Void call()
+                    {
+                        pipeline( pipeline );
+                        return null;
+                    }
+                } ) );
+            }
+            for ( Future<?> future : futures )
+            {
+                try
+                {
+                    future.get();
+                }
+                catch ( ExecutionException e )
+                {
+                    errors.incrementAndGet();
+                    e.getCause().printStackTrace();
+                }
+            }
+            return TimeUnit.NANOSECONDS.toMillis( System.nanoTime() - start );
+        }
+        finally
+        {
+            executor.shutdownNow();
+            sampler.shutdownNow();
+            sample();
+        }
+    }
+
+    private void pipeline( int pipeline )
+    {
+        CloudWorker worker = new CloudWorker( contextPool );
+        worker.setWorkitem( workitem( pipeline, nodes ) );
+
+        long start = System.nanoTime();
+        worker.provision();
+        provisions.record( System.nanoTime() - start );
+        if ( worker.getError() != null )
+        {
+            errors.incrementAndGet();
+            System.err.println( "Pipeline " + pipeline + " provision: " + worker.getError() );
+        }
+
+        // the worker keeps the machines it provisioned
+        start = System.nanoTime();
+        worker.deprovision();
+        deprovisions.record( System.nanoTime() - start );
+        if ( worker.getError() != null )
+        {
+            errors.incrementAndGet();
+            System.err.println( "Pipeline " + pipeline + " deprovision: " + worker.getError() );
+        }
+    }
+
+    private void sample()
+    {
+        ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        MemoryMXBean memory = ManagementFactory.getMemoryMXBean();
+        int count = threads.getThreadCount();
+        long heap = memory.getHeapMemoryUsage().getUsed();
+        int peak;
+        while ( count > ( peak = peakThreads.get() ) && !peakThreads.compareAndSet( peak, count ) )
+        {
+            // retry
+        }
+        long max;
+        while ( heap > ( max = peakHeap.get() ) && !peakHeap.compareAndSet( max, heap ) )
+        {
+            // retry
+        }
+    }
+
+    public void report( PrintStream out, long millis )
+    {
+        SimulatedCloud cloud = SimulatedCloud.getInstance();
+        out.println( String.format( "%d pipelines of %d nodes, %d at a time, in %d ms: %.2f pipelines/s, %d errors",
+                                    pipelines, nodes, concurrency, millis, pipelines * 1000d / Math.max( 1, millis ),
+                                    errors.get() ) );
+        out.println( latency( "provision", provisions ) );
+        out.println( latency( "deprovision", deprovisions ) );
+        out.println( String.format( "peak threads: %d, peak heap used: %.1f MB", peakThreads.get(),
+                                    peakHeap.get() / ( 1024d * 1024 ) ) );
+        out.println( String.format( "simulated cloud: %d api calls, %d throttled, %d capacity errors, "
+            + "%d nodes launched, %d scripts", cloud.getApiCalls(), cloud.getThrottled(), cloud.getCapacityErrors(),
+                                    cloud.getLaunched(), cloud.getScripts() ) );
+    }
+
+    private static String latency( String name, LatencyHistogram histogram )
+    {
+        return String.format( "%s ms: mean %.0f, p50 %.0f, p90 %.0f, p99 %.0f, max %.0f", name,
+                              histogram.getMeanMillis(), histogram.getPercentileMillis( 50 ),
+                              histogram.getPercentileMillis( 90 ), histogram.getPercentileMillis( 99 ),
+                              histogram.getMaxMillis() );
+    }
+
+    @SuppressWarnings( "unchecked" )
+    private static JSONObject workitem( int pipeline, int count )
+    {
+        JSONObject fields = new JSONObject();
+        fields.put( "key_id", "loadtest" );
+        fields.put( "key", "loadtest" );
+        fields.put( "type", "stub" );
+        fields.put( "ssh_user", "root" );
+        fields.put( "image_id", "1" );
+        fields.put( "flavor_id", "small" );
+        fields.put( "availability_zone", "stub" );
+        fields.put( "hostname", "loadtest-" + pipeline );
+        fields.put( "private_key_path", "src/test/resources/test-key" );
+        fields.put( "groups", new JSONArray() );
+        JSONArray commands = new JSONArray();
+        commands.add( "echo loadtest" );
+        fields.put( "ssh_commands", commands );
+        fields.put( "count", count );
+        JSONObject workitem = new JSONObject();
+        workitem.put( "fields", fields );
+        return workitem;
+    }
+}
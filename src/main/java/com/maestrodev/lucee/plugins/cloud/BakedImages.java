@@ -0,0 +1,335 @@
+package com.maestrodev.lucee.plugins.cloud;
+
+import static com.google.common.base.Charsets.*;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import org.jclouds.compute.ComputeService;
+import org.jclouds.compute.domain.Image;
+import org.jclouds.compute.domain.ImageTemplate;
+import org.jclouds.compute.domain.NodeMetadata;
+import org.jclouds.compute.extensions.ImageExtension;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.base.Joiner;
+import com.google.common.base.Optional;
+import com.google.common.base.Splitter;
+import com.google.common.base.Strings;
+import com.google.common.collect.Lists;
+import com.google.common.hash.Hashing;
+import com.google.common.io.Closeables;
+
+/**
+ * Local index of the images baked from bootstrapped nodes, by a hash of the base image and the scripts that were run
+ * in it. Each account and region keeps at most a number of baked images, the least recently used are evicted and
+ * must be deleted from the provider by the caller.
+ */
+public class BakedImages
+{
+
+    /** file where the index is saved */
+    public static final String PROPERTY_FILE = "maestro.cloud.bakery.file";
+
+    /** baked images kept per provider, region and account */
+    public static final String PROPERTY_MAX_IMAGES = "maestro.cloud.bakery.maxImages";
+
+    /** milliseconds to wait for a baked image to be available */
+    private static final long BAKE_TIMEOUT = TimeUnit.MINUTES.toMillis( 30 );
+
+    private static final BakedImages instance =
+        new BakedImages( System.getProperty( PROPERTY_FILE, System.getProperty( "user.home" )
+            + "/.maestro/cloud-baked-images.properties" ), Integer.getInteger( PROPERTY_MAX_IMAGES, 10 ) );
+
+    private final Logger logger = LoggerFactory.getLogger( this.getClass() );
+
+    private final File file;
+
+    private final int maxImages;
+
+    private Properties index;
+
+    public static BakedImages getInstance()
+    {
+        return instance;
+    }
+
+    /**
+     * @param file path of the index file, null or empty to keep it in memory
+     * @param maxImages baked images kept per provider, region and account
+     */
+    public BakedImages( String file, int maxImages )
+    {
+        this.file = Strings.isNullOrEmpty( file ) ? null : new File( file );
+        this.maxImages = maxImages;
+    }
+
+    /**
+     * Provider, region and account the images belong to
+     */
+    public static String scope( String provider, String region, String identity )
+    {
+        return Joiner.on( ':' ).useForNull( "" ).join( provider, region, hash( identity ) );
+    }
+
+    /**
+     * Key of the image baked from a base image after running the bootstrap and the ssh commands
+     */
+    public static String key( String scope, String imageId, String bootstrap, List<String> sshCommands )
+    {
+        String commands = sshCommands == null ? "" : Joiner.on( '\n' ).useForNull( "" ).join( sshCommands );
+        return hash( Joiner.on( '\0' ).useForNull( "" ).join( scope, imageId, bootstrap, commands ) );
+    }
+
+    /**
+     * Get the baked image for the key if it still exists in the provider, it is forgotten if it doesn't
+     *
+     * @return the image id, null if there is none
+     */
+    public String find( ComputeService compute, String key )
+    {
+        String imageId = get( key );
+        if ( imageId != null && compute.getImage( imageId ) == null )
+        {
+            logger.warn( "Baked image {} no longer exists, baking it again", imageId );
+            remove( key );
+            return null;
+        }
+        return imageId;
+    }
+
+    /**
+     * Create an image from the node and record it under the key, deleting the least recently used images of the scope
+     * above the limit. Some providers, like EC2, reboot the node while the image is created.
+     *
+     * @return the id of the image
+     * @throws IllegalStateException if the image could not be created or was not available in time
+     */
+    public String bake( ComputeService compute, String scope, String key, NodeMetadata node )
+    {
+        Optional<ImageExtension> extension = compute.getImageExtension();
+        if ( !extension.isPresent() )
+        {
+            throw new IllegalStateException( "the provider does not support creating images" );
+        }
+        String name = String.format( "maestro-baked-%s-%d", key.substring( 0, 12 ), System.currentTimeMillis() );
+        Image image;
+        try
+        {
+            ImageTemplate template = extension.get().buildImageTemplateFromNode( name, node.getId() );
+            image = extension.get().createImage( template ).get( BAKE_TIMEOUT, TimeUnit.MILLISECONDS );
+        }
+        catch ( ExecutionException e )
+        {
+            throw new IllegalStateException( e.getCause().getMessage(), e.getCause() );
+        }
+        catch ( TimeoutException e )
+        {
+            throw new IllegalStateException( String.format( "image %s not ready after %d minutes, not using it", name,
+                                                            TimeUnit.MILLISECONDS.toMinutes( BAKE_TIMEOUT ) ), e );
+        }
+        catch ( InterruptedException e )
+        {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException( "interrupted waiting for image " + name, e );
+        }
+
+        for ( String evicted : put( scope, key, image.getId() ) )
+        {
+            logger.info( "Deleting least recently used baked image {}", evicted );
+            if ( !extension.get().deleteImage( evicted ) )
+            {
+                logger.warn( "Unable to delete baked image {}", evicted );
+            }
+        }
+        return image.getId();
+    }
+
+    /**
+     * Get the baked image for the key, marking it as used
+     *
+     * @return the image id, null if there is none
+     */
+    public synchronized String get( String key )
+    {
+        Entry entry = Entry.parse( key, load().getProperty( key ) );
+        if ( entry == null )
+        {
+            return null;
+        }
+        load().setProperty( key, new Entry( key, entry.scope, entry.imageId, System.currentTimeMillis() ).format() );
+        save();
+        return entry.imageId;
+    }
+
+    /**
+     * Record a new baked image, evicting the least recently used ones of the same scope above the limit
+     *
+     * @return ids of the evicted images, to delete them from the provider
+     */
+    public synchronized List<String> put( String scope, String key, String imageId )
+    {
+        Properties properties = load();
+        properties.setProperty( key, new Entry( key, scope, imageId, System.currentTimeMillis() ).format() );
+
+        List<Entry> inScope = Lists.newArrayList();
+        for ( String name : properties.stringPropertyNames() )
+        {
+            Entry entry = Entry.parse( name, properties.getProperty( name ) );
+            if ( entry != null && entry.scope.equals( scope ) )
+            {
+                inScope.add( entry );
+            }
+        }
+        Collections.sort( inScope, new Comparator<Entry>()
+        {
+            public int compare( Entry o1, Entry o2 )
+            {
+                return o1.lastUsed < o2.lastUsed ? -1 : ( o1.lastUsed == o2.lastUsed ? 0 : 1 );
+            }
+        } );
+        List<String> evicted = Lists.newArrayList();
+        for ( Entry entry : inScope.subList( 0, Math.max( 0, inScope.size() - maxImages ) ) )
+        {
+            properties.remove( entry.key );
+            evicted.add( entry.imageId );
+        }
+        save();
+        return evicted;
+    }
+
+    /**
+     * Forget a baked image, ie. because it no longer exists in the provider
+     */
+    public synchronized void remove( String key )
+    {
+        if ( load().remove( key ) != null )
+        {
+            save();
+        }
+    }
+
+    private Properties load()
+    {
+        if ( index == null )
+        {
+            index = new Properties();
+            if ( file != null && file.exists() )
+            {
+                InputStream in = null;
+                try
+                {
+                    in = new FileInputStream( file );
+                    index.load( in );
+                }
+                catch ( IOException e )
+                {
+                    logger.warn( "Error reading baked images index " + file, e );
+                }
+                finally
+                {
+                    Closeables.closeQuietly( in );
+                }
+            }
+        }
+        return index;
+    }
+
+    private void save()
+    {
+        if ( file == null )
+        {
+            return;
+        }
+
+        // write and rename, so a crash never leaves a half written index
+        File tmp = new File( file.getPath() + ".tmp" );
+        OutputStream out = null;
+        try
+        {
+            file.getAbsoluteFile().getParentFile().mkdirs();
+            out = new FileOutputStream( tmp );
+            index.store( out, "maestro cloud plugin baked images" );
+            out.close();
+            out = null;
+            if ( !tmp.renameTo( file ) )
+            {
+                file.delete();
+                tmp.renameTo( file );
+            }
+        }
+        catch ( IOException e )
+        {
+            logger.warn( "Error writing baked images index " + file, e );
+        }
+        finally
+        {
+            Closeables.closeQuietly( out );
+        }
+    }
+
+    private static String hash( String value )
+    {
+        return value == null ? "" : Hashing.sha256().hashString( value, UTF_8 ).toString();
+    }
+
+    private static class Entry
+    {
+        private final String key;
+
+        private final String scope;
+
+        private final String imageId;
+
+        private final long lastUsed;
+
+        Entry( String key, String scope, String imageId, long lastUsed )
+        {
+            this.key = key;
+            this.scope = scope;
+            this.imageId = imageId;
+            this.lastUsed = lastUsed;
+        }
+
+        /**
+         * @return the entry saved as scope|imageId|lastUsed, null if missing or not valid
+         */
+        static Entry parse( String key, String value )
+        {
+            if ( value == null )
+            {
+                return null;
+            }
+            List<String> parts = Lists.newArrayList( Splitter.on( '|' ).split( value ) );
+            if ( parts.size() != 3 )
+            {
+                return null;
+            }
+            try
+            {
+                return new Entry( key, parts.get( 0 ), parts.get( 1 ), Long.parseLong( parts.get( 2 ) ) );
+            }
+            catch ( NumberFormatException e )
+            {
+                return null;
+            }
+        }
+
+        String format()
+        {
+            return Joiner.on( '|' ).join( scope, imageId, lastUsed );
+        }
+    }
+}
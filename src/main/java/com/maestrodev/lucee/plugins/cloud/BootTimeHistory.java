@@ -0,0 +1,59 @@
+package com.maestrodev.lucee.plugins.cloud;
+
+import java.util.Map;
+
+import com.google.common.collect.Maps;
+
+/**
+ * How long nodes of each image take from running to accepting ssh connections, as an exponentially weighted moving
+ * average, so the first readiness probe can wait about that long instead of hitting a node that is still booting.
+ */
+public class BootTimeHistory
+{
+
+    /** weight of the newest sample */
+    private static final double ALPHA = 0.3;
+
+    /** probe a bit earlier than the average, booting faster than usual should not be penalized */
+    private static final double FIRST_PROBE_FACTOR = 0.8;
+
+    private static final BootTimeHistory instance = new BootTimeHistory();
+
+    private final Map<String, Double> averages = Maps.newHashMap();
+
+    public static BootTimeHistory getInstance()
+    {
+        return instance;
+    }
+
+    BootTimeHistory()
+    {
+    }
+
+    /**
+     * @param millis time from running to accepting ssh connections
+     */
+    public synchronized void record( String image, long millis )
+    {
+        Double average = averages.get( image );
+        averages.put( image, average == null ? millis : ALPHA * millis + ( 1 - ALPHA ) * average );
+    }
+
+    /**
+     * @return milliseconds to wait before probing a node of the image for the first time, 0 if there is no history
+     */
+    public synchronized long getFirstProbeDelay( String image )
+    {
+        Double average = averages.get( image );
+        return average == null ? 0 : (long) ( average * FIRST_PROBE_FACTOR );
+    }
+
+    /**
+     * @return average milliseconds to boot, or -1 if there is no history
+     */
+    public synchronized long getAverage( String image )
+    {
+        Double average = averages.get( image );
+        return average == null ? -1 : average.longValue();
+    }
+}
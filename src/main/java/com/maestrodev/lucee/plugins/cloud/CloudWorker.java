@@ -3,59 +3,54 @@ package com.maestrodev.lucee.plugins.cloud;
 import static com.google.common.base.Charsets.*;
 import static com.google.common.base.Predicates.*;
 import static com.google.common.collect.Iterables.*;
+import static com.maestrodev.lucee.plugins.cloud.ProviderRegistry.isAmazon;
+import static com.maestrodev.lucee.plugins.cloud.Regions.*;
+import static com.maestrodev.lucee.plugins.cloud.TargetedNodes.ids;
 import static java.lang.String.*;
 import static org.apache.commons.lang3.StringUtils.*;
-import static org.jclouds.aws.ec2.reference.AWSEC2Constants.*;
-import static org.jclouds.compute.config.ComputeServiceProperties.*;
-import static org.jclouds.compute.options.TemplateOptions.Builder.*;
 import static org.jclouds.compute.predicates.NodePredicates.*;
 
 import java.io.File;
 import java.io.IOException;
 import java.net.InetAddress;
 import java.net.UnknownHostException;
+import java.util.Collection;
 import java.util.Collections;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
-import java.util.Properties;
 import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeoutException;
 import java.util.concurrent.TimeUnit;
+import java.util.regex.Pattern;
+import java.util.regex.PatternSyntaxException;
 
-import org.jclouds.ContextBuilder;
-import org.jclouds.apis.ApiMetadata;
-import org.jclouds.apis.Apis;
 import org.jclouds.compute.ComputeService;
-import org.jclouds.compute.ComputeServiceContext;
 import org.jclouds.compute.RunNodesException;
 import org.jclouds.compute.RunScriptOnNodesException;
 import org.jclouds.compute.domain.ExecResponse;
 import org.jclouds.compute.domain.NodeMetadata;
-import org.jclouds.compute.domain.Template;
-import org.jclouds.compute.domain.TemplateBuilder;
-import org.jclouds.compute.options.TemplateOptions;
+import org.jclouds.compute.domain.OsFamily;
 import org.jclouds.domain.LoginCredentials;
-import org.jclouds.ec2.compute.options.EC2TemplateOptions;
-import org.jclouds.enterprise.config.EnterpriseConfigurationModule;
-import org.jclouds.logging.slf4j.config.SLF4JLoggingModule;
-import org.jclouds.providers.ProviderMetadata;
-import org.jclouds.providers.Providers;
 import org.jclouds.rest.AuthorizationException;
 import org.jclouds.scriptbuilder.domain.Statement;
 import org.jclouds.scriptbuilder.domain.Statements;
-import org.jclouds.sshj.config.SshjSshClientModule;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import com.google.common.base.Predicate;
-import com.google.common.base.Predicates;
-import com.google.common.collect.ImmutableSet;
-import com.google.common.collect.Iterables;
+import com.amazonaws.services.route53.model.ChangeInfo;
+import com.google.common.base.Joiner;
 import com.google.common.collect.Lists;
 import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
 import com.google.common.io.Files;
-import com.google.inject.Module;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.MoreExecutors;
 import com.maestrodev.MaestroWorker;
+import com.maestrodev.lucee.plugins.cloud.aws.Route53Registrar;
+import com.maestrodev.lucee.plugins.cloud.metrics.PhaseMetrics;
+import com.maestrodev.lucee.plugins.cloud.metrics.PhaseTimer;
 
 public class CloudWorker
     extends MaestroWorker
@@ -63,19 +58,57 @@ public class CloudWorker
 
     private final Logger logger = LoggerFactory.getLogger( this.getClass() );
 
-    private static final Map<String, ApiMetadata> allApis =
-        Maps.uniqueIndex( Apis.viewableAs( ComputeServiceContext.class ), Apis.idFunction() );
+    private static final String JCLOUDS_GROUP_NAME = TaskNodeLauncher.GROUP;
 
-    private static final Map<String, ProviderMetadata> appProviders =
-        Maps.uniqueIndex( Providers.viewableAs( ComputeServiceContext.class ), Providers.idFunction() );
+    /** nodes running ssh commands at the same time */
+    private static final int DEFAULT_SSH_PARALLELISM = 10;
 
-    private static final Set<String> allKeys = ImmutableSet.copyOf( Iterables.concat( appProviders.keySet(),
-                                                                                      allApis.keySet() ) );
+    /** minutes each node has to run the ssh commands */
+    private static final int DEFAULT_SSH_TIMEOUT = 20;
 
-    private static final String JCLOUDS_GROUP_NAME = "maestro";
+    /** TTL of the DNS records, in seconds */
+    private static final int DEFAULT_DNS_TTL = 300;
+
+    /** send the output once this many characters are pending */
+    private static final int OUTPUT_BATCH_CHARS = 8192;
+
+    /** milliseconds output waits at most to be sent with more output */
+    private static final long OUTPUT_WINDOW = 500;
+
+    /** task threads wait while this many characters of output are pending */
+    private static final int OUTPUT_MAX_PENDING_CHARS = 1024 * 1024;
+
+    /** where the compute service contexts are leased from */
+    private final ComputeServiceContextPool contextPool;
 
     private ComputeService computeService;
 
+    /** runners of the scripts of the task, their output files are kept until the task ends */
+    private final List<StreamingScriptRunner> runners = Lists.newArrayList();
+
+    /** output of the task, sent to the server in batches from a background thread */
+    private final OutputCoalescer outputWriter = new OutputCoalescer( new OutputCoalescer.Sink()
+    {
+        public void write( String output )
+        {
+            writeOutput( output );
+        }
+    }, OUTPUT_BATCH_CHARS, OUTPUT_WINDOW, OUTPUT_MAX_PENDING_CHARS );
+
+    public CloudWorker()
+    {
+        this( ComputeServiceContextPool.getInstance() );
+    }
+
+    /**
+     * @param contextPool where to lease the compute service contexts from, ie. one that decorates them to run the load
+     *            tests against a simulated cloud
+     */
+    CloudWorker( ComputeServiceContextPool contextPool )
+    {
+        this.contextPool = contextPool;
+    }
+
     protected ComputeService getComputeService()
     {
         return computeService;
@@ -88,10 +121,24 @@ public class CloudWorker
      * @throws RunScriptOnNodesException
      **/
     public void provision()
+    {
+        try
+        {
+            provisionNodes();
+        }
+        finally
+        {
+            // all the output is sent before the task result
+            outputWriter.flush();
+            releaseOutput();
+        }
+    }
+
+    private void provisionNodes()
     {
         String msg = "Starting provisioning\n";
         logger.debug( msg );
-        writeOutput( msg );
+        outputWriter.write( msg );
 
         String provider = getField( "type" );
         String identity = getField( "key_id" );
@@ -108,102 +155,313 @@ public class CloudWorker
         String provisionCommand = getField( "provision_command" );
         String bootstrap = getField( "bootstrap" );
         String userData = getField( "user_data" );
+        boolean async = getBooleanField( "async", false );
+        List<String> flavorFallbacks = getArrayField( String.class, "flavor_fallbacks" );
+        List<String> zoneFallbacks = getArrayField( String.class, "zone_fallbacks" );
+        boolean hedge = getBooleanField( "hedge", false );
+
+        int count;
+        try
+        {
+            count = getIntField( "count", 1 );
+            // only used once the nodes are running, check it before starting them
+            getSshPolicy();
+        }
+        catch ( IllegalArgumentException e )
+        {
+            setError( e.getMessage() );
+            return;
+        }
+        if ( count < 1 )
+        {
+            setError( format( "Invalid count %d, at least one machine must be provisioned", count ) );
+            return;
+        }
 
         // check if a provider is present ahead of time
-        if ( !contains( allKeys, provider ) )
+        ProviderRegistry providers = ProviderRegistry.getInstance();
+        if ( !providers.contains( provider ) )
         {
-            logger.error( "Provider {} not in supported list: {}", provider, allKeys );
-            setError( format( "Provider %s not in supported list: %s", provider, allKeys ) );
+            logger.error( "Provider {} not in supported list: {}", provider, providers.ids() );
+            setError( format( "Provider %s not in supported list: %s", provider, providers.ids() ) );
             return;
         }
 
         /* EC2 image ids must contain the region */
         if ( isAmazon( provider ) )
         {
-            String region = availabilityZone.substring( 0, availabilityZone.length() - 1 );
-            imageId = region + "/" + imageId;
+            imageId = regionOf( provider, availabilityZone ) + "/" + imageId;
         }
 
+        // the context only talks to the region of the task
+        String region = contextRegion( provider, availabilityZone );
+
+        PhaseTimer timer = new PhaseTimer();
+        // the timings go to the zone the nodes were launched in, that may be a fallback
+        String launchedZone = availabilityZone;
         ComputeService compute = null;
+        ProvisioningJournal journal = ProvisioningJournal.getInstance();
+        String intentId = null;
         try
         {
-            compute = initComputeService( provider, identity, credential );
+            timer.start( "context" );
+            compute = initComputeService( provider, identity, credential, region );
+            timer.stop();
+            reconcileOrphans( compute, provider, identity, region );
+
+            // launch from the image baked by a previous provision with the same scripts, or bake it this time
+            String bakeScope = null;
+            String bakeKey = null;
+            if ( getBooleanField( "bake", false ) )
+            {
+                timer.start( "bake_lookup" );
+                bakeScope = BakedImages.scope( provider, region, identity );
+                bakeKey = BakedImages.key( bakeScope, imageId, bootstrap, sshCommands );
+                String bakedImage = BakedImages.getInstance().find( compute, bakeKey );
+                if ( bakedImage != null )
+                {
+                    msg = format( "Launching from baked image %s, skipping bootstrap and ssh commands%n", bakedImage );
+                    logger.info( msg );
+                    outputWriter.write( msg );
+                    imageId = bakedImage;
+                    bootstrap = null;
+                    sshCommands = null;
+                    bakeKey = null;
+                }
+                timer.stop();
+            }
+
             String hostname = processHostname();
 
             logger.debug( "adding node to group {}", JCLOUDS_GROUP_NAME );
 
-            TemplateBuilder templateBuilder = compute.templateBuilder();
-
-            templateBuilder.imageId( imageId ).hardwareId( flavorId );
-            if ( !isEmpty( availabilityZone ) )
-            {
-                templateBuilder.locationId( availabilityZone );
-            }
-            Template template = templateBuilder.build();
-            TemplateOptions options = template.getOptions();
-
             // credentials to run scripts
             LoginCredentials loginCredentials = getLoginCredentials();
-            options.overrideLoginCredentials( loginCredentials );
-
-            // to run commands as root, we use the runScript option in the template.
-            if ( !isEmpty( bootstrap ) )
-            {
-                options.runScript( bootstrap ).blockOnComplete( true );
-            }
 
             // name the instance with the Name tag
             String nameTag = hostname + ( isEmpty( domain ) ? "" : "." + domain );
-            options.getUserMetadata().put( "Name", nameTag );
 
-            // Amazon specific options
-            if ( isAmazon( provider ) )
+            LaunchSpec spec =
+                new LaunchSpec().provider( provider ).imageId( imageId ).flavorId( flavorId )
+                    .availabilityZone( availabilityZone ).groups( groups ).keyName( keyName ).userData( userData )
+                    .bootstrap( bootstrap ).nameTag( nameTag ).loginCredentials( loginCredentials );
+
+            // journal the nodes until they are saved in the work item, in case the agent dies before
+            intentId = journal.intent( provider, identity, region );
+            spec.intentId( intentId );
+
+            // take already bootstrapped nodes from the standby pool if enabled
+            timer.start( "standby" );
+            Set<NodeMetadata> nodes = Sets.newLinkedHashSet( claimStandbyNodes( compute, spec, identity, credential,
+                                                                                count ) );
+
+            // start the rest of the nodes, all of them in one call, and one more to bake the image from so the machines
+            // of the task are not rebooted while the image is created
+            boolean bakeExtra = bakeKey != null && !async;
+            NodeMetadata bakeNode = null;
+            Set<NodeMetadata> created = Sets.newLinkedHashSet();
+            Set<String> notBootstrapped = Sets.newHashSet();
+            Map<String, String> failures = Maps.newLinkedHashMap();
+            if ( nodes.size() < count || bakeExtra )
             {
-                EC2TemplateOptions ec2Options = template.getOptions().as( EC2TemplateOptions.class );
-                ec2Options.securityGroups( groups ).keyPair( keyName );
-                if ( !isEmpty( userData ) )
+                timer.start( "create" );
+                PlacementLauncher launcher =
+                    new PlacementLauncher( new TaskNodeLauncher( contextPool, compute, provider, identity, credential,
+                                                                 region ),
+                                           PhaseMetrics.getInstance() );
+                try
+                {
+                    PlacementLauncher.Launched launched =
+                        launcher.launch( PlacementLauncher.placements( spec, flavorFallbacks, zoneFallbacks ),
+                                         count - nodes.size() + ( bakeExtra ? 1 : 0 ), hedge );
+                    created.addAll( launched.getNodes() );
+                    launchedZone = launched.getPlacement().getAvailabilityZone();
+                    if ( launched.getPlacement() != spec )
+                    {
+                        spec.flavorId( launched.getPlacement().getFlavorId() )
+                            .availabilityZone( launched.getPlacement().getAvailabilityZone() );
+                        msg = format( "No capacity for %s in %s, launched %s in %s%n", flavorId, availabilityZone,
+                                      spec.getFlavorId(), spec.getAvailabilityZone() );
+                        logger.info( msg );
+                        outputWriter.write( msg );
+                    }
+                    setField( "placement", spec.getAvailabilityZone() + "/" + spec.getFlavorId() );
+                }
+                catch ( RunNodesException e )
+                {
+                    journal.created( intentId, ids( e.getSuccessfulNodes() ) );
+                    journal.created( intentId, ids( e.getNodeErrors().keySet() ) );
+
+                    // the cached image or hardware may no longer be valid
+                    TemplateCache.getInstance().invalidate( TaskNodeLauncher.templateKey( spec ) );
+
+                    // in batch mode keep the nodes that made it and report the rest
+                    if ( count == 1 || ( e.getSuccessfulNodes().isEmpty() && nodes.isEmpty() ) )
+                    {
+                        throw e;
+                    }
+                    created.addAll( e.getSuccessfulNodes() );
+                    failures.putAll( describeErrors( e.getNodeErrors() ) );
+                    failures.putAll( describeErrors( e.getExecutionErrors() ) );
+                }
+                journal.created( intentId, ids( created ) );
+                NodeInventory.getInstance().put( provider, identity, created );
+                // the machines of the task come first if not all the nodes started
+                if ( bakeExtra && created.size() > count - nodes.size() )
+                {
+                    bakeNode = getLast( created );
+                    created.remove( bakeNode );
+                }
+                nodes.addAll( created );
+
+                // in async mode the bootstrap runs in the background, don't wait for it
+                if ( !async )
                 {
-                    ec2Options.userData( userData.getBytes() );
+                    timer.start( "bootstrap" );
+                    List<NodeMetadata> toBootstrap = Lists.newArrayList( created );
+                    if ( bakeNode != null )
+                    {
+                        toBootstrap.add( bakeNode );
+                    }
+                    Map<String, Throwable> bootstrapErrors =
+                        TaskNodeLauncher.bootstrapAll( compute, spec, toBootstrap );
+                    if ( bakeNode != null && bootstrapErrors.containsKey( bakeNode.getId() ) )
+                    {
+                        outputWriter.write( format( "Not baking an image, bootstrap failed in machine %s: %s%n",
+                                                    bakeNode.getId(),
+                                                    bootstrapErrors.remove( bakeNode.getId() ).getMessage() ) );
+                        new TargetedNodes( compute, provider, identity ).discard( bakeNode );
+                        bakeNode = null;
+                    }
+                    if ( !bootstrapErrors.isEmpty() )
+                    {
+                        if ( count == 1 )
+                        {
+                            machinePush( getOnlyElement( created ).getId() );
+                            setError( format( "Error provisioning, bootstrapping nodes: %s%n",
+                                              describeErrors( bootstrapErrors ) ) );
+                            return;
+                        }
+                        failures.putAll( describeErrors( bootstrapErrors ) );
+                        notBootstrapped.addAll( bootstrapErrors.keySet() );
+                    }
+                    journal.bootstrapped( intentId, Sets.difference( ids( created ), bootstrapErrors.keySet() ) );
                 }
             }
 
-            // start the nodes
-            NodeMetadata node = getOnlyElement( compute.createNodesInGroup( JCLOUDS_GROUP_NAME, 1, template ) );
-            // NodeMetadata node =
-            // getOnlyElement( filter( compute.listNodesDetailsMatching( all() ),
-            // and( inGroup( JCLOUDS_GROUP_NAME ), not( TERMINATED ) ) ) );
+            timer.stop();
 
-            msg = format( "Started node %s: %s%n", node.getId(), node.getPublicAddresses() );
-            logger.info( msg );
-            writeOutput( msg );
+            List<String> publicAddresses = Lists.newArrayList();
+            List<String> instanceIds = Lists.newArrayList();
+            for ( NodeMetadata node : nodes )
+            {
+                msg = format( "Started node %s: %s%n", node.getId(), node.getPublicAddresses() );
+                logger.info( msg );
+                outputWriter.write( msg );
+
+                logger.debug( "Node: {}", node );
 
-            logger.debug( "Node: {}", node );
+                // get data from running nodes
+                String publicAddress = getFirst( node.getPublicAddresses(), null );
+                publicAddresses.add( publicAddress );
+                instanceIds.add( node.getProviderId() );
+
+                msg =
+                    format( "Launched machine: <a href=\"http://%s\">%s - id: %s</a>%n", publicAddress, publicAddress,
+                            node.getProviderId() );
+                logger.debug( msg );
+                outputWriter.write( msg );
+
+                // Capture an array of machines so that we can know what to deprovision if necessary
+                machinePush( node.getId() );
+            }
 
-            // get data from running nodes
-            String publicAddress = getOnlyElement( node.getPublicAddresses() );
+            String publicAddress = publicAddresses.get( 0 );
             setField( "ip", publicAddress );
-            setField( "instance_id", node.getProviderId() );
+            setField( "instance_id", instanceIds.get( 0 ) );
             setField( "instance_dns", publicAddress );
+            setListField( "ips", publicAddresses );
+            setListField( "instance_ids", instanceIds );
 
-            msg =
-                format( "Launched machine: <a href=\"http://%s\">%s - id: %s</a>%n", publicAddress, publicAddress,
-                        node.getProviderId() );
-            logger.debug( msg );
-            writeOutput( msg );
+            // point the name to all the machines, without waiting for the change to propagate
+            if ( getBooleanField( "route53", false ) && isAmazon( provider ) && !isEmpty( domain ) )
+            {
+                timer.start( "dns" );
+                registerDns( identity, credential, domain, nameTag, publicAddresses );
+                timer.stop();
+            }
+
+            if ( async )
+            {
+                if ( bakeKey != null )
+                {
+                    outputWriter.write( "Not baking an image, the machines are not ready yet in async provisions\n" );
+                }
+                awaitInBackground( compute, spec, nodes, created, sshCommands, provisionCommand );
+                // released by the background work once all the nodes are done
+                compute = null;
+                setListField( "failures", listFailures( failures ) );
+                setField( "body", format( "Started %d of %d machines at %s, not ready yet", nodes.size(), count,
+                                          publicAddresses ) );
+                msg = "Done provisioning, waiting for the machines in the background\n";
+                logger.debug( msg );
+                outputWriter.write( msg );
+                return;
+            }
 
-            // execute the ssh and provision commands
-            executeScripts( compute, loginCredentials,
-                            Predicates.<NodeMetadata> and( inGroup( JCLOUDS_GROUP_NAME ), withIds( node.getId() ) ),
-                            sshCommands, provisionCommand );
+            // execute the ssh and provision commands, concurrently in all the nodes
+            timer.start( "ssh_commands" );
+            try
+            {
+                executeScripts( compute, loginCredentials,
+                                filter( nodes, not( withIds( notBootstrapped.toArray( new String[0] ) ) ) ),
+                                sshCommands, provisionCommand );
+            }
+            catch ( RunScriptOnNodesException e )
+            {
+                if ( count == 1 )
+                {
+                    throw e;
+                }
+                failures.putAll( describeErrors( e.getNodeErrors() ) );
+                failures.putAll( describeErrors( e.getExecutionErrors() ) );
+            }
+            timer.stop();
 
-            // Capture an array of machines so that we can know what to deprovision if necessary
-            machinePush( node.getId() );
+            // snapshot the extra node once it ran the same scripts, except the provision command
+            if ( bakeNode != null )
+            {
+                timer.start( "bake" );
+                bakeImage( compute, loginCredentials, bakeScope, bakeKey, bakeNode, sshCommands );
+                new TargetedNodes( compute, provider, identity ).discard( bakeNode );
+                timer.stop();
+            }
+            else if ( bakeKey != null && !async )
+            {
+                outputWriter.write( "Not baking an image, no machine was left to bake it from\n" );
+            }
 
-            setField( "body", format( "Provisioned machine at %s", publicAddress ) );
+            if ( count == 1 )
+            {
+                setField( "body", format( "Provisioned machine at %s", publicAddress ) );
+            }
+            else
+            {
+                List<String> failed = listFailures( failures );
+                setListField( "failures", failed );
+                setField( "body", format( "Provisioned %d of %d machines at %s", nodes.size(), count,
+                                          publicAddresses ) );
+                if ( !failures.isEmpty() )
+                {
+                    msg = format( "Failures provisioning %d machines: %s%n", failures.size(), failed );
+                    logger.warn( msg );
+                    outputWriter.write( msg );
+                }
+            }
 
             msg = "Done provisioning\n";
             logger.debug( msg );
-            writeOutput( msg );
+            outputWriter.write( msg );
         }
         catch ( AuthorizationException e )
         {
@@ -215,21 +473,78 @@ public class CloudWorker
         {
             msg = format( "Error provisioning, running nodes: %s%n", e.getMessage() );
             logger.error( msg, e );
-            setError( printExecutionErrors( e.getExecutionErrors(), msg ) );
+            setError( printExecutionErrors( allErrors( e ), msg ) );
         }
         catch ( RunScriptOnNodesException e )
         {
             msg = format( "Error provisioning, running scripts on nodes: %s%n", e.getMessage() );
             logger.error( msg );
-            setError( printExecutionErrors( e.getExecutionErrors(), msg ) );
+            setError( printExecutionErrors( allErrors( e ), msg ) );
+        }
+        catch ( IllegalArgumentException e )
+        {
+            msg = format( "Error provisioning: %s%n", e.getMessage() );
+            logger.error( msg, e );
+            setError( msg );
         }
         finally
         {
-            if ( compute != null )
+            if ( intentId != null )
+            {
+                // all the nodes are in the work item before an async provision hands the context to the background work
+                List<String> machines = getArrayField( String.class, "machines" );
+                OrphanReconciler reconciler = new OrphanReconciler( journal, JCLOUDS_GROUP_NAME );
+                reconciler.complete( compute, provider, identity, intentId,
+                                     machines == null ? Collections.<String> emptyList() : machines );
+            }
+            releaseComputeService( compute );
+            publishTimings( timer, provider, regionOf( provider, launchedZone ) );
+        }
+    }
+
+    /**
+     * Run the ssh commands in a bootstrapped node that is not one of the machines of the task and create an image from
+     * it, so the next provisions with the same scripts launch from it. The provision command is not part of the image,
+     * it still runs in every machine. Some providers, like EC2, reboot the node while the image is created, which is
+     * why it is not one of the machines. Never fails the task.
+     */
+    private void bakeImage( ComputeService compute, LoginCredentials loginCredentials, String scope, String key,
+                            NodeMetadata node, List<String> sshCommands )
+    {
+        if ( !compute.getImageExtension().isPresent() )
+        {
+            outputWriter.write( "Not baking an image, the provider does not support creating images\n" );
+            return;
+        }
+        Statement script = commandScript( sshCommands, null );
+        if ( script != null )
+        {
+            try
+            {
+                runScript( compute, loginCredentials, Collections.singleton( node ), script,
+                           getBooleanField( "stream_output", false ), null );
+            }
+            catch ( RunScriptOnNodesException e )
             {
-                compute.getContext().close();
+                logger.warn( "Error running ssh commands in machine " + node.getId() + " to bake", e );
+                outputWriter.write( format( "Not baking an image, ssh commands failed in machine %s%n",
+                                            node.getId() ) );
+                return;
             }
         }
+        try
+        {
+            String imageId = BakedImages.getInstance().bake( compute, scope, key, node );
+            setField( "baked_image", imageId );
+            String msg = format( "Baked image %s from machine %s%n", imageId, node.getId() );
+            logger.info( msg );
+            outputWriter.write( msg );
+        }
+        catch ( RuntimeException e )
+        {
+            logger.warn( "Error baking image from machine " + node.getId(), e );
+            outputWriter.write( format( "Error baking image: %s%n", e.getMessage() ) );
+        }
     }
 
     /**
@@ -238,10 +553,24 @@ public class CloudWorker
      * @throws Exception
      */
     public void deprovision()
+    {
+        try
+        {
+            deprovisionNodes();
+        }
+        finally
+        {
+            // all the output is sent before the task result
+            outputWriter.flush();
+            releaseOutput();
+        }
+    }
+
+    private void deprovisionNodes()
     {
         String msg = "Starting deprovisioning\n";
         logger.info( msg );
-        writeOutput( msg );
+        outputWriter.write( msg );
 
         String provider = getField( "type" );
         String identity = getField( "key_id" );
@@ -250,12 +579,55 @@ public class CloudWorker
         List<String> sshCommands = getArrayField( String.class, "ssh_commands" );
 
         List<String> machines = getArrayField( String.class, "machines" );
-        String[] ids = (String[]) machines.toArray( new String[0] );
+        if ( machines == null )
+        {
+            setError( "No machines given" );
+            return;
+        }
 
-        ComputeService compute = null;
+        PhaseTimer timer = new PhaseTimer();
+        RegionalNodes regional = new RegionalNodes( contextPool, provider, identity, credential, machines );
+        // the timings are published for each region of the machines, under no region if they are not known
+        Collection<String> regions =
+            regional.getRegions().isEmpty() ? Collections.<String> singleton( null ) : regional.getRegions();
         try
         {
-            compute = initComputeService( provider, identity, credential );
+            // a context scoped to each region of the machines, the regions are processed in parallel
+            timer.start( "context" );
+            Map<String, ComputeService> computes = regional.acquire();
+            computeService = getFirst( computes.values(), null );
+            for ( Entry<String, ComputeService> entry : computes.entrySet() )
+            {
+                reconcileOrphans( entry.getValue(), provider, identity, entry.getKey() );
+            }
+
+            timer.start( "lookup" );
+            long start = System.nanoTime();
+            Map<String, Map<String, NodeMetadata>> resolved = regional.resolve();
+            long lookupMillis = TimeUnit.NANOSECONDS.toMillis( System.nanoTime() - start );
+            int found = 0;
+            Map<String, List<NodeMetadata>> nodes = Maps.newLinkedHashMap();
+            for ( Entry<String, Map<String, NodeMetadata>> entry : resolved.entrySet() )
+            {
+                found += entry.getValue().size();
+                nodes.put( entry.getKey(),
+                           Lists.newArrayList( filter( entry.getValue().values(), inGroup( JCLOUDS_GROUP_NAME ) ) ) );
+            }
+            msg =
+                format( "Found %d of %d machines in %d regions with %d lookups in %d ms%n", found, machines.size(),
+                        regional.getRegions().size(), regional.getApiCalls(), lookupMillis );
+            logger.debug( msg );
+            outputWriter.write( msg );
+
+            if ( getBooleanField( "lookup_compare", false ) )
+            {
+                long[] scan = regional.timeFullScan();
+                msg =
+                    format( "Listing all nodes would have taken %d ms and returned %d nodes, %d ms saved%n", scan[0],
+                            scan[1], scan[0] - lookupMillis );
+                logger.info( msg );
+                outputWriter.write( msg );
+            }
 
             // execute the ssh deprovision commands
             if ( ( sshCommands != null ) && !sshCommands.isEmpty() )
@@ -263,23 +635,35 @@ public class CloudWorker
                 // credentials to run scripts
                 LoginCredentials loginCredentials = getLoginCredentials();
 
-                executeScripts( compute, loginCredentials,
-                                Predicates.<NodeMetadata> and( withIds( ids ), not( TERMINATED ) ), sshCommands, null );
+                timer.start( "ssh_commands" );
+                for ( Entry<String, List<NodeMetadata>> entry : nodes.entrySet() )
+                {
+                    executeScripts( computes.get( entry.getKey() ), loginCredentials,
+                                    filter( entry.getValue(), not( TERMINATED ) ), sshCommands, null );
+                }
             }
 
-            Set<? extends NodeMetadata> nodes =
-                compute.destroyNodesMatching( Predicates.<NodeMetadata> and( withIds( ids ),
-                                                                             inGroup( JCLOUDS_GROUP_NAME ) ) );
-
-            // write to the output
-            List<String> nodeIds = Lists.newArrayList();
-            for ( NodeMetadata node : nodes )
+            List<String> dnsRecords = getArrayField( String.class, "dns_records" );
+            String domain = getField( "domain" );
+            if ( getBooleanField( "route53", false ) && isAmazon( provider ) && !isEmpty( domain )
+                && ( dnsRecords != null ) && !dnsRecords.isEmpty() )
             {
-                nodeIds.add( node.getId() );
+                timer.start( "dns" );
+                unregisterDns( identity, credential, domain, dnsRecords );
             }
-            if ( nodes.isEmpty() || ( nodes.size() != machines.size() ) )
+
+            // nodes that could not be looked up are reported with the ones that could not be destroyed
+            timer.start( "destroy" );
+            Set<String> nodeIds = regional.destroy( nodes );
+            Map<String, Throwable> errors = regional.getErrors();
+            timer.stop();
+
+            // write to the output
+            if ( nodeIds.isEmpty() || ( nodeIds.size() != machines.size() ) )
             {
-                msg = format( "Not all machines were deprovisioned, tried: %s. Deprovisioned: %s%n", machines, nodeIds );
+                msg =
+                    format( "Not all machines were deprovisioned, tried: %s. Deprovisioned: %s. Errors: %s%n",
+                            machines, nodeIds, describeErrors( errors ) );
                 setError( msg );
             }
             else
@@ -287,11 +671,11 @@ public class CloudWorker
                 msg = format( "Deprovisioned machines: %s%n", nodeIds );
             }
             logger.debug( msg );
-            writeOutput( msg );
+            outputWriter.write( msg );
 
             msg = "Done deprovisioning\n";
             logger.debug( msg );
-            writeOutput( msg );
+            outputWriter.write( msg );
         }
         catch ( AuthorizationException e )
         {
@@ -302,143 +686,838 @@ public class CloudWorker
         {
             msg = format( "Error deprovisioning, running scripts on nodes: %s%n", e.getMessage() );
             logger.error( msg, e );
-            setError( printExecutionErrors( e.getExecutionErrors(), msg ) );
+            setError( printExecutionErrors( allErrors( e ), msg ) );
+        }
+        catch ( IllegalArgumentException e )
+        {
+            msg = format( "Error deprovisioning: %s%n", e.getMessage() );
+            logger.error( msg, e );
+            setError( msg );
         }
         finally
         {
-            if ( compute != null )
-            {
-                compute.getContext().close();
-            }
+            regional.release();
+            publishTimings( timer, provider, regions );
         }
     }
 
     /**
-     * Get the jClouds compute service API to run all our operations
-     * 
-     * @param provider supported provider from http://www.jclouds.org/documentation/reference/supported-providers, ie.
-     *            aws-ec2
-     * @param identity
-     * @param credential
-     * @return
+     * Cloud Upload task, copies local files or directories to all the machines in parallel over SFTP
      */
-    private ComputeService initComputeService( String provider, String identity, String credential )
+    public void upload()
     {
-        // example of specific properties, in this case optimizing image list to
-        // only amazon supplied
-        Properties properties = new Properties();
-
-        // don't prefetch Alestic, Canonical, RightScale images
-        properties.setProperty( PROPERTY_EC2_AMI_QUERY, "" );
-
-        // don't connect to all regions
-        // properties.setProperty( PROPERTY_REGIONS, region );
-        properties.setProperty( PROPERTY_EC2_CC_REGIONS, "" );
-
-        // without this it won't find the AMI
-        properties.setProperty( PROPERTY_EC2_CC_AMI_QUERY, "" );
-
-        long scriptTimeout = TimeUnit.MILLISECONDS.convert( 20, TimeUnit.MINUTES );
-        properties.setProperty( TIMEOUT_SCRIPT_COMPLETE, String.valueOf( scriptTimeout ) );
-
-        // injecting logging and ssh implementation
-        List<Module> modules =
-            Lists.<Module> newArrayList( new SLF4JLoggingModule(), new EnterpriseConfigurationModule() );
-        // stub provider will fail with a ssh implementation
-        // see https://groups.google.com/forum/?hl=en&fromgroups#!topic/jclouds/USdRVB0IZ3U
-        if ( !isStub( provider ) )
+        try
+        {
+            uploadFiles();
+        }
+        finally
         {
-            modules.add( new SshjSshClientModule() );
+            // all the output is sent before the task result
+            outputWriter.flush();
         }
+    }
 
-        logger.info( "Connecting to cloud {}", provider );
+    private void uploadFiles()
+    {
+        String msg = "Starting upload\n";
+        logger.debug( msg );
+        outputWriter.write( msg );
 
-        ContextBuilder builder =
-            ContextBuilder.newBuilder( provider ).credentials( identity, credential ).modules( modules ).overrides( properties );
+        String provider = getField( "type" );
+        String identity = getField( "key_id" );
+        String credential = getField( "key" );
 
-        logger.debug( "Initializing cloud {}", builder.getApiMetadata() );
+        List<String> machines = getArrayField( String.class, "machines" );
+        List<String> files = getArrayField( String.class, "files" );
+        String destination = defaultIfEmpty( getField( "destination" ), "/tmp" );
+        if ( machines == null || machines.isEmpty() )
+        {
+            setError( "No machines given" );
+            return;
+        }
+        if ( files == null || files.isEmpty() )
+        {
+            setError( "No files to upload" );
+            return;
+        }
 
-        computeService = builder.buildView( ComputeServiceContext.class ).getComputeService();
-        return computeService;
-    }
+        PhaseTimer timer = new PhaseTimer();
+        RegionalNodes regional = new RegionalNodes( contextPool, provider, identity, credential, machines );
+        // the timings are published for each region of the machines, under no region if they are not known
+        Collection<String> regions =
+            regional.getRegions().isEmpty() ? Collections.<String> singleton( null ) : regional.getRegions();
+        FileUploader uploader = null;
+        try
+        {
+            timer.start( "prepare" );
+            List<File> sources = Lists.newArrayList();
+            for ( String file : files )
+            {
+                sources.add( new File( file ) );
+            }
+            uploader =
+                new FileUploader( sources, destination, getBooleanField( "compress", false ),
+                                  getBooleanField( "verify", true ) );
+            long bytes = uploader.getBytes();
+
+            timer.start( "context" );
+            Map<String, ComputeService> computes = regional.acquire();
+
+            timer.start( "lookup" );
+            Map<String, Map<String, NodeMetadata>> resolved = regional.resolve();
+            final Map<NodeMetadata, ComputeService> nodes = Maps.newLinkedHashMap();
+            for ( Entry<String, Map<String, NodeMetadata>> entry : resolved.entrySet() )
+            {
+                for ( NodeMetadata node : entry.getValue().values() )
+                {
+                    nodes.put( node, computes.get( entry.getKey() ) );
+                }
+            }
+            Map<String, String> errors = describeErrors( regional.getErrors() );
+            for ( String machine : machines )
+            {
+                if ( !exists( resolved.values(), machine ) && !errors.containsKey( machine ) )
+                {
+                    errors.put( machine, "not found" );
+                }
+            }
 
-    private boolean isAmazon( String provider )
-    {
-        return "aws-ec2".equals( provider );
-    }
+            msg = format( "Uploading %d files, %d bytes, to %d machines%n", uploader.getFiles(), bytes, nodes.size() );
+            logger.debug( msg );
+            outputWriter.write( msg );
 
-    private boolean isStub( String provider )
-    {
-        return "stub".equals( provider );
-    }
+            timer.start( "upload" );
+            final LoginCredentials loginCredentials = getLoginCredentials();
+            final FileUploader toUpload = uploader;
+            Map<NodeMetadata, NodeOutcome> outcomes =
+                newScriptExecutor().run( nodes.keySet(), new ScriptExecutor.NodeTask()
+                {
+                    public ExecResponse run( NodeMetadata node )
+                        throws Exception
+                    {
+                        toUpload.upload( nodes.get( node ), node, loginCredentials );
+                        return new ExecResponse( "", "", 0 );
+                    }
+                } );
+            timer.stop();
+
+            List<Map<String, Object>> results = Lists.newArrayList();
+            for ( NodeOutcome outcome : outcomes.values() )
+            {
+                Map<String, Object> result = outcome.toMap();
+                String id = outcome.getNode().getId();
+                if ( outcome.getStatus() == NodeOutcome.Status.SUCCESS )
+                {
+                    double mbPerSecond = bytes / 1048576.0 / Math.max( 1, outcome.getMillis() ) * 1000;
+                    result.put( "bytes", bytes );
+                    result.put( "mb_per_second", mbPerSecond );
+                    msg = format( "Uploaded %d bytes to %s in %d ms, %.2f MB/s%n", bytes, id, outcome.getMillis(),
+                                  mbPerSecond );
+                }
+                else
+                {
+                    errors.put( id, String.valueOf( outcome.getError().getMessage() ) );
+                    msg =
+                        format( "Upload to %s %s after %d ms: %s%n", id,
+                                outcome.getStatus().name().toLowerCase().replace( '_', ' ' ), outcome.getMillis(),
+                                outcome.getError().getMessage() );
+                }
+                results.add( result );
+                logger.debug( msg );
+                outputWriter.write( msg );
+            }
+            setResultsField( "upload_results", results );
 
-    private String processHostname()
-    {
-        String hostname = getField( "hostname" );
-        if ( isEmpty( hostname ) )
-        {
-            // set name to the agent that created the node
-            try
+            if ( errors.isEmpty() )
             {
-                hostname = format( "maestro-%s", InetAddress.getLocalHost().getHostName() );
+                msg = "Done uploading\n";
             }
-            catch ( UnknownHostException e )
+            else
             {
-                hostname = "maestro-localhost";
+                msg = format( "Upload failed in %d of %d machines: %s%n", errors.size(), machines.size(), errors );
+                setError( msg );
             }
+            logger.debug( msg );
+            outputWriter.write( msg );
         }
-        return hostname;
-    }
-
-    private void executeScripts( ComputeService compute, LoginCredentials loginCredentials,
-                                 Predicate<NodeMetadata> predicate, List<String> sshCommands, String provisionCommand )
-        throws RunScriptOnNodesException
-    {
-        // execute commands after instance is up
-        List<String> commands;
-        if ( sshCommands == null )
+        catch ( AuthorizationException e )
         {
-            commands = Collections.emptyList();
+            logger.error( format( "Error uploading: authorization error for key id %s", identity ), e );
+            setError( format( "Error uploading: authorization error for key id %s: %s", identity, e.getMessage() ) );
         }
-        else
+        catch ( IOException e )
         {
-            commands = Lists.newArrayList( sshCommands );
+            logger.error( "Error preparing the files to upload", e );
+            setError( format( "Error preparing the files to upload: %s", e.getMessage() ) );
         }
-
-        List<Statement> statements = Lists.newArrayList();
-        for ( String command : commands )
+        catch ( IllegalArgumentException e )
         {
-            statements.add( Statements.exec( command ) );
+            logger.error( "Error uploading", e );
+            setError( format( "Error uploading: %s", e.getMessage() ) );
         }
-        if ( !isEmpty( provisionCommand ) )
+        catch ( InterruptedException e )
         {
-            statements.add( Statements.exec( provisionCommand ) );
+            Thread.currentThread().interrupt();
+            setError( "Interrupted uploading files" );
         }
-
-        // when you run commands, you can pass options to decide whether to
-        // run it as root, supply or own credentials vs from cache, and wrap
-        // in an init script vs directly invoke
-        if ( !statements.isEmpty() )
+        finally
         {
-            Map<? extends NodeMetadata, ExecResponse> responses =
-                compute.runScriptOnNodesMatching( predicate,
-                                                  Statements.newStatementList( statements.toArray( new Statement[0] ) ),
-                                                  overrideLoginCredentials( loginCredentials ) );
-
-            for ( Entry<? extends NodeMetadata, ExecResponse> entry : responses.entrySet() )
+            if ( uploader != null )
             {
-                NodeMetadata node = entry.getKey();
-                ExecResponse response = entry.getValue();
-                String msg =
-                    format( "SSH commands in node %s finished with status %d:%n%s%n", node.getId(),
-                            response.getExitStatus(), response.getOutput() );
-                logger.debug( msg );
-                writeOutput( msg );
+                uploader.close();
             }
+            regional.release();
+            publishTimings( timer, provider, regions );
         }
     }
 
-    @SuppressWarnings( "unchecked" )
+    /**
+     * Cloud Reap task, destroys the machines of the maestro group that are older than the ttl or whose name matches a
+     * pattern, left behind by pipelines that failed or were cancelled before deprovisioning them
+     */
+    public void reap()
+    {
+        try
+        {
+            reapNodes();
+        }
+        finally
+        {
+            // all the output is sent before the task result
+            outputWriter.flush();
+        }
+    }
+
+    private void reapNodes()
+    {
+        String msg = "Starting reaping\n";
+        logger.info( msg );
+        outputWriter.write( msg );
+
+        String provider = getField( "type" );
+        String identity = getField( "key_id" );
+        String credential = getField( "key" );
+        String namePattern = getField( "name_pattern" );
+        boolean dryRun = getBooleanField( "dry_run", false );
+        int ttl;
+        int batchSize;
+        int interval;
+        try
+        {
+            ttl = getIntField( "ttl", 0 );
+            batchSize = getIntField( "batch_size", 10 );
+            interval = getIntField( "reap_interval", 60 );
+        }
+        catch ( IllegalArgumentException e )
+        {
+            setError( e.getMessage() );
+            return;
+        }
+        String region = contextRegion( provider, getField( "availability_zone" ) );
+
+        // a reap without background stops the background reaping of the same account and zone
+        boolean background = getBooleanField( "background", false );
+        if ( !background && NodeReaper.cancel( NodeReaper.key( provider, identity, region ) ) )
+        {
+            msg = "Stopped reaping in the background\n";
+            logger.info( msg );
+            outputWriter.write( msg );
+        }
+
+        if ( ttl <= 0 && isEmpty( namePattern ) )
+        {
+            setError( "Either ttl or name_pattern is required to find the machines to reap" );
+            return;
+        }
+        NodeReaper reaper;
+        try
+        {
+            reaper =
+                new NodeReaper( JCLOUDS_GROUP_NAME, TimeUnit.HOURS.toMillis( ttl ),
+                                isEmpty( namePattern ) ? null : Pattern.compile( namePattern ) );
+        }
+        catch ( PatternSyntaxException e )
+        {
+            setError( format( "Invalid name_pattern %s: %s", namePattern, e.getMessage() ) );
+            return;
+        }
+
+        PhaseTimer timer = new PhaseTimer();
+        ComputeService compute = null;
+        try
+        {
+            timer.start( "context" );
+            compute = initComputeService( provider, identity, credential, region );
+            timer.start( "reap" );
+            NodeReaper.Result result = reaper.reap( compute, provider, identity, region, dryRun, batchSize );
+            timer.stop();
+
+            List<String> stale = Lists.newArrayList( ids( result.getStale() ) );
+            setListField( "reaped", dryRun ? stale : Lists.newArrayList( result.getDestroyed() ) );
+            setField( "instance_hours", format( "%.1f", result.getInstanceHours() ) );
+            if ( dryRun )
+            {
+                msg =
+                    format( "Would reap %d machines running for %.1f instance hours: %s%n", stale.size(),
+                            result.getInstanceHours(), stale );
+            }
+            else
+            {
+                msg =
+                    format( "Reaped %d machines running for %.1f instance hours: %s%n", result.getDestroyed().size(),
+                            result.getInstanceHours(), result.getDestroyed() );
+            }
+            logger.info( msg );
+            outputWriter.write( msg );
+            if ( !result.getErrors().isEmpty() )
+            {
+                msg =
+                    format( "Unable to reap %d machines: %s%n", result.getErrors().size(),
+                            describeErrors( result.getErrors() ) );
+                setError( msg );
+                outputWriter.write( msg );
+            }
+
+            if ( background )
+            {
+                reaper.scheduleInBackground( contextPool, provider, identity, credential, region, dryRun, batchSize,
+                                             TimeUnit.MINUTES.toMillis( Math.max( 1, interval ) ) );
+                msg = format( "Reaping every %d minutes in the background%n", Math.max( 1, interval ) );
+                logger.info( msg );
+                outputWriter.write( msg );
+            }
+        }
+        catch ( AuthorizationException e )
+        {
+            logger.error( format( "Error reaping: authorization error for key id %s", identity ), e );
+            setError( format( "Error reaping: authorization error for key id %s: %s", identity, e.getMessage() ) );
+        }
+        finally
+        {
+            releaseComputeService( compute );
+            publishTimings( timer, provider, region );
+        }
+    }
+
+    private static boolean exists( Collection<Map<String, NodeMetadata>> resolved, String id )
+    {
+        for ( Map<String, NodeMetadata> nodes : resolved )
+        {
+            if ( nodes.containsKey( id ) )
+            {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Cloud Await task, waits until the machines started by an async provision are bootstrapped and have run their
+     * commands
+     */
+    public void await()
+    {
+        try
+        {
+            awaitNodes();
+        }
+        finally
+        {
+            // all the output is sent before the task result
+            outputWriter.flush();
+        }
+    }
+
+    private void awaitNodes()
+    {
+        String msg = "Waiting for machines\n";
+        logger.debug( msg );
+        outputWriter.write( msg );
+
+        List<String> machines = getArrayField( String.class, "machines" );
+        int timeout = getIntField( "await_timeout", 20 );
+
+        PendingNodes pending = PendingNodes.getInstance();
+        long deadline = System.currentTimeMillis() + TimeUnit.MINUTES.toMillis( timeout );
+        List<String> ready = Lists.newArrayList();
+        Map<String, String> errors = Maps.newLinkedHashMap();
+        for ( String id : machines )
+        {
+            PendingNode node = pending.get( id );
+            if ( node == null )
+            {
+                errors.put( id, "not started by an async provision in this agent, or already awaited" );
+                continue;
+            }
+            try
+            {
+                long wait = Math.max( 0, deadline - System.currentTimeMillis() );
+                ExecResponse response = node.getFuture().get( wait, TimeUnit.MILLISECONDS );
+                ready.add( id );
+                if ( response == null )
+                {
+                    msg = format( "Machine %s ready in %d ms%n", id, node.getElapsed() );
+                }
+                else
+                {
+                    msg =
+                        format( "Machine %s ready in %d ms, SSH commands finished with status %d:%n%s%n", id,
+                                node.getElapsed(), response.getExitStatus(), response.getOutput() );
+                }
+                logger.debug( msg );
+                outputWriter.write( msg );
+                // the output references its files until sent
+                outputWriter.flush();
+                pending.remove( id );
+            }
+            catch ( ExecutionException e )
+            {
+                pending.remove( id );
+                errors.put( id, String.valueOf( e.getCause().getMessage() ) );
+            }
+            catch ( TimeoutException e )
+            {
+                // still pending, can be awaited again
+                errors.put( id, format( "not ready after %d minutes, %s", timeout, node.getState() ) );
+            }
+            catch ( InterruptedException e )
+            {
+                Thread.currentThread().interrupt();
+                errors.put( id, "interrupted" );
+                break;
+            }
+        }
+
+        setListField( "ready", ready );
+        setListField( "failures", listFailures( errors ) );
+        if ( errors.isEmpty() )
+        {
+            setField( "body", format( "Machines ready: %s", ready ) );
+            msg = "Done waiting for machines\n";
+        }
+        else
+        {
+            msg = format( "%d of %d machines not ready: %s%n", errors.size(), machines.size(), errors );
+            setError( msg );
+        }
+        logger.debug( msg );
+        outputWriter.write( msg );
+    }
+
+    /**
+     * Bootstrap the new nodes and run the commands in all of them in the background, tracking each node in
+     * {@link PendingNodes} until it is awaited
+     *
+     * @param created nodes that need the bootstrap, the rest were already bootstrapped in the standby pool
+     */
+    private void awaitInBackground( final ComputeService compute, LaunchSpec spec, Set<NodeMetadata> nodes,
+                                    Set<NodeMetadata> created, List<String> sshCommands, String provisionCommand )
+    {
+        Statement script = commandScript( sshCommands, provisionCommand );
+        ListenableFuture<List<ExecResponse>> done =
+            PendingNodes.getInstance().start( compute, spec, nodes, created,
+                                              script == null ? null : script.render( OsFamily.UNIX ),
+                                              getIntField( "output_head_lines", 100 ),
+                                              getIntField( "output_buffer_lines", 1000 ) );
+        done.addListener( new Runnable()
+        {
+            public void run()
+            {
+                releaseComputeService( compute );
+            }
+        }, MoreExecutors.sameThreadExecutor() );
+    }
+
+    /**
+     * Report the nodes left behind by provisions of a previous run of the agent that never completed, and destroy them
+     * if destroy_orphans is set. Only done the first time the provider, identity and region are used.
+     *
+     * @param region the region the context is scoped to, null if it talks to all of them
+     */
+    private void reconcileOrphans( ComputeService compute, String provider, String identity, String region )
+    {
+        if ( !OrphanReconciler.firstTime( provider, identity, region ) )
+        {
+            return;
+        }
+        boolean destroy = getBooleanField( "destroy_orphans", false );
+        try
+        {
+            OrphanReconciler reconciler = new OrphanReconciler( ProvisioningJournal.getInstance(), JCLOUDS_GROUP_NAME );
+            List<NodeMetadata> orphans = reconciler.reconcile( compute, provider, identity, region, destroy );
+            if ( !orphans.isEmpty() )
+            {
+                String msg =
+                    format( "%s %d machines left behind by provisions that never completed: %s%n",
+                            destroy ? "Destroyed" : "Found", orphans.size(), ids( orphans ) );
+                logger.warn( msg );
+                outputWriter.write( msg );
+            }
+        }
+        catch ( RuntimeException e )
+        {
+            // never fail the task because of it
+            logger.warn( "Error reconciling orphaned machines", e );
+        }
+    }
+
+    private static List<String> listFailures( Map<String, String> failures )
+    {
+        List<String> failed = Lists.newArrayList();
+        for ( Entry<String, String> failure : failures.entrySet() )
+        {
+            failed.add( format( "%s: %s", failure.getKey(), failure.getValue() ) );
+        }
+        return failed;
+    }
+
+    /**
+     * Point the name to the addresses and record it in the dns_records field, so the deprovision deletes it
+     */
+    private void registerDns( String accessKey, String secretKey, String domain, String name,
+                              List<String> addresses )
+    {
+        try
+        {
+            long ttl = getIntField( "dns_ttl", DEFAULT_DNS_TTL );
+            List<ListenableFuture<ChangeInfo>> futures =
+                Route53Registrar.forCredentials( accessKey, secretKey ).register( domain, name, addresses, ttl );
+            if ( !futures.isEmpty() )
+            {
+                outputWriter.write( format( "Submitted DNS record %s in %d batches%n", name, futures.size() ) );
+                setListField( "dns_records", Collections.singletonList( name ) );
+            }
+        }
+        catch ( RuntimeException e )
+        {
+            writeDnsError( domain, e );
+        }
+    }
+
+    private void unregisterDns( String accessKey, String secretKey, String domain, List<String> names )
+    {
+        try
+        {
+            List<ListenableFuture<ChangeInfo>> futures =
+                Route53Registrar.forCredentials( accessKey, secretKey ).unregister( domain, names );
+            outputWriter.write( format( "Submitted %d DNS record changes in %d batches%n", names.size(),
+                                        futures.size() ) );
+        }
+        catch ( RuntimeException e )
+        {
+            writeDnsError( domain, e );
+        }
+    }
+
+    /**
+     * A failed DNS change doesn't undo the machines, it is only reported
+     */
+    private void writeDnsError( String domain, RuntimeException e )
+    {
+        String msg = format( "Error changing DNS records in %s: %s%n", domain, e.getMessage() );
+        logger.warn( msg, e );
+        outputWriter.write( msg );
+    }
+
+    /**
+     * Write the time taken by each phase of the task to the timings field and publish it over JMX
+     */
+    private void publishTimings( PhaseTimer timer, String provider, String region )
+    {
+        publishTimings( timer, provider, Collections.singleton( region ) );
+    }
+
+    /**
+     * Write the time taken by each phase of the task to the timings field and publish it over JMX for each of the
+     * regions, which the task went through in parallel
+     */
+    @SuppressWarnings( "unchecked" )
+    private void publishTimings( PhaseTimer timer, String provider, Collection<String> regions )
+    {
+        timer.stop();
+        Map<String, Long> millis = timer.getMillis();
+        getFields().put( "timings", millis );
+        logger.info( "Timings: {}", millis );
+        for ( String region : regions )
+        {
+            PhaseMetrics.getInstance().recordAll( provider, region, timer.getNanos(), getError() != null );
+        }
+    }
+
+    /**
+     * Get the jClouds compute service API to run all our operations
+     * 
+     * @param provider supported provider from http://www.jclouds.org/documentation/reference/supported-providers, ie.
+     *            aws-ec2
+     * @param identity
+     * @param credential
+     * @return
+     */
+    private ComputeService initComputeService( String provider, String identity, String credential, String region )
+    {
+        computeService = contextPool.acquire( provider, identity, credential, region ).getComputeService();
+        return computeService;
+    }
+
+    /**
+     * Claim up to count nodes from the standby pool, if the standby_pool field enables it. The pool for this launch
+     * configuration is (re)configured with the task watermarks and refilled in the background.
+     */
+    private List<NodeMetadata> claimStandbyNodes( ComputeService compute, LaunchSpec spec, String identity,
+                                                  String credential, int count )
+    {
+        int high = getIntField( "standby_pool", 0 );
+        if ( high <= 0 )
+        {
+            return Collections.emptyList();
+        }
+        int low = getIntField( "standby_low", Math.max( 1, high / 2 ) );
+        long idleTtl = TimeUnit.MINUTES.toMillis( getIntField( "standby_ttl", 60 ) );
+
+        StandbyPool pool = StandbyPool.getInstance();
+        pool.configure( StandbyPool.key( spec, identity ), low, high, idleTtl,
+                        new StandbyNodeFactory( contextPool, identity, credential, spec ) );
+        long start = System.nanoTime();
+        List<NodeMetadata> claimed = pool.claim( compute, spec, identity, count );
+
+        String msg =
+            format( "Claimed %d standby nodes in %d ms, %d more needed. Pool claims: %d, misses: %d, mean claim: %.1f ms%n",
+                    claimed.size(), TimeUnit.NANOSECONDS.toMillis( System.nanoTime() - start ),
+                    count - claimed.size(), pool.getClaims(), pool.getMisses(), pool.getMeanClaimMillis() );
+        logger.info( msg );
+        outputWriter.write( msg );
+        return claimed;
+    }
+
+    /**
+     * Give back the context obtained in {@link #initComputeService(String, String, String)} to the pool
+     */
+    private void releaseComputeService( ComputeService compute )
+    {
+        if ( compute != null )
+        {
+            contextPool.release( compute.getContext() );
+        }
+    }
+
+    private String processHostname()
+    {
+        String hostname = getField( "hostname" );
+        if ( isEmpty( hostname ) )
+        {
+            // set name to the agent that created the node
+            try
+            {
+                hostname = format( "maestro-%s", InetAddress.getLocalHost().getHostName() );
+            }
+            catch ( UnknownHostException e )
+            {
+                hostname = "maestro-localhost";
+            }
+        }
+        return hostname;
+    }
+
+    void executeScripts( ComputeService compute, LoginCredentials loginCredentials,
+                         Iterable<? extends NodeMetadata> nodes, List<String> sshCommands, String provisionCommand )
+        throws RunScriptOnNodesException
+    {
+        // when you run commands, you can pass options to decide whether to
+        // run it as root, supply or own credentials vs from cache, and wrap
+        // in an init script vs directly invoke
+        Statement script = commandScript( sshCommands, provisionCommand );
+        if ( script != null )
+        {
+            runScript( compute, loginCredentials, nodes, script, getBooleanField( "stream_output", false ),
+                       "ssh_results" );
+        }
+    }
+
+    /**
+     * @return the ssh commands followed by the provision command in one script, null if there is nothing to run
+     */
+    static Statement commandScript( List<String> sshCommands, String provisionCommand )
+    {
+        // execute commands after instance is up
+        List<String> commands;
+        if ( sshCommands == null )
+        {
+            commands = Collections.emptyList();
+        }
+        else
+        {
+            commands = Lists.newArrayList( sshCommands );
+        }
+
+        List<Statement> statements = Lists.newArrayList();
+        for ( String command : commands )
+        {
+            statements.add( Statements.exec( command ) );
+        }
+        if ( !isEmpty( provisionCommand ) )
+        {
+            statements.add( Statements.exec( provisionCommand ) );
+        }
+
+        if ( statements.isEmpty() )
+        {
+            return null;
+        }
+        return Statements.newStatementList( statements.toArray( new Statement[0] ) );
+    }
+
+    /**
+     * Run the script in the nodes, going to each node by id instead of listing all of them. At most ssh_parallelism
+     * nodes run it at the same time, each for at most ssh_timeout minutes. With ssh_policy fail_fast the rest of the
+     * nodes are cancelled as soon as one fails.
+     * 
+     * @param stream write the output as it is produced instead of when the script finishes
+     * @param resultsField field where the outcome of each node is saved, null to not save it
+     */
+    private void runScript( final ComputeService compute, final LoginCredentials loginCredentials,
+                            Iterable<? extends NodeMetadata> nodes, final Statement script, final boolean stream,
+                            String resultsField )
+        throws RunScriptOnNodesException
+    {
+        final String rendered = script.render( OsFamily.UNIX );
+        final int headLines = getIntField( "output_head_lines", 100 );
+        final int tailLines = getIntField( "output_buffer_lines", 1000 );
+        final StreamingScriptRunner runner = newScriptRunner( headLines, tailLines );
+        final StreamingScriptRunner.LineSink sink = new StreamingScriptRunner.LineSink()
+        {
+            public void lines( NodeMetadata node, List<String> lines )
+            {
+                String prefix = format( "[%s] ", node.getId() );
+                outputWriter.write( prefix + Joiner.on( format( "%n%s", prefix ) ).join( lines ) + format( "%n" ) );
+            }
+        };
+
+        ScriptExecutor executor = newScriptExecutor();
+        Map<NodeMetadata, NodeOutcome> outcomes;
+        try
+        {
+            outcomes = executor.run( Lists.newArrayList( nodes ), new ScriptExecutor.NodeTask()
+            {
+                public ExecResponse run( NodeMetadata node )
+                    throws Exception
+                {
+                    // without streaming the output is only written once the script finishes
+                    return runner.run( compute, node, loginCredentials, rendered,
+                                       stream ? sink : StreamingScriptRunner.DISCARD );
+                }
+            } );
+        }
+        catch ( InterruptedException e )
+        {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException( "Interrupted running scripts", e );
+        }
+
+        Map<NodeMetadata, ExecResponse> responses = Maps.newLinkedHashMap();
+        Map<NodeMetadata, Throwable> errors = Maps.newLinkedHashMap();
+        List<Map<String, Object>> results = Lists.newArrayList();
+        for ( NodeOutcome outcome : outcomes.values() )
+        {
+            NodeMetadata node = outcome.getNode();
+            results.add( outcome.toMap() );
+            ExecResponse response = outcome.getResponse();
+            String msg;
+            if ( outcome.getStatus() != NodeOutcome.Status.SUCCESS )
+            {
+                errors.put( node, outcome.getError() );
+                msg =
+                    format( "SSH commands in node %s %s after %d ms: %s%n", node.getId(),
+                            outcome.getStatus().name().toLowerCase().replace( '_', ' ' ), outcome.getMillis(),
+                            outcome.getError().getMessage() );
+                if ( response != null && !stream )
+                {
+                    msg += format( "%s%n", response.getOutput() );
+                }
+            }
+            else if ( stream )
+            {
+                responses.put( node, response );
+                msg =
+                    format( "SSH commands in node %s finished with status %d%n", node.getId(),
+                            response.getExitStatus() );
+            }
+            else
+            {
+                responses.put( node, response );
+                msg =
+                    format( "SSH commands in node %s finished with status %d:%n%s%n", node.getId(),
+                            response.getExitStatus(), response.getOutput() );
+            }
+            logger.debug( msg );
+            outputWriter.write( msg );
+        }
+        if ( resultsField != null )
+        {
+            setResultsField( resultsField, results );
+        }
+
+        if ( !errors.isEmpty() )
+        {
+            throw new RunScriptOnNodesException( script, null, responses, Collections.<Object, Exception> emptyMap(),
+                                                 errors );
+        }
+    }
+
+    /**
+     * @return a runner whose output files are kept until the task ends
+     */
+    private StreamingScriptRunner newScriptRunner( int headLines, int tailLines )
+    {
+        StreamingScriptRunner runner = new StreamingScriptRunner( headLines, tailLines );
+        runners.add( runner );
+        return runner;
+    }
+
+    /**
+     * The output of the task was sent, the files with the output that did not fit can be cleaned up
+     */
+    private void releaseOutput()
+    {
+        for ( StreamingScriptRunner runner : runners )
+        {
+            runner.release();
+        }
+        runners.clear();
+    }
+
+    /**
+     * Script executor configured from the ssh_parallelism, ssh_timeout and ssh_policy fields
+     */
+    private ScriptExecutor newScriptExecutor()
+    {
+        int parallelism = getIntField( "ssh_parallelism", DEFAULT_SSH_PARALLELISM );
+        long timeout = TimeUnit.MINUTES.toMillis( getIntField( "ssh_timeout", DEFAULT_SSH_TIMEOUT ) );
+        return new ScriptExecutor( parallelism, timeout, getSshPolicy() );
+    }
+
+    /**
+     * @return the policy of the ssh_policy field, best effort if not set
+     * @throws IllegalArgumentException if the field is not one of the policies
+     */
+    private ScriptExecutor.Policy getSshPolicy()
+    {
+        String policy = getField( "ssh_policy" );
+        if ( isBlank( policy ) )
+        {
+            return ScriptExecutor.Policy.BEST_EFFORT;
+        }
+        try
+        {
+            return ScriptExecutor.Policy.valueOf( policy.trim().toUpperCase().replace( '-', '_' ) );
+        }
+        catch ( IllegalArgumentException e )
+        {
+            throw new IllegalArgumentException( format( "Invalid ssh_policy %s, either best_effort or fail_fast",
+                                                        policy ) );
+        }
+    }
+
+    @SuppressWarnings( "unchecked" )
     private void machinePush( String instanceId )
     {
         List<String> machines = getArrayField( String.class, "machines" );
@@ -450,6 +1529,61 @@ public class CloudWorker
         getFields().put( "machines", machines );
     }
 
+    @SuppressWarnings( "unchecked" )
+    private void setListField( String name, List<String> values )
+    {
+        getFields().put( name, values );
+    }
+
+    @SuppressWarnings( "unchecked" )
+    private void setResultsField( String name, List<Map<String, Object>> results )
+    {
+        getFields().put( name, results );
+    }
+
+    /**
+     * Read a numeric field that may come as a JSON number or as a string
+     *
+     * @throws IllegalArgumentException if the field is not a number
+     */
+    protected int getIntField( String name, int defaultValue )
+    {
+        Object value = getFields().get( name );
+        if ( value instanceof Number )
+        {
+            return ( (Number) value ).intValue();
+        }
+        if ( value == null || isBlank( value.toString() ) )
+        {
+            return defaultValue;
+        }
+        try
+        {
+            return Integer.parseInt( value.toString().trim() );
+        }
+        catch ( NumberFormatException e )
+        {
+            throw new IllegalArgumentException( format( "Invalid %s %s, a number is expected", name, value ) );
+        }
+    }
+
+    /**
+     * Read a boolean field that may come as a JSON boolean or as a string
+     */
+    protected boolean getBooleanField( String name, boolean defaultValue )
+    {
+        Object value = getFields().get( name );
+        if ( value instanceof Boolean )
+        {
+            return (Boolean) value;
+        }
+        if ( value == null || isBlank( value.toString() ) )
+        {
+            return defaultValue;
+        }
+        return Boolean.parseBoolean( value.toString().trim() );
+    }
+
     protected LoginCredentials getLoginCredentials()
     {
         String sshUser = getField( "ssh_user" );
@@ -490,12 +1624,45 @@ public class CloudWorker
         return LoginCredentials.builder().user( user ).privateKey( privateKeyString ).build();
     }
 
-    private String printExecutionErrors( Map<?, ? extends Throwable> errors, String msg )
+    private Map<String, String> describeErrors( Map<?, ? extends Throwable> errors )
     {
+        Map<String, String> descriptions = Maps.newLinkedHashMap();
         for ( Entry<?, ? extends Throwable> entry : errors.entrySet() )
         {
-            msg.concat( format( "Error %s: %s", entry.getKey(), entry.getValue().getMessage() ) );
+            Object key = entry.getKey();
+            String id = key instanceof NodeMetadata ? ( (NodeMetadata) key ).getId() : String.valueOf( key );
+            descriptions.put( id, entry.getValue().getMessage() );
         }
-        return msg;
+        return descriptions;
     }
+
+    /**
+     * Errors of the nodes, which also include errors running the scripts
+     */
+    private static Map<Object, Throwable> allErrors( RunScriptOnNodesException e )
+    {
+        Map<Object, Throwable> errors = Maps.newLinkedHashMap();
+        errors.putAll( e.getNodeErrors() );
+        errors.putAll( e.getExecutionErrors() );
+        return errors;
+    }
+
+    private static Map<Object, Throwable> allErrors( RunNodesException e )
+    {
+        Map<Object, Throwable> errors = Maps.newLinkedHashMap();
+        errors.putAll( e.getNodeErrors() );
+        errors.putAll( e.getExecutionErrors() );
+        return errors;
+    }
+
+    private String printExecutionErrors( Map<?, ? extends Throwable> errors, String msg )
+    {
+        StringBuilder sb = new StringBuilder( msg );
+        for ( Entry<String, String> entry : describeErrors( errors ).entrySet() )
+        {
+            sb.append( format( "Error %s: %s%n", entry.getKey(), entry.getValue() ) );
+        }
+        return sb.toString();
+    }
+
 }
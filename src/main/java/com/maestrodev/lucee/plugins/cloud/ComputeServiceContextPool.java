@@ -0,0 +1,370 @@
+package com.maestrodev.lucee.plugins.cloud;
+
+import static com.google.common.base.Charsets.*;
+import static com.maestrodev.lucee.plugins.cloud.ProviderRegistry.isStub;
+import static org.jclouds.aws.ec2.reference.AWSEC2Constants.*;
+import static org.jclouds.compute.config.ComputeServiceProperties.*;
+import static org.jclouds.location.reference.LocationConstants.PROPERTY_REGIONS;
+
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.SortedMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.jclouds.ContextBuilder;
+import org.jclouds.compute.ComputeServiceContext;
+import org.jclouds.enterprise.config.EnterpriseConfigurationModule;
+import org.jclouds.logging.slf4j.config.SLF4JLoggingModule;
+import org.jclouds.sshj.config.SshjSshClientModule;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.base.Function;
+import com.google.common.base.Objects;
+import com.google.common.base.Supplier;
+import com.google.common.collect.ImmutableSortedMap;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.hash.Hashing;
+import com.google.inject.Module;
+
+/**
+ * Process wide pool of jclouds {@link ComputeServiceContext}s, so consecutive tasks against the same cloud account
+ * reuse an already initialized context instead of building a new Guice injector each time.
+ * <p>
+ * Contexts are reference counted: a context is only closed once it has no leases and has been idle for longer than
+ * the configured maximum idle time.
+ */
+public class ComputeServiceContextPool
+{
+
+    /** max idle time in seconds before an unused context is closed */
+    public static final String PROPERTY_MAX_IDLE = "maestro.cloud.context.maxIdle";
+
+    private static final long DEFAULT_MAX_IDLE = TimeUnit.MINUTES.toMillis( 10 );
+
+    private static final ComputeServiceContextPool instance =
+        new ComputeServiceContextPool( Long.getLong( PROPERTY_MAX_IDLE, TimeUnit.MILLISECONDS.toSeconds( DEFAULT_MAX_IDLE ) )
+            * 1000 );
+
+    private final Logger logger = LoggerFactory.getLogger( this.getClass() );
+
+    private final Map<Key, Entry> entries = Maps.newHashMap();
+
+    private final long maxIdle;
+
+    private final Function<ComputeServiceContext, ComputeServiceContext> decorator;
+
+    private final AtomicLong hits = new AtomicLong();
+
+    private final AtomicLong misses = new AtomicLong();
+
+    private final AtomicLong evictions = new AtomicLong();
+
+    private ScheduledExecutorService sweeper;
+
+    public static ComputeServiceContextPool getInstance()
+    {
+        return instance;
+    }
+
+    /**
+     * @param maxIdle time in milliseconds a context without leases is kept open
+     */
+    public ComputeServiceContextPool( long maxIdle )
+    {
+        this( maxIdle, null );
+    }
+
+    /**
+     * @param maxIdle time in milliseconds a context without leases is kept open
+     * @param decorator applied to the contexts built, ie. to run the load tests against a simulated cloud, null to use
+     *            them as built
+     */
+    public ComputeServiceContextPool( long maxIdle, Function<ComputeServiceContext, ComputeServiceContext> decorator )
+    {
+        this.maxIdle = maxIdle;
+        this.decorator = decorator;
+    }
+
+    /**
+     * Lease a context for the given key, building it with the supplier if there is none in the pool. Every call must
+     * be matched with a {@link #release(ComputeServiceContext)}.
+     */
+    public ComputeServiceContext acquire( Key key, Supplier<ComputeServiceContext> supplier )
+    {
+        Entry entry;
+        synchronized ( this )
+        {
+            evictIdle( System.currentTimeMillis() );
+            entry = entries.get( key );
+            if ( entry == null )
+            {
+                entry = new Entry( key );
+                entries.put( key, entry );
+            }
+            entry.leases++;
+            startSweeper();
+        }
+
+        // build outside of the pool lock, other keys should not wait for a slow provider
+        synchronized ( entry )
+        {
+            if ( entry.context == null )
+            {
+                misses.incrementAndGet();
+                logger.debug( "Context pool miss for {}", key );
+                try
+                {
+                    ComputeServiceContext context = supplier.get();
+                    entry.context = decorator != null ? decorator.apply( context ) : context;
+                }
+                catch ( RuntimeException e )
+                {
+                    synchronized ( this )
+                    {
+                        entry.leases--;
+                        if ( entry.leases == 0 && entries.get( key ) == entry )
+                        {
+                            entries.remove( key );
+                        }
+                    }
+                    throw e;
+                }
+            }
+            else
+            {
+                hits.incrementAndGet();
+                logger.debug( "Context pool hit for {}", key );
+            }
+            return entry.context;
+        }
+    }
+
+    /**
+     * Lease a context for the account, building it with the logging and ssh modules if there is none in the pool.
+     * Every call must be matched with a {@link #release(ComputeServiceContext)}.
+     *
+     * @param region only talk to this region, null for all of them
+     */
+    public ComputeServiceContext acquire( final String provider, final String identity, final String credential,
+                                          String region )
+    {
+        // example of specific properties, in this case optimizing image list to
+        // only amazon supplied
+        final Properties properties = new Properties();
+
+        // don't prefetch Alestic, Canonical, RightScale images
+        properties.setProperty( PROPERTY_EC2_AMI_QUERY, "" );
+
+        // don't connect to all regions, the region is part of the pool key so each region has its own context
+        if ( region != null )
+        {
+            properties.setProperty( PROPERTY_REGIONS, region );
+        }
+        properties.setProperty( PROPERTY_EC2_CC_REGIONS, "" );
+
+        // without this it won't find the AMI
+        properties.setProperty( PROPERTY_EC2_CC_AMI_QUERY, "" );
+
+        long scriptTimeout = TimeUnit.MILLISECONDS.convert( 20, TimeUnit.MINUTES );
+        properties.setProperty( TIMEOUT_SCRIPT_COMPLETE, String.valueOf( scriptTimeout ) );
+
+        logger.info( "Connecting to cloud {}", provider );
+
+        // reuse a warm context from a previous task with the same account if there is one
+        return acquire( new Key( provider, identity, credential, properties ), new Supplier<ComputeServiceContext>()
+        {
+            public ComputeServiceContext get()
+            {
+                // injecting logging and ssh implementation
+                List<Module> modules =
+                    Lists.<Module> newArrayList( new SLF4JLoggingModule(), new EnterpriseConfigurationModule() );
+                // stub provider will fail with a ssh implementation
+                // see https://groups.google.com/forum/?hl=en&fromgroups#!topic/jclouds/USdRVB0IZ3U
+                if ( !isStub( provider ) )
+                {
+                    modules.add( new SshjSshClientModule() );
+                }
+
+                // only the metadata of this provider is loaded
+                ContextBuilder builder =
+                    ProviderRegistry.getInstance().newContextBuilder( provider ).credentials( identity, credential )
+                        .modules( modules ).overrides( properties );
+
+                logger.debug( "Initializing cloud {}", builder.getApiMetadata() );
+                return builder.buildView( ComputeServiceContext.class );
+            }
+        } );
+    }
+
+    /**
+     * Return a context previously obtained with {@link #acquire(Key, Supplier)}
+     */
+    public synchronized void release( ComputeServiceContext context )
+    {
+        for ( Entry entry : entries.values() )
+        {
+            if ( entry.context == context )
+            {
+                entry.leases--;
+                entry.lastReleased = System.currentTimeMillis();
+                break;
+            }
+        }
+        evictIdle( System.currentTimeMillis() );
+    }
+
+    /**
+     * Close contexts that have no leases and have been idle for longer than the max idle time
+     *
+     * @return number of contexts closed
+     */
+    public synchronized int evictIdle( long now )
+    {
+        int evicted = 0;
+        for ( Iterator<Entry> it = entries.values().iterator(); it.hasNext(); )
+        {
+            Entry entry = it.next();
+            if ( entry.leases <= 0 && entry.context != null && ( now - entry.lastReleased ) >= maxIdle )
+            {
+                it.remove();
+                evicted++;
+                evictions.incrementAndGet();
+                logger.debug( "Closing idle context for {}", entry.key );
+                try
+                {
+                    entry.context.close();
+                }
+                catch ( RuntimeException e )
+                {
+                    logger.warn( "Error closing context for " + entry.key, e );
+                }
+            }
+        }
+        return evicted;
+    }
+
+    public synchronized int size()
+    {
+        return entries.size();
+    }
+
+    public long getHits()
+    {
+        return hits.get();
+    }
+
+    public long getMisses()
+    {
+        return misses.get();
+    }
+
+    public long getEvictions()
+    {
+        return evictions.get();
+    }
+
+    private void startSweeper()
+    {
+        if ( sweeper != null || maxIdle <= 0 )
+        {
+            return;
+        }
+        sweeper = Executors.newSingleThreadScheduledExecutor( new ThreadFactory()
+        {
+            public Thread newThread( Runnable r )
+            {
+                Thread thread = new Thread( r, "maestro-cloud-context-sweeper" );
+                thread.setDaemon( true );
+                return thread;
+            }
+        } );
+        sweeper.scheduleWithFixedDelay( new Runnable()
+        {
+            public void run()
+            {
+                evictIdle( System.currentTimeMillis() );
+            }
+        }, maxIdle, maxIdle, TimeUnit.MILLISECONDS );
+    }
+
+    private static class Entry
+    {
+        private final Key key;
+
+        private ComputeServiceContext context;
+
+        private int leases;
+
+        private long lastReleased;
+
+        Entry( Key key )
+        {
+            this.key = key;
+        }
+    }
+
+    /**
+     * Identifies a context by provider, identity, a hash of the credential and the overridden properties
+     */
+    public static final class Key
+    {
+        private final String provider;
+
+        private final String identity;
+
+        private final String credentialHash;
+
+        private final SortedMap<String, String> overrides;
+
+        public Key( String provider, String identity, String credential, Properties overrides )
+        {
+            this.provider = provider;
+            this.identity = identity;
+            this.credentialHash =
+                credential == null ? "" : Hashing.sha256().hashString( credential, UTF_8 ).toString();
+            ImmutableSortedMap.Builder<String, String> builder = ImmutableSortedMap.naturalOrder();
+            for ( String name : overrides.stringPropertyNames() )
+            {
+                builder.put( name, overrides.getProperty( name ) );
+            }
+            this.overrides = builder.build();
+        }
+
+        public String getProvider()
+        {
+            return provider;
+        }
+
+        @Override
+        public boolean equals( Object obj )
+        {
+            if ( !( obj instanceof Key ) )
+            {
+                return false;
+            }
+            Key other = (Key) obj;
+            return Objects.equal( provider, other.provider ) && Objects.equal( identity, other.identity )
+                && credentialHash.equals( other.credentialHash ) && overrides.equals( other.overrides );
+        }
+
+        @Override
+        public int hashCode()
+        {
+            return Objects.hashCode( provider, identity, credentialHash, overrides );
+        }
+
+        @Override
+        public String toString()
+        {
+            return provider + ":" + identity;
+        }
+    }
+}
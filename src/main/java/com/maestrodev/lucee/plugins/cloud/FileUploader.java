@@ -0,0 +1,297 @@
+package com.maestrodev.lucee.plugins.cloud;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.zip.GZIPOutputStream;
+
+import org.jclouds.compute.ComputeService;
+import org.jclouds.compute.domain.ExecResponse;
+import org.jclouds.compute.domain.NodeMetadata;
+import org.jclouds.compute.domain.NodeMetadataBuilder;
+import org.jclouds.domain.LoginCredentials;
+import org.jclouds.io.Payload;
+import org.jclouds.io.Payloads;
+import org.jclouds.ssh.SshClient;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.base.Joiner;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
+import com.google.common.hash.Hashing;
+import com.google.common.io.ByteStreams;
+import com.google.common.io.Closeables;
+import com.google.common.io.Files;
+
+/**
+ * Copies local files and directories to nodes over SFTP. The files are streamed from disk for each node and never
+ * loaded in memory. When compressing, each file is gzipped once to a temporary file shared by all the nodes and
+ * uncompressed in the node. When verifying, the md5 of the files in the node is compared with the local one.
+ */
+public class FileUploader
+{
+
+    private final Logger logger = LoggerFactory.getLogger( this.getClass() );
+
+    private final List<Upload> uploads = Lists.newArrayList();
+
+    private final boolean compress;
+
+    private final boolean verify;
+
+    private long bytes;
+
+    /**
+     * @param sources local files or directories, directories are copied with all their contents
+     * @param destination remote directory where the sources are copied
+     */
+    public FileUploader( Collection<File> sources, String destination, boolean compress, boolean verify )
+        throws IOException
+    {
+        this.compress = compress;
+        this.verify = verify;
+        String base = destination.endsWith( "/" ) ? destination : destination + "/";
+        try
+        {
+            for ( File source : sources )
+            {
+                if ( !source.exists() )
+                {
+                    throw new IOException( "File not found: " + source );
+                }
+                add( source, base + source.getName() );
+            }
+        }
+        catch ( IOException e )
+        {
+            close();
+            throw e;
+        }
+    }
+
+    private void add( File file, String remote )
+        throws IOException
+    {
+        if ( file.isDirectory() )
+        {
+            File[] children = file.listFiles();
+            if ( children == null )
+            {
+                throw new IOException( "Unable to list directory " + file );
+            }
+            Arrays.sort( children );
+            for ( File child : children )
+            {
+                add( child, remote + "/" + child.getName() );
+            }
+            return;
+        }
+
+        File sent = file;
+        if ( compress )
+        {
+            sent = File.createTempFile( "maestro-upload-", ".gz" );
+            sent.deleteOnExit();
+            gzip( file, sent );
+        }
+        String md5 = verify ? Files.hash( file, Hashing.md5() ).toString() : null;
+        uploads.add( new Upload( sent, compress ? remote + ".gz" : remote, remote, md5, sent != file ) );
+        bytes += sent.length();
+    }
+
+    private static void gzip( File from, File to )
+        throws IOException
+    {
+        InputStream in = new FileInputStream( from );
+        OutputStream out = null;
+        try
+        {
+            out = new GZIPOutputStream( new FileOutputStream( to ) );
+            ByteStreams.copy( in, out );
+        }
+        finally
+        {
+            Closeables.closeQuietly( in );
+            Closeables.close( out, false );
+        }
+    }
+
+    /**
+     * @return bytes sent to each node, compressed if compressing
+     */
+    public long getBytes()
+    {
+        return bytes;
+    }
+
+    /**
+     * @return number of files sent to each node
+     */
+    public int getFiles()
+    {
+        return uploads.size();
+    }
+
+    /**
+     * Copy all the files to the node, reusing the connection of previous steps and tasks in the node
+     *
+     * @throws IOException if a command fails in the node or a file does not match the local one
+     */
+    public void upload( ComputeService compute, NodeMetadata node, LoginCredentials loginCredentials )
+        throws IOException
+    {
+        NodeMetadata withCredentials =
+            NodeMetadataBuilder.fromNodeMetadata( node ).credentials( loginCredentials ).build();
+        upload( SshSessionPool.getInstance().lease( withCredentials, compute.getContext().utils().sshForNode() ) );
+    }
+
+    /**
+     * Copy all the files to the node
+     *
+     * @param ssh client for the node, not connected yet
+     * @throws IOException if a command fails in the node or a file does not match the local one
+     */
+    public void upload( SshClient ssh )
+        throws IOException
+    {
+        if ( uploads.isEmpty() )
+        {
+            return;
+        }
+        ssh.connect();
+        try
+        {
+            Set<String> directories = Sets.newLinkedHashSet();
+            for ( Upload upload : uploads )
+            {
+                directories.add( upload.target.substring( 0, upload.target.lastIndexOf( '/' ) + 1 ) );
+            }
+            exec( ssh, "mkdir -p " + quote( directories ) );
+
+            List<String> compressed = Lists.newArrayList();
+            for ( Upload upload : uploads )
+            {
+                Payload payload = Payloads.newFilePayload( upload.file );
+                payload.getContentMetadata().setContentLength( upload.file.length() );
+                ssh.put( upload.remote, payload );
+                if ( !upload.remote.equals( upload.target ) )
+                {
+                    compressed.add( upload.remote );
+                }
+            }
+            if ( !compressed.isEmpty() )
+            {
+                exec( ssh, "gunzip -f " + quote( compressed ) );
+            }
+
+            if ( verify )
+            {
+                verify( ssh );
+            }
+        }
+        finally
+        {
+            ssh.disconnect();
+        }
+    }
+
+    private void verify( SshClient ssh )
+        throws IOException
+    {
+        Map<String, String> expected = Maps.newLinkedHashMap();
+        for ( Upload upload : uploads )
+        {
+            expected.put( upload.target, upload.md5 );
+        }
+        // md5sum prints the hash, two spaces and the file name, one per line
+        Map<String, String> actual = Maps.newHashMap();
+        for ( String line : exec( ssh, "md5sum " + quote( expected.keySet() ) ).getOutput().split( "\n" ) )
+        {
+            int space = line.indexOf( "  " );
+            if ( space > 0 )
+            {
+                actual.put( line.substring( space + 2 ).trim(), line.substring( 0, space ) );
+            }
+        }
+        for ( Map.Entry<String, String> entry : expected.entrySet() )
+        {
+            if ( !entry.getValue().equals( actual.get( entry.getKey() ) ) )
+            {
+                throw new IOException( String.format( "Checksum mismatch for %s: expected %s, got %s", entry.getKey(),
+                                                      entry.getValue(), actual.get( entry.getKey() ) ) );
+            }
+        }
+    }
+
+    private ExecResponse exec( SshClient ssh, String command )
+        throws IOException
+    {
+        logger.debug( "Running in {}: {}", ssh.getHostAddress(), command );
+        ExecResponse response = ssh.exec( command );
+        if ( response.getExitStatus() != 0 )
+        {
+            throw new IOException( String.format( "'%s' failed with status %d: %s", command,
+                                                  response.getExitStatus(), response.getError() ) );
+        }
+        return response;
+    }
+
+    private static String quote( Collection<String> paths )
+    {
+        List<String> quoted = Lists.newArrayList();
+        for ( String path : paths )
+        {
+            quoted.add( "'" + path.replace( "'", "'\\''" ) + "'" );
+        }
+        return Joiner.on( ' ' ).join( quoted );
+    }
+
+    /**
+     * Delete the temporary compressed files
+     */
+    public void close()
+    {
+        for ( Upload upload : uploads )
+        {
+            if ( upload.temporary && !upload.file.delete() )
+            {
+                logger.debug( "Unable to delete {}", upload.file );
+            }
+        }
+    }
+
+    private static class Upload
+    {
+        /** local file sent */
+        private final File file;
+
+        /** remote path where the file is sent */
+        private final String remote;
+
+        /** remote path of the file once uncompressed */
+        private final String target;
+
+        private final String md5;
+
+        private final boolean temporary;
+
+        Upload( File file, String remote, String target, String md5, boolean temporary )
+        {
+            this.file = file;
+            this.remote = remote;
+            this.target = target;
+            this.md5 = md5;
+            this.temporary = temporary;
+        }
+    }
+}
@@ -0,0 +1,175 @@
+package com.maestrodev.lucee.plugins.cloud;
+
+import java.util.List;
+
+import org.jclouds.domain.LoginCredentials;
+
+/**
+ * What to launch: everything needed to build a jclouds template for new nodes, independent of the task that asked
+ * for them so it can also be used from background jobs.
+ */
+public class LaunchSpec
+{
+
+    private String provider;
+
+    private String imageId;
+
+    private String flavorId;
+
+    private String availabilityZone;
+
+    private List<String> groups;
+
+    private String keyName;
+
+    private String userData;
+
+    private String bootstrap;
+
+    private String nameTag;
+
+    private LoginCredentials loginCredentials;
+
+    private String intentId;
+
+    public String getProvider()
+    {
+        return provider;
+    }
+
+    public LaunchSpec provider( String provider )
+    {
+        this.provider = provider;
+        return this;
+    }
+
+    /**
+     * @return image id, including the region for EC2
+     */
+    public String getImageId()
+    {
+        return imageId;
+    }
+
+    public LaunchSpec imageId( String imageId )
+    {
+        this.imageId = imageId;
+        return this;
+    }
+
+    public String getFlavorId()
+    {
+        return flavorId;
+    }
+
+    public LaunchSpec flavorId( String flavorId )
+    {
+        this.flavorId = flavorId;
+        return this;
+    }
+
+    public String getAvailabilityZone()
+    {
+        return availabilityZone;
+    }
+
+    public LaunchSpec availabilityZone( String availabilityZone )
+    {
+        this.availabilityZone = availabilityZone;
+        return this;
+    }
+
+    public List<String> getGroups()
+    {
+        return groups;
+    }
+
+    public LaunchSpec groups( List<String> groups )
+    {
+        this.groups = groups;
+        return this;
+    }
+
+    public String getKeyName()
+    {
+        return keyName;
+    }
+
+    public LaunchSpec keyName( String keyName )
+    {
+        this.keyName = keyName;
+        return this;
+    }
+
+    public String getUserData()
+    {
+        return userData;
+    }
+
+    public LaunchSpec userData( String userData )
+    {
+        this.userData = userData;
+        return this;
+    }
+
+    public String getBootstrap()
+    {
+        return bootstrap;
+    }
+
+    public LaunchSpec bootstrap( String bootstrap )
+    {
+        this.bootstrap = bootstrap;
+        return this;
+    }
+
+    /**
+     * @return value of the Name tag for the new nodes
+     */
+    public String getNameTag()
+    {
+        return nameTag;
+    }
+
+    public LaunchSpec nameTag( String nameTag )
+    {
+        this.nameTag = nameTag;
+        return this;
+    }
+
+    public LoginCredentials getLoginCredentials()
+    {
+        return loginCredentials;
+    }
+
+    public LaunchSpec loginCredentials( LoginCredentials loginCredentials )
+    {
+        this.loginCredentials = loginCredentials;
+        return this;
+    }
+
+    /**
+     * @return id of the provisioning journal intent the nodes are launched for, null if not journaled
+     */
+    public String getIntentId()
+    {
+        return intentId;
+    }
+
+    public LaunchSpec intentId( String intentId )
+    {
+        this.intentId = intentId;
+        return this;
+    }
+
+    /**
+     * Copy of this spec, so it can be changed without affecting the original
+     */
+    public LaunchSpec copy()
+    {
+        return new LaunchSpec().provider( provider ).imageId( imageId ).flavorId( flavorId )
+            .availabilityZone( availabilityZone ).groups( groups ).keyName( keyName ).userData( userData )
+            .bootstrap( bootstrap ).nameTag( nameTag ).loginCredentials( loginCredentials ).intentId( intentId );
+    }
+}
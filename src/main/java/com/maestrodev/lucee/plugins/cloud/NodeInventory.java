@@ -0,0 +1,366 @@
+package com.maestrodev.lucee.plugins.cloud;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import org.jclouds.compute.domain.NodeMetadata;
+import org.jclouds.compute.domain.NodeState;
+
+import com.google.common.base.Joiner;
+import com.google.common.base.Objects;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.SettableFuture;
+import com.maestrodev.lucee.plugins.cloud.metrics.InventoryStats;
+import com.maestrodev.lucee.plugins.cloud.metrics.PhaseMetrics;
+
+/**
+ * Process wide inventory of the nodes seen by the tasks, by provider account and id, so the tasks of concurrent
+ * pipelines don't describe the same nodes to the provider over and over. Lookups only poll the nodes that are due:
+ * nodes just seen, starting or just changed are polled again after the min interval, and the interval doubles each
+ * time they are found unchanged, up to the max interval. Concurrent lookups of the same node share a single poll.
+ * Nodes launched or listed by the tasks are added as they are seen, and destroyed nodes are removed.
+ */
+public class NodeInventory
+{
+
+    /** seconds before a node just seen, starting or just changed is polled again */
+    public static final String PROPERTY_MIN_INTERVAL = "maestro.cloud.inventory.minInterval";
+
+    /** max seconds before a stable node is polled again */
+    public static final String PROPERTY_MAX_INTERVAL = "maestro.cloud.inventory.maxInterval";
+
+    /** nodes not looked up for this many milliseconds are forgotten */
+    private static final long RETENTION = TimeUnit.HOURS.toMillis( 6 );
+
+    private static final NodeInventory instance =
+        new NodeInventory( Long.getLong( PROPERTY_MIN_INTERVAL, 5 ) * 1000,
+                           Long.getLong( PROPERTY_MAX_INTERVAL, 300 ) * 1000, PhaseMetrics.getInstance() );
+
+    private final Map<String, Entry> entries = Maps.newHashMap();
+
+    /** polls in flight, by node key */
+    private final Map<String, ListenableFuture<NodeMetadata>> polls = Maps.newHashMap();
+
+    private final long minInterval;
+
+    private final long maxInterval;
+
+    private final PhaseMetrics metrics;
+
+    private long lastPurge = System.currentTimeMillis();
+
+    public static NodeInventory getInstance()
+    {
+        return instance;
+    }
+
+    /**
+     * @param minInterval milliseconds before a node just seen, starting or just changed is polled again
+     * @param maxInterval max milliseconds before a stable node is polled again
+     */
+    public NodeInventory( long minInterval, long maxInterval, PhaseMetrics metrics )
+    {
+        this.minInterval = minInterval;
+        this.maxInterval = Math.max( minInterval, maxInterval );
+        this.metrics = metrics;
+    }
+
+    /**
+     * Get the nodes by id, from the inventory unless they are due, in which case they are polled in parallel
+     *
+     * @param targeted lookups in the provider account and region of the nodes
+     * @param errors filled with the nodes that could not be looked up, by id
+     * @return the nodes found by id, missing ids are not included
+     */
+    public Map<String, NodeMetadata> resolve( TargetedNodes targeted, Collection<String> ids,
+                                              Map<String, Throwable> errors )
+    {
+        String provider = targeted.getProvider();
+        String identity = targeted.getIdentity();
+        InventoryStats stats = metrics.getInventory( provider );
+        long now = System.currentTimeMillis();
+
+        Map<String, NodeMetadata> found = Maps.newHashMap();
+        Map<String, ListenableFuture<NodeMetadata>> waiting = Maps.newHashMap();
+        Map<String, SettableFuture<NodeMetadata>> polling = Maps.newLinkedHashMap();
+        synchronized ( this )
+        {
+            purge( now );
+            for ( String id : ids )
+            {
+                String key = key( provider, identity, id );
+                Entry entry = entries.get( key );
+                if ( entry != null && now < entry.polled + entry.interval )
+                {
+                    entry.lastUsed = now;
+                    found.put( id, entry.node );
+                    stats.hit( now - entry.polled );
+                    continue;
+                }
+                stats.miss();
+                ListenableFuture<NodeMetadata> inFlight = polls.get( key );
+                if ( inFlight != null )
+                {
+                    waiting.put( id, inFlight );
+                }
+                else
+                {
+                    SettableFuture<NodeMetadata> poll = SettableFuture.create();
+                    polls.put( key, poll );
+                    polling.put( id, poll );
+                }
+            }
+        }
+
+        if ( !polling.isEmpty() )
+        {
+            Map<String, NodeMetadata> polled = Collections.emptyMap();
+            Map<String, Throwable> failed = Maps.newLinkedHashMap();
+            RuntimeException failure = null;
+            try
+            {
+                polled = targeted.resolve( polling.keySet(), failed );
+                stats.polled( polling.size() );
+                update( provider, identity, polling.keySet(), polled, failed.keySet() );
+            }
+            catch ( RuntimeException e )
+            {
+                failure = e;
+                throw e;
+            }
+            finally
+            {
+                synchronized ( this )
+                {
+                    for ( String id : polling.keySet() )
+                    {
+                        polls.remove( key( provider, identity, id ) );
+                    }
+                }
+                // waiters of a failed poll get its error, not a missing node
+                for ( Map.Entry<String, SettableFuture<NodeMetadata>> entry : polling.entrySet() )
+                {
+                    Throwable error = failure != null ? failure : failed.get( entry.getKey() );
+                    if ( error != null )
+                    {
+                        entry.getValue().setException( error );
+                    }
+                    else
+                    {
+                        entry.getValue().set( polled.get( entry.getKey() ) );
+                    }
+                }
+            }
+            errors.putAll( failed );
+            found.putAll( polled );
+        }
+
+        for ( Map.Entry<String, ListenableFuture<NodeMetadata>> entry : waiting.entrySet() )
+        {
+            try
+            {
+                NodeMetadata node = entry.getValue().get();
+                if ( node != null )
+                {
+                    found.put( entry.getKey(), node );
+                }
+            }
+            catch ( ExecutionException e )
+            {
+                errors.put( entry.getKey(), e.getCause() );
+            }
+            catch ( InterruptedException e )
+            {
+                Thread.currentThread().interrupt();
+                errors.put( entry.getKey(), e );
+                break;
+            }
+        }
+
+        // in the order of the ids
+        Map<String, NodeMetadata> nodes = Maps.newLinkedHashMap();
+        for ( String id : ids )
+        {
+            NodeMetadata node = found.get( id );
+            if ( node != null )
+            {
+                nodes.put( id, node );
+            }
+        }
+        return nodes;
+    }
+
+    /**
+     * Poll the nodes even if they are not due, ie. to check they are still running before using them
+     *
+     * @param errors filled with the nodes that could not be looked up, by id
+     * @return the nodes found by id, missing ids are not included
+     */
+    public Map<String, NodeMetadata> refresh( TargetedNodes targeted, Collection<String> ids,
+                                              Map<String, Throwable> errors )
+    {
+        Map<String, Throwable> failed = Maps.newLinkedHashMap();
+        Map<String, NodeMetadata> polled = targeted.resolve( ids, failed );
+        metrics.getInventory( targeted.getProvider() ).polled( ids.size() );
+        update( targeted.getProvider(), targeted.getIdentity(), ids, polled, failed.keySet() );
+        errors.putAll( failed );
+        return polled;
+    }
+
+    /**
+     * Add nodes just seen in the provider, ie. launched or listed
+     */
+    public synchronized void put( String provider, String identity, Iterable<? extends NodeMetadata> nodes )
+    {
+        long now = System.currentTimeMillis();
+        for ( NodeMetadata node : nodes )
+        {
+            put( provider, identity, node, now );
+        }
+    }
+
+    /**
+     * Remove nodes that no longer exist or whose metadata is known to be outdated, ie. because they were renamed
+     */
+    public synchronized void remove( String provider, String identity, Collection<String> ids )
+    {
+        for ( String id : ids )
+        {
+            remove( key( provider, identity, id ) );
+        }
+    }
+
+    /**
+     * @param failed nodes whose lookup failed, they may still exist so they are kept as last seen
+     */
+    private synchronized void update( String provider, String identity, Collection<String> ids,
+                                      Map<String, NodeMetadata> polled, Set<String> failed )
+    {
+        long now = System.currentTimeMillis();
+        for ( String id : ids )
+        {
+            NodeMetadata node = polled.get( id );
+            if ( failed.contains( id ) )
+            {
+                continue;
+            }
+            else if ( node == null )
+            {
+                remove( key( provider, identity, id ) );
+            }
+            else
+            {
+                put( provider, identity, node, now );
+            }
+        }
+    }
+
+    private void put( String provider, String identity, NodeMetadata node, long now )
+    {
+        String key = key( provider, identity, node.getId() );
+        Entry previous = entries.get( key );
+        long interval;
+        // its addresses may not be assigned yet, or it may have changed since it was listed
+        if ( previous == null || node.getState() == NodeState.PENDING || node.getState() == NodeState.UNRECOGNIZED )
+        {
+            interval = minInterval;
+        }
+        else if ( unchanged( previous.node, node ) )
+        {
+            interval = Math.min( maxInterval, previous.interval * 2 );
+        }
+        else
+        {
+            interval = minInterval;
+        }
+
+        if ( previous == null )
+        {
+            metrics.getInventory( provider ).nodes( 1 );
+        }
+        Entry entry = new Entry( provider, node, now, interval );
+        entry.lastUsed = previous != null ? previous.lastUsed : now;
+        entries.put( key, entry );
+    }
+
+    private void remove( String key )
+    {
+        Entry entry = entries.remove( key );
+        if ( entry != null )
+        {
+            metrics.getInventory( entry.provider ).nodes( -1 );
+        }
+    }
+
+    private static boolean unchanged( NodeMetadata previous, NodeMetadata node )
+    {
+        return previous.getState() == node.getState()
+            && Objects.equal( previous.getPublicAddresses(), node.getPublicAddresses() )
+            && Objects.equal( previous.getPrivateAddresses(), node.getPrivateAddresses() )
+            && Objects.equal( previous.getUserMetadata(), node.getUserMetadata() );
+    }
+
+    /**
+     * Forget the nodes not looked up for a while, at most once per max interval
+     */
+    private void purge( long now )
+    {
+        if ( now - lastPurge < maxInterval )
+        {
+            return;
+        }
+        lastPurge = now;
+        List<String> unused = Lists.newArrayList();
+        for ( Map.Entry<String, Entry> entry : entries.entrySet() )
+        {
+            if ( now - entry.getValue().lastUsed > RETENTION )
+            {
+                unused.add( entry.getKey() );
+            }
+        }
+        for ( String key : unused )
+        {
+            remove( key );
+        }
+    }
+
+    public synchronized int size()
+    {
+        return entries.size();
+    }
+
+    private static String key( String provider, String identity, String id )
+    {
+        return Joiner.on( '|' ).useForNull( "" ).join( provider, identity, id );
+    }
+
+    private static class Entry
+    {
+        private final String provider;
+
+        private final NodeMetadata node;
+
+        /** when the node was last seen in the provider */
+        private final long polled;
+
+        /** milliseconds until it is polled again */
+        private final long interval;
+
+        private long lastUsed;
+
+        Entry( String provider, NodeMetadata node, long polled, long interval )
+        {
+            this.provider = provider;
+            this.node = node;
+            this.polled = polled;
+            this.interval = interval;
+        }
+    }
+}
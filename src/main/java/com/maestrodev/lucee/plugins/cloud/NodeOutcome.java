@@ -0,0 +1,91 @@
+package com.maestrodev.lucee.plugins.cloud;
+
+import java.util.Map;
+
+import org.jclouds.compute.domain.ExecResponse;
+import org.jclouds.compute.domain.NodeMetadata;
+
+import com.google.common.collect.Maps;
+
+/**
+ * What happened when running a script in a node
+ */
+public class NodeOutcome
+{
+
+    public enum Status
+    {
+        SUCCESS, FAILED, TIMED_OUT, CANCELLED
+    }
+
+    private final NodeMetadata node;
+
+    private final Status status;
+
+    private final ExecResponse response;
+
+    private final Throwable error;
+
+    private final long millis;
+
+    public NodeOutcome( NodeMetadata node, Status status, ExecResponse response, Throwable error, long millis )
+    {
+        this.node = node;
+        this.status = status;
+        this.response = response;
+        this.error = error;
+        this.millis = millis;
+    }
+
+    public NodeMetadata getNode()
+    {
+        return node;
+    }
+
+    public Status getStatus()
+    {
+        return status;
+    }
+
+    /**
+     * @return the script response, null unless the script finished, which it also does when it failed with a non zero
+     *         exit status
+     */
+    public ExecResponse getResponse()
+    {
+        return response;
+    }
+
+    /**
+     * @return why the script didn't finish or failed, null if the status is {@link Status#SUCCESS}
+     */
+    public Throwable getError()
+    {
+        return error;
+    }
+
+    public long getMillis()
+    {
+        return millis;
+    }
+
+    /**
+     * @return the outcome as a task field value: node, status, millis, and exit_status or error
+     */
+    public Map<String, Object> toMap()
+    {
+        Map<String, Object> map = Maps.newLinkedHashMap();
+        map.put( "node", node.getId() );
+        map.put( "status", status.name().toLowerCase() );
+        map.put( "millis", millis );
+        if ( response != null )
+        {
+            map.put( "exit_status", response.getExitStatus() );
+        }
+        if ( error != null )
+        {
+            map.put( "error", String.valueOf( error.getMessage() ) );
+        }
+        return map;
+    }
+}
@@ -0,0 +1,349 @@
+package com.maestrodev.lucee.plugins.cloud;
+
+import static org.jclouds.compute.predicates.NodePredicates.*;
+
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Pattern;
+
+import org.jclouds.compute.ComputeService;
+import org.jclouds.compute.ComputeServiceContext;
+import org.jclouds.compute.domain.NodeMetadata;
+import org.jclouds.compute.domain.NodeState;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.base.Joiner;
+import com.google.common.base.Predicate;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
+import com.maestrodev.lucee.plugins.cloud.throttle.ApiCall;
+import com.maestrodev.lucee.plugins.cloud.throttle.ApiLimiters;
+
+/**
+ * Finds the nodes of the group left running by pipelines that never deprovisioned them, because they are older than
+ * a TTL or their Name matches a pattern, and destroys them in batches. The nodes are found with a single listing of
+ * the region. The age is taken from the {@link #CLAIMED_TAG} of the standby nodes claimed by a provision, else from
+ * the {@link #LAUNCHED_TAG} set when the nodes are launched, nodes without either are only reaped by name. Nodes
+ * still being provisioned in this agent and the ones to keep, ie. held by the standby pool of this agent, are never
+ * reaped.
+ */
+public class NodeReaper
+{
+
+    /** user metadata with the time the node was launched, in milliseconds since the epoch */
+    public static final String LAUNCHED_TAG = "maestro-launched";
+
+    /** user metadata with the time a standby node was claimed by a provision, in milliseconds since the epoch */
+    public static final String CLAIMED_TAG = "maestro-claimed";
+
+    private static final ScheduledExecutorService scheduler =
+        Executors.newSingleThreadScheduledExecutor( new ThreadFactory()
+        {
+            public Thread newThread( Runnable r )
+            {
+                Thread thread = new Thread( r, "maestro-cloud-reaper" );
+                thread.setDaemon( true );
+                return thread;
+            }
+        } );
+
+    private static final Map<String, ScheduledFuture<?>> scheduled = Maps.newHashMap();
+
+    private final Logger logger = LoggerFactory.getLogger( this.getClass() );
+
+    private final String group;
+
+    private final long ttl;
+
+    private final Pattern namePattern;
+
+    private final Predicate<? super NodeMetadata> keep;
+
+    /**
+     * @param ttl milliseconds a node can run, 0 to not reap by age
+     * @param namePattern reap the nodes whose Name matches, null to not reap by name
+     * @param keep nodes never reaped
+     */
+    public NodeReaper( String group, long ttl, Pattern namePattern, Predicate<? super NodeMetadata> keep )
+    {
+        this.group = group;
+        this.ttl = ttl;
+        this.namePattern = namePattern;
+        this.keep = keep;
+    }
+
+    /**
+     * A reaper that keeps the nodes waiting in the {@link StandbyPool} of this agent, standby nodes left behind by a
+     * previous run of the agent are reaped like any other
+     *
+     * @param ttl milliseconds a node can run, 0 to not reap by age
+     * @param namePattern reap the nodes whose Name matches, null to not reap by name
+     */
+    public NodeReaper( String group, long ttl, Pattern namePattern )
+    {
+        this( group, ttl, namePattern, new Predicate<NodeMetadata>()
+        {
+            public boolean apply( NodeMetadata node )
+            {
+                return StandbyPool.getInstance().holds( node.getId() );
+            }
+        } );
+    }
+
+    /**
+     * List the nodes of the region and destroy the stale ones
+     *
+     * @param region the region the compute service is scoped to, null if it talks to all of them
+     * @param dryRun only find the stale nodes, don't destroy them
+     * @param batchSize nodes destroyed at the same time
+     */
+    public Result reap( final ComputeService compute, String provider, String identity, String region, boolean dryRun,
+                        int batchSize )
+    {
+        long now = System.currentTimeMillis();
+        Set<? extends NodeMetadata> listed = ApiLimiters.getInstance().get( provider, region, identity )
+            .call( "listNodesDetailsMatching", new ApiCall<Set<? extends NodeMetadata>, RuntimeException>()
+            {
+                public Set<? extends NodeMetadata> call()
+                {
+                    return compute.listNodesDetailsMatching( inGroup( group ) );
+                }
+            } );
+        NodeInventory.getInstance().put( provider, identity, listed );
+        List<NodeMetadata> stale = select( listed, now );
+        Result result = new Result( stale, instanceHours( stale, now ) );
+        logger.info( "Found {} stale nodes out of {} in group {}, {} instance hours",
+                     new Object[] { stale.size(), listed.size(), group, result.getInstanceHours() } );
+        if ( dryRun || stale.isEmpty() )
+        {
+            return result;
+        }
+
+        TargetedNodes targeted = new TargetedNodes( compute, provider, identity );
+        for ( List<NodeMetadata> batch : Lists.partition( stale, Math.max( 1, batchSize ) ) )
+        {
+            Set<String> destroyed = targeted.destroy( batch, result.errors );
+            ProvisioningJournal.getInstance().destroyed( destroyed );
+            for ( String id : destroyed )
+            {
+                SshSessionPool.getInstance().evict( id );
+            }
+            result.destroyed.addAll( destroyed );
+        }
+        return result;
+    }
+
+    /**
+     * The nodes to reap among the listed ones
+     */
+    List<NodeMetadata> select( Iterable<? extends NodeMetadata> listed, long now )
+    {
+        List<NodeMetadata> stale = Lists.newArrayList();
+        for ( NodeMetadata node : listed )
+        {
+            String name = node.getUserMetadata().get( "Name" );
+            if ( !group.equals( node.getGroup() ) || node.getState() == NodeState.TERMINATED
+                || keep.apply( node ) || PendingNodes.getInstance().get( node.getId() ) != null )
+            {
+                continue;
+            }
+            Long inUse = inUse( node );
+            if ( ( ttl > 0 && inUse != null && now - inUse >= ttl )
+                || ( namePattern != null && name != null && namePattern.matcher( name ).matches() ) )
+            {
+                stale.add( node );
+            }
+        }
+        return stale;
+    }
+
+    /**
+     * @return when the node was launched, null if not known
+     */
+    static Long launched( NodeMetadata node )
+    {
+        return time( node, LAUNCHED_TAG );
+    }
+
+    /**
+     * @return when the node started being used by a provision, the time spent in a standby pool doesn't count, null if
+     *         not known
+     */
+    static Long inUse( NodeMetadata node )
+    {
+        Long claimed = time( node, CLAIMED_TAG );
+        return claimed != null ? claimed : launched( node );
+    }
+
+    private static Long time( NodeMetadata node, String tag )
+    {
+        String value = node.getUserMetadata().get( tag );
+        if ( value == null )
+        {
+            return null;
+        }
+        try
+        {
+            return Long.valueOf( value );
+        }
+        catch ( NumberFormatException e )
+        {
+            return null;
+        }
+    }
+
+    /**
+     * Hours the nodes have been running, for the nodes whose launch time is known
+     */
+    static double instanceHours( Collection<? extends NodeMetadata> nodes, long now )
+    {
+        long millis = 0;
+        for ( NodeMetadata node : nodes )
+        {
+            Long launched = launched( node );
+            if ( launched != null && launched < now )
+            {
+                millis += now - launched;
+            }
+        }
+        return millis / (double) TimeUnit.HOURS.toMillis( 1 );
+    }
+
+    /**
+     * Reap every interval in the background, each run with its own lease of the pooled context, until cancelled with
+     * the {@link #key(String, String, String)} of the account and region
+     *
+     * @param interval milliseconds between runs
+     */
+    public void scheduleInBackground( final ComputeServiceContextPool pool, final String provider,
+                                      final String identity, final String credential, final String region,
+                                      final boolean dryRun, final int batchSize, long interval )
+    {
+        schedule( key( provider, identity, region ), new Runnable()
+        {
+            public void run()
+            {
+                reapInBackground( pool, provider, identity, credential, region, dryRun, batchSize );
+            }
+        }, interval );
+    }
+
+    private void reapInBackground( ComputeServiceContextPool pool, String provider, String identity,
+                                   String credential, String region, boolean dryRun, int batchSize )
+    {
+        ComputeServiceContext context = null;
+        try
+        {
+            context = pool.acquire( provider, identity, credential, region );
+            Result result = reap( context.getComputeService(), provider, identity, region, dryRun, batchSize );
+            logger.info( "Background reaping in {} {}: {} stale machines, {} destroyed, {} errors",
+                         new Object[] { provider, region, result.getStale().size(), result.getDestroyed().size(),
+                             result.getErrors().size() } );
+        }
+        catch ( RuntimeException e )
+        {
+            // keep reaping in the next runs
+            logger.warn( "Error reaping in the background in " + provider + " " + region, e );
+        }
+        finally
+        {
+            if ( context != null )
+            {
+                pool.release( context );
+            }
+        }
+    }
+
+    /**
+     * @return the key of the background reaping of the provider, account and region
+     */
+    public static String key( String provider, String identity, String region )
+    {
+        return Joiner.on( '|' ).useForNull( "" ).join( provider, identity, region );
+    }
+
+    /**
+     * Run the reaper in the background, replacing what was scheduled before with the same key
+     *
+     * @param key provider, account and region reaped
+     * @param interval milliseconds between runs
+     */
+    public static synchronized void schedule( String key, Runnable reap, long interval )
+    {
+        ScheduledFuture<?> previous = scheduled.remove( key );
+        if ( previous != null )
+        {
+            previous.cancel( false );
+        }
+        scheduled.put( key, scheduler.scheduleWithFixedDelay( reap, interval, interval, TimeUnit.MILLISECONDS ) );
+    }
+
+    /**
+     * Stop running the reaper in the background, it holds the credentials of the account until then
+     *
+     * @param key provider, account and region reaped
+     * @return whether it was running in the background
+     */
+    public static synchronized boolean cancel( String key )
+    {
+        ScheduledFuture<?> previous = scheduled.remove( key );
+        if ( previous == null )
+        {
+            return false;
+        }
+        previous.cancel( false );
+        return true;
+    }
+
+    /**
+     * Stale nodes found and destroyed
+     */
+    public static class Result
+    {
+        private final List<NodeMetadata> stale;
+
+        private final double instanceHours;
+
+        private final Set<String> destroyed = Sets.newLinkedHashSet();
+
+        private final Map<String, Throwable> errors = Maps.newLinkedHashMap();
+
+        Result( List<NodeMetadata> stale, double instanceHours )
+        {
+            this.stale = stale;
+            this.instanceHours = instanceHours;
+        }
+
+        public List<NodeMetadata> getStale()
+        {
+            return stale;
+        }
+
+        /**
+         * @return hours the stale nodes have been running, what is saved destroying them
+         */
+        public double getInstanceHours()
+        {
+            return instanceHours;
+        }
+
+        public Set<String> getDestroyed()
+        {
+            return destroyed;
+        }
+
+        public Map<String, Throwable> getErrors()
+        {
+            return errors;
+        }
+    }
+}
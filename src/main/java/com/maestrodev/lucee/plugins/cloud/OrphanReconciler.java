@@ -0,0 +1,230 @@
+package com.maestrodev.lucee.plugins.cloud;
+
+import static org.jclouds.compute.predicates.NodePredicates.*;
+
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.jclouds.compute.ComputeService;
+import org.jclouds.compute.domain.NodeMetadata;
+import org.jclouds.compute.domain.NodeState;
+import org.jclouds.domain.Location;
+import org.jclouds.domain.LocationScope;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.collect.Iterables;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
+import com.maestrodev.lucee.plugins.cloud.throttle.ApiCall;
+import com.maestrodev.lucee.plugins.cloud.throttle.ApiLimiters;
+
+/**
+ * Finds the nodes left behind by provisions that never completed because the agent died, from the intents left open
+ * in the {@link ProvisioningJournal}. Nodes are matched by the id recorded in the journal or by the intent tag set
+ * when they were launched, which covers nodes created right before the crash, with a single listing of the group.
+ * Each provider, identity and region is only reconciled once per agent run.
+ */
+public class OrphanReconciler
+{
+
+    /** user metadata with the journal intent id, set on the nodes when launched */
+    public static final String INTENT_TAG = "maestro-intent";
+
+    private static final Set<String> reconciled = Sets.newSetFromMap( new ConcurrentHashMap<String, Boolean>() );
+
+    private final Logger logger = LoggerFactory.getLogger( this.getClass() );
+
+    private final ProvisioningJournal journal;
+
+    private final String group;
+
+    public OrphanReconciler( ProvisioningJournal journal, String group )
+    {
+        this.journal = journal;
+        this.group = group;
+    }
+
+    /**
+     * Whether the provider, identity and region still need to be reconciled in this agent run, only true the first
+     * time
+     */
+    public static boolean firstTime( String provider, String identity, String region )
+    {
+        return reconciled.add( provider + "|" + identity + "|" + region );
+    }
+
+    /**
+     * Find the orphaned nodes and optionally destroy them. The intents are completed when all their nodes are
+     * destroyed or none is found, otherwise they are reported again the next time the agent starts.
+     *
+     * @param region the region the compute service is scoped to, only its intents are reconciled. Null if it talks to
+     *            all the regions.
+     * @return the orphaned nodes found
+     */
+    public List<NodeMetadata> reconcile( final ComputeService compute, String provider, String identity,
+                                         String region, boolean destroy )
+    {
+        List<ProvisioningJournal.Intent> intents = Lists.newArrayList();
+        for ( ProvisioningJournal.Intent intent : journal.getOrphanedIntents( provider, identity ) )
+        {
+            if ( region == null || region.equals( intent.getRegion() ) )
+            {
+                intents.add( intent );
+            }
+        }
+        List<NodeMetadata> orphans = Lists.newArrayList();
+        if ( intents.isEmpty() )
+        {
+            return orphans;
+        }
+
+        Map<String, ProvisioningJournal.Intent> byId = Maps.newHashMap();
+        Map<String, ProvisioningJournal.Intent> byNode = Maps.newHashMap();
+        for ( ProvisioningJournal.Intent intent : intents )
+        {
+            byId.put( intent.getId(), intent );
+            for ( String node : intent.getNodes() )
+            {
+                byNode.put( node, intent );
+            }
+        }
+
+        Map<ProvisioningJournal.Intent, List<NodeMetadata>> found = Maps.newHashMap();
+        Set<? extends NodeMetadata> listed = ApiLimiters.getInstance().get( provider, region, identity )
+            .call( "listNodesDetailsMatching", new ApiCall<Set<? extends NodeMetadata>, RuntimeException>()
+            {
+                public Set<? extends NodeMetadata> call()
+                {
+                    return compute.listNodesDetailsMatching( all() );
+                }
+            } );
+        NodeInventory.getInstance().put( provider, identity, Iterables.filter( listed, inGroup( group ) ) );
+        for ( NodeMetadata node : listed )
+        {
+            if ( !group.equals( node.getGroup() ) || node.getState() == NodeState.TERMINATED
+                || journal.isDestroyed( node.getId() ) )
+            {
+                continue;
+            }
+            ProvisioningJournal.Intent intent = byNode.get( node.getId() );
+            if ( intent == null )
+            {
+                intent = byId.get( node.getUserMetadata().get( INTENT_TAG ) );
+                // a standby node claimed by a provision that completed
+                if ( intent != null && intent.isReleased( node.getId() ) )
+                {
+                    intent = null;
+                }
+            }
+            if ( intent != null && inRegion( node, intent.getRegion() ) )
+            {
+                orphans.add( node );
+                List<NodeMetadata> nodes = found.get( intent );
+                if ( nodes == null )
+                {
+                    nodes = Lists.newArrayList();
+                    found.put( intent, nodes );
+                }
+                nodes.add( node );
+            }
+        }
+        logger.info( "Found {} orphaned nodes from {} open provisions", orphans.size(), intents.size() );
+
+        for ( ProvisioningJournal.Intent intent : intents )
+        {
+            List<NodeMetadata> nodes = found.get( intent );
+            if ( nodes == null )
+            {
+                journal.completed( intent.getId() );
+            }
+            else if ( destroy )
+            {
+                Map<String, Throwable> errors = Maps.newLinkedHashMap();
+                Set<String> destroyed = new TargetedNodes( compute, provider, identity ).destroy( nodes, errors );
+                journal.destroyed( destroyed );
+                if ( errors.isEmpty() )
+                {
+                    journal.completed( intent.getId() );
+                }
+                else
+                {
+                    logger.warn( "Unable to destroy orphaned nodes of {}: {}", intent, errors );
+                }
+            }
+        }
+        return orphans;
+    }
+
+    /**
+     * Complete the intent of a provision once all of its nodes are saved or destroyed. Nodes left out by a failure are
+     * destroyed, and if that fails too the intent stays open so they are reconciled after a restart.
+     *
+     * @param compute null if the nodes can't be destroyed, the intent is left open if any was not saved
+     * @param saved ids of the nodes saved in the work item
+     */
+    public void complete( ComputeService compute, String provider, String identity, String intentId,
+                          Collection<String> saved )
+    {
+        Set<String> unsaved = Sets.newLinkedHashSet();
+        for ( String id : journal.getNodes( intentId ) )
+        {
+            if ( !saved.contains( id ) && !journal.isDestroyed( id ) )
+            {
+                unsaved.add( id );
+            }
+        }
+        if ( !unsaved.isEmpty() && compute != null )
+        {
+            logger.warn( "Destroying machines {} that are not in the work item", unsaved );
+            try
+            {
+                Map<String, Throwable> errors = Maps.newLinkedHashMap();
+                TargetedNodes targeted = new TargetedNodes( compute, provider, identity );
+                Map<String, NodeMetadata> found = targeted.resolve( unsaved, errors );
+                journal.destroyed( targeted.destroy( found.values(), errors ) );
+                // the ones not found are already gone
+                unsaved.retainAll( errors.keySet() );
+                if ( !errors.isEmpty() )
+                {
+                    logger.warn( "Unable to destroy machines: {}", errors );
+                }
+            }
+            catch ( RuntimeException e )
+            {
+                logger.warn( "Error destroying machines " + unsaved, e );
+            }
+        }
+        if ( unsaved.isEmpty() )
+        {
+            journal.completed( intentId );
+        }
+        else
+        {
+            logger.warn( "Machines {} of intent {} are left to the orphan reconciliation", unsaved, intentId );
+        }
+    }
+
+    /**
+     * @return whether the node is in the region, or the region is not known
+     */
+    private static boolean inRegion( NodeMetadata node, String region )
+    {
+        if ( region == null )
+        {
+            return true;
+        }
+        for ( Location location = node.getLocation(); location != null; location = location.getParent() )
+        {
+            if ( location.getScope() == LocationScope.REGION )
+            {
+                return region.equals( location.getId() );
+            }
+        }
+        return true;
+    }
+}
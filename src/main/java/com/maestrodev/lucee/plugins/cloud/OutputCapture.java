@@ -0,0 +1,319 @@
+package com.maestrodev.lucee.plugins.cloud;
+
+import static com.google.common.base.Charsets.*;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.GZIPOutputStream;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.base.Joiner;
+import com.google.common.base.Splitter;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Sets;
+import com.google.common.io.Closeables;
+
+/**
+ * Captures the output of a script in a node keeping only the first and last lines in memory. Once the output does
+ * not fit, all of it is written to a gzipped file on local disk, so memory stays bounded no matter how much output
+ * there is and the full output is still available. The summary references the file. Lines longer than
+ * {@value #MAX_LINE_LENGTH} characters are truncated in memory and the file is started with the first of them, so it
+ * has them whole. Files older than {@value #PROPERTY_MAX_AGE} hours are deleted, and the oldest ones once the
+ * directory is over {@value #PROPERTY_MAX_SIZE} megabytes, except the ones in use until {@link #release()}.
+ */
+public class OutputCapture
+{
+
+    /** directory where the output that does not fit in memory is saved */
+    public static final String PROPERTY_DIR = "maestro.cloud.output.dir";
+
+    /** hours the saved output is kept */
+    public static final String PROPERTY_MAX_AGE = "maestro.cloud.output.max_age";
+
+    /** megabytes of saved output kept */
+    public static final String PROPERTY_MAX_SIZE = "maestro.cloud.output.max_size";
+
+    /** longer lines are truncated in memory */
+    public static final int MAX_LINE_LENGTH = 4096;
+
+    private static final Logger LOGGER = LoggerFactory.getLogger( OutputCapture.class );
+
+    /** files being written or referenced by output not sent yet, never cleaned up */
+    private static final Set<File> IN_USE = Collections.synchronizedSet( Sets.<File> newHashSet() );
+
+    private final Logger logger = LoggerFactory.getLogger( this.getClass() );
+
+    private final File dir;
+
+    private final String name;
+
+    private final int headLines;
+
+    private final List<String> head = Lists.newArrayList();
+
+    private final int tailLines;
+
+    private final OutputRingBuffer tail;
+
+    private long total;
+
+    private File file;
+
+    private Writer spill;
+
+    private boolean spillFailed;
+
+    /**
+     * @param dir where to save the output that does not fit, null for the default directory
+     * @param name of the output, ie. the node and stream, used to name the file
+     * @param headLines first lines kept in memory
+     * @param tailLines last lines kept in memory
+     */
+    public OutputCapture( File dir, String name, int headLines, int tailLines )
+    {
+        this.dir = dir != null ? dir : defaultDir();
+        this.name = name;
+        this.headLines = Math.max( 0, headLines );
+        this.tailLines = Math.max( 1, tailLines );
+        this.tail = new OutputRingBuffer( this.tailLines );
+    }
+
+    private static File defaultDir()
+    {
+        String dir = System.getProperty( PROPERTY_DIR );
+        return dir != null ? new File( dir ) : new File( System.getProperty( "java.io.tmpdir" ), "maestro-output" );
+    }
+
+    /**
+     * Capture the output of a script that is already in memory, so the caller can drop it
+     *
+     * @return the capture, closed
+     */
+    public static OutputCapture of( File dir, String name, int headLines, int tailLines, String output )
+    {
+        OutputCapture capture = new OutputCapture( dir, name, headLines, tailLines );
+        if ( output != null && output.length() > 0 )
+        {
+            String text = output.endsWith( "\n" ) ? output.substring( 0, output.length() - 1 ) : output;
+            for ( String line : Splitter.on( '\n' ).split( text ) )
+            {
+                capture.add( line );
+            }
+        }
+        capture.close();
+        return capture;
+    }
+
+    public synchronized void add( String line )
+    {
+        total++;
+        String kept = truncate( line );
+        boolean full = head.size() >= headLines && tail.getTotal() >= tailLines;
+        if ( file == null && !spillFailed && ( full || kept != line ) )
+        {
+            // the oldest tail line is about to be dropped or this one doesn't fit, save everything from now on
+            open();
+        }
+        if ( head.size() < headLines )
+        {
+            head.add( kept );
+        }
+        else
+        {
+            tail.add( kept );
+        }
+        write( line );
+    }
+
+    /**
+     * @return the line, or its first {@value #MAX_LINE_LENGTH} characters and how many were left out if it is longer
+     */
+    public static String truncate( String line )
+    {
+        if ( line.length() <= MAX_LINE_LENGTH )
+        {
+            return line;
+        }
+        return String.format( "%s[... %d characters truncated ...]", line.substring( 0, MAX_LINE_LENGTH ),
+                              line.length() - MAX_LINE_LENGTH );
+    }
+
+    private void open()
+    {
+        cleanUp( dir, TimeUnit.HOURS.toMillis( Long.getLong( PROPERTY_MAX_AGE, 24 ) ),
+                 Long.getLong( PROPERTY_MAX_SIZE, 1024 ) * 1024 * 1024, System.currentTimeMillis() );
+        try
+        {
+            dir.mkdirs();
+            file = File.createTempFile( name.replaceAll( "[^A-Za-z0-9._-]", "_" ) + "-", ".log.gz", dir );
+            IN_USE.add( file );
+            spill = new BufferedWriter( new OutputStreamWriter( new GZIPOutputStream( new FileOutputStream( file ) ),
+                                                                UTF_8 ) );
+            for ( String line : head )
+            {
+                write( line );
+            }
+            for ( String line : tail.getLines() )
+            {
+                write( line );
+            }
+        }
+        catch ( IOException e )
+        {
+            logger.warn( "Unable to save the output of " + name + ", only the first and last lines are kept", e );
+            Closeables.closeQuietly( spill );
+            spill = null;
+            if ( file != null )
+            {
+                IN_USE.remove( file );
+                file = null;
+            }
+            spillFailed = true;
+        }
+    }
+
+    /**
+     * Delete the saved output older than maxAge, and the oldest files while there are more than maxSize bytes. Files in
+     * use are kept, and count towards maxSize.
+     */
+    static void cleanUp( File dir, long maxAge, long maxSize, long now )
+    {
+        File[] files = dir.listFiles( new FilenameFilter()
+        {
+            public boolean accept( File dir, String name )
+            {
+                return name.endsWith( ".log.gz" );
+            }
+        } );
+        if ( files == null )
+        {
+            return;
+        }
+        // newest first
+        Arrays.sort( files, new Comparator<File>()
+        {
+            public int compare( File a, File b )
+            {
+                return Long.valueOf( b.lastModified() ).compareTo( a.lastModified() );
+            }
+        } );
+        long size = 0;
+        for ( File file : files )
+        {
+            size += file.length();
+            if ( ( now - file.lastModified() <= maxAge && size <= maxSize ) || IN_USE.contains( file ) )
+            {
+                continue;
+            }
+            if ( file.delete() )
+            {
+                LOGGER.info( "Deleted old output {}", file );
+            }
+            else
+            {
+                LOGGER.warn( "Unable to delete old output " + file );
+            }
+        }
+    }
+
+    private void write( String line )
+    {
+        if ( spill == null )
+        {
+            return;
+        }
+        try
+        {
+            spill.write( line );
+            spill.write( '\n' );
+        }
+        catch ( IOException e )
+        {
+            logger.warn( "Error saving the output of " + name + " to " + file, e );
+            Closeables.closeQuietly( spill );
+            spill = null;
+        }
+    }
+
+    /**
+     * Finish writing the file, if any
+     */
+    public synchronized void close()
+    {
+        if ( spill != null )
+        {
+            try
+            {
+                spill.close();
+            }
+            catch ( IOException e )
+            {
+                logger.warn( "Error saving the output of " + name + " to " + file, e );
+            }
+            spill = null;
+        }
+    }
+
+    /**
+     * The output no longer references the file, it can be cleaned up
+     */
+    public synchronized void release()
+    {
+        close();
+        if ( file != null )
+        {
+            IN_USE.remove( file );
+        }
+    }
+
+    /**
+     * @return the file with the full output, null if it all fit in memory
+     */
+    public synchronized File getFile()
+    {
+        return file;
+    }
+
+    /**
+     * @return number of lines captured
+     */
+    public synchronized long getTotal()
+    {
+        return total;
+    }
+
+    /**
+     * The first and last lines, with a reference to the file with the full output if they are not all
+     */
+    @Override
+    public synchronized String toString()
+    {
+        List<String> kept = Lists.newArrayList( head );
+        long omitted = tail.getDropped();
+        if ( omitted > 0 )
+        {
+            kept.add( file != null ? String.format( "[... %d lines omitted, full output in %s ...]", omitted, file )
+                            : String.format( "[... %d lines omitted ...]", omitted ) );
+        }
+        kept.addAll( tail.getLines() );
+        if ( omitted == 0 && file != null )
+        {
+            // only long lines were truncated
+            kept.add( String.format( "[... full output in %s ...]", file ) );
+        }
+        return kept.isEmpty() ? "" : Joiner.on( '\n' ).join( kept ) + "\n";
+    }
+}
@@ -0,0 +1,234 @@
+package com.maestrodev.lucee.plugins.cloud;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Joins the output messages of a task and sends them from a background thread, once enough bytes are pending or the
+ * oldest message has waited long enough, so the task threads do not wait for a round trip to the server per message.
+ * Writers block while too many bytes are pending, so a slow server slows the task down instead of filling the heap.
+ * The thread exits when there is nothing pending and is started again by the next message.
+ */
+public class OutputCoalescer
+{
+
+    private static final AtomicInteger threads = new AtomicInteger();
+
+    private final Logger logger = LoggerFactory.getLogger( this.getClass() );
+
+    private final Object lock = new Object();
+
+    private final Sink sink;
+
+    private final int batchBytes;
+
+    private final long window;
+
+    private final int maxPendingBytes;
+
+    private StringBuilder pending = new StringBuilder();
+
+    /** when the oldest pending message was written, in nanoseconds */
+    private long oldest;
+
+    private boolean running;
+
+    private boolean flushing;
+
+    private long batches;
+
+    private long messages;
+
+    /**
+     * Sends the joined messages to the server
+     */
+    public interface Sink
+    {
+        void write( String output );
+    }
+
+    /**
+     * @param batchBytes send as soon as this many bytes are pending
+     * @param window milliseconds a message waits at most for others to join it
+     * @param maxPendingBytes writers wait while this many bytes are pending
+     */
+    public OutputCoalescer( Sink sink, int batchBytes, long window, int maxPendingBytes )
+    {
+        this.sink = sink;
+        this.batchBytes = batchBytes;
+        this.window = TimeUnit.MILLISECONDS.toNanos( window );
+        this.maxPendingBytes = Math.max( batchBytes, maxPendingBytes );
+    }
+
+    /**
+     * Queue a message, waiting if the server is not keeping up
+     */
+    public void write( String msg )
+    {
+        if ( msg == null || msg.length() == 0 )
+        {
+            return;
+        }
+        synchronized ( lock )
+        {
+            while ( pending.length() >= maxPendingBytes && running )
+            {
+                if ( !await( 0 ) )
+                {
+                    break;
+                }
+            }
+            if ( pending.length() == 0 )
+            {
+                oldest = System.nanoTime();
+            }
+            pending.append( msg );
+            messages++;
+            if ( !running )
+            {
+                running = true;
+                Thread thread = new Thread( new Runnable()
+                {
+                    public void run()
+                    {
+                        send();
+                    }
+                }, "maestro-output-" + threads.incrementAndGet() );
+                thread.setDaemon( true );
+                thread.start();
+            }
+            else if ( pending.length() >= batchBytes )
+            {
+                lock.notifyAll();
+            }
+        }
+    }
+
+    /**
+     * Send everything pending and wait until it is sent. Called before the task completes, so no output is lost or
+     * arrives after the task result.
+     */
+    public void flush()
+    {
+        synchronized ( lock )
+        {
+            flushing = true;
+            lock.notifyAll();
+            try
+            {
+                while ( running )
+                {
+                    if ( !await( 0 ) )
+                    {
+                        break;
+                    }
+                }
+            }
+            finally
+            {
+                flushing = false;
+            }
+        }
+    }
+
+    private void send()
+    {
+        while ( true )
+        {
+            String batch;
+            synchronized ( lock )
+            {
+                while ( pending.length() > 0 && pending.length() < batchBytes && !flushing )
+                {
+                    long wait = oldest + window - System.nanoTime();
+                    if ( wait <= 0 || !await( wait ) )
+                    {
+                        break;
+                    }
+                }
+                if ( pending.length() == 0 )
+                {
+                    running = false;
+                    lock.notifyAll();
+                    return;
+                }
+                batch = take();
+                // writers waiting for room can go on
+                lock.notifyAll();
+            }
+            deliver( batch );
+        }
+    }
+
+    private String take()
+    {
+        String batch = pending.toString();
+        pending = new StringBuilder();
+        batches++;
+        return batch;
+    }
+
+    private void deliver( String batch )
+    {
+        try
+        {
+            sink.write( batch );
+        }
+        catch ( RuntimeException e )
+        {
+            logger.warn( "Error sending output to the server, " + batch.length() + " characters lost", e );
+        }
+    }
+
+    /**
+     * Wait on the lock
+     *
+     * @param nanos 0 to wait until notified
+     * @return false if interrupted
+     */
+    private boolean await( long nanos )
+    {
+        try
+        {
+            if ( nanos > 0 )
+            {
+                TimeUnit.NANOSECONDS.timedWait( lock, nanos );
+            }
+            else
+            {
+                lock.wait();
+            }
+            return true;
+        }
+        catch ( InterruptedException e )
+        {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+
+    /**
+     * @return messages written since created
+     */
+    public long getMessages()
+    {
+        synchronized ( lock )
+        {
+            return messages;
+        }
+    }
+
+    /**
+     * @return batches sent to the server since created
+     */
+    public long getBatches()
+    {
+        synchronized ( lock )
+        {
+            return batches;
+        }
+    }
+}
@@ -0,0 +1,78 @@
+package com.maestrodev.lucee.plugins.cloud;
+
+import java.util.List;
+
+import com.google.common.base.Joiner;
+import com.google.common.collect.Lists;
+
+/**
+ * Keeps the last lines of an output stream, older lines are dropped so memory stays bounded no matter how much output
+ * there is.
+ */
+public class OutputRingBuffer
+{
+
+    private final String[] lines;
+
+    private int next;
+
+    private int size;
+
+    private long total;
+
+    public OutputRingBuffer( int capacity )
+    {
+        if ( capacity < 1 )
+        {
+            throw new IllegalArgumentException( "Capacity must be at least 1: " + capacity );
+        }
+        this.lines = new String[capacity];
+    }
+
+    public synchronized void add( String line )
+    {
+        lines[next] = line;
+        next = ( next + 1 ) % lines.length;
+        size = Math.min( size + 1, lines.length );
+        total++;
+    }
+
+    /**
+     * @return the lines kept, oldest first
+     */
+    public synchronized List<String> getLines()
+    {
+        List<String> result = Lists.newArrayListWithCapacity( size );
+        int first = ( next - size + lines.length ) % lines.length;
+        for ( int i = 0; i < size; i++ )
+        {
+            result.add( lines[( first + i ) % lines.length] );
+        }
+        return result;
+    }
+
+    /**
+     * @return number of lines ever added
+     */
+    public synchronized long getTotal()
+    {
+        return total;
+    }
+
+    /**
+     * @return number of lines no longer kept
+     */
+    public synchronized long getDropped()
+    {
+        return total - size;
+    }
+
+    @Override
+    public String toString()
+    {
+        List<String> kept = getLines();
+        long dropped = getDropped();
+        String text = kept.isEmpty() ? "" : Joiner.on( '\n' ).join( kept ) + "\n";
+        return dropped > 0 ? String.format( "[... %d lines omitted ...]%n%s", dropped, text ) : text;
+    }
+}
@@ -0,0 +1,157 @@
+package com.maestrodev.lucee.plugins.cloud;
+
+import org.jclouds.compute.domain.ExecResponse;
+
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.SettableFuture;
+
+/**
+ * A node started by an asynchronous provision that is not ready yet. It goes through
+ * {@code CREATED -> BOOTSTRAPPING -> RUNNING_COMMANDS -> READY}, or to {@code FAILED} from any state, and its future
+ * completes when it reaches one of the last two.
+ */
+public class PendingNode
+{
+
+    public enum State
+    {
+        CREATED, BOOTSTRAPPING, RUNNING_COMMANDS, READY, FAILED;
+
+        public boolean isDone()
+        {
+            return this == READY || this == FAILED;
+        }
+    }
+
+    private final String id;
+
+    private final String publicAddress;
+
+    private final long created = System.currentTimeMillis();
+
+    private final SettableFuture<ExecResponse> future = SettableFuture.create();
+
+    private volatile State state = State.CREATED;
+
+    private volatile long completed;
+
+    private volatile StreamingScriptRunner runner;
+
+    public PendingNode( String id, String publicAddress )
+    {
+        this.id = id;
+        this.publicAddress = publicAddress;
+    }
+
+    public String getId()
+    {
+        return id;
+    }
+
+    public String getPublicAddress()
+    {
+        return publicAddress;
+    }
+
+    public State getState()
+    {
+        return state;
+    }
+
+    /**
+     * @return milliseconds since the node was created, or until it was ready or failed
+     */
+    public long getElapsed()
+    {
+        return ( state.isDone() ? completed : System.currentTimeMillis() ) - created;
+    }
+
+    /**
+     * @return time the node was ready or failed, 0 if it is still pending
+     */
+    public long getCompleted()
+    {
+        return completed;
+    }
+
+    /**
+     * @return completed with the response of the commands once the node is ready, failed if any step failed
+     */
+    public ListenableFuture<ExecResponse> getFuture()
+    {
+        return future;
+    }
+
+    /**
+     * Move to the next step
+     *
+     * @throws IllegalStateException if the node is done or the step would go backwards
+     */
+    synchronized void advance( State next )
+    {
+        if ( state.isDone() || next.isDone() || next.ordinal() < state.ordinal() )
+        {
+            throw new IllegalStateException( format( next ) );
+        }
+        state = next;
+    }
+
+    /**
+     * @param response output of the commands, null if there were none
+     */
+    synchronized void ready( ExecResponse response )
+    {
+        if ( state.isDone() )
+        {
+            throw new IllegalStateException( format( State.READY ) );
+        }
+        finish( State.READY );
+        future.set( response );
+    }
+
+    synchronized void fail( Throwable t )
+    {
+        if ( state.isDone() )
+        {
+            throw new IllegalStateException( format( State.FAILED ) );
+        }
+        finish( State.FAILED );
+        future.setException( t );
+    }
+
+    /**
+     * @param runner runs the commands, the files with the output that did not fit are kept while the node is pending
+     */
+    void setRunner( StreamingScriptRunner runner )
+    {
+        this.runner = runner;
+    }
+
+    /**
+     * The response is no longer used, its output files can be cleaned up
+     */
+    void release()
+    {
+        if ( runner != null )
+        {
+            runner.release();
+        }
+    }
+
+    private void finish( State last )
+    {
+        completed = System.currentTimeMillis();
+        state = last;
+    }
+
+    private String format( State next )
+    {
+        return String.format( "Node %s can't go from %s to %s", id, state, next );
+    }
+
+    @Override
+    public String toString()
+    {
+        return String.format( "%s (%s) %s", id, publicAddress, state );
+    }
+}
@@ -0,0 +1,195 @@
+package com.maestrodev.lucee.plugins.cloud;
+
+import static com.google.common.collect.Iterables.getFirst;
+
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.jclouds.compute.ComputeService;
+import org.jclouds.compute.domain.ExecResponse;
+import org.jclouds.compute.domain.NodeMetadata;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.base.Function;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.util.concurrent.FutureCallback;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+
+/**
+ * Nodes started by asynchronous provisions in this agent, by node id, until an await task picks them up. Also runs
+ * their bootstrap and commands in the background, so the provision task can return as soon as the nodes exist.
+ */
+public class PendingNodes
+{
+
+    /** nodes done and never awaited are forgotten after this many milliseconds */
+    private static final long RETENTION = TimeUnit.HOURS.toMillis( 6 );
+
+    private static final PendingNodes instance = new PendingNodes();
+
+    private final Logger logger = LoggerFactory.getLogger( this.getClass() );
+
+    private final ConcurrentMap<String, PendingNode> nodes = Maps.newConcurrentMap();
+
+    private final ExecutorService executor = Executors.newCachedThreadPool( new ThreadFactory()
+    {
+        private final AtomicInteger count = new AtomicInteger();
+
+        public Thread newThread( Runnable r )
+        {
+            Thread thread = new Thread( r, "maestro-cloud-pending-" + count.incrementAndGet() );
+            thread.setDaemon( true );
+            return thread;
+        }
+    } );
+
+    public static PendingNodes getInstance()
+    {
+        return instance;
+    }
+
+    PendingNodes()
+    {
+    }
+
+    public void register( PendingNode node )
+    {
+        purge();
+        nodes.put( node.getId(), node );
+    }
+
+    /**
+     * Bootstrap the new nodes and run the script in all of them in the background, keeping each node pending until it
+     * is awaited. Only the first and last lines of the output of each node are kept meanwhile.
+     *
+     * @param created nodes that need the bootstrap, the rest were already bootstrapped in the standby pool
+     * @param script the rendered commands, null if there are none
+     * @return completed when all the nodes are ready or failed
+     */
+    public ListenableFuture<List<ExecResponse>> start( final ComputeService compute, final LaunchSpec spec,
+                                                       Set<NodeMetadata> nodes, final Set<NodeMetadata> created,
+                                                       final String script, int headLines, int tailLines )
+    {
+        List<ListenableFuture<ExecResponse>> futures = Lists.newArrayList();
+        for ( final NodeMetadata node : nodes )
+        {
+            final PendingNode pendingNode =
+                new PendingNode( node.getId(), getFirst( node.getPublicAddresses(), null ) );
+            final StreamingScriptRunner runner = new StreamingScriptRunner( headLines, tailLines );
+            pendingNode.setRunner( runner );
+            register( pendingNode );
+            futures.add( pendingNode.getFuture() );
+
+            ListenableFuture<ExecResponse> bootstrapped;
+            if ( created.contains( node ) )
+            {
+                pendingNode.advance( PendingNode.State.BOOTSTRAPPING );
+                bootstrapped = TaskNodeLauncher.bootstrap( compute, spec, node, executor );
+            }
+            else
+            {
+                bootstrapped = Futures.immediateFuture( null );
+            }
+            ListenableFuture<ExecResponse> commands =
+                Futures.transform( bootstrapped, new Function<ExecResponse, ExecResponse>()
+                {
+                    public ExecResponse apply( ExecResponse bootstrapResponse )
+                    {
+                        if ( created.contains( node ) )
+                        {
+                            ProvisioningJournal.getInstance().bootstrapped( spec.getIntentId(),
+                                                                            Collections.singleton( node.getId() ) );
+                        }
+                        if ( script == null )
+                        {
+                            return null;
+                        }
+                        pendingNode.advance( PendingNode.State.RUNNING_COMMANDS );
+                        try
+                        {
+                            return runner.run( compute, node, spec.getLoginCredentials(), script,
+                                               StreamingScriptRunner.DISCARD );
+                        }
+                        catch ( InterruptedException e )
+                        {
+                            Thread.currentThread().interrupt();
+                            throw new IllegalStateException( "Interrupted running commands in node " + node.getId(),
+                                                             e );
+                        }
+                    }
+                }, executor );
+            Futures.addCallback( commands, new FutureCallback<ExecResponse>()
+            {
+                public void onSuccess( ExecResponse response )
+                {
+                    pendingNode.ready( response );
+                    logger.info( "Node {} ready in {} ms", node.getId(), pendingNode.getElapsed() );
+                }
+
+                public void onFailure( Throwable t )
+                {
+                    logger.warn( "Error getting node " + node.getId() + " ready", t );
+                    pendingNode.fail( t );
+                }
+            } );
+        }
+        return Futures.successfulAsList( futures );
+    }
+
+    /**
+     * @return the pending node, null if this agent didn't start it or it was already awaited
+     */
+    public PendingNode get( String id )
+    {
+        return nodes.get( id );
+    }
+
+    public void remove( String id )
+    {
+        PendingNode node = nodes.remove( id );
+        if ( node != null )
+        {
+            node.release();
+        }
+    }
+
+    public int size()
+    {
+        return nodes.size();
+    }
+
+    /**
+     * @return executor for the readiness work of the nodes
+     */
+    Executor getExecutor()
+    {
+        return executor;
+    }
+
+    private void purge()
+    {
+        long now = System.currentTimeMillis();
+        for ( Iterator<Map.Entry<String, PendingNode>> it = nodes.entrySet().iterator(); it.hasNext(); )
+        {
+            PendingNode node = it.next().getValue();
+            if ( node.getState().isDone() && now - node.getCompleted() > RETENTION )
+            {
+                it.remove();
+                node.release();
+            }
+        }
+    }
+}
@@ -0,0 +1,435 @@
+package com.maestrodev.lucee.plugins.cloud;
+
+import static com.maestrodev.lucee.plugins.cloud.ProviderRegistry.isAmazon;
+import static com.maestrodev.lucee.plugins.cloud.Regions.regionOf;
+
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.jclouds.aws.AWSResponseException;
+import org.jclouds.compute.RunNodesException;
+import org.jclouds.compute.domain.NodeMetadata;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.base.Objects;
+import com.google.common.base.Throwables;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Lists;
+import com.maestrodev.lucee.plugins.cloud.metrics.PhaseMetrics;
+import com.maestrodev.lucee.plugins.cloud.metrics.PlacementStats;
+
+/**
+ * Launches nodes in the first flavor and availability zone with capacity, trying the fallbacks in order when the
+ * provider has no capacity for the previous ones. In hedged mode two placements are launched at the same time, the
+ * nodes of the first one to be ready are kept and the nodes of the other one destroyed as soon as they start.
+ */
+public class PlacementLauncher
+{
+
+    /** EC2 error codes of launches that may succeed with another flavor or zone */
+    private static final ImmutableSet<String> CAPACITY_CODES =
+        ImmutableSet.of( "InsufficientInstanceCapacity", "InsufficientHostCapacity",
+                         "InsufficientReservedInstanceCapacity", "Unsupported" );
+
+    private static final ExecutorService executor = Executors.newCachedThreadPool( new ThreadFactory()
+    {
+        private final AtomicInteger count = new AtomicInteger();
+
+        public Thread newThread( Runnable r )
+        {
+            Thread thread = new Thread( r, "maestro-cloud-hedge-" + count.incrementAndGet() );
+            thread.setDaemon( true );
+            return thread;
+        }
+    } );
+
+    /**
+     * Starts and destroys nodes in the provider
+     */
+    public interface NodeLauncher
+    {
+        Set<? extends NodeMetadata> launch( LaunchSpec placement, int count )
+            throws RunNodesException;
+
+        void destroy( Set<? extends NodeMetadata> nodes );
+
+        /**
+         * Wait until the nodes accept ssh connections, or the wait for them timed out. The bootstrap is the same script
+         * in every placement, so how long the nodes take to boot is what decides which placement is ready first.
+         */
+        void awaitReady( LaunchSpec placement, Set<? extends NodeMetadata> nodes );
+    }
+
+    private static final Logger staticLogger = LoggerFactory.getLogger( PlacementLauncher.class );
+
+    private final Logger logger = LoggerFactory.getLogger( this.getClass() );
+
+    private final NodeLauncher launcher;
+
+    private final PhaseMetrics metrics;
+
+    private final List<String> attempts = Lists.newArrayList();
+
+    public PlacementLauncher( NodeLauncher launcher, PhaseMetrics metrics )
+    {
+        this.launcher = launcher;
+        this.metrics = metrics;
+    }
+
+    /**
+     * Launch the nodes in the first placement with capacity
+     *
+     * @param placements the specs to try in order, the first one is what the task asked for
+     * @param hedge launch in two placements at the same time
+     * @return the nodes and the placement they were launched in
+     * @throws RunNodesException the error of the last placement tried, or the first error that is not about capacity
+     */
+    public Launched launch( List<LaunchSpec> placements, int count, boolean hedge )
+        throws RunNodesException
+    {
+        Exception last = null;
+        int i = 0;
+        while ( i < placements.size() )
+        {
+            try
+            {
+                if ( hedge && i + 1 < placements.size() )
+                {
+                    return race( placements.get( i ), i > 0, placements.get( i + 1 ), count );
+                }
+                return new Launched( timedLaunch( placements.get( i ), count, i > 0 ), placements.get( i ) );
+            }
+            catch ( RunNodesException e )
+            {
+                last = e;
+            }
+            catch ( RuntimeException e )
+            {
+                last = e;
+            }
+            if ( !isCapacityError( last ) )
+            {
+                break;
+            }
+            i += hedge ? 2 : 1;
+        }
+        Throwables.propagateIfInstanceOf( last, RunNodesException.class );
+        throw Throwables.propagate( last );
+    }
+
+    /**
+     * @return each placement tried and why it was not used
+     */
+    public List<String> getAttempts()
+    {
+        return attempts;
+    }
+
+    private Set<? extends NodeMetadata> timedLaunch( LaunchSpec placement, int count, boolean fallback )
+        throws RunNodesException
+    {
+        PlacementStats stats = stats( placement );
+        long start = System.currentTimeMillis();
+        try
+        {
+            Set<? extends NodeMetadata> nodes = launcher.launch( placement, count );
+            stats.launched( System.currentTimeMillis() - start, fallback );
+            return nodes;
+        }
+        catch ( RunNodesException e )
+        {
+            failed( placement, stats, e );
+            throw e;
+        }
+        catch ( RuntimeException e )
+        {
+            failed( placement, stats, e );
+            throw e;
+        }
+    }
+
+    private void failed( LaunchSpec placement, PlacementStats stats, Exception e )
+    {
+        if ( isCapacityError( e ) )
+        {
+            stats.capacityError();
+        }
+        synchronized ( attempts )
+        {
+            attempts.add( String.format( "%s %s: %s", placement.getAvailabilityZone(), placement.getFlavorId(),
+                                         e.getMessage() ) );
+        }
+        logger.info( "Unable to launch in {} {}: {}",
+                     new Object[] { placement.getAvailabilityZone(), placement.getFlavorId(), e.getMessage() } );
+    }
+
+    private Set<? extends NodeMetadata> readyLaunch( LaunchSpec placement, int count, boolean fallback )
+        throws RunNodesException
+    {
+        Set<? extends NodeMetadata> nodes = timedLaunch( placement, count, fallback );
+        launcher.awaitReady( placement, nodes );
+        return nodes;
+    }
+
+    /**
+     * Launch in both placements, keep the first one whose nodes are ready and destroy the other one when it starts
+     */
+    private Launched race( final LaunchSpec first, final boolean fallback, final LaunchSpec second, final int count )
+        throws RunNodesException
+    {
+        CompletionService<Set<? extends NodeMetadata>> completion =
+            new ExecutorCompletionService<Set<? extends NodeMetadata>>( executor );
+        final Future<Set<? extends NodeMetadata>> firstFuture =
+            completion.submit( new Callable<Set<? extends NodeMetadata>>()
+            {
+                public Set<? extends NodeMetadata> call()
+                    throws RunNodesException
+                {
+                    return readyLaunch( first, count, fallback );
+                }
+            } );
+        final Future<Set<? extends NodeMetadata>> secondFuture =
+            completion.submit( new Callable<Set<? extends NodeMetadata>>()
+            {
+                public Set<? extends NodeMetadata> call()
+                    throws RunNodesException
+                {
+                    return readyLaunch( second, count, true );
+                }
+            } );
+
+        Exception firstError = null;
+        Exception secondError = null;
+        for ( int i = 0; i < 2; i++ )
+        {
+            Future<Set<? extends NodeMetadata>> done;
+            try
+            {
+                done = completion.take();
+            }
+            catch ( InterruptedException e )
+            {
+                Thread.currentThread().interrupt();
+                cleanUp( firstFuture );
+                cleanUp( secondFuture );
+                throw new IllegalStateException( "Interrupted launching nodes", e );
+            }
+            boolean isFirst = done == firstFuture;
+            LaunchSpec winner = isFirst ? first : second;
+            try
+            {
+                Set<? extends NodeMetadata> nodes = done.get();
+                Future<Set<? extends NodeMetadata>> loser = isFirst ? secondFuture : firstFuture;
+                stats( winner ).hedge( true );
+                stats( isFirst ? second : first ).hedge( false );
+                cleanUp( loser );
+                return new Launched( nodes, winner );
+            }
+            catch ( ExecutionException e )
+            {
+                Exception cause =
+                    e.getCause() instanceof Exception ? (Exception) e.getCause() : new IllegalStateException( e );
+                if ( isFirst )
+                {
+                    firstError = cause;
+                }
+                else
+                {
+                    secondError = cause;
+                }
+            }
+            catch ( InterruptedException e )
+            {
+                Thread.currentThread().interrupt();
+                throw new IllegalStateException( "Interrupted launching nodes", e );
+            }
+        }
+
+        // both failed, the nodes of the first one that made it are handled by the caller
+        if ( secondError instanceof RunNodesException )
+        {
+            destroy( ( (RunNodesException) secondError ).getSuccessfulNodes() );
+        }
+        Exception error = isCapacityError( firstError ) ? secondError : firstError;
+        if ( error == secondError && firstError instanceof RunNodesException )
+        {
+            destroy( ( (RunNodesException) firstError ).getSuccessfulNodes() );
+        }
+        Throwables.propagateIfInstanceOf( error, RunNodesException.class );
+        throw Throwables.propagate( error );
+    }
+
+    /**
+     * Destroy the nodes of the losing launch as soon as they are started, in the background
+     */
+    private void cleanUp( final Future<Set<? extends NodeMetadata>> loser )
+    {
+        executor.execute( new Runnable()
+        {
+            public void run()
+            {
+                try
+                {
+                    destroy( loser.get() );
+                }
+                catch ( ExecutionException e )
+                {
+                    if ( e.getCause() instanceof RunNodesException )
+                    {
+                        destroy( ( (RunNodesException) e.getCause() ).getSuccessfulNodes() );
+                    }
+                }
+                catch ( InterruptedException e )
+                {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        } );
+    }
+
+    private void destroy( Set<? extends NodeMetadata> nodes )
+    {
+        if ( nodes.isEmpty() )
+        {
+            return;
+        }
+        logger.info( "Destroying {} nodes of the hedged launch that lost", nodes.size() );
+        try
+        {
+            launcher.destroy( nodes );
+        }
+        catch ( RuntimeException e )
+        {
+            logger.warn( "Error destroying the nodes of the hedged launch that lost", e );
+        }
+    }
+
+    private PlacementStats stats( LaunchSpec placement )
+    {
+        return metrics.getPlacement( placement.getProvider(), placement.getAvailabilityZone(),
+                                     placement.getFlavorId() );
+    }
+
+    /**
+     * Specs to try in order when there is no capacity: the flavor in each zone, then each fallback flavor in each zone,
+     * so a hedged launch races the same flavor in two zones. EC2 zones in another region than the task are skipped, as
+     * the image and context are for that region.
+     */
+    public static List<LaunchSpec> placements( LaunchSpec spec, List<String> flavorFallbacks,
+                                               List<String> zoneFallbacks )
+    {
+        List<String> flavors = Lists.newArrayList( spec.getFlavorId() );
+        if ( flavorFallbacks != null )
+        {
+            flavors.addAll( flavorFallbacks );
+        }
+        List<String> zones = Lists.newArrayList( spec.getAvailabilityZone() );
+        String region = regionOf( spec.getProvider(), spec.getAvailabilityZone() );
+        if ( zoneFallbacks != null )
+        {
+            for ( String zone : zoneFallbacks )
+            {
+                if ( isAmazon( spec.getProvider() ) && !regionOf( spec.getProvider(), zone ).equals( region ) )
+                {
+                    staticLogger.warn( "Ignoring fallback zone {} outside of region {}", zone, region );
+                    continue;
+                }
+                zones.add( zone );
+            }
+        }
+
+        List<LaunchSpec> placements = Lists.newArrayList( spec );
+        for ( String flavor : flavors )
+        {
+            for ( String zone : zones )
+            {
+                if ( !( Objects.equal( flavor, spec.getFlavorId() )
+                    && Objects.equal( zone, spec.getAvailabilityZone() ) ) )
+                {
+                    placements.add( spec.copy().flavorId( flavor ).availabilityZone( zone ) );
+                }
+            }
+        }
+        return placements;
+    }
+
+    /**
+     * Whether the error, or any of its causes, means there is no capacity for the flavor in the zone, and another
+     * placement may work. Launches that started some nodes are not considered capacity errors.
+     */
+    public static boolean isCapacityError( Throwable error )
+    {
+        for ( Throwable t = error; t != null; t = t.getCause() )
+        {
+            if ( t instanceof RunNodesException )
+            {
+                RunNodesException e = (RunNodesException) t;
+                if ( !e.getSuccessfulNodes().isEmpty() || !e.getNodeErrors().isEmpty()
+                    || e.getExecutionErrors().isEmpty() )
+                {
+                    return false;
+                }
+                for ( Throwable cause : e.getExecutionErrors().values() )
+                {
+                    if ( !isCapacityError( cause ) )
+                    {
+                        return false;
+                    }
+                }
+                return true;
+            }
+            // the template builder does not find the flavor in the zone
+            if ( t instanceof NoSuchElementException )
+            {
+                return true;
+            }
+            if ( t instanceof AWSResponseException && ( (AWSResponseException) t ).getError() != null
+                && CAPACITY_CODES.contains( ( (AWSResponseException) t ).getError().getCode() ) )
+            {
+                return true;
+            }
+            if ( t.getMessage() != null && t.getMessage().contains( "InsufficientInstanceCapacity" ) )
+            {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Nodes launched and where
+     */
+    public static class Launched
+    {
+        private final Set<? extends NodeMetadata> nodes;
+
+        private final LaunchSpec placement;
+
+        Launched( Set<? extends NodeMetadata> nodes, LaunchSpec placement )
+        {
+            this.nodes = nodes;
+            this.placement = placement;
+        }
+
+        public Set<? extends NodeMetadata> getNodes()
+        {
+            return nodes;
+        }
+
+        public LaunchSpec getPlacement()
+        {
+            return placement;
+        }
+    }
+}
@@ -0,0 +1,47 @@
+package com.maestrodev.lucee.plugins.cloud;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Map.Entry;
+import java.util.Properties;
+
+import com.google.common.io.Closeables;
+
+/**
+ * Writes the index read by {@link ProviderRegistry}, run at build time so agents don't have to scan all providers.
+ */
+public class ProviderIndexGenerator
+{
+
+    /**
+     * @param args the file to write
+     */
+    public static void main( String[] args )
+        throws IOException
+    {
+        if ( args.length != 1 )
+        {
+            throw new IllegalArgumentException( "Usage: ProviderIndexGenerator <output file>" );
+        }
+        Properties properties = new Properties();
+        for ( Entry<String, String> entry : ProviderRegistry.scan().entrySet() )
+        {
+            properties.setProperty( entry.getKey(), entry.getValue() );
+        }
+
+        File file = new File( args[0] );
+        file.getParentFile().mkdirs();
+        OutputStream out = new FileOutputStream( file );
+        try
+        {
+            properties.store( out, "jclouds compute providers and apis, generated at build time" );
+        }
+        finally
+        {
+            Closeables.closeQuietly( out );
+        }
+        System.out.println( "Indexed " + properties.size() + " compute providers in " + file );
+    }
+}
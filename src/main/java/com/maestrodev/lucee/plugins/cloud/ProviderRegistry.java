@@ -0,0 +1,204 @@
+package com.maestrodev.lucee.plugins.cloud;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+import java.util.SortedMap;
+import java.util.concurrent.ConcurrentMap;
+
+import org.jclouds.ContextBuilder;
+import org.jclouds.apis.ApiMetadata;
+import org.jclouds.apis.Apis;
+import org.jclouds.compute.ComputeServiceContext;
+import org.jclouds.providers.ProviderMetadata;
+import org.jclouds.providers.Providers;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.collect.ImmutableSortedMap;
+import com.google.common.collect.Maps;
+import com.google.common.io.Closeables;
+
+/**
+ * Supported compute providers and apis, looked up in an index generated at build time by
+ * {@link ProviderIndexGenerator}. Only the metadata of the providers actually used is loaded, instead of scanning and
+ * instantiating every provider in the classpath.
+ */
+public class ProviderRegistry
+{
+
+    /** classpath resource with the provider and api ids and their metadata classes */
+    public static final String INDEX = "META-INF/maestro/compute-providers.properties";
+
+    static final String PROVIDER_PREFIX = "provider:";
+
+    static final String API_PREFIX = "api:";
+
+    private static final ProviderRegistry instance = new ProviderRegistry( INDEX );
+
+    private final Logger logger = LoggerFactory.getLogger( this.getClass() );
+
+    private final String indexResource;
+
+    private volatile SortedMap<String, String> index;
+
+    private final ConcurrentMap<String, Object> metadata = Maps.newConcurrentMap();
+
+    /** whether the index was missing and the classpath was scanned instead */
+    private volatile boolean scanned;
+
+    public static ProviderRegistry getInstance()
+    {
+        return instance;
+    }
+
+    ProviderRegistry( String indexResource )
+    {
+        this.indexResource = indexResource;
+    }
+
+    /**
+     * @return ids of all supported providers and apis
+     */
+    public Set<String> ids()
+    {
+        return getIndex().keySet();
+    }
+
+    public boolean contains( String id )
+    {
+        return id != null && getIndex().containsKey( id );
+    }
+
+    public static boolean isAmazon( String provider )
+    {
+        return "aws-ec2".equals( provider );
+    }
+
+    /**
+     * @return whether the provider is the jclouds stub, whose nodes have no ssh server
+     */
+    public static boolean isStub( String provider )
+    {
+        return "stub".equals( provider );
+    }
+
+    /**
+     * A context builder for the provider or api, loading only its metadata
+     */
+    public ContextBuilder newContextBuilder( String id )
+    {
+        Object meta = getMetadata( id );
+        if ( meta instanceof ProviderMetadata )
+        {
+            return ContextBuilder.newBuilder( (ProviderMetadata) meta );
+        }
+        return ContextBuilder.newBuilder( (ApiMetadata) meta );
+    }
+
+    private Object getMetadata( String id )
+    {
+        Object meta = metadata.get( id );
+        if ( meta == null )
+        {
+            String entry = getIndex().get( id );
+            if ( entry == null )
+            {
+                throw new IllegalArgumentException( "Provider " + id + " not in supported list: " + ids() );
+            }
+            String className = entry.substring( entry.indexOf( ':' ) + 1 );
+            try
+            {
+                meta = Class.forName( className, true, getClass().getClassLoader() ).newInstance();
+            }
+            catch ( Exception e )
+            {
+                throw new IllegalStateException( "Unable to load metadata " + className + " for " + id, e );
+            }
+            metadata.putIfAbsent( id, meta );
+        }
+        return meta;
+    }
+
+    boolean isScanned()
+    {
+        return scanned;
+    }
+
+    /**
+     * @return ids of the providers and apis whose metadata was loaded
+     */
+    Set<String> loaded()
+    {
+        return metadata.keySet();
+    }
+
+    private SortedMap<String, String> getIndex()
+    {
+        if ( index == null )
+        {
+            synchronized ( this )
+            {
+                if ( index == null )
+                {
+                    index = loadIndex();
+                }
+            }
+        }
+        return index;
+    }
+
+    private SortedMap<String, String> loadIndex()
+    {
+        InputStream in = getClass().getClassLoader().getResourceAsStream( indexResource );
+        if ( in == null )
+        {
+            logger.warn( "Provider index {} not found, scanning the classpath", indexResource );
+            scanned = true;
+            return scan();
+        }
+        try
+        {
+            Properties properties = new Properties();
+            properties.load( in );
+            ImmutableSortedMap.Builder<String, String> builder = ImmutableSortedMap.naturalOrder();
+            for ( String id : properties.stringPropertyNames() )
+            {
+                builder.put( id, properties.getProperty( id ) );
+            }
+            return builder.build();
+        }
+        catch ( IOException e )
+        {
+            logger.warn( "Error reading provider index " + indexResource + ", scanning the classpath", e );
+            scanned = true;
+            return scan();
+        }
+        finally
+        {
+            Closeables.closeQuietly( in );
+        }
+    }
+
+    /**
+     * Find all compute providers and apis the slow way, loading all of them
+     *
+     * @return ids and their metadata classes, prefixed by the type
+     */
+    static SortedMap<String, String> scan()
+    {
+        Map<String, String> found = Maps.newHashMap();
+        for ( ApiMetadata api : Apis.viewableAs( ComputeServiceContext.class ) )
+        {
+            found.put( api.getId(), API_PREFIX + api.getClass().getName() );
+        }
+        // providers win over apis with the same id, as in ContextBuilder
+        for ( ProviderMetadata provider : Providers.viewableAs( ComputeServiceContext.class ) )
+        {
+            found.put( provider.getId(), PROVIDER_PREFIX + provider.getClass().getName() );
+        }
+        return ImmutableSortedMap.copyOf( found );
+    }
+}
@@ -0,0 +1,565 @@
+package com.maestrodev.lucee.plugins.cloud;
+
+import static com.google.common.base.Strings.*;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.zip.CRC32;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.base.Objects;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
+import com.google.common.io.Closeables;
+
+/**
+ * Append only log of what provision launched, so nodes don't leak if the agent dies before they are saved to the
+ * work item. Each record is written and synced to disk before going on, as a length prefixed binary record with a
+ * checksum; a record cut short by a crash is dropped when the journal is read back.
+ * <p>
+ * A provision records an {@link Event#INTENT} before creating nodes, then {@link Event#CREATED} and
+ * {@link Event#BOOTSTRAPPED} for each node and {@link Event#COMPLETED} when the task is done, whatever the result,
+ * as by then the nodes are in the work item. Nodes can also be {@link Event#RELEASED} from an intent that no
+ * longer answers for them, ie. standby nodes claimed by a provision that journals them itself, and the intent is
+ * completed once all its nodes are released. Intents left open by a previous run of the agent are the ones
+ * {@link OrphanReconciler} looks at. The journal is rewritten with only the open intents every
+ * {@value #COMPACT_THRESHOLD} records.
+ */
+public class ProvisioningJournal
+{
+
+    /** file of the journal, empty to keep it in memory only */
+    public static final String PROPERTY_FILE = "maestro.cloud.journal.file";
+
+    private static final int COMPACT_THRESHOLD = 1000;
+
+    /** records bigger than this are corrupt */
+    private static final int MAX_RECORD = 64 * 1024;
+
+    private static ProvisioningJournal instance;
+
+    public enum Event
+    {
+        INTENT, CREATED, BOOTSTRAPPED, COMPLETED, DESTROYED, RELEASED
+    }
+
+    private final Logger logger = LoggerFactory.getLogger( this.getClass() );
+
+    private final File file;
+
+    private RandomAccessFile out;
+
+    private final Map<String, Intent> intents = Maps.newLinkedHashMap();
+
+    private final Set<String> destroyed = Sets.newHashSet();
+
+    private int records;
+
+    public static synchronized ProvisioningJournal getInstance()
+    {
+        if ( instance == null )
+        {
+            instance =
+                new ProvisioningJournal( System.getProperty( PROPERTY_FILE, System.getProperty( "user.home" )
+                    + "/.maestro/cloud-journal.bin" ) );
+        }
+        return instance;
+    }
+
+    /**
+     * Open the journal, reading the intents of previous runs
+     *
+     * @param file path of the journal, null or empty to keep it in memory only
+     */
+    public ProvisioningJournal( String file )
+    {
+        this.file = ( file == null || file.length() == 0 ) ? null : new File( file );
+        if ( this.file != null )
+        {
+            load();
+            compact();
+        }
+    }
+
+    /**
+     * Record the intent to launch nodes
+     *
+     * @return id of the intent, to tag the nodes and record what happens to them
+     */
+    public String intent( String provider, String identity, String region )
+    {
+        String id = UUID.randomUUID().toString();
+        append( Collections.singletonList( new Record( Event.INTENT, System.currentTimeMillis(), id, provider,
+                                                       identity, region, null ) ) );
+        return id;
+    }
+
+    public void created( String intentId, Collection<String> nodeIds )
+    {
+        append( records( Event.CREATED, intentId, nodeIds ) );
+    }
+
+    public void bootstrapped( String intentId, Collection<String> nodeIds )
+    {
+        append( records( Event.BOOTSTRAPPED, intentId, nodeIds ) );
+    }
+
+    /**
+     * The nodes of the intent are saved in the work item or were reconciled, they no longer need to be tracked
+     */
+    public void completed( String intentId )
+    {
+        append( Collections.singletonList( new Record( Event.COMPLETED, System.currentTimeMillis(), intentId, null,
+                                                       null, null, null ) ) );
+    }
+
+    public void destroyed( Collection<String> nodeIds )
+    {
+        append( records( Event.DESTROYED, null, nodeIds ) );
+    }
+
+    /**
+     * The intent no longer answers for the nodes, it is completed once all of its nodes are released
+     */
+    public void released( String intentId, Collection<String> nodeIds )
+    {
+        append( records( Event.RELEASED, intentId, nodeIds ) );
+        boolean done;
+        synchronized ( this )
+        {
+            Intent intent = intents.get( intentId );
+            done = intent != null && !intent.completed && intent.released.containsAll( intent.nodes );
+        }
+        if ( done )
+        {
+            completed( intentId );
+        }
+    }
+
+    /**
+     * @return ids of the nodes created for the intent and not released
+     */
+    public synchronized List<String> getNodes( String intentId )
+    {
+        Intent intent = intents.get( intentId );
+        return intent == null ? Collections.<String> emptyList() : intent.getNodes();
+    }
+
+    /**
+     * @return intents of previous runs of the agent that never completed, for the provider and identity
+     */
+    public synchronized List<Intent> getOrphanedIntents( String provider, String identity )
+    {
+        List<Intent> orphaned = Lists.newArrayList();
+        for ( Intent intent : intents.values() )
+        {
+            // the provider and identity of a record may be empty
+            if ( intent.previousRun && !intent.completed && Objects.equal( intent.provider, provider )
+                && Objects.equal( intent.identity, identity ) )
+            {
+                orphaned.add( intent );
+            }
+        }
+        return orphaned;
+    }
+
+    /**
+     * @return whether the node was destroyed through the plugin
+     */
+    public synchronized boolean isDestroyed( String nodeId )
+    {
+        return destroyed.contains( nodeId );
+    }
+
+    private List<Record> records( Event event, String intentId, Collection<String> nodeIds )
+    {
+        long now = System.currentTimeMillis();
+        List<Record> list = Lists.newArrayList();
+        for ( String nodeId : nodeIds )
+        {
+            list.add( new Record( event, now, intentId, null, null, null, nodeId ) );
+        }
+        return list;
+    }
+
+    private synchronized void append( List<Record> batch )
+    {
+        if ( batch.isEmpty() )
+        {
+            return;
+        }
+        for ( Record record : batch )
+        {
+            apply( record, false );
+        }
+        if ( file == null )
+        {
+            return;
+        }
+        try
+        {
+            if ( out == null )
+            {
+                file.getAbsoluteFile().getParentFile().mkdirs();
+                out = new RandomAccessFile( file, "rw" );
+                out.seek( out.length() );
+            }
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            DataOutputStream data = new DataOutputStream( bytes );
+            for ( Record record : batch )
+            {
+                record.write( data );
+            }
+            data.flush();
+            out.write( bytes.toByteArray() );
+            out.getChannel().force( false );
+            records += batch.size();
+        }
+        catch ( IOException e )
+        {
+            logger.warn( "Error writing provisioning journal " + file, e );
+        }
+        if ( records > COMPACT_THRESHOLD )
+        {
+            compact();
+        }
+    }
+
+    private void apply( Record record, boolean previousRun )
+    {
+        Intent intent = record.intentId == null ? null : intents.get( record.intentId );
+        switch ( record.event )
+        {
+            case INTENT:
+                intents.put( record.intentId, new Intent( record.intentId, record.time, record.provider,
+                                                          record.identity, record.region, previousRun ) );
+                break;
+            case CREATED:
+                if ( intent != null )
+                {
+                    intent.nodes.add( record.nodeId );
+                }
+                break;
+            case BOOTSTRAPPED:
+                if ( intent != null )
+                {
+                    intent.bootstrapped.add( record.nodeId );
+                }
+                break;
+            case COMPLETED:
+                if ( intent != null )
+                {
+                    intent.completed = true;
+                }
+                break;
+            case DESTROYED:
+                destroyed.add( record.nodeId );
+                break;
+            case RELEASED:
+                if ( intent != null )
+                {
+                    intent.released.add( record.nodeId );
+                }
+                break;
+        }
+    }
+
+    private synchronized void load()
+    {
+        if ( !file.exists() )
+        {
+            return;
+        }
+        DataInputStream in = null;
+        long valid = 0;
+        try
+        {
+            in = new DataInputStream( new BufferedInputStream( new FileInputStream( file ) ) );
+            Record record;
+            while ( ( record = Record.read( in ) ) != null )
+            {
+                apply( record, true );
+                valid += record.size;
+            }
+        }
+        catch ( IOException e )
+        {
+            logger.warn( "Error reading provisioning journal " + file, e );
+        }
+        finally
+        {
+            Closeables.closeQuietly( in );
+        }
+        if ( valid < file.length() )
+        {
+            // compaction rewrites the journal with the valid records only
+            logger.warn( "Dropping {} bytes of incomplete records at the end of {}", file.length() - valid, file );
+        }
+    }
+
+    /**
+     * Rewrite the journal with only the open intents and the nodes not destroyed yet
+     */
+    private synchronized void compact()
+    {
+        List<Record> live = Lists.newArrayList();
+        Set<String> liveNodes = Sets.newHashSet();
+        for ( Intent intent : Lists.newArrayList( intents.values() ) )
+        {
+            if ( intent.completed )
+            {
+                intents.remove( intent.id );
+                continue;
+            }
+            live.add( new Record( Event.INTENT, intent.time, intent.id, intent.provider, intent.identity,
+                                  intent.region, null ) );
+            for ( String node : intent.nodes )
+            {
+                live.add( new Record( Event.CREATED, intent.time, intent.id, null, null, null, node ) );
+                if ( intent.bootstrapped.contains( node ) )
+                {
+                    live.add( new Record( Event.BOOTSTRAPPED, intent.time, intent.id, null, null, null, node ) );
+                }
+                if ( intent.released.contains( node ) )
+                {
+                    live.add( new Record( Event.RELEASED, intent.time, intent.id, null, null, null, node ) );
+                    continue;
+                }
+                liveNodes.add( node );
+            }
+        }
+        destroyed.retainAll( liveNodes );
+        for ( String node : destroyed )
+        {
+            live.add( new Record( Event.DESTROYED, 0, null, null, null, null, node ) );
+        }
+
+        // write and rename, so a crash never leaves a half written journal
+        File tmp = new File( file.getPath() + ".tmp" );
+        RandomAccessFile compacted = null;
+        try
+        {
+            Closeables.closeQuietly( out );
+            out = null;
+            file.getAbsoluteFile().getParentFile().mkdirs();
+            compacted = new RandomAccessFile( tmp, "rw" );
+            compacted.setLength( 0 );
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            DataOutputStream data = new DataOutputStream( bytes );
+            for ( Record record : live )
+            {
+                record.write( data );
+            }
+            data.flush();
+            compacted.write( bytes.toByteArray() );
+            compacted.getChannel().force( true );
+            compacted.close();
+            compacted = null;
+            if ( !tmp.renameTo( file ) )
+            {
+                file.delete();
+                tmp.renameTo( file );
+            }
+            records = live.size();
+        }
+        catch ( IOException e )
+        {
+            logger.warn( "Error compacting provisioning journal " + file, e );
+        }
+        finally
+        {
+            Closeables.closeQuietly( compacted );
+        }
+    }
+
+    /**
+     * Nodes launched for a provision
+     */
+    public static class Intent
+    {
+        private final String id;
+
+        private final long time;
+
+        private final String provider;
+
+        private final String identity;
+
+        private final String region;
+
+        private final boolean previousRun;
+
+        private final Set<String> nodes = Sets.newLinkedHashSet();
+
+        private final Set<String> bootstrapped = Sets.newHashSet();
+
+        private final Set<String> released = Sets.newHashSet();
+
+        private boolean completed;
+
+        Intent( String id, long time, String provider, String identity, String region, boolean previousRun )
+        {
+            this.id = id;
+            this.time = time;
+            this.provider = provider;
+            this.identity = identity;
+            this.region = region;
+            this.previousRun = previousRun;
+        }
+
+        public String getId()
+        {
+            return id;
+        }
+
+        public long getTime()
+        {
+            return time;
+        }
+
+        public String getRegion()
+        {
+            return region;
+        }
+
+        /**
+         * @return ids of the nodes known to be created and not released, nodes created right before a crash may be
+         *         missing
+         */
+        public List<String> getNodes()
+        {
+            return ImmutableList.copyOf( Sets.difference( nodes, released ) );
+        }
+
+        /**
+         * @return whether the intent no longer answers for the node
+         */
+        public boolean isReleased( String nodeId )
+        {
+            return released.contains( nodeId );
+        }
+
+        @Override
+        public String toString()
+        {
+            return String.format( "%s (%s %s) nodes: %s", id, provider, region, nodes );
+        }
+    }
+
+    /**
+     * One journal entry: length, event, time, intent id, provider, identity, region, node id and a CRC32 of all but
+     * the length
+     */
+    private static class Record
+    {
+        private final Event event;
+
+        private final long time;
+
+        private final String intentId;
+
+        private final String provider;
+
+        private final String identity;
+
+        private final String region;
+
+        private final String nodeId;
+
+        /** bytes taken in the journal, when read from it */
+        private int size;
+
+        Record( Event event, long time, String intentId, String provider, String identity, String region,
+                String nodeId )
+        {
+            this.event = event;
+            this.time = time;
+            this.intentId = intentId;
+            this.provider = provider;
+            this.identity = identity;
+            this.region = region;
+            this.nodeId = nodeId;
+        }
+
+        void write( DataOutputStream out )
+            throws IOException
+        {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            DataOutputStream payload = new DataOutputStream( bytes );
+            payload.writeByte( event.ordinal() );
+            payload.writeLong( time );
+            payload.writeUTF( nullToEmpty( intentId ) );
+            payload.writeUTF( nullToEmpty( provider ) );
+            payload.writeUTF( nullToEmpty( identity ) );
+            payload.writeUTF( nullToEmpty( region ) );
+            payload.writeUTF( nullToEmpty( nodeId ) );
+            payload.flush();
+            byte[] buffer = bytes.toByteArray();
+            CRC32 crc = new CRC32();
+            crc.update( buffer );
+            out.writeInt( buffer.length );
+            out.write( buffer );
+            out.writeInt( (int) crc.getValue() );
+        }
+
+        /**
+         * @return the next record, null at the end of the journal or if the record is incomplete or corrupt
+         */
+        static Record read( DataInputStream in )
+            throws IOException
+        {
+            try
+            {
+                int length = in.readInt();
+                if ( length <= 0 || length > MAX_RECORD )
+                {
+                    return null;
+                }
+                byte[] buffer = new byte[length];
+                in.readFully( buffer );
+                int checksum = in.readInt();
+                CRC32 crc = new CRC32();
+                crc.update( buffer );
+                if ( (int) crc.getValue() != checksum )
+                {
+                    return null;
+                }
+                DataInputStream payload = new DataInputStream( new ByteArrayInputStream( buffer ) );
+                int ordinal = payload.readUnsignedByte();
+                if ( ordinal >= Event.values().length )
+                {
+                    return null;
+                }
+                Record record =
+                    new Record( Event.values()[ordinal], payload.readLong(), emptyToNull( payload.readUTF() ),
+                                emptyToNull( payload.readUTF() ), emptyToNull( payload.readUTF() ),
+                                emptyToNull( payload.readUTF() ), emptyToNull( payload.readUTF() ) );
+                record.size = 4 + length + 4;
+                return record;
+            }
+            catch ( EOFException e )
+            {
+                return null;
+            }
+        }
+
+    }
+}
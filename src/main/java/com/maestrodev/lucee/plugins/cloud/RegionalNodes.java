@@ -0,0 +1,200 @@
+package com.maestrodev.lucee.plugins.cloud;
+
+import static com.maestrodev.lucee.plugins.cloud.Regions.*;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.jclouds.compute.ComputeService;
+import org.jclouds.compute.domain.NodeMetadata;
+
+import com.google.common.base.Function;
+import com.google.common.collect.Iterables;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
+
+/**
+ * The machines of a task grouped by region, each region with its own lease of the pooled context scoped to it. The
+ * regions are looked up and destroyed at the same time, so many regions take as long as the slowest one.
+ */
+public class RegionalNodes
+{
+
+    private final ComputeServiceContextPool pool;
+
+    private final String provider;
+
+    private final String identity;
+
+    private final String credential;
+
+    private final Map<String, List<String>> shards;
+
+    private final Map<String, ComputeService> computes = Maps.newLinkedHashMap();
+
+    private final Map<String, TargetedNodes> targeted = Maps.newHashMap();
+
+    /** errors by node id, per region so each region writes to its own map */
+    private final Map<String, Map<String, Throwable>> errors = Maps.newHashMap();
+
+    public RegionalNodes( ComputeServiceContextPool pool, String provider, String identity, String credential,
+                          Collection<String> ids )
+    {
+        this.pool = pool;
+        this.provider = provider;
+        this.identity = identity;
+        this.credential = credential;
+        this.shards = shardByRegion( provider, ids );
+        for ( String region : shards.keySet() )
+        {
+            errors.put( region, Maps.<String, Throwable> newLinkedHashMap() );
+        }
+    }
+
+    /**
+     * @return the regions of the machines, null for the machines whose region is not known
+     */
+    public Set<String> getRegions()
+    {
+        return shards.keySet();
+    }
+
+    /**
+     * Lease a context scoped to each region, the contexts leased are given back in {@link #release()} even if another
+     * region failed
+     *
+     * @return the compute service of each region
+     */
+    public Map<String, ComputeService> acquire()
+    {
+        perRegion( shards.keySet(), new Function<String, ComputeService>()
+        {
+            public ComputeService apply( String region )
+            {
+                return pool.acquire( provider, identity, credential, region ).getComputeService();
+            }
+        }, computes );
+        for ( Map.Entry<String, ComputeService> entry : computes.entrySet() )
+        {
+            targeted.put( entry.getKey(), new TargetedNodes( entry.getValue(), provider, identity ) );
+        }
+        return Collections.unmodifiableMap( computes );
+    }
+
+    /**
+     * Go to each machine by id through the {@link NodeInventory}, listing all the nodes in the account is too slow
+     *
+     * @return the nodes found by id, per region. The ones that were not found or failed are in {@link #getErrors()}.
+     */
+    public Map<String, Map<String, NodeMetadata>> resolve()
+    {
+        Map<String, Map<String, NodeMetadata>> resolved = Maps.newLinkedHashMap();
+        perRegion( shards.keySet(), new Function<String, Map<String, NodeMetadata>>()
+        {
+            public Map<String, NodeMetadata> apply( String region )
+            {
+                return NodeInventory.getInstance().resolve( targeted.get( region ), shards.get( region ),
+                                                            errors.get( region ) );
+            }
+        }, resolved );
+        return resolved;
+    }
+
+    /**
+     * How long listing all the nodes would have taken, to compare with the lookups by id
+     *
+     * @return the milliseconds of the slowest region and the number of nodes listed in all of them
+     */
+    public long[] timeFullScan()
+    {
+        Map<String, long[]> scans = Maps.newHashMap();
+        perRegion( shards.keySet(), new Function<String, long[]>()
+        {
+            public long[] apply( String region )
+            {
+                return targeted.get( region ).timeFullScan();
+            }
+        }, scans );
+        long millis = 0;
+        long listed = 0;
+        for ( long[] scan : scans.values() )
+        {
+            millis = Math.max( millis, scan[0] );
+            listed += scan[1];
+        }
+        return new long[] { millis, listed };
+    }
+
+    /**
+     * Destroy the nodes of each region. The nodes destroyed are recorded in the {@link ProvisioningJournal} and their
+     * pooled ssh sessions closed.
+     *
+     * @param nodes the nodes to destroy, per region
+     * @return ids of the nodes destroyed, the ones that could not be are in {@link #getErrors()}
+     */
+    public Set<String> destroy( final Map<String, ? extends Collection<NodeMetadata>> nodes )
+    {
+        Map<String, Set<String>> destroyed = Maps.newLinkedHashMap();
+        perRegion( shards.keySet(), new Function<String, Set<String>>()
+        {
+            public Set<String> apply( String region )
+            {
+                Collection<NodeMetadata> regionNodes = nodes.get( region );
+                if ( regionNodes == null )
+                {
+                    return Collections.emptySet();
+                }
+                return targeted.get( region ).destroy( regionNodes, errors.get( region ) );
+            }
+        }, destroyed );
+        Set<String> ids = Sets.newLinkedHashSet( Iterables.concat( destroyed.values() ) );
+        ProvisioningJournal.getInstance().destroyed( ids );
+        for ( String id : ids )
+        {
+            SshSessionPool.getInstance().evict( id );
+        }
+        return ids;
+    }
+
+    /**
+     * @return lookups and destroys done through the provider API in all the regions
+     */
+    public int getApiCalls()
+    {
+        int calls = 0;
+        for ( TargetedNodes regionNodes : targeted.values() )
+        {
+            calls += regionNodes.getApiCalls();
+        }
+        return calls;
+    }
+
+    /**
+     * @return errors of all the regions, by node id
+     */
+    public Map<String, Throwable> getErrors()
+    {
+        Map<String, Throwable> all = Maps.newLinkedHashMap();
+        for ( Map<String, Throwable> regionErrors : errors.values() )
+        {
+            all.putAll( regionErrors );
+        }
+        return all;
+    }
+
+    /**
+     * Give back the contexts of all the regions to the pool
+     */
+    public void release()
+    {
+        for ( ComputeService compute : computes.values() )
+        {
+            pool.release( compute.getContext() );
+        }
+        computes.clear();
+        targeted.clear();
+    }
+}
@@ -0,0 +1,155 @@
+package com.maestrodev.lucee.plugins.cloud;
+
+import static com.maestrodev.lucee.plugins.cloud.ProviderRegistry.isAmazon;
+import static org.apache.commons.lang3.StringUtils.*;
+
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.base.Function;
+import com.google.common.base.Strings;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+
+/**
+ * Regions of the nodes and availability zones, so each task only talks to the regions it needs, in parallel
+ */
+public final class Regions
+{
+
+    private static final Logger logger = LoggerFactory.getLogger( Regions.class );
+
+    private Regions()
+    {
+    }
+
+    /**
+     * Region the context of a task is scoped to, only for EC2 where the region is known from the availability zone
+     *
+     * @return null if the context has to talk to all the regions
+     */
+    public static String contextRegion( String provider, String availabilityZone )
+    {
+        return isAmazon( provider ) ? Strings.emptyToNull( regionOf( provider, availabilityZone ) ) : null;
+    }
+
+    /**
+     * Region of an availability zone, for EC2 the zone without the last letter
+     */
+    public static String regionOf( String provider, String availabilityZone )
+    {
+        if ( isAmazon( provider ) && !isEmpty( availabilityZone ) )
+        {
+            return availabilityZone.substring( 0, availabilityZone.length() - 1 );
+        }
+        return availabilityZone;
+    }
+
+    /**
+     * Group the node ids by region, EC2 ids start with the region. Ids of other providers are all in the null region,
+     * handled by a context that talks to all of them.
+     */
+    public static Map<String, List<String>> shardByRegion( String provider, Collection<String> ids )
+    {
+        Map<String, List<String>> shards = Maps.newLinkedHashMap();
+        for ( String id : ids )
+        {
+            String region = isAmazon( provider ) && id.indexOf( '/' ) > 0 ? substringBefore( id, "/" ) : null;
+            List<String> shard = shards.get( region );
+            if ( shard == null )
+            {
+                shard = Lists.newArrayList();
+                shards.put( region, shard );
+            }
+            shard.add( id );
+        }
+        return shards;
+    }
+
+    /**
+     * Run the operation for each region at the same time, so many regions take as long as the slowest one
+     *
+     * @param results filled with the result of each region, also the ones that finished when another one failed
+     * @throws RuntimeException the first error, once all the regions are done
+     */
+    public static <T> void perRegion( Collection<String> regions, final Function<String, T> operation,
+                                      Map<String, T> results )
+    {
+        if ( regions.size() <= 1 )
+        {
+            for ( String region : regions )
+            {
+                results.put( region, operation.apply( region ) );
+            }
+            return;
+        }
+        ExecutorService executor = Executors.newFixedThreadPool( regions.size(), new ThreadFactory()
+        {
+            private final AtomicInteger count = new AtomicInteger();
+
+            public Thread newThread( Runnable r )
+            {
+                Thread thread = new Thread( r, "maestro-cloud-region-" + count.incrementAndGet() );
+                thread.setDaemon( true );
+                return thread;
+            }
+        } );
+        try
+        {
+            Map<String, Future<T>> futures = Maps.newLinkedHashMap();
+            for ( final String region : regions )
+            {
+                futures.put( region, executor.submit( new Callable<T>()
+                {
+                    public T call()
+                    {
+                        return operation.apply( region );
+                    }
+                } ) );
+            }
+            RuntimeException error = null;
+            for ( Entry<String, Future<T>> entry : futures.entrySet() )
+            {
+                try
+                {
+                    results.put( entry.getKey(), entry.getValue().get() );
+                }
+                catch ( ExecutionException e )
+                {
+                    logger.warn( "Error in region " + entry.getKey(), e.getCause() );
+                    if ( error == null )
+                    {
+                        error =
+                            e.getCause() instanceof RuntimeException ? (RuntimeException) e.getCause()
+                                            : new IllegalStateException( e.getCause() );
+                    }
+                }
+                catch ( InterruptedException e )
+                {
+                    Thread.currentThread().interrupt();
+                    throw new IllegalStateException( "Interrupted waiting for region " + entry.getKey(), e );
+                }
+            }
+            if ( error != null )
+            {
+                throw error;
+            }
+        }
+        finally
+        {
+            executor.shutdownNow();
+        }
+    }
+}
@@ -0,0 +1,223 @@
+package com.maestrodev.lucee.plugins.cloud;
+
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.jclouds.compute.domain.ExecResponse;
+import org.jclouds.compute.domain.NodeMetadata;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.collect.Maps;
+
+/**
+ * Runs a script in many nodes with at most a given number of ssh sessions open at the same time. Each node has its
+ * own timeout, counted from the moment its script starts and not while it waits for a free slot. A script that exits
+ * with a non zero status fails in its node.
+ */
+public class ScriptExecutor
+{
+
+    /** wake up at least this often to check the timeouts */
+    private static final long CHECK_INTERVAL = 1000;
+
+    public enum Policy
+    {
+        /** stop everything as soon as one node fails */
+        FAIL_FAST,
+        /** run in all the nodes, whatever happens in the rest */
+        BEST_EFFORT
+    }
+
+    /**
+     * What to run in each node
+     */
+    public interface NodeTask
+    {
+        ExecResponse run( NodeMetadata node )
+            throws Exception;
+    }
+
+    private final Logger logger = LoggerFactory.getLogger( this.getClass() );
+
+    private final int parallelism;
+
+    private final long timeout;
+
+    private final Policy policy;
+
+    /**
+     * @param parallelism maximum number of nodes running the script at the same time
+     * @param timeout milliseconds each node has to run the script
+     */
+    public ScriptExecutor( int parallelism, long timeout, Policy policy )
+    {
+        if ( parallelism < 1 )
+        {
+            throw new IllegalArgumentException( "Parallelism must be at least 1: " + parallelism );
+        }
+        this.parallelism = parallelism;
+        this.timeout = timeout;
+        this.policy = policy;
+    }
+
+    /**
+     * Run the task in all the nodes
+     *
+     * @return the outcome of each node, in the same order
+     */
+    public Map<NodeMetadata, NodeOutcome> run( Collection<? extends NodeMetadata> nodes, final NodeTask task )
+        throws InterruptedException
+    {
+        Map<NodeMetadata, NodeOutcome> outcomes = Maps.newLinkedHashMap();
+        if ( nodes.isEmpty() )
+        {
+            return outcomes;
+        }
+
+        ExecutorService executor =
+            Executors.newFixedThreadPool( Math.min( parallelism, nodes.size() ), new ThreadFactory()
+            {
+                private final AtomicInteger count = new AtomicInteger();
+
+                public Thread newThread( Runnable r )
+                {
+                    Thread thread = new Thread( r, "maestro-cloud-script-" + count.incrementAndGet() );
+                    thread.setDaemon( true );
+                    return thread;
+                }
+            } );
+        CompletionService<ExecResponse> completion = new ExecutorCompletionService<ExecResponse>( executor );
+        Map<Future<ExecResponse>, Running> running = Maps.newLinkedHashMap();
+        try
+        {
+            for ( final NodeMetadata node : nodes )
+            {
+                outcomes.put( node, null );
+                final Running run = new Running( node );
+                running.put( completion.submit( new Callable<ExecResponse>()
+                {
+                    public ExecResponse call()
+                        throws Exception
+                    {
+                        run.started = System.currentTimeMillis();
+                        return task.run( node );
+                    }
+                } ), run );
+            }
+
+            boolean stop = false;
+            while ( !running.isEmpty() && !stop )
+            {
+                Future<ExecResponse> done = completion.poll( nextCheck( running ), TimeUnit.MILLISECONDS );
+                if ( done != null && running.containsKey( done ) )
+                {
+                    NodeOutcome outcome = complete( running.remove( done ), done );
+                    outcomes.put( outcome.getNode(), outcome );
+                    stop = outcome.getStatus() != NodeOutcome.Status.SUCCESS && policy == Policy.FAIL_FAST;
+                }
+
+                // cancel the nodes that ran out of time
+                long now = System.currentTimeMillis();
+                Iterator<Entry<Future<ExecResponse>, Running>> it = running.entrySet().iterator();
+                while ( it.hasNext() )
+                {
+                    Entry<Future<ExecResponse>, Running> entry = it.next();
+                    Running run = entry.getValue();
+                    if ( run.started > 0 && now - run.started > timeout )
+                    {
+                        entry.getKey().cancel( true );
+                        it.remove();
+                        TimeoutException e =
+                            new TimeoutException( String.format( "Script did not finish in %d ms", timeout ) );
+                        outcomes.put( run.node, new NodeOutcome( run.node, NodeOutcome.Status.TIMED_OUT, null, e,
+                                                                 now - run.started ) );
+                        stop = stop || policy == Policy.FAIL_FAST;
+                    }
+                }
+            }
+
+            // fail fast, the rest never ran or are interrupted
+            for ( Entry<Future<ExecResponse>, Running> entry : running.entrySet() )
+            {
+                entry.getKey().cancel( true );
+                Running run = entry.getValue();
+                long elapsed = run.started > 0 ? System.currentTimeMillis() - run.started : 0;
+                CancellationException e = new CancellationException( "Cancelled after another node failed" );
+                outcomes.put( run.node, new NodeOutcome( run.node, NodeOutcome.Status.CANCELLED, null, e, elapsed ) );
+            }
+        }
+        finally
+        {
+            executor.shutdownNow();
+        }
+        return outcomes;
+    }
+
+    private long nextCheck( Map<Future<ExecResponse>, Running> running )
+    {
+        long now = System.currentTimeMillis();
+        long next = CHECK_INTERVAL;
+        for ( Running run : running.values() )
+        {
+            if ( run.started > 0 )
+            {
+                next = Math.min( next, Math.max( 1, run.started + timeout - now ) );
+            }
+        }
+        return next;
+    }
+
+    private NodeOutcome complete( Running run, Future<ExecResponse> future )
+        throws InterruptedException
+    {
+        long elapsed = System.currentTimeMillis() - run.started;
+        try
+        {
+            ExecResponse response = future.get();
+            if ( response != null && response.getExitStatus() != 0 )
+            {
+                // the script ran but failed, which stops the rest like any other failure
+                IllegalStateException e =
+                    new IllegalStateException( String.format( "Script exited with status %d",
+                                                              response.getExitStatus() ) );
+                return new NodeOutcome( run.node, NodeOutcome.Status.FAILED, response, e, elapsed );
+            }
+            return new NodeOutcome( run.node, NodeOutcome.Status.SUCCESS, response, null, elapsed );
+        }
+        catch ( ExecutionException e )
+        {
+            logger.warn( "Error running script in node " + run.node.getId(), e.getCause() );
+            return new NodeOutcome( run.node, NodeOutcome.Status.FAILED, null, e.getCause(), elapsed );
+        }
+    }
+
+    /**
+     * A node waiting for or running its script
+     */
+    private static class Running
+    {
+        private final NodeMetadata node;
+
+        private volatile long started;
+
+        Running( NodeMetadata node )
+        {
+            this.node = node;
+        }
+    }
+}
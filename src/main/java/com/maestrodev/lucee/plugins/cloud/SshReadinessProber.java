@@ -0,0 +1,307 @@
+package com.maestrodev.lucee.plugins.cloud;
+
+import static com.google.common.base.Charsets.*;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.Random;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.io.Closeables;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.SettableFuture;
+
+/**
+ * Waits until nodes accept ssh connections, with non blocking connects from a single thread for all the nodes. A node
+ * is ready when it sends the ssh banner, not just when the port is open. Failed attempts are retried with exponential
+ * backoff and jitter, and the first attempt is delayed by the usual boot time of the image from
+ * {@link BootTimeHistory}.
+ */
+public class SshReadinessProber
+{
+
+    /** milliseconds to connect and get the banner in each attempt */
+    private static final long ATTEMPT_TIMEOUT = TimeUnit.SECONDS.toMillis( 3 );
+
+    private static final long BACKOFF_BASE = 500;
+
+    private static final long BACKOFF_CAP = TimeUnit.SECONDS.toMillis( 10 );
+
+    /** the banner must be in the first bytes, RFC 4253 allows other lines before it */
+    private static final int BANNER_BUFFER = 512;
+
+    private static SshReadinessProber instance;
+
+    private final Logger logger = LoggerFactory.getLogger( this.getClass() );
+
+    private final BootTimeHistory history;
+
+    private final Random random = new Random();
+
+    private final Queue<Probe> attempts = new ConcurrentLinkedQueue<Probe>();
+
+    private final Selector selector;
+
+    private final ScheduledExecutorService scheduler;
+
+    public static synchronized SshReadinessProber getInstance()
+    {
+        if ( instance == null )
+        {
+            try
+            {
+                instance = new SshReadinessProber( BootTimeHistory.getInstance() );
+            }
+            catch ( IOException e )
+            {
+                throw new IllegalStateException( "Unable to open selector for ssh probes", e );
+            }
+        }
+        return instance;
+    }
+
+    SshReadinessProber( BootTimeHistory history )
+        throws IOException
+    {
+        this.history = history;
+        this.selector = Selector.open();
+        this.scheduler = Executors.newSingleThreadScheduledExecutor( new ThreadFactory()
+        {
+            public Thread newThread( Runnable r )
+            {
+                Thread thread = new Thread( r, "maestro-ssh-probe-scheduler" );
+                thread.setDaemon( true );
+                return thread;
+            }
+        } );
+        Thread thread = new Thread( new Runnable()
+        {
+            public void run()
+            {
+                loop();
+            }
+        }, "maestro-ssh-probe" );
+        thread.setDaemon( true );
+        thread.start();
+    }
+
+    /**
+     * Start probing a node
+     *
+     * @param image key of the boot time history, ie. provider and image id
+     * @param timeout milliseconds to give up after
+     * @return completed with the milliseconds it took for the node to be ready, failed with a
+     *         {@link TimeoutException} if it was not ready in time
+     */
+    public ListenableFuture<Long> probe( InetSocketAddress address, String image, long timeout )
+    {
+        Probe probe = new Probe( address, image, timeout );
+        long delay = Math.min( history.getFirstProbeDelay( image ), timeout );
+        logger.debug( "Probing ssh in {} in {} ms", address, delay );
+        schedule( probe, delay );
+        return probe.future;
+    }
+
+    private void schedule( final Probe probe, long delay )
+    {
+        scheduler.schedule( new Runnable()
+        {
+            public void run()
+            {
+                attempts.add( probe );
+                selector.wakeup();
+            }
+        }, delay, TimeUnit.MILLISECONDS );
+    }
+
+    /**
+     * Exponential backoff with jitter, between half and all of the exponential delay
+     */
+    long backoff( int attempt )
+    {
+        long delay = Math.min( BACKOFF_CAP, BACKOFF_BASE << Math.min( attempt, 16 ) );
+        synchronized ( random )
+        {
+            return delay / 2 + (long) ( random.nextDouble() * delay / 2 );
+        }
+    }
+
+    private void loop()
+    {
+        while ( true )
+        {
+            try
+            {
+                selector.select( ATTEMPT_TIMEOUT / 2 );
+
+                Probe probe;
+                while ( ( probe = attempts.poll() ) != null )
+                {
+                    connect( probe );
+                }
+
+                for ( Iterator<SelectionKey> it = selector.selectedKeys().iterator(); it.hasNext(); )
+                {
+                    SelectionKey key = it.next();
+                    it.remove();
+                    handle( key );
+                }
+
+                long now = System.currentTimeMillis();
+                for ( SelectionKey key : selector.keys() )
+                {
+                    probe = (Probe) key.attachment();
+                    if ( key.isValid() && now > probe.attemptDeadline )
+                    {
+                        retry( probe, "timed out" );
+                    }
+                }
+            }
+            catch ( IOException e )
+            {
+                logger.warn( "Error in ssh probe loop", e );
+            }
+            catch ( RuntimeException e )
+            {
+                logger.warn( "Error in ssh probe loop", e );
+            }
+        }
+    }
+
+    private void connect( Probe probe )
+    {
+        probe.attempt++;
+        probe.attemptDeadline = System.currentTimeMillis() + ATTEMPT_TIMEOUT;
+        probe.banner.clear();
+        try
+        {
+            SocketChannel channel = SocketChannel.open();
+            probe.channel = channel;
+            channel.configureBlocking( false );
+            if ( channel.connect( probe.address ) )
+            {
+                channel.register( selector, SelectionKey.OP_READ, probe );
+            }
+            else
+            {
+                channel.register( selector, SelectionKey.OP_CONNECT, probe );
+            }
+        }
+        catch ( IOException e )
+        {
+            retry( probe, e.getMessage() );
+        }
+    }
+
+    private void handle( SelectionKey key )
+    {
+        if ( !key.isValid() )
+        {
+            return;
+        }
+        Probe probe = (Probe) key.attachment();
+        SocketChannel channel = (SocketChannel) key.channel();
+        try
+        {
+            if ( key.isConnectable() )
+            {
+                channel.finishConnect();
+                key.interestOps( SelectionKey.OP_READ );
+            }
+            else if ( key.isReadable() )
+            {
+                if ( channel.read( probe.banner ) < 0 )
+                {
+                    retry( probe, "closed before sending the banner" );
+                }
+                else if ( hasBanner( probe.banner ) )
+                {
+                    ready( probe );
+                }
+                else if ( !probe.banner.hasRemaining() )
+                {
+                    retry( probe, "no ssh banner" );
+                }
+            }
+        }
+        catch ( IOException e )
+        {
+            retry( probe, e.getMessage() );
+        }
+    }
+
+    private static boolean hasBanner( ByteBuffer buffer )
+    {
+        String received = new String( buffer.array(), 0, buffer.position(), US_ASCII );
+        return received.startsWith( "SSH-" ) || received.contains( "\nSSH-" );
+    }
+
+    private void ready( Probe probe )
+    {
+        Closeables.closeQuietly( probe.channel );
+        long elapsed = System.currentTimeMillis() - probe.start;
+        history.record( probe.image, elapsed );
+        logger.debug( "{} ready for ssh in {} ms after {} attempts", new Object[] { probe.address, elapsed,
+            probe.attempt } );
+        probe.future.set( elapsed );
+    }
+
+    private void retry( Probe probe, String reason )
+    {
+        Closeables.closeQuietly( probe.channel );
+        long now = System.currentTimeMillis();
+        if ( now >= probe.deadline )
+        {
+            String msg =
+                String.format( "%s not ready for ssh after %d attempts in %d ms: %s", probe.address, probe.attempt,
+                               now - probe.start, reason );
+            probe.future.setException( new TimeoutException( msg ) );
+            return;
+        }
+        long delay = Math.min( backoff( probe.attempt ), probe.deadline - now );
+        logger.trace( "{} not ready for ssh ({}), retrying in {} ms", new Object[] { probe.address, reason, delay } );
+        schedule( probe, delay );
+    }
+
+    private static class Probe
+    {
+        private final InetSocketAddress address;
+
+        private final String image;
+
+        private final long start = System.currentTimeMillis();
+
+        private final long deadline;
+
+        private final SettableFuture<Long> future = SettableFuture.create();
+
+        private final ByteBuffer banner = ByteBuffer.allocate( BANNER_BUFFER );
+
+        private SocketChannel channel;
+
+        private int attempt;
+
+        private long attemptDeadline;
+
+        Probe( InetSocketAddress address, String image, long timeout )
+        {
+            this.address = address;
+            this.image = image;
+            this.deadline = start + timeout;
+        }
+    }
+}
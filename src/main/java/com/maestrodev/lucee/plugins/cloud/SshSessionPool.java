@@ -0,0 +1,442 @@
+package com.maestrodev.lucee.plugins.cloud;
+
+import static com.google.common.base.Charsets.*;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.jclouds.compute.domain.ExecResponse;
+import org.jclouds.compute.domain.NodeMetadata;
+import org.jclouds.domain.LoginCredentials;
+import org.jclouds.ssh.SshClient;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.base.Function;
+import com.google.common.base.Joiner;
+import com.google.common.collect.Iterables;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.hash.Hashing;
+
+/**
+ * Process wide pool of connected ssh clients, by node and login credentials, so the steps and tasks that run commands
+ * or copy files to the same node reuse an authenticated connection instead of doing the TCP and key exchange
+ * handshakes each time. Each command or file copy is a channel of its own, so several leases can share a connection
+ * up to a maximum number of channels.
+ * <p>
+ * The leased clients are the usual {@link SshClient}s: <code>connect</code> does nothing as they are already connected,
+ * and <code>disconnect</code> returns them to the pool. Connections are closed once idle for longer than the max idle
+ * time, and checked with a no-op command before being reused after some idle time. A connection that failed is never
+ * reused.
+ */
+public class SshSessionPool
+{
+
+    /** max idle time in seconds before an unused connection is closed */
+    public static final String PROPERTY_MAX_IDLE = "maestro.cloud.ssh.maxIdle";
+
+    /** channels open at the same time in each connection */
+    public static final String PROPERTY_MAX_CHANNELS = "maestro.cloud.ssh.maxChannels";
+
+    private static final long DEFAULT_MAX_IDLE = TimeUnit.MINUTES.toMillis( 5 );
+
+    /** connections idle for longer than this are checked before being reused, in milliseconds */
+    private static final long CHECK_AFTER = TimeUnit.SECONDS.toMillis( 30 );
+
+    private static final SshSessionPool instance =
+        new SshSessionPool( Long.getLong( PROPERTY_MAX_IDLE, TimeUnit.MILLISECONDS.toSeconds( DEFAULT_MAX_IDLE ) )
+            * 1000, Integer.getInteger( PROPERTY_MAX_CHANNELS, 4 ) );
+
+    private final Logger logger = LoggerFactory.getLogger( this.getClass() );
+
+    private final Map<String, List<Connection>> connections = Maps.newHashMap();
+
+    private final long maxIdle;
+
+    private final int maxChannels;
+
+    private final AtomicLong opened = new AtomicLong();
+
+    private final AtomicLong reused = new AtomicLong();
+
+    private final AtomicLong failedChecks = new AtomicLong();
+
+    private ScheduledExecutorService sweeper;
+
+    public static SshSessionPool getInstance()
+    {
+        return instance;
+    }
+
+    /**
+     * @param maxIdle time in milliseconds a connection without leases is kept open
+     * @param maxChannels leases sharing a connection at the same time
+     */
+    public SshSessionPool( long maxIdle, int maxChannels )
+    {
+        this.maxIdle = maxIdle;
+        this.maxChannels = Math.max( 1, maxChannels );
+    }
+
+    /**
+     * Lease a connected client for the node, opening a new connection with the factory if there is none available.
+     * The client must be disconnected when done, which returns it to the pool.
+     *
+     * @param node the node with the credentials to log in with
+     */
+    public SshClient lease( NodeMetadata node, Function<NodeMetadata, SshClient> sshForNode )
+    {
+        String key = key( node );
+        evictIdle( System.currentTimeMillis() );
+        while ( true )
+        {
+            Connection connection = null;
+            boolean check = false;
+            synchronized ( this )
+            {
+                List<Connection> forNode = connections.get( key );
+                if ( forNode != null )
+                {
+                    for ( Connection candidate : forNode )
+                    {
+                        if ( !candidate.broken && candidate.leases < maxChannels
+                            && ( connection == null || candidate.leases < connection.leases ) )
+                        {
+                            connection = candidate;
+                        }
+                    }
+                }
+                if ( connection != null )
+                {
+                    check =
+                        connection.leases == 0 && System.currentTimeMillis() - connection.lastReleased > CHECK_AFTER;
+                    connection.leases++;
+                }
+            }
+
+            if ( connection == null )
+            {
+                return open( key, node, sshForNode );
+            }
+            if ( check && !healthy( connection ) )
+            {
+                failedChecks.incrementAndGet();
+                connection.broken = true;
+                release( connection );
+                continue;
+            }
+            reused.incrementAndGet();
+            logger.debug( "Reusing ssh connection to {}", key );
+            return leased( connection );
+        }
+    }
+
+    private SshClient open( String key, NodeMetadata node, Function<NodeMetadata, SshClient> sshForNode )
+    {
+        // connect outside of the pool lock, other nodes should not wait for a slow handshake
+        SshClient client = sshForNode.apply( node );
+        client.connect();
+        opened.incrementAndGet();
+        logger.debug( "Opened ssh connection to {}", key );
+
+        Connection connection = new Connection( key, client );
+        connection.leases = 1;
+        synchronized ( this )
+        {
+            List<Connection> forNode = connections.get( key );
+            if ( forNode == null )
+            {
+                forNode = Lists.newArrayList();
+                connections.put( key, forNode );
+            }
+            forNode.add( connection );
+            startSweeper();
+        }
+        return leased( connection );
+    }
+
+    private boolean healthy( Connection connection )
+    {
+        try
+        {
+            ExecResponse response = connection.client.exec( "true" );
+            return response.getExitStatus() == 0;
+        }
+        catch ( RuntimeException e )
+        {
+            logger.debug( "Idle ssh connection to {} is not usable: {}", connection.key, e.getMessage() );
+            return false;
+        }
+    }
+
+    /**
+     * The client for a lease, connect does nothing and disconnect returns the lease once
+     */
+    private SshClient leased( Connection connection )
+    {
+        return (SshClient) Proxy.newProxyInstance( SshClient.class.getClassLoader(),
+                                                   new Class<?>[] { SshClient.class }, new Lease( connection ) );
+    }
+
+    private void release( Connection connection )
+    {
+        boolean close;
+        synchronized ( this )
+        {
+            connection.leases--;
+            connection.lastReleased = System.currentTimeMillis();
+            close = connection.broken && connection.leases <= 0;
+            if ( close )
+            {
+                remove( connection );
+            }
+        }
+        if ( close )
+        {
+            close( connection );
+        }
+    }
+
+    /**
+     * Close the connections to a node, ie. because it was destroyed. Connections in use are closed when released.
+     */
+    public void evict( String nodeId )
+    {
+        List<Connection> closed = Lists.newArrayList();
+        synchronized ( this )
+        {
+            for ( List<Connection> forNode : connections.values() )
+            {
+                for ( Connection connection : forNode )
+                {
+                    if ( connection.key.startsWith( nodeId + "|" ) )
+                    {
+                        connection.broken = true;
+                        if ( connection.leases <= 0 )
+                        {
+                            closed.add( connection );
+                        }
+                    }
+                }
+            }
+            for ( Connection connection : closed )
+            {
+                remove( connection );
+            }
+        }
+        for ( Connection connection : closed )
+        {
+            close( connection );
+        }
+    }
+
+    /**
+     * Close connections that have no leases and have been idle for longer than the max idle time
+     *
+     * @return number of connections closed
+     */
+    public int evictIdle( long now )
+    {
+        List<Connection> idle = Lists.newArrayList();
+        synchronized ( this )
+        {
+            for ( Iterator<List<Connection>> it = connections.values().iterator(); it.hasNext(); )
+            {
+                List<Connection> forNode = it.next();
+                for ( Iterator<Connection> connection = forNode.iterator(); connection.hasNext(); )
+                {
+                    Connection next = connection.next();
+                    if ( next.leases <= 0 && ( now - next.lastReleased ) >= maxIdle )
+                    {
+                        connection.remove();
+                        idle.add( next );
+                    }
+                }
+                if ( forNode.isEmpty() )
+                {
+                    it.remove();
+                }
+            }
+        }
+        // disconnecting waits for the node, don't hold the lock
+        for ( Connection connection : idle )
+        {
+            close( connection );
+        }
+        return idle.size();
+    }
+
+    private void remove( Connection connection )
+    {
+        List<Connection> forNode = connections.get( connection.key );
+        if ( forNode != null )
+        {
+            forNode.remove( connection );
+            if ( forNode.isEmpty() )
+            {
+                connections.remove( connection.key );
+            }
+        }
+    }
+
+    private void close( Connection connection )
+    {
+        logger.debug( "Closing ssh connection to {}", connection.key );
+        try
+        {
+            connection.client.disconnect();
+        }
+        catch ( RuntimeException e )
+        {
+            logger.debug( "Error closing ssh connection to " + connection.key, e );
+        }
+    }
+
+    public synchronized int size()
+    {
+        int size = 0;
+        for ( List<Connection> forNode : connections.values() )
+        {
+            size += forNode.size();
+        }
+        return size;
+    }
+
+    public long getOpened()
+    {
+        return opened.get();
+    }
+
+    public long getReused()
+    {
+        return reused.get();
+    }
+
+    public long getFailedChecks()
+    {
+        return failedChecks.get();
+    }
+
+    private void startSweeper()
+    {
+        if ( sweeper != null || maxIdle <= 0 )
+        {
+            return;
+        }
+        sweeper = Executors.newSingleThreadScheduledExecutor( new ThreadFactory()
+        {
+            public Thread newThread( Runnable r )
+            {
+                Thread thread = new Thread( r, "maestro-cloud-ssh-sweeper" );
+                thread.setDaemon( true );
+                return thread;
+            }
+        } );
+        sweeper.scheduleWithFixedDelay( new Runnable()
+        {
+            public void run()
+            {
+                evictIdle( System.currentTimeMillis() );
+            }
+        }, maxIdle, maxIdle, TimeUnit.MILLISECONDS );
+    }
+
+    /**
+     * Node id, address, port, user and a hash of the password and private key
+     */
+    static String key( NodeMetadata node )
+    {
+        LoginCredentials credentials = node.getCredentials();
+        String address = Iterables.getFirst( Iterables.concat( node.getPublicAddresses(), node.getPrivateAddresses() ),
+                                             null );
+        String secret =
+            credentials == null ? "" : Joiner.on( '\0' ).useForNull( "" ).join( credentials.getPassword(),
+                                                                                credentials.getPrivateKey() );
+        return Joiner.on( '|' ).useForNull( "" ).join( node.getId(), address, node.getLoginPort(),
+                                                       credentials == null ? null : credentials.getUser(),
+                                                       Hashing.sha256().hashString( secret, UTF_8 ).toString() );
+    }
+
+    /**
+     * Calls to a leased client, forwarded to the pooled one except for connect and disconnect
+     */
+    private class Lease
+        implements InvocationHandler
+    {
+        private final Connection connection;
+
+        private boolean released;
+
+        Lease( Connection connection )
+        {
+            this.connection = connection;
+        }
+
+        public Object invoke( Object proxy, Method method, Object[] args )
+            throws Throwable
+        {
+            String name = method.getName();
+            if ( name.equals( "connect" ) && args == null )
+            {
+                return null;
+            }
+            if ( name.equals( "disconnect" ) && args == null )
+            {
+                synchronized ( this )
+                {
+                    if ( released )
+                    {
+                        return null;
+                    }
+                    released = true;
+                }
+                release( connection );
+                return null;
+            }
+            if ( method.getDeclaringClass() == Object.class )
+            {
+                return method.invoke( this, args );
+            }
+            try
+            {
+                return method.invoke( connection.client, args );
+            }
+            catch ( InvocationTargetException e )
+            {
+                // commands that fail return their status, an exception leaves the connection in an unknown state
+                connection.broken = true;
+                throw e.getCause();
+            }
+        }
+    }
+
+    private static class Connection
+    {
+        private final String key;
+
+        private final SshClient client;
+
+        private int leases;
+
+        private long lastReleased = System.currentTimeMillis();
+
+        private volatile boolean broken;
+
+        Connection( String key, SshClient client )
+        {
+            this.key = key;
+            this.client = client;
+        }
+    }
+}
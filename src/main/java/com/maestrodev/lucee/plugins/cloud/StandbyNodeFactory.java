@@ -0,0 +1,128 @@
+package com.maestrodev.lucee.plugins.cloud;
+
+import static com.maestrodev.lucee.plugins.cloud.Regions.contextRegion;
+import static com.maestrodev.lucee.plugins.cloud.TargetedNodes.ids;
+import static org.jclouds.compute.predicates.NodePredicates.*;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Set;
+
+import org.jclouds.compute.ComputeService;
+import org.jclouds.compute.ComputeServiceContext;
+import org.jclouds.compute.RunNodesException;
+import org.jclouds.compute.domain.NodeMetadata;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.collect.Iterables;
+import com.google.common.collect.Maps;
+
+/**
+ * Launches standby nodes outside of any task, with its own lease of the pooled context. Each launch is journaled
+ * under its own intent until its nodes are claimed or destroyed, so standby nodes of an agent that died are found as
+ * orphans.
+ */
+public class StandbyNodeFactory
+    implements StandbyPool.NodeFactory
+{
+
+    /** Name tag of the nodes waiting in the standby pool */
+    public static final String NAME_TAG = "maestro-standby";
+
+    private final Logger logger = LoggerFactory.getLogger( this.getClass() );
+
+    private final ComputeServiceContextPool pool;
+
+    private final String identity;
+
+    private final String credential;
+
+    private final LaunchSpec spec;
+
+    /**
+     * @param spec how the nodes of the tasks are launched, the standby nodes get their own name and intent
+     */
+    public StandbyNodeFactory( ComputeServiceContextPool pool, String identity, String credential, LaunchSpec spec )
+    {
+        this.pool = pool;
+        this.identity = identity;
+        this.credential = credential;
+        this.spec = spec.copy().nameTag( NAME_TAG ).intentId( null );
+    }
+
+    public Set<? extends NodeMetadata> create( int count )
+        throws RunNodesException
+    {
+        String region = contextRegion( spec.getProvider(), spec.getAvailabilityZone() );
+        ProvisioningJournal journal = ProvisioningJournal.getInstance();
+        String intentId = journal.intent( spec.getProvider(), identity, region );
+        LaunchSpec launch = spec.copy().intentId( intentId );
+        ComputeServiceContext context = pool.acquire( spec.getProvider(), identity, credential, region );
+        try
+        {
+            ComputeService compute = context.getComputeService();
+            Set<? extends NodeMetadata> nodes =
+                TaskNodeLauncher.createNodes( compute, launch, identity, count,
+                                              TaskNodeLauncher.buildTemplate( compute, launch ) );
+            journal.created( intentId, ids( nodes ) );
+            return nodes;
+        }
+        catch ( RunNodesException e )
+        {
+            journal.created( intentId, ids( e.getSuccessfulNodes() ) );
+            journal.created( intentId, ids( e.getNodeErrors().keySet() ) );
+            if ( e.getSuccessfulNodes().isEmpty() && e.getNodeErrors().isEmpty() )
+            {
+                journal.completed( intentId );
+            }
+            throw e;
+        }
+        finally
+        {
+            pool.release( context );
+        }
+    }
+
+    public void destroy( Collection<? extends NodeMetadata> nodes )
+    {
+        ComputeServiceContext context =
+            pool.acquire( spec.getProvider(), identity, credential,
+                          contextRegion( spec.getProvider(), spec.getAvailabilityZone() ) );
+        try
+        {
+            Map<String, Throwable> errors = Maps.newLinkedHashMap();
+            Set<String> destroyed =
+                new TargetedNodes( context.getComputeService(), spec.getProvider(), identity ).destroy( nodes,
+                                                                                                       errors );
+            ProvisioningJournal.getInstance().destroyed( destroyed );
+            // the ones that could not be destroyed stay in the journal
+            release( Iterables.filter( nodes, withIds( destroyed.toArray( new String[0] ) ) ) );
+            for ( Entry<String, Throwable> error : errors.entrySet() )
+            {
+                logger.warn( "Error destroying standby node " + error.getKey(), error.getValue() );
+            }
+        }
+        finally
+        {
+            pool.release( context );
+        }
+    }
+
+    /**
+     * The standby intents the nodes were launched with no longer answer for them, they were claimed or destroyed
+     */
+    static void release( Iterable<? extends NodeMetadata> nodes )
+    {
+        for ( NodeMetadata node : nodes )
+        {
+            String intentId = node.getUserMetadata().get( OrphanReconciler.INTENT_TAG );
+            if ( intentId != null )
+            {
+                ProvisioningJournal.getInstance().released( intentId, Collections.singleton( node.getId() ) );
+            }
+        }
+    }
+}
@@ -0,0 +1,533 @@
+package com.maestrodev.lucee.plugins.cloud;
+
+import static com.google.common.base.Charsets.UTF_8;
+import static com.maestrodev.lucee.plugins.cloud.ProviderRegistry.isAmazon;
+import static org.apache.commons.lang3.StringUtils.substringBefore;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.jclouds.aws.ec2.AWSEC2ApiMetadata;
+import org.jclouds.aws.ec2.AWSEC2Client;
+import org.jclouds.compute.ComputeService;
+import org.jclouds.compute.RunNodesException;
+import org.jclouds.compute.domain.NodeMetadata;
+import org.jclouds.compute.domain.NodeState;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.base.Joiner;
+import com.google.common.base.Objects;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.hash.Hashing;
+
+/**
+ * Warm standby nodes, already booted and bootstrapped, that provision can claim instead of waiting for a new node.
+ * <p>
+ * Nodes are kept per {@link Key}. When the number of available nodes for a key drops below the low watermark the pool
+ * is refilled up to the high watermark in the background, on its own threads so a slow launch and bootstrap does not
+ * hold up the other keys. Each node that waits unclaimed for longer than the idle TTL of its key is destroyed. If
+ * nothing is claimed from a key for that long it is not refilled until it is configured again.
+ */
+public class StandbyPool
+{
+
+    private static final long MAINTENANCE_INTERVAL = TimeUnit.SECONDS.toMillis( 30 );
+
+    private static final StandbyPool instance = new StandbyPool();
+
+    private final Logger logger = LoggerFactory.getLogger( this.getClass() );
+
+    private final Map<Key, Slot> slots = Maps.newHashMap();
+
+    private final ScheduledExecutorService executor;
+
+    /** launches and destroys, that can take minutes */
+    private final ExecutorService workers;
+
+    private final AtomicLong claims = new AtomicLong();
+
+    private final AtomicLong misses = new AtomicLong();
+
+    private final AtomicLong claimNanos = new AtomicLong();
+
+    private final AtomicLong maxClaimNanos = new AtomicLong();
+
+    /**
+     * Creates and destroys standby nodes for a key
+     */
+    public interface NodeFactory
+    {
+        /**
+         * Create and bootstrap new nodes
+         */
+        Set<? extends NodeMetadata> create( int count )
+            throws RunNodesException;
+
+        void destroy( Collection<? extends NodeMetadata> nodes );
+    }
+
+    public static StandbyPool getInstance()
+    {
+        return instance;
+    }
+
+    StandbyPool()
+    {
+        executor = Executors.newSingleThreadScheduledExecutor( new ThreadFactory()
+        {
+            public Thread newThread( Runnable r )
+            {
+                Thread thread = new Thread( r, "maestro-cloud-standby-pool" );
+                thread.setDaemon( true );
+                return thread;
+            }
+        } );
+        executor.scheduleWithFixedDelay( new Runnable()
+        {
+            public void run()
+            {
+                maintain();
+            }
+        }, MAINTENANCE_INTERVAL, MAINTENANCE_INTERVAL, TimeUnit.MILLISECONDS );
+        workers = Executors.newCachedThreadPool( new ThreadFactory()
+        {
+            public Thread newThread( Runnable r )
+            {
+                Thread thread = new Thread( r, "maestro-cloud-standby-refill" );
+                thread.setDaemon( true );
+                return thread;
+            }
+        } );
+    }
+
+    /**
+     * Key of the standby nodes that can be claimed in place of the nodes launched from the spec
+     */
+    public static Key key( LaunchSpec spec, String identity )
+    {
+        String options =
+            Joiner.on( '\n' ).useForNull( "" ).join( spec.getBootstrap(), spec.getGroups(), spec.getKeyName(),
+                                                     spec.getUserData(), spec.getLoginCredentials().getUser() );
+        return new Key( spec.getProvider(), identity, spec.getImageId(), spec.getFlavorId(), spec.getAvailabilityZone(),
+                        Hashing.sha256().hashString( options, UTF_8 ).toString() );
+    }
+
+    /**
+     * Register or update the watermarks of a key and schedule a refill if needed
+     *
+     * @param low refill when there are less available nodes than this
+     * @param high number of nodes to refill up to
+     * @param idleTtl milliseconds a node waits unclaimed before it is destroyed, and the key is refilled without claims
+     */
+    public synchronized void configure( Key key, int low, int high, long idleTtl, NodeFactory factory )
+    {
+        Slot slot = slots.get( key );
+        if ( slot == null )
+        {
+            slot = new Slot();
+            slots.put( key, slot );
+        }
+        slot.low = Math.min( low, high );
+        slot.high = high;
+        slot.idleTtl = idleTtl;
+        slot.factory = factory;
+        slot.lastUsed = System.currentTimeMillis();
+        scheduleRefill( key );
+    }
+
+    /**
+     * Take an available node for the key. The caller checks the node is still usable and reports the time it took
+     * with {@link #claimed(long)}.
+     *
+     * @return the node, or null if there was none available
+     */
+    public NodeMetadata claim( Key key )
+    {
+        NodeMetadata node = null;
+        synchronized ( this )
+        {
+            Slot slot = slots.get( key );
+            if ( slot != null )
+            {
+                slot.lastUsed = System.currentTimeMillis();
+                Standby standby = slot.available.poll();
+                node = standby == null ? null : standby.node;
+                scheduleRefill( key );
+            }
+        }
+
+        if ( node == null )
+        {
+            misses.incrementAndGet();
+            logger.debug( "No standby node available for {}", key );
+            return null;
+        }
+
+        logger.info( "Claimed standby node {} for {}", node.getId(), key );
+        return node;
+    }
+
+    /**
+     * Record a node claimed and ready to use
+     *
+     * @param nanos time taken to claim it, from asking the pool until it was ready
+     */
+    public void claimed( long nanos )
+    {
+        claims.incrementAndGet();
+        claimNanos.addAndGet( nanos );
+        long max;
+        while ( nanos > ( max = maxClaimNanos.get() ) && !maxClaimNanos.compareAndSet( max, nanos ) )
+        {
+            // retry
+        }
+    }
+
+    /**
+     * Claim up to count nodes for the spec that are still running, renamed with the Name tag of the spec. Each node is
+     * journaled under the intent of the spec as soon as it is claimed, nodes that can't be used are destroyed.
+     */
+    public List<NodeMetadata> claim( ComputeService compute, LaunchSpec spec, String identity, int count )
+    {
+        Key key = key( spec, identity );
+        List<NodeMetadata> nodes = Lists.newArrayList();
+        ProvisioningJournal journal = ProvisioningJournal.getInstance();
+        NodeInventory inventory = NodeInventory.getInstance();
+        TargetedNodes targeted = new TargetedNodes( compute, spec.getProvider(), identity );
+        while ( nodes.size() < count )
+        {
+            long claimStart = System.nanoTime();
+            NodeMetadata node = claim( key );
+            if ( node == null )
+            {
+                break;
+            }
+            // out of the pool, the provision answers for the node from now on
+            journal.created( spec.getIntentId(), Collections.singleton( node.getId() ) );
+            StandbyNodeFactory.release( Collections.singleton( node ) );
+            try
+            {
+                // it may have gone away while waiting in the pool
+                Map<String, Throwable> lookupErrors = Maps.newHashMap();
+                NodeMetadata current =
+                    inventory.refresh( targeted, Collections.singleton( node.getId() ), lookupErrors )
+                        .get( node.getId() );
+                if ( lookupErrors.containsKey( node.getId() ) )
+                {
+                    logger.warn( "Error looking up standby node " + node.getId() + ", discarding it",
+                                 lookupErrors.get( node.getId() ) );
+                    targeted.discard( node );
+                    continue;
+                }
+                if ( ( current == null ) || ( current.getState() != NodeState.RUNNING ) )
+                {
+                    logger.warn( "Standby node {} is no longer running, discarding it", node.getId() );
+                    targeted.discard( node );
+                    continue;
+                }
+                rename( compute, current, spec );
+                // the Name tag in the inventory is the standby one
+                inventory.remove( spec.getProvider(), identity, Collections.singleton( node.getId() ) );
+                nodes.add( current );
+                claimed( System.nanoTime() - claimStart );
+            }
+            catch ( RuntimeException e )
+            {
+                logger.warn( "Error claiming standby node " + node.getId() + ", discarding it", e );
+                targeted.discard( node );
+            }
+        }
+        return nodes;
+    }
+
+    /**
+     * @return whether the node is waiting in the pool to be claimed
+     */
+    public synchronized boolean holds( String id )
+    {
+        for ( Slot slot : slots.values() )
+        {
+            for ( Standby standby : slot.available )
+            {
+                if ( standby.node.getId().equals( id ) )
+                {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @return number of nodes ready to be claimed for the key
+     */
+    public synchronized int available( Key key )
+    {
+        Slot slot = slots.get( key );
+        return slot == null ? 0 : slot.available.size();
+    }
+
+    public long getClaims()
+    {
+        return claims.get();
+    }
+
+    public long getMisses()
+    {
+        return misses.get();
+    }
+
+    /**
+     * @return mean time in milliseconds to claim a node and get it ready, for the successful claims
+     */
+    public double getMeanClaimMillis()
+    {
+        long count = claims.get();
+        return count == 0 ? 0 : claimNanos.get() / (double) count / 1000000;
+    }
+
+    public double getMaxClaimMillis()
+    {
+        return maxClaimNanos.get() / 1000000d;
+    }
+
+    /**
+     * Set the Name tag of a claimed node, and when it was claimed so the reaper doesn't count the time it was on
+     * standby, only supported in EC2
+     */
+    private void rename( ComputeService compute, NodeMetadata node, LaunchSpec spec )
+    {
+        if ( isAmazon( spec.getProvider() ) )
+        {
+            String region = substringBefore( node.getId(), "/" );
+            AWSEC2Client ec2 = compute.getContext().unwrap( AWSEC2ApiMetadata.CONTEXT_TOKEN ).getApi();
+            ec2.getTagServices().createTagsInRegion( region, ImmutableSet.of( node.getProviderId() ),
+                                                     ImmutableMap.of( "Name", spec.getNameTag(),
+                                                                      NodeReaper.CLAIMED_TAG,
+                                                                      String.valueOf( System.currentTimeMillis() ) ) );
+        }
+        else
+        {
+            logger.debug( "Provider does not support tags, node {} keeps its standby name", node.getId() );
+        }
+    }
+
+    /**
+     * Destroy the nodes idle for too long, forget the idle keys and refill the ones under their low watermark
+     */
+    synchronized void maintain()
+    {
+        long now = System.currentTimeMillis();
+        for ( Iterator<Map.Entry<Key, Slot>> it = slots.entrySet().iterator(); it.hasNext(); )
+        {
+            Map.Entry<Key, Slot> entry = it.next();
+            final Slot slot = entry.getValue();
+            final List<NodeMetadata> expired = Lists.newArrayList();
+            for ( Iterator<Standby> nodes = slot.available.iterator(); nodes.hasNext(); )
+            {
+                Standby standby = nodes.next();
+                if ( now - standby.since > slot.idleTtl )
+                {
+                    nodes.remove();
+                    expired.add( standby.node );
+                }
+            }
+            if ( !expired.isEmpty() )
+            {
+                logger.info( "Destroying {} idle nodes of standby pool {}", expired.size(), entry.getKey() );
+                workers.execute( new Runnable()
+                {
+                    public void run()
+                    {
+                        slot.factory.destroy( expired );
+                    }
+                } );
+            }
+
+            if ( now - slot.lastUsed > slot.idleTtl && slot.creating == 0 )
+            {
+                if ( slot.available.isEmpty() )
+                {
+                    logger.info( "Standby pool {} idle, no longer refilled", entry.getKey() );
+                    it.remove();
+                }
+            }
+            else
+            {
+                scheduleRefill( entry.getKey() );
+            }
+        }
+    }
+
+    private void scheduleRefill( final Key key )
+    {
+        Slot slot = slots.get( key );
+        if ( slot != null && slot.available.size() + slot.creating < slot.low )
+        {
+            workers.execute( new Runnable()
+            {
+                public void run()
+                {
+                    refill( key );
+                }
+            } );
+        }
+    }
+
+    private void refill( Key key )
+    {
+        Slot slot;
+        int count;
+        synchronized ( this )
+        {
+            slot = slots.get( key );
+            if ( slot == null || slot.available.size() + slot.creating >= slot.low )
+            {
+                return;
+            }
+            count = slot.high - slot.available.size() - slot.creating;
+            slot.creating += count;
+        }
+
+        logger.info( "Refilling standby pool {} with {} nodes", key, count );
+        Set<? extends NodeMetadata> nodes;
+        try
+        {
+            nodes = slot.factory.create( count );
+        }
+        catch ( RunNodesException e )
+        {
+            logger.warn( "Error refilling standby pool " + key, e );
+            nodes = e.getSuccessfulNodes();
+            // nodes that failed bootstrap are of no use
+            if ( !e.getNodeErrors().isEmpty() )
+            {
+                slot.factory.destroy( e.getNodeErrors().keySet() );
+            }
+        }
+        catch ( RuntimeException e )
+        {
+            logger.warn( "Error refilling standby pool " + key, e );
+            nodes = null;
+        }
+
+        synchronized ( this )
+        {
+            slot.creating -= count;
+            if ( nodes != null )
+            {
+                long now = System.currentTimeMillis();
+                for ( NodeMetadata node : nodes )
+                {
+                    slot.available.add( new Standby( node, now ) );
+                }
+            }
+        }
+    }
+
+    /**
+     * A node waiting to be claimed, since when
+     */
+    private static class Standby
+    {
+        private final NodeMetadata node;
+
+        private final long since;
+
+        Standby( NodeMetadata node, long since )
+        {
+            this.node = node;
+            this.since = since;
+        }
+    }
+
+    private static class Slot
+    {
+        /** oldest first, so they are claimed before they expire */
+        private final LinkedList<Standby> available = Lists.newLinkedList();
+
+        private int creating;
+
+        private int low;
+
+        private int high;
+
+        private long idleTtl;
+
+        private long lastUsed;
+
+        private NodeFactory factory;
+    }
+
+    /**
+     * Standby nodes are interchangeable when they are in the same account and were launched from the same image,
+     * flavor and zone with the same bootstrap and launch options.
+     */
+    public static final class Key
+    {
+        private final String provider;
+
+        private final String identity;
+
+        private final String imageId;
+
+        private final String flavorId;
+
+        private final String availabilityZone;
+
+        private final String bootstrapHash;
+
+        public Key( String provider, String identity, String imageId, String flavorId, String availabilityZone,
+                    String bootstrapHash )
+        {
+            this.provider = provider;
+            this.identity = identity;
+            this.imageId = imageId;
+            this.flavorId = flavorId;
+            this.availabilityZone = availabilityZone;
+            this.bootstrapHash = bootstrapHash;
+        }
+
+        @Override
+        public boolean equals( Object obj )
+        {
+            if ( !( obj instanceof Key ) )
+            {
+                return false;
+            }
+            Key other = (Key) obj;
+            return Objects.equal( provider, other.provider ) && Objects.equal( identity, other.identity )
+                && Objects.equal( imageId, other.imageId ) && Objects.equal( flavorId, other.flavorId )
+                && Objects.equal( availabilityZone, other.availabilityZone )
+                && Objects.equal( bootstrapHash, other.bootstrapHash );
+        }
+
+        @Override
+        public int hashCode()
+        {
+            return Objects.hashCode( provider, identity, imageId, flavorId, availabilityZone, bootstrapHash );
+        }
+
+        @Override
+        public String toString()
+        {
+            return String.format( "%s/%s/%s/%s/%s", provider, imageId, flavorId, availabilityZone,
+                                  bootstrapHash.substring( 0, Math.min( 8, bootstrapHash.length() ) ) );
+        }
+    }
+}
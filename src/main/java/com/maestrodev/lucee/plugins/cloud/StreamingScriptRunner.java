@@ -0,0 +1,300 @@
+package com.maestrodev.lucee.plugins.cloud;
+
+import static com.google.common.base.Charsets.*;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.Reader;
+import java.util.Collections;
+import java.util.List;
+
+import org.jclouds.compute.ComputeService;
+import org.jclouds.compute.domain.ExecChannel;
+import org.jclouds.compute.domain.ExecResponse;
+import org.jclouds.compute.domain.NodeMetadata;
+import org.jclouds.compute.domain.NodeMetadataBuilder;
+import org.jclouds.domain.LoginCredentials;
+import org.jclouds.ssh.SshClient;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.collect.Lists;
+import com.google.common.io.Closeables;
+
+/**
+ * Runs a script over ssh forwarding its output in batches of lines while it is still running, instead of waiting for
+ * the whole {@link ExecResponse}. Only the first and last lines are kept in memory for the final response, the full
+ * output is saved to disk by {@link OutputCapture} when it does not fit. The responses reference the files until
+ * {@link #release()}.
+ */
+public class StreamingScriptRunner
+{
+
+    /** forward streamed output once this many lines are pending */
+    private static final int DEFAULT_BATCH_LINES = 50;
+
+    /** forward streamed output at least this often, in milliseconds */
+    private static final long DEFAULT_FLUSH_INTERVAL = 2000;
+
+    private final Logger logger = LoggerFactory.getLogger( this.getClass() );
+
+    private final int headLines;
+
+    private final int bufferLines;
+
+    private final int batchLines;
+
+    private final long flushInterval;
+
+    private final List<OutputCapture> captures = Collections.synchronizedList( Lists.<OutputCapture> newArrayList() );
+
+    /**
+     * Receives the output lines of a node as they are produced
+     */
+    public interface LineSink
+    {
+        void lines( NodeMetadata node, List<String> lines );
+    }
+
+    /** for scripts whose output is only needed once they finish */
+    public static final LineSink DISCARD = new LineSink()
+    {
+        public void lines( NodeMetadata node, List<String> lines )
+        {
+        }
+    };
+
+    /**
+     * Forwards the output every 50 lines or 2 seconds
+     *
+     * @param headLines first lines of stdout and stderr kept for the final response
+     * @param bufferLines last lines of stdout and stderr kept for the final response
+     */
+    public StreamingScriptRunner( int headLines, int bufferLines )
+    {
+        this( headLines, bufferLines, DEFAULT_BATCH_LINES, DEFAULT_FLUSH_INTERVAL );
+    }
+
+    /**
+     * @param headLines first lines of stdout and stderr kept for the final response
+     * @param bufferLines last lines of stdout and stderr kept for the final response
+     * @param batchLines forward the output as soon as there are this many lines pending
+     * @param flushInterval milliseconds after which pending lines are forwarded anyway
+     */
+    public StreamingScriptRunner( int headLines, int bufferLines, int batchLines, long flushInterval )
+    {
+        this.headLines = headLines;
+        this.bufferLines = bufferLines;
+        this.batchLines = batchLines;
+        this.flushInterval = flushInterval;
+    }
+
+    /**
+     * Run a script in the node as root, reusing the connection of previous steps and tasks in the node
+     */
+    public ExecResponse run( ComputeService compute, NodeMetadata node, LoginCredentials loginCredentials,
+                             String script, LineSink sink )
+        throws InterruptedException
+    {
+        NodeMetadata withCredentials =
+            NodeMetadataBuilder.fromNodeMetadata( node ).credentials( loginCredentials ).build();
+        SshClient ssh =
+            SshSessionPool.getInstance().lease( withCredentials, compute.getContext().utils().sshForNode() );
+        return run( ssh, node, loginCredentials.getUser(), script, sink );
+    }
+
+    /**
+     * Run a script in the node, as root
+     *
+     * @param ssh client for the node, not connected yet
+     * @param user the login user, the script is run with sudo unless it is root
+     * @param script the script to pipe to the shell
+     */
+    public ExecResponse run( SshClient ssh, NodeMetadata node, String user, String script, LineSink sink )
+        throws InterruptedException
+    {
+        Batch batch = new Batch( node, sink );
+        OutputCapture out = new OutputCapture( null, node.getId() + "-stdout", headLines, bufferLines );
+        OutputCapture err = new OutputCapture( null, node.getId() + "-stderr", headLines, bufferLines );
+        captures.add( out );
+        captures.add( err );
+
+        ssh.connect();
+        ExecChannel channel = null;
+        try
+        {
+            channel = ssh.execChannel( "root".equals( user ) ? "sh -s" : "sudo sh -s" );
+
+            // the script goes through stdin, no need to escape it
+            OutputStream input = channel.getInput();
+            try
+            {
+                input.write( script.getBytes( UTF_8 ) );
+            }
+            catch ( IOException e )
+            {
+                throw new IllegalStateException( "Error sending script to node " + node.getId(), e );
+            }
+            finally
+            {
+                Closeables.closeQuietly( input );
+            }
+
+            Pump stdout = new Pump( channel.getOutput(), out, batch, node.getId() + "-stdout" );
+            Pump stderr = new Pump( channel.getError(), err, batch, node.getId() + "-stderr" );
+            stdout.start();
+            stderr.start();
+            while ( stdout.isAlive() || stderr.isAlive() )
+            {
+                stdout.join( flushInterval );
+                stderr.join( 1 );
+                batch.flush();
+            }
+            batch.flush();
+
+            Integer status = channel.getExitStatus().get();
+            return new ExecResponse( out.toString(), err.toString(), status == null ? -1 : status );
+        }
+        finally
+        {
+            out.close();
+            err.close();
+            Closeables.closeQuietly( channel );
+            ssh.disconnect();
+        }
+    }
+
+    /**
+     * The responses of the scripts run are no longer used, their output files can be cleaned up
+     */
+    public void release()
+    {
+        synchronized ( captures )
+        {
+            for ( OutputCapture capture : captures )
+            {
+                capture.release();
+            }
+            captures.clear();
+        }
+    }
+
+    /**
+     * Lines pending to be forwarded, shared by the stdout and stderr pumps
+     */
+    private class Batch
+    {
+        private final NodeMetadata node;
+
+        private final LineSink sink;
+
+        private List<String> pending = Lists.newArrayList();
+
+        Batch( NodeMetadata node, LineSink sink )
+        {
+            this.node = node;
+            this.sink = sink;
+        }
+
+        void add( String line )
+        {
+            List<String> full = null;
+            synchronized ( this )
+            {
+                pending.add( line );
+                if ( pending.size() >= batchLines )
+                {
+                    full = pending;
+                    pending = Lists.newArrayList();
+                }
+            }
+            if ( full != null )
+            {
+                sink.lines( node, full );
+            }
+        }
+
+        void flush()
+        {
+            List<String> lines;
+            synchronized ( this )
+            {
+                if ( pending.isEmpty() )
+                {
+                    return;
+                }
+                lines = pending;
+                pending = Lists.newArrayList();
+            }
+            sink.lines( node, lines );
+        }
+    }
+
+    /**
+     * Reads lines from a stream into the capture and the batch
+     */
+    private class Pump
+        extends Thread
+    {
+        private final InputStream stream;
+
+        private final OutputCapture buffer;
+
+        private final Batch batch;
+
+        Pump( InputStream stream, OutputCapture buffer, Batch batch, String name )
+        {
+            super( name );
+            setDaemon( true );
+            this.stream = stream;
+            this.buffer = buffer;
+            this.batch = batch;
+        }
+
+        @Override
+        public void run()
+        {
+            Reader reader = new BufferedReader( new InputStreamReader( stream, UTF_8 ) );
+            StringBuilder line = new StringBuilder();
+            try
+            {
+                int c;
+                while ( ( c = reader.read() ) != -1 )
+                {
+                    if ( c == '\n' )
+                    {
+                        emit( line );
+                    }
+                    else
+                    {
+                        line.append( (char) c );
+                    }
+                }
+                if ( line.length() > 0 )
+                {
+                    emit( line );
+                }
+            }
+            catch ( IOException e )
+            {
+                logger.warn( "Error reading output of " + getName(), e );
+            }
+            finally
+            {
+                Closeables.closeQuietly( reader );
+            }
+        }
+
+        private void emit( StringBuilder line )
+        {
+            String s = line.toString();
+            line.setLength( 0 );
+            // the capture saves long lines whole
+            buffer.add( s );
+            batch.add( OutputCapture.truncate( s ) );
+        }
+    }
+}
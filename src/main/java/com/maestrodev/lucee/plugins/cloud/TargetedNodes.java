@@ -0,0 +1,248 @@
+package com.maestrodev.lucee.plugins.cloud;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.jclouds.compute.ComputeService;
+import org.jclouds.compute.domain.NodeMetadata;
+import org.jclouds.compute.predicates.NodePredicates;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
+import com.maestrodev.lucee.plugins.cloud.throttle.ApiCall;
+import com.maestrodev.lucee.plugins.cloud.throttle.ApiLimiter;
+import com.maestrodev.lucee.plugins.cloud.throttle.ApiLimiters;
+
+/**
+ * Operations on a known list of node ids that go straight to each node, instead of the predicate based operations of
+ * {@link ComputeService} that list every node in the account and filter them client side. Calls go through the
+ * {@link ApiLimiter} of the node region.
+ */
+public class TargetedNodes
+{
+
+    private static final int MAX_PARALLELISM = 10;
+
+    private final Logger logger = LoggerFactory.getLogger( this.getClass() );
+
+    private final ComputeService compute;
+
+    private final String provider;
+
+    private final String identity;
+
+    private final AtomicInteger apiCalls = new AtomicInteger();
+
+    public TargetedNodes( ComputeService compute, String provider, String identity )
+    {
+        this.compute = compute;
+        this.provider = provider;
+        this.identity = identity;
+    }
+
+    /**
+     * Get the metadata of each node, in parallel. Ids include the region for region scoped providers, so each lookup
+     * only talks to the node region.
+     *
+     * @param errors filled with the nodes that could not be looked up, by id, so they are not taken for missing ones
+     * @return the nodes found by id, missing ids are not included
+     */
+    public Map<String, NodeMetadata> resolve( Collection<String> ids, Map<String, Throwable> errors )
+    {
+        Map<String, NodeMetadata> nodes = Maps.newLinkedHashMap();
+        Map<String, NodeMetadata> results = parallel( ids, new Operation<String, NodeMetadata>()
+        {
+            public NodeMetadata apply( final String id )
+            {
+                apiCalls.incrementAndGet();
+                return limiter( id ).call( "getNodeMetadata", new ApiCall<NodeMetadata, RuntimeException>()
+                {
+                    public NodeMetadata call()
+                    {
+                        return compute.getNodeMetadata( id );
+                    }
+                } );
+            }
+        }, errors );
+        for ( Entry<String, NodeMetadata> entry : results.entrySet() )
+        {
+            if ( entry.getValue() != null )
+            {
+                nodes.put( entry.getKey(), entry.getValue() );
+            }
+        }
+        return nodes;
+    }
+
+    /**
+     * Destroy the nodes in parallel, removing them from the {@link NodeInventory}
+     *
+     * @param errors filled with the nodes that could not be destroyed, by id
+     * @return ids of the nodes destroyed
+     */
+    public Set<String> destroy( Collection<? extends NodeMetadata> nodes, Map<String, Throwable> errors )
+    {
+        List<String> ids = Lists.newArrayList();
+        for ( NodeMetadata node : nodes )
+        {
+            ids.add( node.getId() );
+        }
+        Map<String, Boolean> results = parallel( ids, new Operation<String, Boolean>()
+        {
+            public Boolean apply( final String id )
+            {
+                apiCalls.incrementAndGet();
+                return limiter( id ).call( "destroyNode", new ApiCall<Boolean, RuntimeException>()
+                {
+                    public Boolean call()
+                    {
+                        compute.destroyNode( id );
+                        return Boolean.TRUE;
+                    }
+                } );
+            }
+        }, errors );
+        Set<String> destroyed = Sets.newLinkedHashSet( results.keySet() );
+        NodeInventory.getInstance().remove( provider, identity, destroyed );
+        return destroyed;
+    }
+
+    /**
+     * Destroy a node that is not one of the machines of a task, ie. a claimed standby node that can't be used, it stays
+     * in the journal if it can't be destroyed
+     */
+    public void discard( NodeMetadata node )
+    {
+        Map<String, Throwable> errors = Maps.newLinkedHashMap();
+        ProvisioningJournal.getInstance().destroyed( destroy( Collections.singleton( node ), errors ) );
+        for ( Entry<String, Throwable> error : errors.entrySet() )
+        {
+            logger.warn( "Unable to destroy node " + error.getKey(), error.getValue() );
+        }
+    }
+
+    /**
+     * @return the ids of the nodes, in the same order
+     */
+    public static Set<String> ids( Iterable<? extends NodeMetadata> nodes )
+    {
+        Set<String> ids = Sets.newLinkedHashSet();
+        for ( NodeMetadata node : nodes )
+        {
+            ids.add( node.getId() );
+        }
+        return ids;
+    }
+
+    public String getProvider()
+    {
+        return provider;
+    }
+
+    public String getIdentity()
+    {
+        return identity;
+    }
+
+    /**
+     * @return calls made to the provider so far
+     */
+    public int getApiCalls()
+    {
+        return apiCalls.get();
+    }
+
+    /**
+     * Time a full listing of node details, what the predicate based operations do before filtering
+     *
+     * @return milliseconds taken, and the number of nodes listed in the second element
+     */
+    public long[] timeFullScan()
+    {
+        long start = System.nanoTime();
+        int listed = ApiLimiters.getInstance().get( provider, null, identity )
+            .call( "listNodesDetailsMatching", new ApiCall<Integer, RuntimeException>()
+            {
+                public Integer call()
+                {
+                    return compute.listNodesDetailsMatching( NodePredicates.all() ).size();
+                }
+            } );
+        return new long[] { TimeUnit.NANOSECONDS.toMillis( System.nanoTime() - start ), listed };
+    }
+
+    /**
+     * Limiter of the node region, ids of region scoped providers start with the region
+     */
+    private ApiLimiter limiter( String id )
+    {
+        String region = id.indexOf( '/' ) > 0 ? id.substring( 0, id.indexOf( '/' ) ) : null;
+        return ApiLimiters.getInstance().get( provider, region, identity );
+    }
+
+    private interface Operation<F, T>
+    {
+        T apply( F input );
+    }
+
+    private <T> Map<String, T> parallel( Collection<String> ids, final Operation<String, T> operation,
+                                         Map<String, Throwable> errors )
+    {
+        Map<String, T> results = Maps.newLinkedHashMap();
+        if ( ids.isEmpty() )
+        {
+            return results;
+        }
+        ExecutorService executor = Executors.newFixedThreadPool( Math.min( ids.size(), MAX_PARALLELISM ) );
+        try
+        {
+            Map<String, Future<T>> futures = Maps.newLinkedHashMap();
+            for ( final String id : ids )
+            {
+                futures.put( id, executor.submit( new Callable<T>()
+                {
+                    public T call()
+                    {
+                        return operation.apply( id );
+                    }
+                } ) );
+            }
+            for ( Entry<String, Future<T>> entry : futures.entrySet() )
+            {
+                try
+                {
+                    results.put( entry.getKey(), entry.getValue().get() );
+                }
+                catch ( ExecutionException e )
+                {
+                    logger.warn( "Error on node " + entry.getKey(), e.getCause() );
+                    errors.put( entry.getKey(), e.getCause() );
+                }
+                catch ( InterruptedException e )
+                {
+                    Thread.currentThread().interrupt();
+                    errors.put( entry.getKey(), e );
+                }
+            }
+        }
+        finally
+        {
+            executor.shutdownNow();
+        }
+        return results;
+    }
+}
@@ -0,0 +1,288 @@
+package com.maestrodev.lucee.plugins.cloud;
+
+import static com.google.common.collect.Iterables.*;
+import static com.maestrodev.lucee.plugins.cloud.ProviderRegistry.isAmazon;
+import static com.maestrodev.lucee.plugins.cloud.ProviderRegistry.isStub;
+import static com.maestrodev.lucee.plugins.cloud.Regions.regionOf;
+import static java.lang.String.*;
+import static org.apache.commons.lang3.StringUtils.*;
+import static org.jclouds.compute.options.TemplateOptions.Builder.*;
+
+import java.net.InetSocketAddress;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import org.jclouds.compute.ComputeService;
+import org.jclouds.compute.ComputeServiceContext;
+import org.jclouds.compute.RunNodesException;
+import org.jclouds.compute.domain.ExecResponse;
+import org.jclouds.compute.domain.NodeMetadata;
+import org.jclouds.compute.domain.Template;
+import org.jclouds.compute.options.TemplateOptions;
+import org.jclouds.ec2.compute.options.EC2TemplateOptions;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.base.Function;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.maestrodev.lucee.plugins.cloud.throttle.ApiCall;
+import com.maestrodev.lucee.plugins.cloud.throttle.ApiLimiter;
+import com.maestrodev.lucee.plugins.cloud.throttle.ApiLimiters;
+
+/**
+ * Launches the nodes of a provision task and gets them ready. Nodes of a hedged launch that lost may be destroyed
+ * after the task ended, so they are destroyed with their own lease of the pooled context.
+ */
+public class TaskNodeLauncher
+    implements PlacementLauncher.NodeLauncher
+{
+
+    /** jclouds group of all the nodes started by the plugin */
+    public static final String GROUP = "maestro";
+
+    /** milliseconds to wait for new nodes to accept ssh connections */
+    private static final long SSH_READY_TIMEOUT = TimeUnit.MINUTES.toMillis( 10 );
+
+    private static final Logger logger = LoggerFactory.getLogger( TaskNodeLauncher.class );
+
+    private final ComputeServiceContextPool pool;
+
+    private final ComputeService compute;
+
+    private final String provider;
+
+    private final String identity;
+
+    private final String credential;
+
+    private final String region;
+
+    public TaskNodeLauncher( ComputeServiceContextPool pool, ComputeService compute, String provider,
+                             String identity, String credential, String region )
+    {
+        this.pool = pool;
+        this.compute = compute;
+        this.provider = provider;
+        this.identity = identity;
+        this.credential = credential;
+        this.region = region;
+    }
+
+    public Set<? extends NodeMetadata> launch( LaunchSpec placement, int count )
+        throws RunNodesException
+    {
+        // the bootstrap runs once the nodes answer ssh, see bootstrap()
+        Template template = buildTemplate( compute, placement.copy().bootstrap( null ) );
+        return createNodes( compute, placement, identity, count, template );
+    }
+
+    public void destroy( Set<? extends NodeMetadata> nodes )
+    {
+        ComputeServiceContext context = pool.acquire( provider, identity, credential, region );
+        try
+        {
+            Map<String, Throwable> errors = Maps.newLinkedHashMap();
+            new TargetedNodes( context.getComputeService(), provider, identity ).destroy( nodes, errors );
+            for ( Entry<String, Throwable> error : errors.entrySet() )
+            {
+                logger.warn( "Error destroying node " + error.getKey(), error.getValue() );
+            }
+        }
+        finally
+        {
+            pool.release( context );
+        }
+    }
+
+    public void awaitReady( LaunchSpec placement, Set<? extends NodeMetadata> nodes )
+    {
+        List<ListenableFuture<Long>> ready = Lists.newArrayList();
+        for ( NodeMetadata node : nodes )
+        {
+            ready.add( sshReady( placement, node ) );
+        }
+        try
+        {
+            // nodes that never answer are reported by the bootstrap
+            Futures.successfulAsList( ready ).get();
+        }
+        catch ( ExecutionException e )
+        {
+            throw new IllegalStateException( e.getCause() );
+        }
+        catch ( InterruptedException e )
+        {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Build the template to launch nodes as described in the spec
+     */
+    public static Template buildTemplate( ComputeService compute, LaunchSpec spec )
+    {
+        // image, hardware and location are resolved once and cached
+        Template template = TemplateCache.getInstance().resolve( templateKey( spec ), compute );
+        TemplateOptions options = template.getOptions();
+
+        // credentials to run scripts
+        options.overrideLoginCredentials( spec.getLoginCredentials() );
+
+        // to run commands as root, we use the runScript option in the template.
+        if ( !isEmpty( spec.getBootstrap() ) )
+        {
+            options.runScript( spec.getBootstrap() ).blockOnComplete( true );
+        }
+
+        // name the instance with the Name tag
+        options.getUserMetadata().put( "Name", spec.getNameTag() );
+        if ( spec.getIntentId() != null )
+        {
+            options.getUserMetadata().put( OrphanReconciler.INTENT_TAG, spec.getIntentId() );
+        }
+        // so stale nodes can be reaped by age
+        options.getUserMetadata().put( NodeReaper.LAUNCHED_TAG, String.valueOf( System.currentTimeMillis() ) );
+
+        // Amazon specific options
+        if ( isAmazon( spec.getProvider() ) )
+        {
+            EC2TemplateOptions ec2Options = template.getOptions().as( EC2TemplateOptions.class );
+            ec2Options.securityGroups( spec.getGroups() ).keyPair( spec.getKeyName() );
+            if ( !isEmpty( spec.getUserData() ) )
+            {
+                ec2Options.userData( spec.getUserData().getBytes() );
+            }
+        }
+        return template;
+    }
+
+    /**
+     * @return the key of the image, hardware and location of the spec in the {@link TemplateCache}
+     */
+    public static TemplateCache.Key templateKey( LaunchSpec spec )
+    {
+        return new TemplateCache.Key( spec.getProvider(), regionOf( spec.getProvider(), spec.getAvailabilityZone() ),
+                                      spec.getImageId(), spec.getFlavorId(), spec.getAvailabilityZone() );
+    }
+
+    /**
+     * Create the nodes in one call, through the limiter shared by every worker using the same account and region. The
+     * call is retried while throttled and no node was started.
+     */
+    public static Set<? extends NodeMetadata> createNodes( final ComputeService compute, LaunchSpec spec,
+                                                           String identity, final int count, final Template template )
+        throws RunNodesException
+    {
+        String region = regionOf( spec.getProvider(), spec.getAvailabilityZone() );
+        ApiLimiter limiter = ApiLimiters.getInstance().get( spec.getProvider(), region, identity );
+        return limiter.call( "createNodesInGroup", new ApiCall<Set<? extends NodeMetadata>, RunNodesException>()
+        {
+            public Set<? extends NodeMetadata> call()
+                throws RunNodesException
+            {
+                return compute.createNodesInGroup( GROUP, count, template );
+            }
+        } );
+    }
+
+    /**
+     * Wait until the nodes accept ssh connections and run the bootstrap in all of them at the same time
+     *
+     * @return errors of the nodes that were not ready in time or failed the bootstrap, by node id
+     */
+    public static Map<String, Throwable> bootstrapAll( ComputeService compute, LaunchSpec spec,
+                                                       Collection<? extends NodeMetadata> nodes )
+    {
+        Map<String, Throwable> errors = Maps.newLinkedHashMap();
+        ExecutorService executor = Executors.newCachedThreadPool();
+        try
+        {
+            Map<NodeMetadata, ListenableFuture<ExecResponse>> futures = Maps.newLinkedHashMap();
+            for ( NodeMetadata node : nodes )
+            {
+                futures.put( node, bootstrap( compute, spec, node, executor ) );
+            }
+            for ( Entry<NodeMetadata, ListenableFuture<ExecResponse>> entry : futures.entrySet() )
+            {
+                String id = entry.getKey().getId();
+                try
+                {
+                    entry.getValue().get();
+                    logger.debug( "Node {} bootstrapped", id );
+                }
+                catch ( ExecutionException e )
+                {
+                    logger.warn( "Error bootstrapping node " + id, e.getCause() );
+                    errors.put( id, e.getCause() );
+                }
+                catch ( InterruptedException e )
+                {
+                    Thread.currentThread().interrupt();
+                    errors.put( id, e );
+                }
+            }
+        }
+        finally
+        {
+            executor.shutdownNow();
+        }
+        return errors;
+    }
+
+    /**
+     * Wait until the node accepts ssh connections, then run the bootstrap script in it as root. Probing doesn't take a
+     * thread, the script runs in the executor.
+     *
+     * @return completed with the bootstrap response, null if there is no bootstrap
+     */
+    public static ListenableFuture<ExecResponse> bootstrap( final ComputeService compute, final LaunchSpec spec,
+                                                            final NodeMetadata node, Executor executor )
+    {
+        return Futures.transform( sshReady( spec, node ), new Function<Long, ExecResponse>()
+        {
+            public ExecResponse apply( Long millis )
+            {
+                if ( isEmpty( spec.getBootstrap() ) )
+                {
+                    return null;
+                }
+                ExecResponse response =
+                    compute.runScriptOnNode( node.getId(), spec.getBootstrap(),
+                                             overrideLoginCredentials( spec.getLoginCredentials() ) );
+                if ( response.getExitStatus() != 0 )
+                {
+                    throw new IllegalStateException( format( "Bootstrap failed with status %d: %s",
+                                                             response.getExitStatus(), response.getError() ) );
+                }
+                return response;
+            }
+        }, executor );
+    }
+
+    /**
+     * @return completed when the node accepts ssh connections, failed if it didn't in time
+     */
+    static ListenableFuture<Long> sshReady( LaunchSpec spec, NodeMetadata node )
+    {
+        String address = getFirst( concat( node.getPublicAddresses(), node.getPrivateAddresses() ), null );
+        if ( isStub( spec.getProvider() ) || address == null )
+        {
+            // stub nodes have no ssh server to probe
+            return Futures.immediateFuture( 0L );
+        }
+        return SshReadinessProber.getInstance().probe( new InetSocketAddress( address, node.getLoginPort() ),
+                                                       spec.getProvider() + "/" + spec.getImageId(),
+                                                       SSH_READY_TIMEOUT );
+    }
+}
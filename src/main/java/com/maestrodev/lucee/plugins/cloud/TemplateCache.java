@@ -0,0 +1,367 @@
+package com.maestrodev.lucee.plugins.cloud;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.jclouds.compute.ComputeService;
+import org.jclouds.compute.domain.Hardware;
+import org.jclouds.compute.domain.Image;
+import org.jclouds.compute.domain.Template;
+import org.jclouds.compute.domain.TemplateBuilder;
+import org.jclouds.compute.domain.internal.TemplateImpl;
+import org.jclouds.domain.Location;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.base.Joiner;
+import com.google.common.base.Splitter;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.io.Closeables;
+
+/**
+ * Cache of resolved templates, so repeated provisions of the same image and flavor don't query the provider images
+ * and hardware profiles every time.
+ * <p>
+ * The resolved image, hardware and location are kept in memory. Their ids are also saved to a snapshot file, so a
+ * freshly started agent can resolve them with targeted lookups instead of a full template match.
+ */
+public class TemplateCache
+{
+
+    /** minutes a resolved template is considered valid */
+    public static final String PROPERTY_TTL = "maestro.cloud.templateCache.ttl";
+
+    /** file where the resolved ids are saved, empty to disable it */
+    public static final String PROPERTY_SNAPSHOT = "maestro.cloud.templateCache.file";
+
+    private static final TemplateCache instance =
+        new TemplateCache( TimeUnit.MINUTES.toMillis( Long.getLong( PROPERTY_TTL, 60 ) ),
+                           System.getProperty( PROPERTY_SNAPSHOT, System.getProperty( "user.home" )
+                               + "/.maestro/cloud-templates.properties" ) );
+
+    private final Logger logger = LoggerFactory.getLogger( this.getClass() );
+
+    private final Map<Key, Entry> entries = Maps.newHashMap();
+
+    private final long ttl;
+
+    private final File snapshotFile;
+
+    private Properties snapshot;
+
+    private final AtomicLong hits = new AtomicLong();
+
+    private final AtomicLong snapshotHits = new AtomicLong();
+
+    private final AtomicLong misses = new AtomicLong();
+
+    public static TemplateCache getInstance()
+    {
+        return instance;
+    }
+
+    /**
+     * @param ttl milliseconds a resolved template is valid
+     * @param snapshotFile path of the snapshot file, null or empty to keep everything in memory
+     */
+    public TemplateCache( long ttl, String snapshotFile )
+    {
+        this.ttl = ttl;
+        this.snapshotFile = ( snapshotFile == null || snapshotFile.length() == 0 ) ? null : new File( snapshotFile );
+    }
+
+    /**
+     * Get a template for the key with fresh options, resolving it with the provider only if it is not cached
+     */
+    public Template resolve( Key key, ComputeService compute )
+    {
+        long now = System.currentTimeMillis();
+        Entry entry;
+        synchronized ( this )
+        {
+            entry = entries.get( key );
+        }
+        if ( entry != null && now - entry.resolved < ttl )
+        {
+            hits.incrementAndGet();
+            logger.debug( "Template cache hit for {}", key );
+            return newTemplate( entry, compute );
+        }
+
+        entry = fromSnapshot( key, compute, now );
+        if ( entry != null )
+        {
+            snapshotHits.incrementAndGet();
+            logger.debug( "Template cache snapshot hit for {}", key );
+        }
+        else
+        {
+            misses.incrementAndGet();
+            logger.debug( "Template cache miss for {}", key );
+            TemplateBuilder templateBuilder = compute.templateBuilder();
+            templateBuilder.imageId( key.imageId ).hardwareId( key.flavorId );
+            if ( key.locationId != null && key.locationId.length() > 0 )
+            {
+                templateBuilder.locationId( key.locationId );
+            }
+            Template template = templateBuilder.build();
+            entry = new Entry( template.getImage(), template.getHardware(), template.getLocation(), now );
+            saveSnapshot( key, entry );
+        }
+
+        synchronized ( this )
+        {
+            entries.put( key, entry );
+        }
+        return newTemplate( entry, compute );
+    }
+
+    /**
+     * The only use of the jclouds internal template class. The public {@link TemplateBuilder} matches the image and
+     * hardware against the full provider listings again, the very queries the cache is there to avoid.
+     */
+    private static Template newTemplate( Entry entry, ComputeService compute )
+    {
+        return new TemplateImpl( entry.image, entry.hardware, entry.location, compute.templateOptions() );
+    }
+
+    /**
+     * Forget a template, ie. because launching nodes with it failed
+     */
+    public void invalidate( Key key )
+    {
+        synchronized ( this )
+        {
+            entries.remove( key );
+        }
+        saveSnapshot( key, null );
+    }
+
+    public long getHits()
+    {
+        return hits.get();
+    }
+
+    public long getSnapshotHits()
+    {
+        return snapshotHits.get();
+    }
+
+    public long getMisses()
+    {
+        return misses.get();
+    }
+
+    /**
+     * Resolve the ids saved in the snapshot with targeted lookups
+     */
+    private Entry fromSnapshot( Key key, ComputeService compute, long now )
+    {
+        String value;
+        synchronized ( this )
+        {
+            value = loadSnapshot().getProperty( key.toString() );
+        }
+        if ( value == null )
+        {
+            return null;
+        }
+        // imageId|hardwareId|locationId|timestamp
+        List<String> ids = Lists.newArrayList( Splitter.on( '|' ).split( value ) );
+        long resolved;
+        try
+        {
+            resolved = ids.size() == 4 ? Long.parseLong( ids.get( 3 ) ) : -1;
+        }
+        catch ( NumberFormatException e )
+        {
+            resolved = -1;
+        }
+        if ( resolved < 0 )
+        {
+            logger.warn( "Invalid template snapshot for {}: {}", key, value );
+            saveSnapshot( key, null );
+            return null;
+        }
+        if ( now - resolved >= ttl )
+        {
+            return null;
+        }
+        try
+        {
+            Image image = compute.getImage( ids.get( 0 ) );
+            Hardware hardware = null;
+            for ( Hardware candidate : compute.listHardwareProfiles() )
+            {
+                if ( candidate.getId().equals( ids.get( 1 ) ) )
+                {
+                    hardware = candidate;
+                }
+            }
+            Location location = null;
+            for ( Location candidate : compute.listAssignableLocations() )
+            {
+                if ( candidate.getId().equals( ids.get( 2 ) ) )
+                {
+                    location = candidate;
+                }
+            }
+            if ( image == null || hardware == null || location == null )
+            {
+                logger.debug( "Template snapshot for {} is no longer valid", key );
+                return null;
+            }
+            return new Entry( image, hardware, location, resolved );
+        }
+        catch ( RuntimeException e )
+        {
+            logger.warn( "Error resolving template snapshot for " + key, e );
+            return null;
+        }
+    }
+
+    private Properties loadSnapshot()
+    {
+        if ( snapshot == null )
+        {
+            snapshot = new Properties();
+            if ( snapshotFile != null && snapshotFile.exists() )
+            {
+                InputStream in = null;
+                try
+                {
+                    in = new FileInputStream( snapshotFile );
+                    snapshot.load( in );
+                }
+                catch ( IOException e )
+                {
+                    logger.warn( "Error reading template snapshot " + snapshotFile, e );
+                }
+                finally
+                {
+                    Closeables.closeQuietly( in );
+                }
+            }
+        }
+        return snapshot;
+    }
+
+    private synchronized void saveSnapshot( Key key, Entry entry )
+    {
+        Properties properties = loadSnapshot();
+        if ( entry == null )
+        {
+            if ( properties.remove( key.toString() ) == null )
+            {
+                return;
+            }
+        }
+        else
+        {
+            properties.setProperty( key.toString(),
+                                    Joiner.on( '|' ).join( entry.image.getId(), entry.hardware.getId(),
+                                                           entry.location.getId(), entry.resolved ) );
+        }
+        if ( snapshotFile == null )
+        {
+            return;
+        }
+
+        // write and rename, so a crash never leaves a half written snapshot
+        File tmp = new File( snapshotFile.getPath() + ".tmp" );
+        OutputStream out = null;
+        try
+        {
+            snapshotFile.getAbsoluteFile().getParentFile().mkdirs();
+            out = new FileOutputStream( tmp );
+            properties.store( out, "maestro cloud plugin resolved templates" );
+            out.close();
+            out = null;
+            if ( !tmp.renameTo( snapshotFile ) )
+            {
+                snapshotFile.delete();
+                tmp.renameTo( snapshotFile );
+            }
+        }
+        catch ( IOException e )
+        {
+            logger.warn( "Error writing template snapshot " + snapshotFile, e );
+        }
+        finally
+        {
+            Closeables.closeQuietly( out );
+        }
+    }
+
+    private static class Entry
+    {
+        private final Image image;
+
+        private final Hardware hardware;
+
+        private final Location location;
+
+        private final long resolved;
+
+        Entry( Image image, Hardware hardware, Location location, long resolved )
+        {
+            this.image = image;
+            this.hardware = hardware;
+            this.location = location;
+            this.resolved = resolved;
+        }
+    }
+
+    /**
+     * Templates are cached by provider, region, image, flavor and location
+     */
+    public static final class Key
+    {
+        private final String provider;
+
+        private final String region;
+
+        private final String imageId;
+
+        private final String flavorId;
+
+        private final String locationId;
+
+        public Key( String provider, String region, String imageId, String flavorId, String locationId )
+        {
+            this.provider = provider;
+            this.region = region;
+            this.imageId = imageId;
+            this.flavorId = flavorId;
+            this.locationId = locationId;
+        }
+
+        @Override
+        public boolean equals( Object obj )
+        {
+            return obj instanceof Key && toString().equals( obj.toString() );
+        }
+
+        @Override
+        public int hashCode()
+        {
+            return toString().hashCode();
+        }
+
+        @Override
+        public String toString()
+        {
+            return Joiner.on( '|' ).useForNull( "" ).join( provider, region, imageId, flavorId, locationId );
+        }
+    }
+}
@@ -1,48 +1,29 @@
 package com.maestrodev.lucee.plugins.cloud.aws;
 
-import com.amazonaws.auth.AWSCredentials;
-import com.amazonaws.auth.BasicAWSCredentials;
-import com.amazonaws.services.route53.AmazonRoute53;
-import com.amazonaws.services.route53.AmazonRoute53Client;
-import com.amazonaws.services.route53.model.Change;
-import com.amazonaws.services.route53.model.ChangeAction;
-import com.amazonaws.services.route53.model.ChangeBatch;
-import com.amazonaws.services.route53.model.ChangeResourceRecordSetsRequest;
-import com.amazonaws.services.route53.model.ListHostedZonesResult;
-import com.amazonaws.services.route53.model.RRType;
-import com.amazonaws.services.route53.model.ResourceRecordSet;
+import java.util.Collections;
+import java.util.List;
+
+import com.amazonaws.services.route53.model.ChangeInfo;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.maestrodev.lucee.plugins.cloud.aws.Route53Registrar.RecordChange;
 
 public class AWSCloudWorker
 {
 
-    public static void awsDns( String accessKey, String secretKey, String hostname, String domain )
-    {
-        AmazonRoute53 route53 = null;
-        try
-        {
-            AWSCredentials credentials = new BasicAWSCredentials( accessKey, secretKey );
-            route53 = new AmazonRoute53Client( credentials );
-
-            ListHostedZonesResult hostedZones = route53.listHostedZones();
+    private static final long DEFAULT_TTL = 300;
 
-            ResourceRecordSet set = new ResourceRecordSet( hostname, RRType.A );
-            Change change = new Change().withAction( ChangeAction.CREATE ).withResourceRecordSet( set );
-            ChangeBatch changeBatch = new ChangeBatch().withChanges( change );
-            ChangeResourceRecordSetsRequest changeResourceRecordSetsRequest =
-                new ChangeResourceRecordSetsRequest( domain, changeBatch );
-
-            // route53.createHostedZone( new CreateHostedZoneRequest().withName( domain )
-            // .withCallerReference(callerReference)
-            route53.changeResourceRecordSets( changeResourceRecordSetsRequest );
-
-            // .withHostedZoneConfig( new HostedZoneConfig().withComment( "my first Route 53 hosted zone!" ) ) );
-        }
-        finally
-        {
-            if ( route53 != null )
-            {
-                route53.shutdown();
-            }
-        }
+    /**
+     * Create an A record for hostname.domain pointing to the ip
+     * 
+     * @return futures completed when the change is in sync
+     */
+    public static List<ListenableFuture<ChangeInfo>> awsDns( String accessKey, String secretKey, String hostname,
+                                                             String domain, String ip )
+    {
+        Route53Registrar registrar = Route53Registrar.forCredentials( accessKey, secretKey );
+        RecordChange change =
+            new RecordChange( RecordChange.Action.CREATE, hostname + "." + domain, Collections.singleton( ip ),
+                              DEFAULT_TTL );
+        return registrar.apply( domain, Collections.singleton( change ) );
     }
 }
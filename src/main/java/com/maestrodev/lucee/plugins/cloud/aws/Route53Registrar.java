@@ -0,0 +1,413 @@
+package com.maestrodev.lucee.plugins.cloud.aws;
+
+import static com.google.common.base.Charsets.*;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.amazonaws.auth.BasicAWSCredentials;
+import com.amazonaws.services.route53.AmazonRoute53;
+import com.amazonaws.services.route53.AmazonRoute53Client;
+import com.amazonaws.services.route53.model.Change;
+import com.amazonaws.services.route53.model.ChangeAction;
+import com.amazonaws.services.route53.model.ChangeBatch;
+import com.amazonaws.services.route53.model.ChangeInfo;
+import com.amazonaws.services.route53.model.ChangeResourceRecordSetsRequest;
+import com.amazonaws.services.route53.model.GetChangeRequest;
+import com.amazonaws.services.route53.model.HostedZone;
+import com.amazonaws.services.route53.model.ListHostedZonesRequest;
+import com.amazonaws.services.route53.model.ListHostedZonesResult;
+import com.amazonaws.services.route53.model.ListResourceRecordSetsRequest;
+import com.amazonaws.services.route53.model.ListResourceRecordSetsResult;
+import com.amazonaws.services.route53.model.RRType;
+import com.amazonaws.services.route53.model.ResourceRecord;
+import com.amazonaws.services.route53.model.ResourceRecordSet;
+import com.google.common.base.Predicates;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Iterables;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
+import com.google.common.hash.Hashing;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.SettableFuture;
+import com.maestrodev.lucee.plugins.cloud.throttle.ApiCall;
+import com.maestrodev.lucee.plugins.cloud.throttle.ApiLimiter;
+import com.maestrodev.lucee.plugins.cloud.throttle.ApiLimiters;
+
+/**
+ * Registers A records in Route 53, sharing one client per account and caching the hosted zone of each domain. Many
+ * record changes are sent in a single change batch, the current records they replace are found with a single listing
+ * of the zone, and waiting for them to be in sync doesn't block the caller.
+ */
+public class Route53Registrar
+{
+
+    /** Route 53 limit of changes in a batch */
+    static final int MAX_CHANGES_PER_BATCH = 100;
+
+    private static final long SYNC_POLL_INTERVAL = TimeUnit.SECONDS.toMillis( 5 );
+
+    private static final long SYNC_TIMEOUT = TimeUnit.MINUTES.toMillis( 10 );
+
+    /** registrars by access key and a hash of the secret key */
+    private static final ConcurrentMap<String, Route53Registrar> registrars = Maps.newConcurrentMap();
+
+    private static final ScheduledExecutorService poller =
+        Executors.newSingleThreadScheduledExecutor( new ThreadFactory()
+        {
+            public Thread newThread( Runnable r )
+            {
+                Thread thread = new Thread( r, "maestro-route53-sync" );
+                thread.setDaemon( true );
+                return thread;
+            }
+        } );
+
+    private final Logger logger = LoggerFactory.getLogger( this.getClass() );
+
+    private final AmazonRoute53 route53;
+
+    private final ApiLimiter limiter;
+
+    private final long pollInterval;
+
+    private final ConcurrentMap<String, String> hostedZones = Maps.newConcurrentMap();
+
+    /**
+     * A record change to apply
+     */
+    public static class RecordChange
+    {
+        public enum Action
+        {
+            CREATE, UPSERT, DELETE
+        }
+
+        private final Action action;
+
+        private final String name;
+
+        private final List<String> addresses;
+
+        private final long ttl;
+
+        public RecordChange( Action action, String name, Collection<String> addresses, long ttl )
+        {
+            this.action = action;
+            this.name = name;
+            this.addresses = ImmutableList.copyOf( addresses );
+            this.ttl = ttl;
+        }
+
+        public Action getAction()
+        {
+            return action;
+        }
+
+        public String getName()
+        {
+            return name;
+        }
+
+        public List<String> getAddresses()
+        {
+            return addresses;
+        }
+
+        public long getTtl()
+        {
+            return ttl;
+        }
+    }
+
+    /**
+     * The shared registrar for an account
+     */
+    public static Route53Registrar forCredentials( String accessKey, String secretKey )
+    {
+        // a rotated secret gets a new client instead of the one with the old secret
+        String key = accessKey + "|" + Hashing.sha256().hashString( secretKey, UTF_8 ).toString();
+        Route53Registrar registrar = registrars.get( key );
+        if ( registrar == null )
+        {
+            Route53Registrar created =
+                new Route53Registrar( new AmazonRoute53Client( new BasicAWSCredentials( accessKey, secretKey ) ),
+                                      ApiLimiters.getInstance().get( "route53", null, accessKey ), SYNC_POLL_INTERVAL );
+            registrar = registrars.putIfAbsent( key, created );
+            if ( registrar == null )
+            {
+                registrar = created;
+            }
+            else
+            {
+                created.route53.shutdown();
+            }
+        }
+        return registrar;
+    }
+
+    /**
+     * @param pollInterval milliseconds between checks of a change status
+     */
+    Route53Registrar( AmazonRoute53 route53, ApiLimiter limiter, long pollInterval )
+    {
+        this.route53 = route53;
+        this.limiter = limiter;
+        this.pollInterval = pollInterval;
+    }
+
+    /**
+     * Id of the hosted zone for a domain, looked up once and cached
+     *
+     * @throws IllegalArgumentException if there is no hosted zone for the domain
+     */
+    public String getHostedZoneId( String domain )
+    {
+        String zoneName = fqdn( domain );
+        String id = hostedZones.get( zoneName );
+        if ( id != null )
+        {
+            return id;
+        }
+
+        ListHostedZonesRequest request = new ListHostedZonesRequest();
+        ListHostedZonesResult result;
+        do
+        {
+            final ListHostedZonesRequest page = request;
+            result = limiter.call( "listHostedZones", new ApiCall<ListHostedZonesResult, RuntimeException>()
+            {
+                public ListHostedZonesResult call()
+                {
+                    return route53.listHostedZones( page );
+                }
+            } );
+            for ( HostedZone zone : result.getHostedZones() )
+            {
+                hostedZones.putIfAbsent( zone.getName(), zone.getId() );
+            }
+            request = new ListHostedZonesRequest().withMarker( result.getNextMarker() );
+        }
+        while ( !hostedZones.containsKey( zoneName ) && Boolean.TRUE.equals( result.getIsTruncated() ) );
+
+        id = hostedZones.get( zoneName );
+        if ( id == null )
+        {
+            throw new IllegalArgumentException( "No Route 53 hosted zone for domain " + domain );
+        }
+        return id;
+    }
+
+    /**
+     * Create or replace the A record of the name with the addresses, the null ones are left out
+     *
+     * @return one future per change batch, none if there is no address to register
+     */
+    public List<ListenableFuture<ChangeInfo>> register( String domain, String name, Collection<String> addresses,
+                                                        long ttl )
+    {
+        List<String> valid = Lists.newArrayList( Iterables.filter( addresses, Predicates.notNull() ) );
+        if ( valid.isEmpty() )
+        {
+            return Collections.emptyList();
+        }
+        RecordChange change = new RecordChange( RecordChange.Action.UPSERT, name, valid, ttl );
+        return apply( domain, Collections.singleton( change ) );
+    }
+
+    /**
+     * Delete the A records of the names, the ones that don't exist are skipped
+     *
+     * @return one future per change batch
+     */
+    public List<ListenableFuture<ChangeInfo>> unregister( String domain, Collection<String> names )
+    {
+        List<RecordChange> changes = Lists.newArrayList();
+        for ( String name : names )
+        {
+            changes.add( new RecordChange( RecordChange.Action.DELETE, name, Collections.<String> emptyList(), 0 ) );
+        }
+        return apply( domain, changes );
+    }
+
+    /**
+     * Apply the changes to the records of the domain, in as few change batches as possible
+     *
+     * @return one future per change batch, completed when the change is in sync in all Route 53 servers
+     */
+    public List<ListenableFuture<ChangeInfo>> apply( String domain, Collection<RecordChange> changes )
+    {
+        String zoneId = getHostedZoneId( domain );
+
+        // upsert and delete need the current records
+        Set<String> replaced = Sets.newHashSet();
+        for ( RecordChange change : changes )
+        {
+            if ( change.getAction() != RecordChange.Action.CREATE )
+            {
+                replaced.add( fqdn( change.getName() ) );
+            }
+        }
+        Map<String, ResourceRecordSet> current = findRecords( zoneId, replaced );
+
+        List<Change> all = Lists.newArrayList();
+        for ( RecordChange change : changes )
+        {
+            all.addAll( toChanges( change, current ) );
+        }
+
+        List<ListenableFuture<ChangeInfo>> futures = Lists.newArrayList();
+        for ( List<Change> batch : Lists.partition( all, MAX_CHANGES_PER_BATCH ) )
+        {
+            ChangeBatch changeBatch = new ChangeBatch().withChanges( Lists.newArrayList( batch ) );
+            final ChangeResourceRecordSetsRequest request = new ChangeResourceRecordSetsRequest( zoneId, changeBatch );
+            ChangeInfo info = limiter.call( "changeResourceRecordSets", new ApiCall<ChangeInfo, RuntimeException>()
+            {
+                public ChangeInfo call()
+                {
+                    return route53.changeResourceRecordSets( request ).getChangeInfo();
+                }
+            } );
+            logger.info( "Submitted {} record changes to zone {}: {}",
+                         new Object[] { batch.size(), zoneId, info.getId() } );
+            futures.add( awaitInSync( info ) );
+        }
+        return futures;
+    }
+
+    /**
+     * Translate to Route 53 changes. Upsert and delete remove the current record, upsert becomes a delete and a create
+     * in the same batch so it is atomic.
+     *
+     * @param current the current A records by name
+     */
+    private List<Change> toChanges( RecordChange change, Map<String, ResourceRecordSet> current )
+    {
+        String name = fqdn( change.getName() );
+        List<Change> result = Lists.newArrayList();
+        if ( change.getAction() != RecordChange.Action.CREATE && current.containsKey( name ) )
+        {
+            result.add( new Change().withAction( ChangeAction.DELETE ).withResourceRecordSet( current.get( name ) ) );
+        }
+        if ( change.getAction() != RecordChange.Action.DELETE )
+        {
+            List<ResourceRecord> records = Lists.newArrayList();
+            for ( String address : change.getAddresses() )
+            {
+                records.add( new ResourceRecord( address ) );
+            }
+            ResourceRecordSet set =
+                new ResourceRecordSet( name, RRType.A ).withTTL( change.getTtl() ).withResourceRecords( records );
+            result.add( new Change().withAction( ChangeAction.CREATE ).withResourceRecordSet( set ) );
+        }
+        return result;
+    }
+
+    /**
+     * Find the current A records with the names. A single record is looked up directly, more are found listing the
+     * zone once instead of a lookup per record.
+     *
+     * @return the records found by name
+     */
+    private Map<String, ResourceRecordSet> findRecords( String zoneId, Set<String> names )
+    {
+        Map<String, ResourceRecordSet> found = Maps.newHashMap();
+        if ( names.isEmpty() )
+        {
+            return found;
+        }
+        ListResourceRecordSetsRequest request = new ListResourceRecordSetsRequest( zoneId );
+        if ( names.size() == 1 )
+        {
+            request.withStartRecordName( names.iterator().next() ).withStartRecordType( RRType.A ).withMaxItems( "1" );
+        }
+        ListResourceRecordSetsResult result;
+        do
+        {
+            final ListResourceRecordSetsRequest page = request;
+            result =
+                limiter.call( "listResourceRecordSets", new ApiCall<ListResourceRecordSetsResult, RuntimeException>()
+                {
+                    public ListResourceRecordSetsResult call()
+                    {
+                        return route53.listResourceRecordSets( page );
+                    }
+                } );
+            for ( ResourceRecordSet set : result.getResourceRecordSets() )
+            {
+                if ( names.contains( set.getName() ) && RRType.A.toString().equals( set.getType() ) )
+                {
+                    found.put( set.getName(), set );
+                }
+            }
+            request =
+                new ListResourceRecordSetsRequest( zoneId ).withStartRecordName( result.getNextRecordName() )
+                    .withStartRecordType( result.getNextRecordType() );
+        }
+        while ( names.size() > 1 && found.size() < names.size() && Boolean.TRUE.equals( result.getIsTruncated() ) );
+        return found;
+    }
+
+    private ListenableFuture<ChangeInfo> awaitInSync( final ChangeInfo submitted )
+    {
+        final SettableFuture<ChangeInfo> future = SettableFuture.create();
+        final long deadline = System.currentTimeMillis() + SYNC_TIMEOUT;
+        poller.schedule( new Runnable()
+        {
+            public void run()
+            {
+                try
+                {
+                    ChangeInfo info = route53.getChange( new GetChangeRequest( submitted.getId() ) ).getChangeInfo();
+                    if ( "INSYNC".equals( info.getStatus() ) )
+                    {
+                        logger.info( "Route 53 change {} in sync", info.getId() );
+                        future.set( info );
+                    }
+                    else if ( System.currentTimeMillis() > deadline )
+                    {
+                        logger.warn( "Route 53 change {} not in sync after {} ms", info.getId(), SYNC_TIMEOUT );
+                        future.setException( new IllegalStateException( "Route 53 change " + info.getId()
+                            + " not in sync after " + SYNC_TIMEOUT + " ms" ) );
+                    }
+                    else
+                    {
+                        poller.schedule( this, pollInterval, TimeUnit.MILLISECONDS );
+                    }
+                }
+                catch ( RuntimeException e )
+                {
+                    // keep polling when throttled instead of holding the poller thread in a retry
+                    if ( ApiLimiter.isThrottle( e ) && System.currentTimeMillis() < deadline )
+                    {
+                        limiter.throttled();
+                        poller.schedule( this, pollInterval, TimeUnit.MILLISECONDS );
+                    }
+                    else
+                    {
+                        logger.warn( "Error checking Route 53 change " + submitted.getId(), e );
+                        future.setException( e );
+                    }
+                }
+            }
+        }, pollInterval, TimeUnit.MILLISECONDS );
+        return future;
+    }
+
+    private static String fqdn( String name )
+    {
+        return name.endsWith( "." ) ? name : name + ".";
+    }
+}
@@ -0,0 +1,86 @@
+package com.maestrodev.lucee.plugins.cloud.metrics;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Lookups in the node inventory of a provider: how many were answered from the inventory, how old the answers were,
+ * and how many describe calls were made to the provider
+ */
+public class InventoryStats
+    implements InventoryStatsMBean
+{
+
+    private final LatencyHistogram staleness = new LatencyHistogram();
+
+    private final AtomicLong misses = new AtomicLong();
+
+    private final AtomicLong polls = new AtomicLong();
+
+    private final AtomicLong nodes = new AtomicLong();
+
+    /**
+     * @param age milliseconds since the node was last seen in the provider
+     */
+    public void hit( long age )
+    {
+        staleness.record( TimeUnit.MILLISECONDS.toNanos( age ) );
+    }
+
+    public void miss()
+    {
+        misses.incrementAndGet();
+    }
+
+    public void polled( int count )
+    {
+        polls.addAndGet( count );
+    }
+
+    public void nodes( int delta )
+    {
+        nodes.addAndGet( delta );
+    }
+
+    public long getHits()
+    {
+        return staleness.getCount();
+    }
+
+    public long getMisses()
+    {
+        return misses.get();
+    }
+
+    public double getHitRate()
+    {
+        long hits = getHits();
+        long total = hits + misses.get();
+        return total == 0 ? 0 : hits / (double) total;
+    }
+
+    public long getPolls()
+    {
+        return polls.get();
+    }
+
+    public long getNodes()
+    {
+        return nodes.get();
+    }
+
+    public double getMeanStalenessMillis()
+    {
+        return staleness.getMeanMillis();
+    }
+
+    public double getP90StalenessMillis()
+    {
+        return staleness.getPercentileMillis( 90 );
+    }
+
+    public double getMaxStalenessMillis()
+    {
+        return staleness.getMaxMillis();
+    }
+}
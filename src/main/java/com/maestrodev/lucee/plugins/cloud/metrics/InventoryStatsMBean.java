@@ -0,0 +1,23 @@
+package com.maestrodev.lucee.plugins.cloud.metrics;
+
+/**
+ * JMX view of the node inventory of a provider
+ */
+public interface InventoryStatsMBean
+{
+    long getHits();
+
+    long getMisses();
+
+    double getHitRate();
+
+    long getPolls();
+
+    long getNodes();
+
+    double getMeanStalenessMillis();
+
+    double getP90StalenessMillis();
+
+    double getMaxStalenessMillis();
+}
@@ -0,0 +1,91 @@
+package com.maestrodev.lucee.plugins.cloud.metrics;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Lock free histogram of durations with exponential buckets, each bucket 10% wider than the previous one, from 1
+ * millisecond to several hours. Percentiles are accurate to the bucket width.
+ */
+public class LatencyHistogram
+{
+
+    private static final double GROWTH = 1.1;
+
+    private static final double[] BOUNDS;
+
+    static
+    {
+        // upper bound of each bucket in milliseconds, up to ~5 hours
+        int buckets = (int) Math.ceil( Math.log( 5 * 3600 * 1000d ) / Math.log( GROWTH ) ) + 1;
+        BOUNDS = new double[buckets];
+        double bound = 1;
+        for ( int i = 0; i < buckets; i++ )
+        {
+            BOUNDS[i] = bound;
+            bound *= GROWTH;
+        }
+    }
+
+    private final AtomicLongArray counts = new AtomicLongArray( BOUNDS.length + 1 );
+
+    private final AtomicLong count = new AtomicLong();
+
+    private final AtomicLong totalNanos = new AtomicLong();
+
+    private final AtomicLong maxNanos = new AtomicLong();
+
+    public void record( long nanos )
+    {
+        double millis = nanos / 1000000d;
+        int bucket = millis <= 1 ? 0 : (int) Math.ceil( Math.log( millis ) / Math.log( GROWTH ) );
+        counts.incrementAndGet( Math.min( bucket, BOUNDS.length ) );
+        count.incrementAndGet();
+        totalNanos.addAndGet( nanos );
+        long max;
+        while ( nanos > ( max = maxNanos.get() ) && !maxNanos.compareAndSet( max, nanos ) )
+        {
+            // retry
+        }
+    }
+
+    public long getCount()
+    {
+        return count.get();
+    }
+
+    public double getMeanMillis()
+    {
+        long n = count.get();
+        return n == 0 ? 0 : totalNanos.get() / (double) n / 1000000;
+    }
+
+    public double getMaxMillis()
+    {
+        return maxNanos.get() / 1000000d;
+    }
+
+    /**
+     * @param percentile between 0 and 100
+     * @return upper bound in milliseconds of the bucket containing the percentile
+     */
+    public double getPercentileMillis( double percentile )
+    {
+        long n = count.get();
+        if ( n == 0 )
+        {
+            return 0;
+        }
+        long rank = (long) Math.ceil( n * percentile / 100 );
+        long seen = 0;
+        for ( int i = 0; i < BOUNDS.length; i++ )
+        {
+            seen += counts.get( i );
+            if ( seen >= rank )
+            {
+                return Math.min( BOUNDS[i], getMaxMillis() );
+            }
+        }
+        return getMaxMillis();
+    }
+}
@@ -0,0 +1,144 @@
+package com.maestrodev.lucee.plugins.cloud.metrics;
+
+import java.lang.management.ManagementFactory;
+import java.util.Map;
+import java.util.concurrent.ConcurrentMap;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.collect.Maps;
+
+/**
+ * Registry of {@link PhaseTimings}, each one published over JMX as
+ * <code>com.maestrodev.lucee.plugins.cloud:type=PhaseTimings,provider=...,region=...,phase=...</code>, and of
+ * {@link PlacementStats} as <code>com.maestrodev.lucee.plugins.cloud:type=PlacementStats,provider=...,zone=...,
+ * flavor=...</code> and {@link InventoryStats} as <code>com.maestrodev.lucee.plugins.cloud:type=InventoryStats,
+ * provider=...</code>
+ */
+public class PhaseMetrics
+{
+
+    public static final String DOMAIN = "com.maestrodev.lucee.plugins.cloud";
+
+    private static final PhaseMetrics instance = new PhaseMetrics( ManagementFactory.getPlatformMBeanServer() );
+
+    private final Logger logger = LoggerFactory.getLogger( this.getClass() );
+
+    private final ConcurrentMap<String, PhaseTimings> timings = Maps.newConcurrentMap();
+
+    private final ConcurrentMap<String, PlacementStats> placements = Maps.newConcurrentMap();
+
+    private final ConcurrentMap<String, InventoryStats> inventories = Maps.newConcurrentMap();
+
+    private final MBeanServer server;
+
+    public static PhaseMetrics getInstance()
+    {
+        return instance;
+    }
+
+    /**
+     * @param server where to register the timings, null to not publish them
+     */
+    public PhaseMetrics( MBeanServer server )
+    {
+        this.server = server;
+    }
+
+    public void record( String provider, String region, String phase, long nanos, boolean error )
+    {
+        get( provider, region, phase ).record( nanos, error );
+    }
+
+    /**
+     * Record all the phases of a task, an error is only counted in the total
+     */
+    public void recordAll( String provider, String region, Map<String, Long> phaseNanos, boolean error )
+    {
+        for ( Map.Entry<String, Long> entry : phaseNanos.entrySet() )
+        {
+            record( provider, region, entry.getKey(), entry.getValue(), error && "total".equals( entry.getKey() ) );
+        }
+    }
+
+    public PhaseTimings get( String provider, String region, String phase )
+    {
+        String name =
+            String.format( "%s:type=PhaseTimings,provider=%s,region=%s,phase=%s", DOMAIN, quote( provider ),
+                           quote( region ), quote( phase ) );
+        PhaseTimings phaseTimings = timings.get( name );
+        if ( phaseTimings == null )
+        {
+            PhaseTimings created = new PhaseTimings();
+            phaseTimings = timings.putIfAbsent( name, created );
+            if ( phaseTimings == null )
+            {
+                phaseTimings = created;
+                register( name, created );
+            }
+        }
+        return phaseTimings;
+    }
+
+    public PlacementStats getPlacement( String provider, String zone, String flavor )
+    {
+        String name =
+            String.format( "%s:type=PlacementStats,provider=%s,zone=%s,flavor=%s", DOMAIN, quote( provider ),
+                           quote( zone ), quote( flavor ) );
+        PlacementStats stats = placements.get( name );
+        if ( stats == null )
+        {
+            PlacementStats created = new PlacementStats();
+            stats = placements.putIfAbsent( name, created );
+            if ( stats == null )
+            {
+                stats = created;
+                register( name, created );
+            }
+        }
+        return stats;
+    }
+
+    public InventoryStats getInventory( String provider )
+    {
+        String name = String.format( "%s:type=InventoryStats,provider=%s", DOMAIN, quote( provider ) );
+        InventoryStats stats = inventories.get( name );
+        if ( stats == null )
+        {
+            InventoryStats created = new InventoryStats();
+            stats = inventories.putIfAbsent( name, created );
+            if ( stats == null )
+            {
+                stats = created;
+                register( name, created );
+            }
+        }
+        return stats;
+    }
+
+    private void register( String name, Object mbean )
+    {
+        if ( server == null )
+        {
+            return;
+        }
+        try
+        {
+            server.registerMBean( mbean, new ObjectName( name ) );
+        }
+        catch ( JMException e )
+        {
+            logger.warn( "Unable to register " + name + " in JMX", e );
+        }
+    }
+
+    private static String quote( String value )
+    {
+        return ObjectName.quote( value == null || value.length() == 0 ? "none" : value );
+    }
+}
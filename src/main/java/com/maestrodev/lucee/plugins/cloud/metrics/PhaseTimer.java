@@ -0,0 +1,65 @@
+package com.maestrodev.lucee.plugins.cloud.metrics;
+
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import com.google.common.collect.Maps;
+
+/**
+ * Times the consecutive phases of a task. Time spent in a phase that is entered several times is added up.
+ */
+public class PhaseTimer
+{
+
+    private final Map<String, Long> nanos = Maps.newLinkedHashMap();
+
+    private final long created = System.nanoTime();
+
+    private String current;
+
+    private long started;
+
+    /**
+     * Start timing a phase, stopping the current one if any
+     */
+    public synchronized void start( String phase )
+    {
+        stop();
+        current = phase;
+        started = System.nanoTime();
+    }
+
+    public synchronized void stop()
+    {
+        if ( current != null )
+        {
+            Long previous = nanos.get( current );
+            long elapsed = System.nanoTime() - started;
+            nanos.put( current, previous == null ? elapsed : previous + elapsed );
+            current = null;
+        }
+    }
+
+    /**
+     * @return nanoseconds per phase, including the total time since this timer was created
+     */
+    public synchronized Map<String, Long> getNanos()
+    {
+        Map<String, Long> result = Maps.newLinkedHashMap( nanos );
+        result.put( "total", System.nanoTime() - created );
+        return result;
+    }
+
+    /**
+     * @return milliseconds per phase, including the total
+     */
+    public Map<String, Long> getMillis()
+    {
+        Map<String, Long> millis = Maps.newLinkedHashMap();
+        for ( Map.Entry<String, Long> entry : getNanos().entrySet() )
+        {
+            millis.put( entry.getKey(), TimeUnit.NANOSECONDS.toMillis( entry.getValue() ) );
+        }
+        return millis;
+    }
+}
@@ -0,0 +1,59 @@
+package com.maestrodev.lucee.plugins.cloud.metrics;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Durations of one phase of a task, for a provider and region
+ */
+public class PhaseTimings
+    implements PhaseTimingsMBean
+{
+
+    private final LatencyHistogram histogram = new LatencyHistogram();
+
+    private final AtomicLong errors = new AtomicLong();
+
+    public void record( long nanos, boolean error )
+    {
+        histogram.record( nanos );
+        if ( error )
+        {
+            errors.incrementAndGet();
+        }
+    }
+
+    public long getCount()
+    {
+        return histogram.getCount();
+    }
+
+    public long getErrors()
+    {
+        return errors.get();
+    }
+
+    public double getMeanMillis()
+    {
+        return histogram.getMeanMillis();
+    }
+
+    public double getP50Millis()
+    {
+        return histogram.getPercentileMillis( 50 );
+    }
+
+    public double getP90Millis()
+    {
+        return histogram.getPercentileMillis( 90 );
+    }
+
+    public double getP99Millis()
+    {
+        return histogram.getPercentileMillis( 99 );
+    }
+
+    public double getMaxMillis()
+    {
+        return histogram.getMaxMillis();
+    }
+}
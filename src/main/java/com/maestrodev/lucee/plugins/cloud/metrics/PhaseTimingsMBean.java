@@ -0,0 +1,21 @@
+package com.maestrodev.lucee.plugins.cloud.metrics;
+
+/**
+ * JMX view of the durations of one phase of a task, for a provider and region
+ */
+public interface PhaseTimingsMBean
+{
+    long getCount();
+
+    long getErrors();
+
+    double getMeanMillis();
+
+    double getP50Millis();
+
+    double getP90Millis();
+
+    double getP99Millis();
+
+    double getMaxMillis();
+}
@@ -0,0 +1,80 @@
+package com.maestrodev.lucee.plugins.cloud.metrics;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Launches in one flavor and availability zone: how often it was used as a fallback, ran out of capacity or won a
+ * hedged launch
+ */
+public class PlacementStats
+    implements PlacementStatsMBean
+{
+
+    private final LatencyHistogram histogram = new LatencyHistogram();
+
+    private final AtomicLong fallbackLaunches = new AtomicLong();
+
+    private final AtomicLong capacityErrors = new AtomicLong();
+
+    private final AtomicLong hedgesWon = new AtomicLong();
+
+    private final AtomicLong hedgesLost = new AtomicLong();
+
+    /**
+     * @param fallback whether it was not the first choice of the task
+     */
+    public void launched( long millis, boolean fallback )
+    {
+        histogram.record( TimeUnit.MILLISECONDS.toNanos( millis ) );
+        if ( fallback )
+        {
+            fallbackLaunches.incrementAndGet();
+        }
+    }
+
+    public void capacityError()
+    {
+        capacityErrors.incrementAndGet();
+    }
+
+    public void hedge( boolean won )
+    {
+        ( won ? hedgesWon : hedgesLost ).incrementAndGet();
+    }
+
+    public long getLaunches()
+    {
+        return histogram.getCount();
+    }
+
+    public long getFallbackLaunches()
+    {
+        return fallbackLaunches.get();
+    }
+
+    public long getCapacityErrors()
+    {
+        return capacityErrors.get();
+    }
+
+    public long getHedgesWon()
+    {
+        return hedgesWon.get();
+    }
+
+    public long getHedgesLost()
+    {
+        return hedgesLost.get();
+    }
+
+    public double getMeanLaunchMillis()
+    {
+        return histogram.getMeanMillis();
+    }
+
+    public double getP90LaunchMillis()
+    {
+        return histogram.getPercentileMillis( 90 );
+    }
+}
@@ -0,0 +1,21 @@
+package com.maestrodev.lucee.plugins.cloud.metrics;
+
+/**
+ * JMX view of the launches in one flavor and availability zone, for a provider
+ */
+public interface PlacementStatsMBean
+{
+    long getLaunches();
+
+    long getFallbackLaunches();
+
+    long getCapacityErrors();
+
+    long getHedgesWon();
+
+    long getHedgesLost();
+
+    double getMeanLaunchMillis();
+
+    double getP90LaunchMillis();
+}
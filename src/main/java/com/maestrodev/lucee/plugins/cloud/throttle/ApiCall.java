@@ -0,0 +1,13 @@
+package com.maestrodev.lucee.plugins.cloud.throttle;
+
+/**
+ * A call to a provider API, made through an {@link ApiLimiter}
+ *
+ * @param <T> the result of the call
+ * @param <E> the checked exception the call can throw, {@link RuntimeException} if none
+ */
+public interface ApiCall<T, E extends Exception>
+{
+    T call()
+        throws E;
+}
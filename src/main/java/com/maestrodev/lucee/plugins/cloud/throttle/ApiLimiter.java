@@ -0,0 +1,257 @@
+package com.maestrodev.lucee.plugins.cloud.throttle;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.jclouds.aws.AWSResponseException;
+import org.jclouds.compute.RunNodesException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.amazonaws.AmazonServiceException;
+import com.google.common.collect.ImmutableSet;
+
+/**
+ * Token bucket in front of the calls to a provider API, with a rate that adapts to the provider: halved each time a
+ * call is throttled and increased a bit with each call that goes through. Throttled calls are retried with
+ * decorrelated jitter, so callers that were throttled at the same time do not retry at the same time.
+ */
+public class ApiLimiter
+    implements ApiLimiterMBean
+{
+
+    /** error codes returned by the AWS APIs when throttling */
+    private static final ImmutableSet<String> THROTTLE_CODES =
+        ImmutableSet.of( "RequestLimitExceeded", "Throttling", "ThrottlingException", "PriorRequestNotComplete" );
+
+    private final Logger logger = LoggerFactory.getLogger( this.getClass() );
+
+    private final Random random = new Random();
+
+    private final double maxRate;
+
+    private final double minRate;
+
+    private final double burst;
+
+    private final int maxAttempts;
+
+    private final long baseDelay;
+
+    private final long maxDelay;
+
+    private double rate;
+
+    private double tokens;
+
+    private long refilled = System.nanoTime();
+
+    private final AtomicLong calls = new AtomicLong();
+
+    private final AtomicLong throttles = new AtomicLong();
+
+    private final AtomicLong retries = new AtomicLong();
+
+    private final AtomicLong waitNanos = new AtomicLong();
+
+    /**
+     * @param maxRate calls per second allowed when the provider is not throttling
+     * @param burst calls allowed at once after being idle
+     * @param maxAttempts times a throttled call is tried before giving up
+     * @param baseDelay milliseconds to wait before the first retry
+     * @param maxDelay maximum milliseconds to wait before a retry
+     */
+    public ApiLimiter( double maxRate, double burst, int maxAttempts, long baseDelay, long maxDelay )
+    {
+        if ( maxRate <= 0 || burst < 1 || maxAttempts < 1 )
+        {
+            throw new IllegalArgumentException( String.format( "Invalid limits: rate %s, burst %s, attempts %d",
+                                                               maxRate, burst, maxAttempts ) );
+        }
+        this.maxRate = maxRate;
+        this.minRate = maxRate / 20;
+        this.burst = burst;
+        this.maxAttempts = maxAttempts;
+        this.baseDelay = baseDelay;
+        this.maxDelay = maxDelay;
+        this.rate = maxRate;
+        this.tokens = burst;
+    }
+
+    /**
+     * Make the call when a token is available, retrying it while the provider throttles it
+     *
+     * @param operation name of the call, for logging
+     */
+    public <T, E extends Exception> T call( String operation, ApiCall<T, E> call )
+        throws E
+    {
+        long delay = baseDelay;
+        for ( int attempt = 1;; attempt++ )
+        {
+            acquire();
+            calls.incrementAndGet();
+            try
+            {
+                T result = call.call();
+                succeeded();
+                return result;
+            }
+            catch ( Exception e )
+            {
+                if ( !isThrottle( e ) )
+                {
+                    throw ApiLimiter.<E> rethrow( e );
+                }
+                throttled();
+                if ( attempt >= maxAttempts )
+                {
+                    logger.warn( "{} still throttled after {} attempts", operation, attempt );
+                    throw ApiLimiter.<E> rethrow( e );
+                }
+                delay = nextDelay( random, baseDelay, maxDelay, delay );
+                logger.info( "{} throttled, retrying in {} ms (attempt {} of {})",
+                             new Object[] { operation, delay, attempt + 1, maxAttempts } );
+                retries.incrementAndGet();
+                sleep( TimeUnit.MILLISECONDS.toNanos( delay ) );
+            }
+        }
+    }
+
+    /**
+     * Wait until a token is available. Tokens are reserved before waiting, so concurrent callers queue up instead of
+     * waking up at the same time.
+     */
+    void acquire()
+    {
+        long wait;
+        synchronized ( this )
+        {
+            long now = System.nanoTime();
+            tokens = Math.min( burst, tokens + ( now - refilled ) / 1e9 * rate );
+            refilled = now;
+            tokens -= 1;
+            wait = tokens >= 0 ? 0 : (long) ( -tokens / rate * 1e9 );
+        }
+        if ( wait > 0 )
+        {
+            waitNanos.addAndGet( wait );
+            sleep( wait );
+        }
+    }
+
+    synchronized void succeeded()
+    {
+        rate = Math.min( maxRate, rate + maxRate / 20 );
+    }
+
+    /**
+     * Slow down after a call made outside of {@link #call(String, ApiCall)} was throttled
+     */
+    public synchronized void throttled()
+    {
+        throttles.incrementAndGet();
+        rate = Math.max( minRate, rate / 2 );
+        tokens = Math.min( tokens, 0 );
+    }
+
+    /**
+     * Decorrelated jitter, a random delay between the base and three times the previous one, capped
+     */
+    static long nextDelay( Random random, long base, long cap, long previous )
+    {
+        long upper = Math.max( base + 1, previous * 3 );
+        return Math.min( cap, base + (long) ( random.nextDouble() * ( upper - base ) ) );
+    }
+
+    /**
+     * Whether the error, or any of its causes, is the provider throttling the calls. Node creation is only considered
+     * throttled when no node was started at all, otherwise retrying it would create the started nodes again.
+     */
+    public static boolean isThrottle( Throwable error )
+    {
+        for ( Throwable t = error; t != null; t = t.getCause() )
+        {
+            if ( t instanceof RunNodesException )
+            {
+                RunNodesException e = (RunNodesException) t;
+                if ( !e.getSuccessfulNodes().isEmpty() || !e.getNodeErrors().isEmpty()
+                    || e.getExecutionErrors().isEmpty() )
+                {
+                    return false;
+                }
+                for ( Throwable cause : e.getExecutionErrors().values() )
+                {
+                    if ( !isThrottle( cause ) )
+                    {
+                        return false;
+                    }
+                }
+                return true;
+            }
+            if ( t instanceof AWSResponseException && ( (AWSResponseException) t ).getError() != null
+                && THROTTLE_CODES.contains( ( (AWSResponseException) t ).getError().getCode() ) )
+            {
+                return true;
+            }
+            if ( t instanceof AmazonServiceException
+                && THROTTLE_CODES.contains( ( (AmazonServiceException) t ).getErrorCode() ) )
+            {
+                return true;
+            }
+            if ( t.getMessage() != null && t.getMessage().contains( "RequestLimitExceeded" ) )
+            {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static void sleep( long nanos )
+    {
+        try
+        {
+            TimeUnit.NANOSECONDS.sleep( nanos );
+        }
+        catch ( InterruptedException e )
+        {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException( "Interrupted waiting to call the provider", e );
+        }
+    }
+
+    /**
+     * Only checked exceptions of type E can come out of the call, so the cast is safe
+     */
+    @SuppressWarnings( "unchecked" )
+    private static <E extends Exception> E rethrow( Exception e )
+    {
+        return (E) e;
+    }
+
+    public synchronized double getRate()
+    {
+        return rate;
+    }
+
+    public long getCalls()
+    {
+        return calls.get();
+    }
+
+    public long getThrottles()
+    {
+        return throttles.get();
+    }
+
+    public long getRetries()
+    {
+        return retries.get();
+    }
+
+    public long getWaitMillis()
+    {
+        return TimeUnit.NANOSECONDS.toMillis( waitNanos.get() );
+    }
+}
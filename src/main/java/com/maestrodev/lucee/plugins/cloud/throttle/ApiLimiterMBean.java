@@ -0,0 +1,17 @@
+package com.maestrodev.lucee.plugins.cloud.throttle;
+
+/**
+ * JMX view of the calls made to a provider API, for a provider, region and identity
+ */
+public interface ApiLimiterMBean
+{
+    double getRate();
+
+    long getCalls();
+
+    long getThrottles();
+
+    long getRetries();
+
+    long getWaitMillis();
+}
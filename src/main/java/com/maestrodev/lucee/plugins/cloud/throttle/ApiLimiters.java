@@ -0,0 +1,111 @@
+package com.maestrodev.lucee.plugins.cloud.throttle;
+
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.ConcurrentMap;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.base.Charsets;
+import com.google.common.collect.Maps;
+import com.google.common.hash.Hashing;
+import com.maestrodev.lucee.plugins.cloud.metrics.PhaseMetrics;
+
+/**
+ * Registry of the {@link ApiLimiter}s shared by all the workers in the JVM, one per provider, region and identity as
+ * that is how the providers apply their limits. Each one is published over JMX as
+ * <code>com.maestrodev.lucee.plugins.cloud:type=ApiLimiter,provider=...,region=...,identity=...</code>, with a hash
+ * of the identity.
+ */
+public class ApiLimiters
+{
+
+    /** calls per second to each provider, region and identity */
+    public static final String PROPERTY_RATE = "maestro.cloud.api.rate";
+
+    /** calls allowed at once after being idle */
+    public static final String PROPERTY_BURST = "maestro.cloud.api.burst";
+
+    /** times a throttled call is tried */
+    public static final String PROPERTY_ATTEMPTS = "maestro.cloud.api.attempts";
+
+    private static final ApiLimiters instance = new ApiLimiters( ManagementFactory.getPlatformMBeanServer() );
+
+    private final Logger logger = LoggerFactory.getLogger( this.getClass() );
+
+    private final ConcurrentMap<String, ApiLimiter> limiters = Maps.newConcurrentMap();
+
+    private final MBeanServer server;
+
+    public static ApiLimiters getInstance()
+    {
+        return instance;
+    }
+
+    /**
+     * @param server where to register the limiters, null to not publish them
+     */
+    public ApiLimiters( MBeanServer server )
+    {
+        this.server = server;
+    }
+
+    /**
+     * @param region null for global APIs or when the region is not known
+     */
+    public ApiLimiter get( String provider, String region, String identity )
+    {
+        String name =
+            String.format( "%s:type=ApiLimiter,provider=%s,region=%s,identity=%s", PhaseMetrics.DOMAIN,
+                           quote( provider ), quote( region ), quote( hash( identity ) ) );
+        ApiLimiter limiter = limiters.get( name );
+        if ( limiter == null )
+        {
+            ApiLimiter created =
+                new ApiLimiter( Double.parseDouble( System.getProperty( PROPERTY_RATE, "10" ) ),
+                                Double.parseDouble( System.getProperty( PROPERTY_BURST, "20" ) ),
+                                Integer.getInteger( PROPERTY_ATTEMPTS, 6 ), 500, 30000 );
+            limiter = limiters.putIfAbsent( name, created );
+            if ( limiter == null )
+            {
+                limiter = created;
+                register( name, created );
+            }
+        }
+        return limiter;
+    }
+
+    private void register( String name, ApiLimiter limiter )
+    {
+        if ( server == null )
+        {
+            return;
+        }
+        try
+        {
+            server.registerMBean( limiter, new ObjectName( name ) );
+        }
+        catch ( JMException e )
+        {
+            logger.warn( "Unable to register " + name + " in JMX", e );
+        }
+    }
+
+    private static String hash( String identity )
+    {
+        if ( identity == null )
+        {
+            return null;
+        }
+        return Hashing.sha1().hashBytes( identity.getBytes( Charsets.UTF_8 ) ).toString().substring( 0, 12 );
+    }
+
+    private static String quote( String value )
+    {
+        return ObjectName.quote( value == null || value.length() == 0 ? "none" : value );
+    }
+}
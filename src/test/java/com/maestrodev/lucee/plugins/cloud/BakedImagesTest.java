@@ -0,0 +1,74 @@
+package com.maestrodev.lucee.plugins.cloud;
+
+import static org.junit.Assert.*;
+import static org.mockito.Mockito.*;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.Collections;
+
+import org.jclouds.compute.ComputeService;
+import org.jclouds.compute.domain.Image;
+import org.junit.Test;
+
+/**
+ * Tests for {@link BakedImages}
+ */
+public class BakedImagesTest
+{
+
+    @Test
+    public void testKey()
+    {
+        String scope = BakedImages.scope( "aws-ec2", "us-east-1", "id" );
+        String key = BakedImages.key( scope, "us-east-1/ami-1", "yum install java", Arrays.asList( "a", "b" ) );
+        assertEquals( key, BakedImages.key( scope, "us-east-1/ami-1", "yum install java", Arrays.asList( "a", "b" ) ) );
+        assertFalse( key.equals( BakedImages.key( scope, "us-east-1/ami-1", "yum install java",
+                                                  Arrays.asList( "a", "c" ) ) ) );
+        assertFalse( key.equals( BakedImages.key( BakedImages.scope( "aws-ec2", "us-west-1", "id" ),
+                                                  "us-east-1/ami-1", "yum install java", Arrays.asList( "a", "b" ) ) ) );
+    }
+
+    @Test
+    public void testEviction()
+        throws Exception
+    {
+        File file = new File( "target/baked-test/" + System.nanoTime() + ".properties" );
+        BakedImages images = new BakedImages( file.getPath(), 2 );
+        assertTrue( images.put( "east", "k1", "ami-1" ).isEmpty() );
+        Thread.sleep( 5 );
+        assertTrue( images.put( "east", "k2", "ami-2" ).isEmpty() );
+        Thread.sleep( 5 );
+        assertTrue( images.put( "west", "k3", "ami-3" ).isEmpty() );
+        Thread.sleep( 5 );
+
+        // k1 is used, so k2 is the least recently used one
+        assertEquals( "ami-1", images.get( "k1" ) );
+        Thread.sleep( 5 );
+        assertEquals( Collections.singletonList( "ami-2" ), images.put( "east", "k4", "ami-4" ) );
+
+        // reloaded from the file
+        images = new BakedImages( file.getPath(), 2 );
+        assertNull( images.get( "k2" ) );
+        assertEquals( "ami-3", images.get( "k3" ) );
+        assertEquals( "ami-4", images.get( "k4" ) );
+        images.remove( "k4" );
+        assertNull( new BakedImages( file.getPath(), 2 ).get( "k4" ) );
+    }
+
+    @Test
+    public void testFindForgetsDeletedImage()
+    {
+        File file = new File( "target/baked-test/" + System.nanoTime() + ".properties" );
+        BakedImages images = new BakedImages( file.getPath(), 2 );
+        images.put( "east", "k1", "ami-1" );
+        images.put( "east", "k2", "ami-2" );
+        ComputeService compute = mock( ComputeService.class );
+        when( compute.getImage( "ami-1" ) ).thenReturn( mock( Image.class ) );
+
+        assertEquals( "ami-1", images.find( compute, "k1" ) );
+        assertNull( images.find( compute, "k2" ) );
+        assertNull( images.get( "k2" ) );
+        assertNull( images.find( compute, "k3" ) );
+    }
+}
@@ -6,6 +6,7 @@ import static org.junit.Assert.*;
 import java.io.IOException;
 import java.io.InputStream;
 import java.lang.reflect.Method;
+import java.util.Collections;
 import java.util.List;
 import java.util.Set;
 
@@ -123,6 +124,153 @@ public class CloudWorkerTest
         assertEquals( 0, nodes.size() );
     }
 
+    /**
+     * Test for CloudWorker asynchronous Provision and Await with stub provider
+     */
+    @Test
+    @SuppressWarnings( "unchecked" )
+    public void testStubAsync()
+        throws Exception
+    {
+        CloudWorker cloudWorker = new CloudWorker();
+        JSONObject json = loadJson( "stub-provision" );
+        // its own stub account, so testStub only sees its own nodes whatever the test order
+        ( (JSONObject) json.get( "fields" ) ).put( "key_id", "async" );
+        ( (JSONObject) json.get( "fields" ) ).put( "async", true );
+        cloudWorker.setWorkitem( json );
+
+        cloudWorker.provision();
+        assertNull( cloudWorker.getError(), cloudWorker.getError() );
+        String body = cloudWorker.getField( "body" );
+        assertTrue( body, body.matches( "Started 1 of 1 machines at .*" ) );
+        List<String> machines = cloudWorker.getArrayField( String.class, "machines" );
+        assertEquals( 1, machines.size() );
+
+        cloudWorker.await();
+        assertNull( cloudWorker.getError(), cloudWorker.getError() );
+        assertEquals( machines, cloudWorker.getArrayField( String.class, "ready" ) );
+
+        cloudWorker.deprovision();
+        assertNull( cloudWorker.getError(), cloudWorker.getError() );
+
+        // already awaited
+        JSONArray awaited = new JSONArray();
+        awaited.addAll( machines );
+        ( (JSONObject) json.get( "fields" ) ).put( "machines", awaited );
+        CloudWorker awaitAgain = new CloudWorker();
+        awaitAgain.setWorkitem( json );
+        awaitAgain.await();
+        assertNotNull( awaitAgain.getError() );
+    }
+
+    /**
+     * Test for CloudWorker Provision of several machines in one task with stub provider
+     */
+    @Test
+    @SuppressWarnings( "unchecked" )
+    public void testStubCount()
+        throws Exception
+    {
+        CloudWorker cloudWorker = new CloudWorker();
+        JSONObject json = loadJson( "stub-provision" );
+        // its own stub account, so the nodes of the other tests are not seen
+        ( (JSONObject) json.get( "fields" ) ).put( "key_id", "count" );
+        ( (JSONObject) json.get( "fields" ) ).put( "count", 3 );
+        cloudWorker.setWorkitem( json );
+
+        cloudWorker.provision();
+
+        assertNull( cloudWorker.getError(), cloudWorker.getError() );
+        String body = cloudWorker.getField( "body" );
+        assertTrue( body, body.matches( "Provisioned 3 of 3 machines at .*" ) );
+        List<String> machines = cloudWorker.getArrayField( String.class, "machines" );
+        assertEquals( 3, machines.size() );
+        assertEquals( 3, cloudWorker.getArrayField( String.class, "ips" ).size() );
+        List<String> instanceIds = cloudWorker.getArrayField( String.class, "instance_ids" );
+        assertEquals( 3, instanceIds.size() );
+        assertEquals( instanceIds.get( 0 ), cloudWorker.getField( "instance_id" ) );
+        assertEquals( Collections.emptyList(), cloudWorker.getArrayField( String.class, "failures" ) );
+
+        cloudWorker.deprovision();
+        assertNull( cloudWorker.getError(), cloudWorker.getError() );
+    }
+
+    @Test
+    @SuppressWarnings( "unchecked" )
+    public void testProvisionInvalidCount()
+        throws Exception
+    {
+        CloudWorker cloudWorker = new CloudWorker();
+        JSONObject json = loadJson( "stub-provision" );
+        ( (JSONObject) json.get( "fields" ) ).put( "count", "three" );
+        cloudWorker.setWorkitem( json );
+
+        cloudWorker.provision();
+
+        assertEquals( "Invalid count three, a number is expected", cloudWorker.getError() );
+        assertNull( cloudWorker.getFields().get( "machines" ) );
+    }
+
+    @Test
+    @SuppressWarnings( "unchecked" )
+    public void testProvisionInvalidSshPolicy()
+        throws Exception
+    {
+        CloudWorker cloudWorker = new CloudWorker();
+        JSONObject json = loadJson( "stub-provision" );
+        ( (JSONObject) json.get( "fields" ) ).put( "ssh_policy", "sometimes" );
+        cloudWorker.setWorkitem( json );
+
+        cloudWorker.provision();
+
+        assertEquals( "Invalid ssh_policy sometimes, either best_effort or fail_fast", cloudWorker.getError() );
+        assertNull( cloudWorker.getFields().get( "machines" ) );
+    }
+
+    @Test
+    public void testDeprovisionNoMachines()
+        throws Exception
+    {
+        CloudWorker cloudWorker = new CloudWorker();
+        cloudWorker.setWorkitem( loadJson( "stub-provision" ) );
+
+        cloudWorker.deprovision();
+
+        assertEquals( "No machines given", cloudWorker.getError() );
+    }
+
+    @Test
+    @SuppressWarnings( "unchecked" )
+    public void testReapInvalidTtl()
+        throws Exception
+    {
+        CloudWorker cloudWorker = new CloudWorker();
+        JSONObject json = loadJson( "stub-provision" );
+        ( (JSONObject) json.get( "fields" ) ).put( "ttl", "a day" );
+        cloudWorker.setWorkitem( json );
+
+        cloudWorker.reap();
+
+        assertEquals( "Invalid ttl a day, a number is expected", cloudWorker.getError() );
+    }
+
+    @Test
+    @SuppressWarnings( "unchecked" )
+    public void testUploadNoMachines()
+        throws Exception
+    {
+        CloudWorker cloudWorker = new CloudWorker();
+        JSONObject json = loadJson( "stub-provision" );
+        JSONArray files = new JSONArray();
+        files.add( "pom.xml" );
+        ( (JSONObject) json.get( "fields" ) ).put( "files", files );
+        cloudWorker.setWorkitem( json );
+
+        cloudWorker.upload();
+
+        assertEquals( "No machines given", cloudWorker.getError() );
+    }
+
     @Test
     @SuppressWarnings( "unchecked" )
     public void testProvisionWrongProvider()
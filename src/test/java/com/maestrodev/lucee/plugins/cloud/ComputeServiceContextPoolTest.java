@@ -0,0 +1,86 @@
+package com.maestrodev.lucee.plugins.cloud;
+
+import static org.junit.Assert.*;
+import static org.mockito.Mockito.*;
+
+import java.util.Properties;
+
+import org.jclouds.compute.ComputeServiceContext;
+import org.junit.Test;
+
+import com.google.common.base.Function;
+import com.google.common.base.Supplier;
+import com.google.common.base.Suppliers;
+
+/**
+ * Tests for {@link ComputeServiceContextPool}
+ */
+public class ComputeServiceContextPoolTest
+{
+
+    @Test
+    public void testReuseAndEviction()
+        throws Exception
+    {
+        ComputeServiceContextPool pool = new ComputeServiceContextPool( 0 );
+        final ComputeServiceContext context = mock( ComputeServiceContext.class );
+        Supplier<ComputeServiceContext> supplier = new Supplier<ComputeServiceContext>()
+        {
+            public ComputeServiceContext get()
+            {
+                return context;
+            }
+        };
+
+        ComputeServiceContextPool.Key key = new ComputeServiceContextPool.Key( "stub", "id", "secret", new Properties() );
+        ComputeServiceContextPool.Key same = new ComputeServiceContextPool.Key( "stub", "id", "secret", new Properties() );
+        assertEquals( key, same );
+
+        assertSame( context, pool.acquire( key, supplier ) );
+        assertSame( context, pool.acquire( same, supplier ) );
+        assertEquals( 1, pool.getMisses() );
+        assertEquals( 1, pool.getHits() );
+
+        // still leased, must not be closed
+        pool.release( context );
+        verify( context, never() ).close();
+        assertEquals( 1, pool.size() );
+
+        pool.release( context );
+        verify( context ).close();
+        assertEquals( 0, pool.size() );
+        assertEquals( 1, pool.getEvictions() );
+    }
+
+    @Test
+    public void testDecorator()
+    {
+        final ComputeServiceContext built = mock( ComputeServiceContext.class );
+        final ComputeServiceContext decorated = mock( ComputeServiceContext.class );
+        ComputeServiceContextPool pool =
+            new ComputeServiceContextPool( 0, new Function<ComputeServiceContext, ComputeServiceContext>()
+            {
+                public ComputeServiceContext apply( ComputeServiceContext context )
+                {
+                    assertSame( built, context );
+                    return decorated;
+                }
+            } );
+        ComputeServiceContextPool.Key key = new ComputeServiceContextPool.Key( "stub", "id", "secret", new Properties() );
+
+        assertSame( decorated, pool.acquire( key, Suppliers.ofInstance( built ) ) );
+        pool.release( decorated );
+        verify( decorated ).close();
+    }
+
+    @Test
+    public void testKeyDependsOnCredentialAndOverrides()
+    {
+        Properties overrides = new Properties();
+        overrides.setProperty( "jclouds.regions", "us-east-1" );
+        ComputeServiceContextPool.Key key = new ComputeServiceContextPool.Key( "stub", "id", "secret", new Properties() );
+
+        assertFalse( key.equals( new ComputeServiceContextPool.Key( "stub", "id", "other", new Properties() ) ) );
+        assertFalse( key.equals( new ComputeServiceContextPool.Key( "stub", "id", "secret", overrides ) ) );
+    }
+}
@@ -0,0 +1,90 @@
+package com.maestrodev.lucee.plugins.cloud;
+
+import static com.google.common.base.Charsets.*;
+import static org.junit.Assert.*;
+import static org.mockito.Matchers.*;
+import static org.mockito.Mockito.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Collections;
+
+import org.jclouds.compute.domain.ExecResponse;
+import org.jclouds.io.Payload;
+import org.jclouds.ssh.SshClient;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.google.common.hash.Hashing;
+import com.google.common.io.Files;
+
+/**
+ * Tests for {@link FileUploader}
+ */
+public class FileUploaderTest
+{
+
+    private File dir;
+
+    private SshClient ssh;
+
+    @Before
+    public void setUp()
+        throws Exception
+    {
+        dir = new File( "target/upload-test/" + System.nanoTime() + "/dist" );
+        new File( dir, "lib" ).mkdirs();
+        Files.write( "hello", new File( dir, "a.txt" ), UTF_8 );
+        Files.write( "world", new File( dir, "lib/b.txt" ), UTF_8 );
+
+        ssh = mock( SshClient.class );
+        when( ssh.exec( anyString() ) ).thenReturn( new ExecResponse( "", "", 0 ) );
+    }
+
+    @Test
+    public void testCompressAndVerify()
+        throws Exception
+    {
+        when( ssh.exec( startsWith( "md5sum" ) ) ).thenReturn( new ExecResponse( md5( "hello" )
+            + "  /opt/dist/a.txt\n" + md5( "world" ) + "  /opt/dist/lib/b.txt\n", "", 0 ) );
+
+        FileUploader uploader = new FileUploader( Collections.singleton( dir ), "/opt", true, true );
+        assertEquals( 2, uploader.getFiles() );
+        uploader.upload( ssh );
+        uploader.close();
+
+        verify( ssh ).connect();
+        verify( ssh ).exec( "mkdir -p '/opt/dist/' '/opt/dist/lib/'" );
+        verify( ssh ).put( eq( "/opt/dist/a.txt.gz" ), any( Payload.class ) );
+        verify( ssh ).put( eq( "/opt/dist/lib/b.txt.gz" ), any( Payload.class ) );
+        verify( ssh ).exec( "gunzip -f '/opt/dist/a.txt.gz' '/opt/dist/lib/b.txt.gz'" );
+        verify( ssh ).disconnect();
+    }
+
+    @Test
+    public void testChecksumMismatch()
+        throws Exception
+    {
+        when( ssh.exec( startsWith( "md5sum" ) ) ).thenReturn( new ExecResponse( md5( "hello" )
+            + "  /tmp/dist/a.txt\n" + md5( "corrupt" ) + "  /tmp/dist/lib/b.txt\n", "", 0 ) );
+
+        FileUploader uploader = new FileUploader( Collections.singleton( dir ), "/tmp/", false, true );
+        try
+        {
+            uploader.upload( ssh );
+            fail();
+        }
+        catch ( IOException e )
+        {
+            assertTrue( e.getMessage(), e.getMessage().startsWith( "Checksum mismatch for /tmp/dist/lib/b.txt" ) );
+        }
+        verify( ssh ).put( eq( "/tmp/dist/a.txt" ), any( Payload.class ) );
+        verify( ssh, never() ).exec( startsWith( "gunzip" ) );
+        verify( ssh ).disconnect();
+    }
+
+    private static String md5( String content )
+    {
+        return Hashing.md5().hashBytes( content.getBytes( UTF_8 ) ).toString();
+    }
+}
@@ -0,0 +1,178 @@
+package com.maestrodev.lucee.plugins.cloud;
+
+import static org.junit.Assert.*;
+import static org.mockito.Matchers.*;
+import static org.mockito.Mockito.*;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Map;
+
+import org.jclouds.compute.domain.NodeMetadata;
+import org.jclouds.compute.domain.NodeState;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Maps;
+import com.maestrodev.lucee.plugins.cloud.metrics.InventoryStats;
+import com.maestrodev.lucee.plugins.cloud.metrics.PhaseMetrics;
+
+/**
+ * Tests for {@link NodeInventory}
+ */
+public class NodeInventoryTest
+{
+
+    private PhaseMetrics metrics;
+
+    private TargetedNodes targeted;
+
+    private Map<String, Throwable> errors;
+
+    @Before
+    public void setUp()
+    {
+        metrics = new PhaseMetrics( null );
+        targeted = mock( TargetedNodes.class );
+        when( targeted.getProvider() ).thenReturn( "stub" );
+        when( targeted.getIdentity() ).thenReturn( "id" );
+        errors = Maps.newHashMap();
+    }
+
+    @Test
+    @SuppressWarnings( "unchecked" )
+    public void testStableNodesNotPolled()
+        throws Exception
+    {
+        NodeInventory inventory = new NodeInventory( 50, 60000, metrics );
+        NodeMetadata running = node( "us-east-1/i-1", "build-1", NodeState.RUNNING );
+        NodeMetadata pending = node( "us-east-1/i-2", "build-2", NodeState.PENDING );
+        // seen unchanged a few times, the interval grows to 400 ms
+        for ( int i = 0; i < 4; i++ )
+        {
+            inventory.put( "stub", "id", Collections.singleton( running ) );
+        }
+        inventory.put( "stub", "id", Collections.singleton( pending ) );
+        Thread.sleep( 100 );
+        when( targeted.resolve( any( Collection.class ), anyMap() ) )
+            .thenReturn( ImmutableMap.of( "us-east-1/i-2", pending ) );
+
+        Map<String, NodeMetadata> nodes =
+            inventory.resolve( targeted, Arrays.asList( "us-east-1/i-1", "us-east-1/i-2" ), errors );
+
+        assertEquals( Arrays.asList( "us-east-1/i-1", "us-east-1/i-2" ), Arrays.asList( nodes.keySet().toArray() ) );
+        // only the node that is starting is polled
+        verify( targeted ).resolve( eq( ImmutableSet.of( "us-east-1/i-2" ) ), anyMap() );
+        InventoryStats stats = metrics.getInventory( "stub" );
+        assertEquals( 1, stats.getHits() );
+        assertEquals( 1, stats.getMisses() );
+        assertEquals( 1, stats.getPolls() );
+        assertEquals( 0.5, stats.getHitRate(), 0.001 );
+    }
+
+    @Test
+    @SuppressWarnings( "unchecked" )
+    public void testNewNodesPolledAgain()
+    {
+        NodeInventory inventory = new NodeInventory( 0, 60000, metrics );
+        NodeMetadata running = node( "us-east-1/i-1", "build-1", NodeState.RUNNING );
+        // just launched or listed, its addresses may not be assigned yet
+        inventory.put( "stub", "id", Collections.singleton( running ) );
+        when( targeted.resolve( any( Collection.class ), anyMap() ) )
+            .thenReturn( ImmutableMap.of( "us-east-1/i-1", running ) );
+
+        inventory.resolve( targeted, Collections.singleton( "us-east-1/i-1" ), errors );
+
+        verify( targeted ).resolve( eq( ImmutableSet.of( "us-east-1/i-1" ) ), anyMap() );
+    }
+
+    @Test
+    @SuppressWarnings( "unchecked" )
+    public void testChangedNodesPolledAgain()
+    {
+        NodeInventory inventory = new NodeInventory( 0, 60000, metrics );
+        NodeMetadata pending = node( "us-east-1/i-1", "build-1", NodeState.PENDING );
+        NodeMetadata running = node( "us-east-1/i-1", "build-1", NodeState.RUNNING );
+        when( targeted.resolve( any( Collection.class ), anyMap() ) )
+            .thenReturn( ImmutableMap.of( "us-east-1/i-1", pending ) )
+            .thenReturn( ImmutableMap.of( "us-east-1/i-1", running ) );
+        Collection<String> ids = Collections.singleton( "us-east-1/i-1" );
+
+        assertSame( pending, inventory.resolve( targeted, ids, errors ).get( "us-east-1/i-1" ) );
+        assertSame( running, inventory.resolve( targeted, ids, errors ).get( "us-east-1/i-1" ) );
+        // it just changed, polled after the min interval
+        inventory.resolve( targeted, ids, errors );
+
+        verify( targeted, times( 3 ) ).resolve( any( Collection.class ), anyMap() );
+    }
+
+    @Test
+    @SuppressWarnings( "unchecked" )
+    public void testMissingNodesRemoved()
+    {
+        NodeInventory inventory = new NodeInventory( 0, 0, metrics );
+        inventory.put( "stub", "id", Collections.singleton( node( "us-east-1/i-1", "build-1", NodeState.RUNNING ) ) );
+        when( targeted.resolve( any( Collection.class ), anyMap() ) )
+            .thenReturn( Collections.<String, NodeMetadata> emptyMap() );
+
+        assertTrue( inventory.resolve( targeted, Collections.singleton( "us-east-1/i-1" ), errors ).isEmpty() );
+        assertEquals( 0, inventory.size() );
+        assertEquals( 0, metrics.getInventory( "stub" ).getNodes() );
+    }
+
+    @Test
+    @SuppressWarnings( "unchecked" )
+    public void testFailedPollKeepsNodes()
+    {
+        NodeInventory inventory = new NodeInventory( 0, 0, metrics );
+        NodeMetadata running = node( "us-east-1/i-1", "build-1", NodeState.RUNNING );
+        inventory.put( "stub", "id", Collections.singleton( running ) );
+        final IllegalStateException throttled = new IllegalStateException( "Request limit exceeded" );
+        Answer<Map<String, NodeMetadata>> fails = new Answer<Map<String, NodeMetadata>>()
+        {
+            public Map<String, NodeMetadata> answer( InvocationOnMock invocation )
+            {
+                ( (Map<String, Throwable>) invocation.getArguments()[1] ).put( "us-east-1/i-1", throttled );
+                return Collections.emptyMap();
+            }
+        };
+        when( targeted.resolve( any( Collection.class ), anyMap() ) ).thenAnswer( fails );
+
+        // an error, not a missing node
+        assertTrue( inventory.resolve( targeted, Collections.singleton( "us-east-1/i-1" ), errors ).isEmpty() );
+        assertEquals( Collections.singletonMap( "us-east-1/i-1", throttled ), errors );
+        assertEquals( 1, inventory.size() );
+    }
+
+    @Test
+    public void testRemove()
+    {
+        NodeInventory inventory = new NodeInventory( 0, 60000, metrics );
+        inventory.put( "stub", "id", Arrays.asList( node( "us-east-1/i-1", "build-1", NodeState.RUNNING ),
+                                                    node( "us-east-1/i-2", "build-2", NodeState.RUNNING ) ) );
+
+        inventory.remove( "stub", "id", Collections.singleton( "us-east-1/i-2" ) );
+        // another account
+        inventory.remove( "stub", "other", Collections.singleton( "us-east-1/i-1" ) );
+
+        assertEquals( 1, inventory.size() );
+        assertEquals( 1, metrics.getInventory( "stub" ).getNodes() );
+    }
+
+    private static NodeMetadata node( String id, String name, NodeState state )
+    {
+        NodeMetadata node = mock( NodeMetadata.class );
+        when( node.getId() ).thenReturn( id );
+        when( node.getGroup() ).thenReturn( "maestro" );
+        when( node.getState() ).thenReturn( state );
+        when( node.getUserMetadata() ).thenReturn( ImmutableMap.of( "Name", name ) );
+        when( node.getPublicAddresses() ).thenReturn( Collections.<String> emptySet() );
+        when( node.getPrivateAddresses() ).thenReturn( Collections.<String> emptySet() );
+        return node;
+    }
+}
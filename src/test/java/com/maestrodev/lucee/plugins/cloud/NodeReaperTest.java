@@ -0,0 +1,122 @@
+package com.maestrodev.lucee.plugins.cloud;
+
+import static org.junit.Assert.*;
+import static org.mockito.Mockito.*;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Pattern;
+
+import org.jclouds.compute.domain.NodeMetadata;
+import org.jclouds.compute.domain.NodeState;
+import org.junit.Test;
+
+import com.google.common.base.Predicates;
+import com.google.common.collect.Maps;
+
+/**
+ * Tests for {@link NodeReaper}
+ */
+public class NodeReaperTest
+{
+
+    private static final long NOW = System.currentTimeMillis();
+
+    private static final long HOUR = TimeUnit.HOURS.toMillis( 1 );
+
+    @Test
+    public void testSelectByAge()
+    {
+        NodeMetadata old = node( "old", "maestro", "build-1", NOW - 30 * HOUR, NodeState.RUNNING );
+        NodeMetadata recent = node( "recent", "maestro", "build-2", NOW - HOUR, NodeState.RUNNING );
+        NodeMetadata unknown = node( "unknown", "maestro", "build-3", null, NodeState.RUNNING );
+        NodeMetadata otherGroup = node( "other", "web", "web-1", NOW - 30 * HOUR, NodeState.RUNNING );
+        NodeMetadata terminated = node( "terminated", "maestro", "build-4", NOW - 30 * HOUR, NodeState.TERMINATED );
+        NodeMetadata standby = node( "standby", "maestro", "maestro-standby", NOW - 30 * HOUR, NodeState.RUNNING );
+        NodeMetadata leftover = node( "leftover", "maestro", "maestro-standby", NOW - 30 * HOUR, NodeState.RUNNING );
+
+        // the standby node held by the pool is kept, the one left behind by another agent is reaped
+        NodeReaper reaper = new NodeReaper( "maestro", 24 * HOUR, null, Predicates.equalTo( standby ) );
+        List<NodeMetadata> stale =
+            reaper.select( Arrays.asList( old, recent, unknown, otherGroup, terminated, standby, leftover ), NOW );
+
+        assertEquals( Arrays.asList( old, leftover ), stale );
+    }
+
+    @Test
+    public void testSelectClaimedStandby()
+    {
+        // launched on standby long ago, claimed by a provision an hour ago
+        NodeMetadata claimed = node( "claimed", "maestro", "build-1", NOW - 30 * HOUR, NodeState.RUNNING );
+        claimed.getUserMetadata().put( NodeReaper.CLAIMED_TAG, String.valueOf( NOW - HOUR ) );
+        NodeMetadata stale = node( "stale", "maestro", "build-2", NOW - 30 * HOUR, NodeState.RUNNING );
+        stale.getUserMetadata().put( NodeReaper.CLAIMED_TAG, String.valueOf( NOW - 25 * HOUR ) );
+
+        NodeReaper reaper = new NodeReaper( "maestro", 24 * HOUR, null, Predicates.<NodeMetadata> alwaysFalse() );
+
+        assertEquals( Collections.singletonList( stale ), reaper.select( Arrays.asList( claimed, stale ), NOW ) );
+    }
+
+    @Test
+    public void testSelectByName()
+    {
+        NodeMetadata matching = node( "a", "maestro", "ci-pr-42.example.com", null, NodeState.RUNNING );
+        NodeMetadata other = node( "b", "maestro", "release.example.com", NOW - HOUR, NodeState.RUNNING );
+
+        NodeReaper reaper =
+            new NodeReaper( "maestro", 0, Pattern.compile( "ci-pr-.*" ), Predicates.<NodeMetadata> alwaysFalse() );
+
+        assertEquals( Collections.singletonList( matching ), reaper.select( Arrays.asList( matching, other ), NOW ) );
+    }
+
+    @Test
+    public void testInstanceHours()
+    {
+        List<NodeMetadata> nodes =
+            Arrays.asList( node( "a", "maestro", "a", NOW - 2 * HOUR, NodeState.RUNNING ),
+                           node( "b", "maestro", "b", NOW - HOUR / 2, NodeState.RUNNING ),
+                           node( "c", "maestro", "c", null, NodeState.RUNNING ) );
+
+        assertEquals( 2.5, NodeReaper.instanceHours( nodes, NOW ), 0.001 );
+    }
+
+    @Test
+    public void testCancel()
+        throws Exception
+    {
+        final CountDownLatch ran = new CountDownLatch( 1 );
+        String key = "stub|cancel-" + System.nanoTime() + "|";
+        NodeReaper.schedule( key, new Runnable()
+        {
+            public void run()
+            {
+                ran.countDown();
+            }
+        }, 10 );
+        assertTrue( ran.await( 5, TimeUnit.SECONDS ) );
+
+        assertTrue( NodeReaper.cancel( key ) );
+        // no longer scheduled
+        assertFalse( NodeReaper.cancel( key ) );
+    }
+
+    private static NodeMetadata node( String id, String group, String name, Long launched, NodeState state )
+    {
+        Map<String, String> metadata = Maps.newHashMap();
+        metadata.put( "Name", name );
+        if ( launched != null )
+        {
+            metadata.put( NodeReaper.LAUNCHED_TAG, String.valueOf( launched ) );
+        }
+        NodeMetadata node = mock( NodeMetadata.class );
+        when( node.getId() ).thenReturn( id );
+        when( node.getGroup() ).thenReturn( group );
+        when( node.getState() ).thenReturn( state );
+        when( node.getUserMetadata() ).thenReturn( metadata );
+        return node;
+    }
+}
@@ -0,0 +1,38 @@
+package com.maestrodev.lucee.plugins.cloud;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.Collections;
+
+import org.junit.Test;
+
+/**
+ * Tests for {@link OrphanReconciler}
+ */
+public class OrphanReconcilerTest
+{
+
+    @Test
+    public void testComplete()
+        throws Exception
+    {
+        File file = new File( "target/journal-test/" + System.nanoTime() + ".bin" );
+        ProvisioningJournal journal = new ProvisioningJournal( file.getPath() );
+        OrphanReconciler reconciler = new OrphanReconciler( journal, "maestro" );
+        String saved = journal.intent( "stub", "id", null );
+        journal.created( saved, Arrays.asList( "stub/1", "stub/2" ) );
+        journal.destroyed( Collections.singleton( "stub/2" ) );
+        String unsaved = journal.intent( "stub", "id", null );
+        journal.created( unsaved, Collections.singleton( "stub/3" ) );
+
+        // without a compute service the node left out can't be destroyed
+        reconciler.complete( null, "stub", "id", saved, Collections.singleton( "stub/1" ) );
+        reconciler.complete( null, "stub", "id", unsaved, Collections.<String> emptyList() );
+
+        journal = new ProvisioningJournal( file.getPath() );
+        assertEquals( 1, journal.getOrphanedIntents( "stub", "id" ).size() );
+        assertEquals( unsaved, journal.getOrphanedIntents( "stub", "id" ).get( 0 ).getId() );
+    }
+}
@@ -0,0 +1,173 @@
+package com.maestrodev.lucee.plugins.cloud;
+
+import static com.google.common.base.Charsets.*;
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.GZIPInputStream;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import com.google.common.base.Strings;
+import com.google.common.io.CharStreams;
+import com.google.common.io.Closeables;
+import com.google.common.io.Files;
+
+/**
+ * Tests for {@link OutputCapture}
+ */
+public class OutputCaptureTest
+{
+
+    private static final long HOUR = TimeUnit.HOURS.toMillis( 1 );
+
+    private File dir;
+
+    @Before
+    public void setUp()
+    {
+        dir = new File( "target/output-test/" + System.nanoTime() );
+    }
+
+    @Test
+    public void testFits()
+    {
+        OutputCapture capture = OutputCapture.of( dir, "us-east-1/i-1-stdout", 2, 3, "a\nb\nc\nd\ne\n" );
+
+        assertEquals( "a\nb\nc\nd\ne\n", capture.toString() );
+        assertEquals( 5, capture.getTotal() );
+        assertNull( capture.getFile() );
+        assertFalse( dir.exists() );
+    }
+
+    @Test
+    public void testSpill()
+        throws Exception
+    {
+        StringBuilder output = new StringBuilder();
+        for ( int i = 1; i <= 100; i++ )
+        {
+            output.append( "line " ).append( i ).append( '\n' );
+        }
+        OutputCapture capture = OutputCapture.of( dir, "us-east-1/i-1-stdout", 2, 3, output.toString() );
+
+        File file = capture.getFile();
+        assertNotNull( file );
+        assertEquals( dir, file.getParentFile() );
+        assertTrue( file.getName(), file.getName().startsWith( "us-east-1_i-1-stdout-" ) );
+        assertTrue( file.getName(), file.getName().endsWith( ".log.gz" ) );
+        assertEquals( 100, capture.getTotal() );
+        assertEquals( "line 1\nline 2\n[... 95 lines omitted, full output in " + file + " ...]\n"
+            + "line 98\nline 99\nline 100\n", capture.toString() );
+        assertEquals( output.toString(), read( file ) );
+    }
+
+    @Test
+    public void testSpillStreamed()
+        throws Exception
+    {
+        OutputCapture capture = new OutputCapture( dir, "stderr", 0, 2 );
+        capture.add( "a" );
+        capture.add( "b" );
+        assertNull( capture.getFile() );
+        capture.add( "c" );
+        assertNotNull( capture.getFile() );
+        capture.add( "d" );
+        capture.close();
+
+        List<String> summary = Arrays.asList( capture.toString().split( "\n" ) );
+        assertEquals( 3, summary.size() );
+        assertEquals( "c", summary.get( 1 ) );
+        assertEquals( "d", summary.get( 2 ) );
+        assertEquals( "a\nb\nc\nd\n", read( capture.getFile() ) );
+    }
+
+    @Test
+    public void testCleanUp()
+        throws Exception
+    {
+        dir.mkdirs();
+        long now = System.currentTimeMillis();
+        File expired = spilled( "expired", 100, now - 3 * HOUR );
+        File old = spilled( "old", 100, now - 2 * HOUR );
+        File recent = spilled( "recent", 100, now - HOUR );
+        File other = new File( dir, "other.txt" );
+        Files.write( new byte[100], other );
+        other.setLastModified( now - 3 * HOUR );
+
+        // older than 150 minutes, and over 150 bytes
+        OutputCapture.cleanUp( dir, 150 * HOUR / 60, 150, now );
+
+        assertFalse( expired.exists() );
+        assertFalse( old.exists() );
+        assertTrue( recent.exists() );
+        // not saved output
+        assertTrue( other.exists() );
+    }
+
+    @Test
+    public void testLongLine()
+        throws Exception
+    {
+        String longLine = Strings.repeat( "x", OutputCapture.MAX_LINE_LENGTH + 10 );
+        OutputCapture capture = OutputCapture.of( dir, "stdout", 2, 3, "a\n" + longLine + "\nb\n" );
+
+        // the file is started to keep the long line whole
+        File file = capture.getFile();
+        assertNotNull( file );
+        assertEquals( "a\n" + longLine + "\nb\n", read( file ) );
+        assertEquals( "a\n" + Strings.repeat( "x", OutputCapture.MAX_LINE_LENGTH )
+            + "[... 10 characters truncated ...]\nb\n[... full output in " + file + " ...]\n", capture.toString() );
+    }
+
+    @Test
+    public void testCleanUpKeepsInUse()
+        throws Exception
+    {
+        OutputCapture capture = new OutputCapture( dir, "stdout", 0, 1 );
+        capture.add( "a" );
+        capture.add( "b" );
+        capture.close();
+        File file = capture.getFile();
+        long now = System.currentTimeMillis();
+        assertTrue( file.setLastModified( now - 3 * HOUR ) );
+
+        // the summary of the task still references it
+        OutputCapture.cleanUp( dir, HOUR, 0, now );
+        assertTrue( file.exists() );
+
+        capture.release();
+        OutputCapture.cleanUp( dir, HOUR, 0, now );
+        assertFalse( file.exists() );
+    }
+
+    private File spilled( String name, int size, long modified )
+        throws Exception
+    {
+        File file = new File( dir, name + ".log.gz" );
+        Files.write( new byte[size], file );
+        assertTrue( file.setLastModified( modified ) );
+        return file;
+    }
+
+    private static String read( File file )
+        throws Exception
+    {
+        Reader reader = new InputStreamReader( new GZIPInputStream( new FileInputStream( file ) ), UTF_8 );
+        try
+        {
+            return CharStreams.toString( reader );
+        }
+        finally
+        {
+            Closeables.closeQuietly( reader );
+        }
+    }
+}
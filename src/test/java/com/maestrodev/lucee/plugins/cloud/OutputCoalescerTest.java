@@ -0,0 +1,132 @@
+package com.maestrodev.lucee.plugins.cloud;
+
+import static org.junit.Assert.*;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+import com.google.common.base.Joiner;
+import com.google.common.collect.Lists;
+
+/**
+ * Tests for {@link OutputCoalescer}
+ */
+public class OutputCoalescerTest
+{
+
+    private final List<String> sent = Collections.synchronizedList( Lists.<String> newArrayList() );
+
+    private final OutputCoalescer.Sink sink = new OutputCoalescer.Sink()
+    {
+        public void write( String output )
+        {
+            sent.add( output );
+        }
+    };
+
+    @Test
+    public void testCoalesce()
+    {
+        OutputCoalescer coalescer = new OutputCoalescer( sink, 1024, 60000, 4096 );
+        for ( int i = 0; i < 100; i++ )
+        {
+            coalescer.write( "line " + i + "\n" );
+        }
+        coalescer.flush();
+
+        assertEquals( 100, coalescer.getMessages() );
+        assertTrue( String.valueOf( sent.size() ), sent.size() < 10 );
+        assertEquals( coalescer.getBatches(), sent.size() );
+        StringBuilder expected = new StringBuilder();
+        for ( int i = 0; i < 100; i++ )
+        {
+            expected.append( "line " + i + "\n" );
+        }
+        assertEquals( expected.toString(), Joiner.on( "" ).join( sent ) );
+    }
+
+    @Test
+    public void testWindow()
+        throws Exception
+    {
+        final CountDownLatch received = new CountDownLatch( 1 );
+        OutputCoalescer coalescer = new OutputCoalescer( new OutputCoalescer.Sink()
+        {
+            public void write( String output )
+            {
+                received.countDown();
+            }
+        }, 1024, 50, 4096 );
+        coalescer.write( "small\n" );
+
+        // sent without a flush once the window is over
+        assertTrue( received.await( 5, TimeUnit.SECONDS ) );
+    }
+
+    @Test
+    public void testBackpressure()
+        throws Exception
+    {
+        final CountDownLatch release = new CountDownLatch( 1 );
+        OutputCoalescer coalescer = new OutputCoalescer( new OutputCoalescer.Sink()
+        {
+            public void write( String output )
+            {
+                try
+                {
+                    release.await();
+                }
+                catch ( InterruptedException e )
+                {
+                    Thread.currentThread().interrupt();
+                }
+                sent.add( output );
+            }
+        }, 10, 0, 20 );
+
+        // the first batch is taken by the sending thread, which blocks in the sink
+        coalescer.write( "0123456789" );
+        Thread.sleep( 100 );
+        coalescer.write( "0123456789" );
+        coalescer.write( "0123456789" );
+
+        final CountDownLatch written = new CountDownLatch( 1 );
+        final OutputCoalescer blocked = coalescer;
+        Thread writer = new Thread( new Runnable()
+        {
+            public void run()
+            {
+                blocked.write( "last" );
+                written.countDown();
+            }
+        } );
+        writer.start();
+        assertFalse( "writer should wait while the server is slow", written.await( 200, TimeUnit.MILLISECONDS ) );
+
+        release.countDown();
+        assertTrue( written.await( 5, TimeUnit.SECONDS ) );
+        coalescer.flush();
+        assertEquals( "012345678901234567890123456789last", Joiner.on( "" ).join( sent ) );
+    }
+
+    @Test
+    public void testSinkErrors()
+    {
+        OutputCoalescer coalescer = new OutputCoalescer( new OutputCoalescer.Sink()
+        {
+            public void write( String output )
+            {
+                throw new IllegalStateException( "server gone" );
+            }
+        }, 1024, 60000, 4096 );
+        coalescer.write( "lost\n" );
+
+        // does not hang or throw
+        coalescer.flush();
+        assertEquals( 1, coalescer.getBatches() );
+    }
+}
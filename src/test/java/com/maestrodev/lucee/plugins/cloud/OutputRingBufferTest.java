@@ -0,0 +1,43 @@
+package com.maestrodev.lucee.plugins.cloud;
+
+import static org.junit.Assert.*;
+
+import java.util.Arrays;
+import java.util.Collections;
+
+import org.junit.Test;
+
+/**
+ * Tests for {@link OutputRingBuffer}
+ */
+public class OutputRingBufferTest
+{
+
+    @Test
+    public void testKeepsLastLines()
+    {
+        OutputRingBuffer buffer = new OutputRingBuffer( 3 );
+        assertEquals( Collections.emptyList(), buffer.getLines() );
+        assertEquals( "", buffer.toString() );
+
+        buffer.add( "a" );
+        buffer.add( "b" );
+        assertEquals( Arrays.asList( "a", "b" ), buffer.getLines() );
+        assertEquals( "a\nb\n", buffer.toString() );
+
+        for ( String line : Arrays.asList( "c", "d", "e" ) )
+        {
+            buffer.add( line );
+        }
+        assertEquals( Arrays.asList( "c", "d", "e" ), buffer.getLines() );
+        assertEquals( 5, buffer.getTotal() );
+        assertEquals( 2, buffer.getDropped() );
+        assertEquals( String.format( "[... 2 lines omitted ...]%nc\nd\ne\n" ), buffer.toString() );
+    }
+
+    @Test( expected = IllegalArgumentException.class )
+    public void testCapacity()
+    {
+        new OutputRingBuffer( 0 );
+    }
+}
@@ -0,0 +1,40 @@
+package com.maestrodev.lucee.plugins.cloud;
+
+import static org.junit.Assert.*;
+import static org.mockito.Mockito.*;
+
+import java.util.Collections;
+import java.util.concurrent.TimeUnit;
+
+import org.jclouds.compute.ComputeService;
+import org.jclouds.compute.domain.NodeMetadata;
+import org.junit.Test;
+
+/**
+ * Tests for {@link PendingNodes}
+ */
+public class PendingNodesTest
+{
+
+    @Test
+    public void testStartWithoutCommands()
+        throws Exception
+    {
+        PendingNodes pending = new PendingNodes();
+        NodeMetadata node = mock( NodeMetadata.class );
+        when( node.getId() ).thenReturn( "stub/1" );
+        when( node.getPublicAddresses() ).thenReturn( Collections.singleton( "10.0.0.1" ) );
+        LaunchSpec spec = new LaunchSpec().provider( "stub" ).imageId( "1" );
+
+        // a claimed standby node is already bootstrapped, and there are no commands to run
+        pending.start( mock( ComputeService.class ), spec, Collections.singleton( node ),
+                       Collections.<NodeMetadata> emptySet(), null, 10, 10 ).get( 5, TimeUnit.SECONDS );
+
+        PendingNode pendingNode = pending.get( "stub/1" );
+        assertEquals( PendingNode.State.READY, pendingNode.getState() );
+        assertEquals( "10.0.0.1", pendingNode.getPublicAddress() );
+        assertNull( pendingNode.getFuture().get() );
+        pending.remove( "stub/1" );
+        assertNull( pending.get( "stub/1" ) );
+    }
+}
@@ -0,0 +1,251 @@
+package com.maestrodev.lucee.plugins.cloud;
+
+import static org.junit.Assert.*;
+import static org.mockito.Mockito.*;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.jclouds.compute.domain.NodeMetadata;
+import org.junit.Test;
+
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Lists;
+import com.maestrodev.lucee.plugins.cloud.metrics.PhaseMetrics;
+
+/**
+ * Tests for {@link PlacementLauncher}
+ */
+public class PlacementLauncherTest
+{
+
+    private final PhaseMetrics metrics = new PhaseMetrics( null );
+
+    @Test
+    public void testFallback()
+        throws Exception
+    {
+        FakeLauncher fake = new FakeLauncher( "us-east-1a" );
+        List<LaunchSpec> placements = placements( "us-east-1a", "us-east-1b" );
+
+        PlacementLauncher.Launched launched = new PlacementLauncher( fake, metrics ).launch( placements, 1, false );
+
+        assertSame( placements.get( 1 ), launched.getPlacement() );
+        assertEquals( Arrays.asList( "us-east-1a", "us-east-1b" ), fake.launched );
+        assertEquals( 1, metrics.getPlacement( "aws-ec2", "us-east-1a", "m1.small" ).getCapacityErrors() );
+        assertEquals( 1, metrics.getPlacement( "aws-ec2", "us-east-1b", "m1.small" ).getFallbackLaunches() );
+    }
+
+    @Test
+    public void testNoFallbackOnOtherErrors()
+        throws Exception
+    {
+        FakeLauncher fake = new FakeLauncher()
+        {
+            @Override
+            public Set<? extends NodeMetadata> launch( LaunchSpec placement, int count )
+            {
+                launched.add( placement.getAvailabilityZone() );
+                throw new IllegalStateException( "AuthFailure" );
+            }
+        };
+        try
+        {
+            new PlacementLauncher( fake, metrics ).launch( placements( "us-east-1a", "us-east-1b" ), 1, false );
+            fail();
+        }
+        catch ( IllegalStateException e )
+        {
+            assertEquals( Collections.singletonList( "us-east-1a" ), fake.launched );
+        }
+    }
+
+    @Test
+    public void testAllFull()
+        throws Exception
+    {
+        FakeLauncher fake = new FakeLauncher( "us-east-1a", "us-east-1b" );
+        PlacementLauncher launcher = new PlacementLauncher( fake, metrics );
+        try
+        {
+            launcher.launch( placements( "us-east-1a", "us-east-1b" ), 1, false );
+            fail();
+        }
+        catch ( IllegalStateException e )
+        {
+            assertTrue( PlacementLauncher.isCapacityError( e ) );
+            assertEquals( 2, launcher.getAttempts().size() );
+        }
+    }
+
+    @Test
+    public void testHedgeDestroysLoser()
+        throws Exception
+    {
+        final CountDownLatch winnerDone = new CountDownLatch( 1 );
+        final CountDownLatch destroyed = new CountDownLatch( 1 );
+        FakeLauncher fake = new FakeLauncher()
+        {
+            @Override
+            public Set<? extends NodeMetadata> launch( LaunchSpec placement, int count )
+            {
+                if ( placement.getAvailabilityZone().equals( "us-east-1a" ) )
+                {
+                    // the first zone is slow and finishes after the second one won
+                    try
+                    {
+                        winnerDone.await( 5, TimeUnit.SECONDS );
+                    }
+                    catch ( InterruptedException e )
+                    {
+                        Thread.currentThread().interrupt();
+                    }
+                }
+                return super.launch( placement, count );
+            }
+
+            @Override
+            public void destroy( Set<? extends NodeMetadata> nodes )
+            {
+                super.destroy( nodes );
+                destroyed.countDown();
+            }
+        };
+
+        PlacementLauncher.Launched launched =
+            new PlacementLauncher( fake, metrics ).launch( placements( "us-east-1a", "us-east-1b" ), 1, true );
+        winnerDone.countDown();
+
+        assertEquals( "us-east-1b", launched.getPlacement().getAvailabilityZone() );
+        assertTrue( destroyed.await( 5, TimeUnit.SECONDS ) );
+        assertEquals( 1, fake.destroyed.size() );
+        assertEquals( "us-east-1a", getOnlyZone( fake.destroyed ) );
+        assertEquals( 1, metrics.getPlacement( "aws-ec2", "us-east-1b", "m1.small" ).getHedgesWon() );
+        assertEquals( 1, metrics.getPlacement( "aws-ec2", "us-east-1a", "m1.small" ).getHedgesLost() );
+    }
+
+    @Test
+    public void testHedgeKeepsFirstReady()
+        throws Exception
+    {
+        final CountDownLatch winnerDone = new CountDownLatch( 1 );
+        FakeLauncher fake = new FakeLauncher()
+        {
+            @Override
+            public void awaitReady( LaunchSpec placement, Set<? extends NodeMetadata> nodes )
+            {
+                if ( placement.getAvailabilityZone().equals( "us-east-1a" ) )
+                {
+                    // the first zone starts its node as fast but it boots slower
+                    try
+                    {
+                        winnerDone.await( 5, TimeUnit.SECONDS );
+                    }
+                    catch ( InterruptedException e )
+                    {
+                        Thread.currentThread().interrupt();
+                    }
+                }
+            }
+        };
+
+        PlacementLauncher.Launched launched =
+            new PlacementLauncher( fake, metrics ).launch( placements( "us-east-1a", "us-east-1b" ), 1, true );
+        winnerDone.countDown();
+
+        assertEquals( "us-east-1b", launched.getPlacement().getAvailabilityZone() );
+        assertEquals( 2, fake.launched.size() );
+    }
+
+    @Test
+    public void testIsCapacityError()
+    {
+        assertTrue( PlacementLauncher.isCapacityError( new RuntimeException( capacity() ) ) );
+        assertTrue( PlacementLauncher.isCapacityError( new NoSuchElementException( "no hardware" ) ) );
+        assertFalse( PlacementLauncher.isCapacityError( new IllegalStateException( "AuthFailure" ) ) );
+        assertFalse( PlacementLauncher.isCapacityError( null ) );
+    }
+
+    @Test
+    public void testPlacements()
+    {
+        LaunchSpec spec =
+            new LaunchSpec().provider( "aws-ec2" ).flavorId( "m1.small" ).availabilityZone( "us-east-1a" );
+        List<LaunchSpec> placements =
+            PlacementLauncher.placements( spec, Arrays.asList( "m1.medium" ),
+                                          Arrays.asList( "us-east-1b", "eu-west-1a" ) );
+        assertSame( spec, placements.get( 0 ) );
+        List<String> described = Lists.newArrayList();
+        for ( LaunchSpec placement : placements )
+        {
+            described.add( placement.getFlavorId() + "@" + placement.getAvailabilityZone() );
+        }
+        // the zone outside of the region is skipped
+        assertEquals( Arrays.asList( "m1.small@us-east-1a", "m1.small@us-east-1b", "m1.medium@us-east-1a",
+                                     "m1.medium@us-east-1b" ), described );
+    }
+
+    private static String getOnlyZone( List<NodeMetadata> nodes )
+    {
+        return nodes.get( 0 ).getId().split( "/" )[0];
+    }
+
+    private static List<LaunchSpec> placements( String... zones )
+    {
+        List<LaunchSpec> placements = Lists.newArrayList();
+        for ( String zone : zones )
+        {
+            placements.add( new LaunchSpec().provider( "aws-ec2" ).flavorId( "m1.small" ).availabilityZone( zone ) );
+        }
+        return placements;
+    }
+
+    private static IllegalStateException capacity()
+    {
+        return new IllegalStateException( "InsufficientInstanceCapacity: no m1.small available" );
+    }
+
+    /**
+     * Launches a node in the zones with capacity
+     */
+    private static class FakeLauncher
+        implements PlacementLauncher.NodeLauncher
+    {
+        private final Set<String> full;
+
+        final List<String> launched = Collections.synchronizedList( Lists.<String> newArrayList() );
+
+        final List<NodeMetadata> destroyed = Collections.synchronizedList( Lists.<NodeMetadata> newArrayList() );
+
+        FakeLauncher( String... full )
+        {
+            this.full = ImmutableSet.copyOf( full );
+        }
+
+        public Set<? extends NodeMetadata> launch( LaunchSpec placement, int count )
+        {
+            launched.add( placement.getAvailabilityZone() );
+            if ( full.contains( placement.getAvailabilityZone() ) )
+            {
+                throw capacity();
+            }
+            NodeMetadata node = mock( NodeMetadata.class );
+            when( node.getId() ).thenReturn( placement.getAvailabilityZone() + "/i-1" );
+            return Collections.singleton( node );
+        }
+
+        public void destroy( Set<? extends NodeMetadata> nodes )
+        {
+            destroyed.addAll( nodes );
+        }
+
+        public void awaitReady( LaunchSpec placement, Set<? extends NodeMetadata> nodes )
+        {
+        }
+    }
+}
@@ -0,0 +1,42 @@
+package com.maestrodev.lucee.plugins.cloud;
+
+import static org.junit.Assert.*;
+
+import java.util.Collections;
+
+import org.jclouds.ContextBuilder;
+import org.junit.Test;
+
+/**
+ * Tests for {@link ProviderRegistry}
+ */
+public class ProviderRegistryTest
+{
+
+    /**
+     * The index lookup must find the same providers as the full classpath scan, loading only the one used
+     */
+    @Test
+    public void testIndexMatchesScan()
+    {
+        ProviderRegistry registry = new ProviderRegistry( ProviderRegistry.INDEX );
+        assertTrue( registry.contains( "stub" ) );
+        ContextBuilder builder = registry.newContextBuilder( "stub" );
+
+        assertFalse( registry.isScanned() );
+        assertEquals( Collections.singleton( "stub" ), registry.loaded() );
+        assertEquals( ProviderRegistry.scan().keySet(), registry.ids() );
+        assertEquals( "stub", builder.getApiMetadata().getId() );
+        assertTrue( registry.contains( "aws-ec2" ) );
+        assertFalse( registry.contains( "aws" ) );
+    }
+
+    @Test
+    public void testScanWithoutIndex()
+    {
+        ProviderRegistry registry = new ProviderRegistry( "missing-index.properties" );
+        assertTrue( registry.contains( "stub" ) );
+        assertTrue( registry.isScanned() );
+        assertTrue( registry.contains( "aws-ec2" ) );
+    }
+}
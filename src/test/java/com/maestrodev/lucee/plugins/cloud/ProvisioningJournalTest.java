@@ -0,0 +1,120 @@
+package com.maestrodev.lucee.plugins.cloud;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Tests for {@link ProvisioningJournal}
+ */
+public class ProvisioningJournalTest
+{
+
+    private File file;
+
+    @Before
+    public void setUp()
+    {
+        file = new File( "target/journal-test/" + System.nanoTime() + ".bin" );
+    }
+
+    @Test
+    public void testOrphanedIntents()
+        throws Exception
+    {
+        ProvisioningJournal journal = new ProvisioningJournal( file.getPath() );
+        String done = journal.intent( "aws-ec2", "id", "us-east-1" );
+        journal.created( done, Collections.singleton( "us-east-1/i-1" ) );
+        journal.completed( done );
+        String open = journal.intent( "aws-ec2", "id", "us-east-1" );
+        journal.created( open, Arrays.asList( "us-east-1/i-2", "us-east-1/i-3" ) );
+        journal.destroyed( Collections.singleton( "us-east-1/i-3" ) );
+
+        // open intents of this run are still in progress
+        assertTrue( journal.getOrphanedIntents( "aws-ec2", "id" ).isEmpty() );
+
+        // the agent restarts
+        journal = new ProvisioningJournal( file.getPath() );
+        List<ProvisioningJournal.Intent> orphaned = journal.getOrphanedIntents( "aws-ec2", "id" );
+        assertEquals( 1, orphaned.size() );
+        assertEquals( open, orphaned.get( 0 ).getId() );
+        assertEquals( "us-east-1", orphaned.get( 0 ).getRegion() );
+        assertEquals( Arrays.asList( "us-east-1/i-2", "us-east-1/i-3" ), orphaned.get( 0 ).getNodes() );
+        assertTrue( journal.isDestroyed( "us-east-1/i-3" ) );
+        assertTrue( journal.getOrphanedIntents( "aws-ec2", "other" ).isEmpty() );
+
+        journal.completed( open );
+        journal = new ProvisioningJournal( file.getPath() );
+        assertTrue( journal.getOrphanedIntents( "aws-ec2", "id" ).isEmpty() );
+    }
+
+    @Test
+    public void testIntentWithoutIdentity()
+        throws Exception
+    {
+        ProvisioningJournal journal = new ProvisioningJournal( file.getPath() );
+        String anonymous = journal.intent( "stub", null, null );
+        String open = journal.intent( "stub", "id", null );
+
+        journal = new ProvisioningJournal( file.getPath() );
+        assertEquals( open, journal.getOrphanedIntents( "stub", "id" ).get( 0 ).getId() );
+        assertEquals( anonymous, journal.getOrphanedIntents( "stub", null ).get( 0 ).getId() );
+    }
+
+    @Test
+    public void testReleased()
+        throws Exception
+    {
+        ProvisioningJournal journal = new ProvisioningJournal( file.getPath() );
+        String standby = journal.intent( "aws-ec2", "id", "us-east-1" );
+        journal.created( standby, Arrays.asList( "us-east-1/i-1", "us-east-1/i-2" ) );
+        String claimed = journal.intent( "aws-ec2", "id", "us-east-1" );
+        journal.created( claimed, Collections.singleton( "us-east-1/i-1" ) );
+        journal.released( standby, Collections.singleton( "us-east-1/i-1" ) );
+        journal.completed( claimed );
+        assertEquals( Collections.singletonList( "us-east-1/i-2" ), journal.getNodes( standby ) );
+        assertEquals( Collections.singletonList( "us-east-1/i-1" ), journal.getNodes( claimed ) );
+
+        // the agent restarts with a node still in the standby pool
+        journal = new ProvisioningJournal( file.getPath() );
+        List<ProvisioningJournal.Intent> orphaned = journal.getOrphanedIntents( "aws-ec2", "id" );
+        assertEquals( 1, orphaned.size() );
+        assertEquals( standby, orphaned.get( 0 ).getId() );
+        assertEquals( Collections.singletonList( "us-east-1/i-2" ), orphaned.get( 0 ).getNodes() );
+        assertTrue( orphaned.get( 0 ).isReleased( "us-east-1/i-1" ) );
+
+        // completed once all its nodes are released
+        journal.released( standby, Collections.singleton( "us-east-1/i-2" ) );
+        journal = new ProvisioningJournal( file.getPath() );
+        assertTrue( journal.getOrphanedIntents( "aws-ec2", "id" ).isEmpty() );
+    }
+
+    @Test
+    public void testTornWrite()
+        throws Exception
+    {
+        ProvisioningJournal journal = new ProvisioningJournal( file.getPath() );
+        String open = journal.intent( "stub", "id", null );
+        journal.created( open, Collections.singleton( "1" ) );
+        long length = file.length();
+        journal.created( open, Collections.singleton( "2" ) );
+
+        // crash in the middle of the last record
+        RandomAccessFile raf = new RandomAccessFile( file, "rw" );
+        raf.setLength( length + 5 );
+        raf.close();
+
+        journal = new ProvisioningJournal( file.getPath() );
+        List<ProvisioningJournal.Intent> orphaned = journal.getOrphanedIntents( "stub", "id" );
+        assertEquals( 1, orphaned.size() );
+        assertEquals( Collections.singletonList( "1" ), orphaned.get( 0 ).getNodes() );
+        assertEquals( length, file.length() );
+    }
+}
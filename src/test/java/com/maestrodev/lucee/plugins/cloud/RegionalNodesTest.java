@@ -0,0 +1,33 @@
+package com.maestrodev.lucee.plugins.cloud;
+
+import static org.junit.Assert.*;
+
+import java.util.Arrays;
+import java.util.Collections;
+
+import org.junit.Test;
+
+/**
+ * Tests for {@link RegionalNodes}
+ */
+public class RegionalNodesTest
+{
+
+    @Test
+    public void testRegions()
+    {
+        RegionalNodes nodes =
+            new RegionalNodes( ComputeServiceContextPool.getInstance(), "aws-ec2", "id", "key",
+                               Arrays.asList( "us-east-1/i-1", "us-west-1/i-2", "us-east-1/i-3" ) );
+        assertEquals( Arrays.asList( "us-east-1", "us-west-1" ), Arrays.asList( nodes.getRegions().toArray() ) );
+        assertTrue( nodes.getErrors().isEmpty() );
+        // nothing was leased yet
+        nodes.release();
+
+        // ids of other providers don't tell the region
+        nodes =
+            new RegionalNodes( ComputeServiceContextPool.getInstance(), "stub", "id", "key",
+                               Arrays.asList( "1", "2" ) );
+        assertEquals( Collections.singleton( null ), nodes.getRegions() );
+    }
+}
@@ -0,0 +1,41 @@
+package com.maestrodev.lucee.plugins.cloud;
+
+import static org.junit.Assert.*;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.Test;
+
+import com.google.common.collect.Lists;
+
+/**
+ * Tests for {@link Regions}
+ */
+public class RegionsTest
+{
+
+    @Test
+    public void testShardByRegion()
+    {
+        Map<String, List<String>> shards =
+            Regions.shardByRegion( "aws-ec2", Arrays.asList( "us-east-1/i-1", "eu-west-1/i-2", "us-east-1/i-3" ) );
+        assertEquals( Arrays.asList( "us-east-1", "eu-west-1" ), Lists.newArrayList( shards.keySet() ) );
+        assertEquals( Arrays.asList( "us-east-1/i-1", "us-east-1/i-3" ), shards.get( "us-east-1" ) );
+
+        shards = Regions.shardByRegion( "stub", Arrays.asList( "1", "2" ) );
+        assertEquals( Collections.singleton( null ), shards.keySet() );
+        assertEquals( Arrays.asList( "1", "2" ), shards.get( null ) );
+    }
+
+    @Test
+    public void testRegionOf()
+    {
+        assertEquals( "us-east-1", Regions.regionOf( "aws-ec2", "us-east-1a" ) );
+        assertEquals( "us-east-1", Regions.contextRegion( "aws-ec2", "us-east-1a" ) );
+        assertNull( Regions.contextRegion( "aws-ec2", null ) );
+        assertNull( Regions.contextRegion( "stub", "zone" ) );
+    }
+}
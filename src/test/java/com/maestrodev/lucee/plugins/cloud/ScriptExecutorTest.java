@@ -0,0 +1,138 @@
+package com.maestrodev.lucee.plugins.cloud;
+
+import static org.junit.Assert.*;
+import static org.mockito.Mockito.*;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.jclouds.compute.domain.ExecResponse;
+import org.jclouds.compute.domain.NodeMetadata;
+import org.junit.Test;
+
+import com.google.common.collect.Lists;
+
+/**
+ * Tests for {@link ScriptExecutor}
+ */
+public class ScriptExecutorTest
+{
+
+    @Test
+    public void testParallelismCap()
+        throws Exception
+    {
+        final AtomicInteger running = new AtomicInteger();
+        final AtomicInteger maxRunning = new AtomicInteger();
+        ScriptExecutor executor = new ScriptExecutor( 3, 10000, ScriptExecutor.Policy.BEST_EFFORT );
+
+        Map<NodeMetadata, NodeOutcome> outcomes = executor.run( nodes( 10 ), new ScriptExecutor.NodeTask()
+        {
+            public ExecResponse run( NodeMetadata node )
+                throws Exception
+            {
+                int now = running.incrementAndGet();
+                synchronized ( maxRunning )
+                {
+                    maxRunning.set( Math.max( maxRunning.get(), now ) );
+                }
+                Thread.sleep( 50 );
+                running.decrementAndGet();
+                return new ExecResponse( node.getId(), "", 0 );
+            }
+        } );
+
+        assertEquals( 10, outcomes.size() );
+        assertTrue( String.valueOf( maxRunning.get() ), maxRunning.get() <= 3 );
+        for ( NodeOutcome outcome : outcomes.values() )
+        {
+            assertEquals( NodeOutcome.Status.SUCCESS, outcome.getStatus() );
+            assertEquals( outcome.getNode().getId(), outcome.getResponse().getOutput() );
+        }
+    }
+
+    @Test
+    public void testBestEffortTimeout()
+        throws Exception
+    {
+        ScriptExecutor executor = new ScriptExecutor( 5, 200, ScriptExecutor.Policy.BEST_EFFORT );
+
+        Map<NodeMetadata, NodeOutcome> outcomes = executor.run( nodes( 3 ), new ScriptExecutor.NodeTask()
+        {
+            public ExecResponse run( NodeMetadata node )
+                throws Exception
+            {
+                if ( "1".equals( node.getId() ) )
+                {
+                    Thread.sleep( 10000 );
+                }
+                return new ExecResponse( "", "", 0 );
+            }
+        } );
+
+        List<NodeOutcome> list = Lists.newArrayList( outcomes.values() );
+        assertEquals( NodeOutcome.Status.SUCCESS, list.get( 0 ).getStatus() );
+        assertEquals( NodeOutcome.Status.TIMED_OUT, list.get( 1 ).getStatus() );
+        assertEquals( NodeOutcome.Status.SUCCESS, list.get( 2 ).getStatus() );
+        assertEquals( "timed_out", list.get( 1 ).toMap().get( "status" ) );
+    }
+
+    @Test
+    public void testFailFast()
+        throws Exception
+    {
+        ScriptExecutor executor = new ScriptExecutor( 1, 10000, ScriptExecutor.Policy.FAIL_FAST );
+
+        Map<NodeMetadata, NodeOutcome> outcomes = executor.run( nodes( 3 ), new ScriptExecutor.NodeTask()
+        {
+            public ExecResponse run( NodeMetadata node )
+                throws Exception
+            {
+                throw new IllegalStateException( "failed in " + node.getId() );
+            }
+        } );
+
+        List<NodeOutcome> list = Lists.newArrayList( outcomes.values() );
+        assertEquals( NodeOutcome.Status.FAILED, list.get( 0 ).getStatus() );
+        assertEquals( "failed in 0", list.get( 0 ).getError().getMessage() );
+        assertEquals( NodeOutcome.Status.CANCELLED, list.get( 1 ).getStatus() );
+        assertEquals( NodeOutcome.Status.CANCELLED, list.get( 2 ).getStatus() );
+    }
+
+    @Test
+    public void testFailFastOnExitStatus()
+        throws Exception
+    {
+        ScriptExecutor executor = new ScriptExecutor( 1, 10000, ScriptExecutor.Policy.FAIL_FAST );
+
+        Map<NodeMetadata, NodeOutcome> outcomes = executor.run( nodes( 3 ), new ScriptExecutor.NodeTask()
+        {
+            public ExecResponse run( NodeMetadata node )
+                throws Exception
+            {
+                return new ExecResponse( "", "command not found", 127 );
+            }
+        } );
+
+        List<NodeOutcome> list = Lists.newArrayList( outcomes.values() );
+        assertEquals( NodeOutcome.Status.FAILED, list.get( 0 ).getStatus() );
+        assertEquals( "Script exited with status 127", list.get( 0 ).getError().getMessage() );
+        assertEquals( 127, list.get( 0 ).getResponse().getExitStatus() );
+        assertEquals( 127, list.get( 0 ).toMap().get( "exit_status" ) );
+        assertEquals( NodeOutcome.Status.CANCELLED, list.get( 1 ).getStatus() );
+        assertEquals( NodeOutcome.Status.CANCELLED, list.get( 2 ).getStatus() );
+    }
+
+    private List<NodeMetadata> nodes( int count )
+    {
+        List<NodeMetadata> nodes = Lists.newArrayList();
+        for ( int i = 0; i < count; i++ )
+        {
+            NodeMetadata node = mock( NodeMetadata.class );
+            when( node.getId() ).thenReturn( String.valueOf( i ) );
+            nodes.add( node );
+        }
+        return nodes;
+    }
+}
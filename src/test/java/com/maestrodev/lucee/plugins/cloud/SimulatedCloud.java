@@ -0,0 +1,455 @@
+package com.maestrodev.lucee.plugins.cloud;
+
+import static com.google.common.base.Charsets.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.InputStream;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.jclouds.compute.ComputeService;
+import org.jclouds.compute.ComputeServiceContext;
+import org.jclouds.compute.domain.ExecChannel;
+import org.jclouds.compute.domain.ExecResponse;
+import org.jclouds.compute.domain.NodeMetadata;
+import org.jclouds.ssh.SshClient;
+
+import com.google.common.base.Function;
+import com.google.common.base.Suppliers;
+import com.google.common.collect.ImmutableSet;
+
+/**
+ * A simulated cloud: the jclouds stub provider behind a compute service that behaves like a real cloud under load.
+ * API calls take some time and are throttled above a rate, launches take a boot time and fail with capacity errors
+ * now and then, and scripts take the time of an ssh connection and a command instead of returning immediately.
+ * Errors look like the EC2 ones, so the plugin retries and falls back as it would in EC2. Everything is local, for
+ * load tests that run offline. The stub contexts are decorated by the {@link ComputeServiceContextPool} the workers
+ * of the load test lease them from.
+ * <p>
+ * Latencies follow a log-normal distribution around a median, the usual shape of cloud API and boot times. The
+ * defaults can be changed with system properties or the setters.
+ */
+public class SimulatedCloud
+    implements Function<ComputeServiceContext, ComputeServiceContext>
+{
+
+    /** median milliseconds a node takes to boot */
+    public static final String PROPERTY_BOOT = "maestro.cloud.simulated.bootMillis";
+
+    /** median milliseconds an API call takes */
+    public static final String PROPERTY_API = "maestro.cloud.simulated.apiMillis";
+
+    /** API calls per second allowed, 0 for no limit */
+    public static final String PROPERTY_API_RATE = "maestro.cloud.simulated.apiRate";
+
+    /** percentage of launches that fail with a capacity error */
+    public static final String PROPERTY_CAPACITY_ERRORS = "maestro.cloud.simulated.capacityErrors";
+
+    /** median milliseconds to open an ssh connection and run a script */
+    public static final String PROPERTY_SSH = "maestro.cloud.simulated.sshMillis";
+
+    /** API calls, subject to the latency and rate limit */
+    private static final Set<String> API_CALLS =
+        ImmutableSet.of( "createNodesInGroup", "getNodeMetadata", "destroyNode", "destroyNodesMatching", "listNodes",
+                         "listNodesDetailsMatching", "listImages", "listHardwareProfiles", "listAssignableLocations",
+                         "rebootNode", "resumeNode", "suspendNode" );
+
+    /** spread of the log-normal latencies, about half of them within 0.6x and 1.6x the median */
+    private static final double SIGMA = 0.5;
+
+    private static final SimulatedCloud instance =
+        new SimulatedCloud( Long.getLong( PROPERTY_BOOT, 2000 ), Long.getLong( PROPERTY_API, 50 ),
+                            Integer.getInteger( PROPERTY_API_RATE, 20 ),
+                            Integer.getInteger( PROPERTY_CAPACITY_ERRORS, 0 ), Long.getLong( PROPERTY_SSH, 500 ),
+                            new Random() );
+
+    private final Random random;
+
+    private volatile long bootMillis;
+
+    private volatile long apiMillis;
+
+    private volatile int apiRate;
+
+    private volatile int capacityErrors;
+
+    private volatile long sshMillis;
+
+    /** API calls that can be made right now, refilled at the API rate */
+    private double tokens;
+
+    private long lastRefill = System.nanoTime();
+
+    private final AtomicLong apiCalls = new AtomicLong();
+
+    private final AtomicLong throttled = new AtomicLong();
+
+    private final AtomicLong capacityFailures = new AtomicLong();
+
+    private final AtomicLong launched = new AtomicLong();
+
+    private final AtomicLong scripts = new AtomicLong();
+
+    public static SimulatedCloud getInstance()
+    {
+        return instance;
+    }
+
+    /**
+     * @param capacityErrors percentage of launches that fail with a capacity error
+     */
+    public SimulatedCloud( long bootMillis, long apiMillis, int apiRate, int capacityErrors, long sshMillis,
+                           Random random )
+    {
+        this.bootMillis = bootMillis;
+        this.apiMillis = apiMillis;
+        this.apiRate = apiRate;
+        this.capacityErrors = capacityErrors;
+        this.sshMillis = sshMillis;
+        this.random = random;
+        this.tokens = apiRate;
+    }
+
+    public SimulatedCloud bootMillis( long bootMillis )
+    {
+        this.bootMillis = bootMillis;
+        return this;
+    }
+
+    public SimulatedCloud apiMillis( long apiMillis )
+    {
+        this.apiMillis = apiMillis;
+        return this;
+    }
+
+    public SimulatedCloud apiRate( int apiRate )
+    {
+        this.apiRate = apiRate;
+        return this;
+    }
+
+    public SimulatedCloud capacityErrors( int capacityErrors )
+    {
+        this.capacityErrors = capacityErrors;
+        return this;
+    }
+
+    public SimulatedCloud sshMillis( long sshMillis )
+    {
+        this.sshMillis = sshMillis;
+        return this;
+    }
+
+    public ComputeServiceContext apply( ComputeServiceContext context )
+    {
+        return wrap( context );
+    }
+
+    /**
+     * The context of the stub provider, seen through the simulation
+     */
+    public ComputeServiceContext wrap( ComputeServiceContext context )
+    {
+        ComputeHandler computeHandler = new ComputeHandler( context.getComputeService() );
+        ContextHandler contextHandler = new ContextHandler( context );
+        contextHandler.compute =
+            (ComputeService) Proxy.newProxyInstance( ComputeService.class.getClassLoader(),
+                                                     new Class<?>[] { ComputeService.class }, computeHandler );
+        // the compute service returns the simulated context, so it is released to the pool as such
+        computeHandler.context =
+            (ComputeServiceContext) Proxy.newProxyInstance( ComputeServiceContext.class.getClassLoader(),
+                                                            new Class<?>[] { ComputeServiceContext.class },
+                                                            contextHandler );
+        return computeHandler.context;
+    }
+
+    private Object call( Object proxy, ComputeService compute, Method method, Object[] args )
+        throws Throwable
+    {
+        String name = method.getName();
+        if ( name.equals( "runScriptOnNode" ) )
+        {
+            return runScript();
+        }
+        if ( !API_CALLS.contains( name ) )
+        {
+            return forward( proxy, compute, method, args );
+        }
+
+        apiCalls.incrementAndGet();
+        if ( !acquire() )
+        {
+            throttled.incrementAndGet();
+            throw new IllegalStateException( "RequestLimitExceeded: simulated throttling of " + name );
+        }
+        sleep( sample( apiMillis ) );
+        if ( !name.equals( "createNodesInGroup" ) )
+        {
+            return forward( proxy, compute, method, args );
+        }
+
+        if ( random.nextInt( 100 ) < capacityErrors )
+        {
+            capacityFailures.incrementAndGet();
+            throw new IllegalStateException( "InsufficientInstanceCapacity: simulated, no capacity for the flavor" );
+        }
+        Object nodes = forward( proxy, compute, method, args );
+        // the nodes boot in parallel, the call returns when the slowest one is running
+        int count = (Integer) args[1];
+        long boot = 0;
+        for ( int i = 0; i < count; i++ )
+        {
+            boot = Math.max( boot, sample( bootMillis ) );
+        }
+        sleep( boot );
+        launched.addAndGet( count );
+        return nodes;
+    }
+
+    /**
+     * Connect and run, the stub nodes have no ssh server
+     */
+    private ExecResponse runScript()
+    {
+        scripts.incrementAndGet();
+        sleep( sample( sshMillis ) );
+        return new ExecResponse( "simulated\n", "", 0 );
+    }
+
+    private static Object forward( Object proxy, Object target, Method method, Object[] args )
+        throws Throwable
+    {
+        // the proxies are only equal to themselves, so they can be used as keys
+        if ( method.getName().equals( "equals" ) && args != null && args.length == 1 )
+        {
+            return proxy == args[0];
+        }
+        if ( method.getName().equals( "hashCode" ) && args == null )
+        {
+            return System.identityHashCode( proxy );
+        }
+        try
+        {
+            return method.invoke( target, args );
+        }
+        catch ( InvocationTargetException e )
+        {
+            throw e.getCause();
+        }
+    }
+
+    /**
+     * Take a token of the API rate limit, refilling the bucket for the time elapsed since the last call
+     */
+    private synchronized boolean acquire()
+    {
+        if ( apiRate <= 0 )
+        {
+            return true;
+        }
+        long now = System.nanoTime();
+        tokens = Math.min( apiRate, tokens + ( now - lastRefill ) / 1e9 * apiRate );
+        lastRefill = now;
+        if ( tokens < 1 )
+        {
+            return false;
+        }
+        tokens--;
+        return true;
+    }
+
+    /**
+     * A log-normal latency around the median
+     */
+    long sample( long median )
+    {
+        if ( median <= 0 )
+        {
+            return 0;
+        }
+        return (long) ( median * Math.exp( SIGMA * random.nextGaussian() ) );
+    }
+
+    private static void sleep( long millis )
+    {
+        try
+        {
+            TimeUnit.MILLISECONDS.sleep( millis );
+        }
+        catch ( InterruptedException e )
+        {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException( "Interrupted", e );
+        }
+    }
+
+    /**
+     * Calls to the compute service, through the simulation
+     */
+    private class ComputeHandler
+        implements InvocationHandler
+    {
+        private final ComputeService compute;
+
+        private ComputeServiceContext context;
+
+        ComputeHandler( ComputeService compute )
+        {
+            this.compute = compute;
+        }
+
+        public Object invoke( Object proxy, Method method, Object[] args )
+            throws Throwable
+        {
+            if ( method.getName().equals( "getContext" ) && args == null )
+            {
+                return context;
+            }
+            return call( proxy, compute, method, args );
+        }
+    }
+
+    /**
+     * Calls to the context, all forwarded except for the simulated compute service and ssh clients
+     */
+    private class ContextHandler
+        implements InvocationHandler
+    {
+        private final ComputeServiceContext delegate;
+
+        private ComputeService compute;
+
+        ContextHandler( ComputeServiceContext delegate )
+        {
+            this.delegate = delegate;
+        }
+
+        public Object invoke( Object proxy, Method method, Object[] args )
+            throws Throwable
+        {
+            if ( method.getName().equals( "getComputeService" ) && args == null )
+            {
+                return compute;
+            }
+            if ( method.getName().equals( "utils" ) && args == null )
+            {
+                Object utils = forward( proxy, delegate, method, args );
+                return Proxy.newProxyInstance( method.getReturnType().getClassLoader(),
+                                               new Class<?>[] { method.getReturnType() }, new UtilsHandler( utils ) );
+            }
+            return forward( proxy, delegate, method, args );
+        }
+    }
+
+    /**
+     * Calls to the utils of the context, all forwarded except for the ssh clients, that are simulated
+     */
+    private class UtilsHandler
+        implements InvocationHandler
+    {
+        private final Object delegate;
+
+        UtilsHandler( Object delegate )
+        {
+            this.delegate = delegate;
+        }
+
+        public Object invoke( Object proxy, Method method, Object[] args )
+            throws Throwable
+        {
+            if ( !method.getName().equals( "sshForNode" ) || args != null )
+            {
+                return forward( proxy, delegate, method, args );
+            }
+            return new Function<NodeMetadata, SshClient>()
+            {
+                public SshClient apply( NodeMetadata node )
+                {
+                    return (SshClient) Proxy.newProxyInstance( SshClient.class.getClassLoader(),
+                                                               new Class<?>[] { SshClient.class }, new SshHandler() );
+                }
+            };
+        }
+    }
+
+    /**
+     * Calls to an ssh client, the commands take the time of a script and print a line
+     */
+    private class SshHandler
+        implements InvocationHandler
+    {
+        public Object invoke( Object proxy, Method method, Object[] args )
+            throws Throwable
+        {
+            String name = method.getName();
+            if ( method.getDeclaringClass() == Object.class )
+            {
+                return forward( proxy, this, method, args );
+            }
+            if ( name.equals( "exec" ) )
+            {
+                return runScript();
+            }
+            if ( name.equals( "execChannel" ) )
+            {
+                ExecResponse response = runScript();
+                return new ExecChannel( new ByteArrayOutputStream(), stream( response.getOutput() ),
+                                        stream( response.getError() ),
+                                        Suppliers.ofInstance( response.getExitStatus() ), new Closeable()
+                                        {
+                                            public void close()
+                                            {
+                                            }
+                                        } );
+            }
+            if ( name.equals( "getUsername" ) )
+            {
+                return "root";
+            }
+            if ( name.equals( "getHostAddress" ) )
+            {
+                return "127.0.0.1";
+            }
+            // connect, disconnect, file transfers
+            return null;
+        }
+    }
+
+    private static InputStream stream( String text )
+    {
+        return new ByteArrayInputStream( text.getBytes( UTF_8 ) );
+    }
+
+    public long getApiCalls()
+    {
+        return apiCalls.get();
+    }
+
+    public long getThrottled()
+    {
+        return throttled.get();
+    }
+
+    public long getCapacityErrors()
+    {
+        return capacityFailures.get();
+    }
+
+    public long getLaunched()
+    {
+        return launched.get();
+    }
+
+    public long getScripts()
+    {
+        return scripts.get();
+    }
+}
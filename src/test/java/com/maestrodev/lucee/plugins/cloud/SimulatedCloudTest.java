@@ -0,0 +1,128 @@
+package com.maestrodev.lucee.plugins.cloud;
+
+import static com.google.common.base.Charsets.*;
+import static org.junit.Assert.*;
+import static org.mockito.Matchers.*;
+import static org.mockito.Mockito.*;
+
+import java.io.InputStreamReader;
+import java.util.Random;
+
+import org.jclouds.compute.ComputeService;
+import org.jclouds.compute.ComputeServiceContext;
+import org.jclouds.compute.domain.ExecChannel;
+import org.jclouds.compute.domain.NodeMetadata;
+import org.jclouds.compute.domain.Template;
+import org.jclouds.ssh.SshClient;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.google.common.io.CharStreams;
+import com.maestrodev.lucee.plugins.cloud.throttle.ApiLimiter;
+
+/**
+ * Tests for {@link SimulatedCloud}
+ */
+public class SimulatedCloudTest
+{
+
+    private ComputeService stub;
+
+    private ComputeServiceContext context;
+
+    @Before
+    public void setUp()
+    {
+        stub = mock( ComputeService.class );
+        context = mock( ComputeServiceContext.class );
+        when( context.getComputeService() ).thenReturn( stub );
+    }
+
+    @Test
+    public void testWrap()
+    {
+        ComputeServiceContext simulated = new SimulatedCloud( 0, 0, 0, 0, 0, new Random() ).wrap( context );
+        ComputeService compute = simulated.getComputeService();
+
+        assertNotSame( stub, compute );
+        assertSame( simulated, compute.getContext() );
+        assertEquals( simulated, simulated );
+        assertFalse( simulated.equals( context ) );
+
+        assertEquals( 0, compute.runScriptOnNode( "1", "uname -a" ).getExitStatus() );
+        verify( stub, never() ).runScriptOnNode( anyString(), anyString() );
+    }
+
+    @Test
+    public void testSsh()
+        throws Exception
+    {
+        SimulatedCloud cloud = new SimulatedCloud( 0, 0, 0, 0, 0, new Random() );
+        SshClient ssh = cloud.wrap( context ).utils().sshForNode().apply( mock( NodeMetadata.class ) );
+
+        ssh.connect();
+        ExecChannel channel = ssh.execChannel( "sh -s" );
+        assertEquals( "simulated\n", CharStreams.toString( new InputStreamReader( channel.getOutput(), UTF_8 ) ) );
+        assertEquals( Integer.valueOf( 0 ), channel.getExitStatus().get() );
+        assertEquals( 0, ssh.exec( "true" ).getExitStatus() );
+        ssh.disconnect();
+        assertEquals( 2, cloud.getScripts() );
+    }
+
+    @Test
+    public void testThrottle()
+    {
+        SimulatedCloud cloud = new SimulatedCloud( 0, 0, 1, 0, 0, new Random() );
+        ComputeService compute = cloud.wrap( context ).getComputeService();
+
+        compute.listNodes();
+        try
+        {
+            compute.listNodes();
+            fail();
+        }
+        catch ( IllegalStateException e )
+        {
+            assertTrue( ApiLimiter.isThrottle( e ) );
+        }
+        verify( stub, times( 1 ) ).listNodes();
+        assertEquals( 2, cloud.getApiCalls() );
+        assertEquals( 1, cloud.getThrottled() );
+    }
+
+    @Test
+    public void testCapacityErrors()
+        throws Exception
+    {
+        SimulatedCloud cloud = new SimulatedCloud( 0, 0, 0, 100, 0, new Random() );
+        ComputeService compute = cloud.wrap( context ).getComputeService();
+
+        try
+        {
+            compute.createNodesInGroup( "maestro", 1, mock( Template.class ) );
+            fail();
+        }
+        catch ( IllegalStateException e )
+        {
+            assertTrue( PlacementLauncher.isCapacityError( e ) );
+        }
+        verify( stub, never() ).createNodesInGroup( anyString(), anyInt(), any( Template.class ) );
+        assertEquals( 1, cloud.getCapacityErrors() );
+    }
+
+    @Test
+    public void testSample()
+    {
+        SimulatedCloud cloud = new SimulatedCloud( 0, 0, 0, 0, 0, new Random( 1 ) );
+        long total = 0;
+        for ( int i = 0; i < 1000; i++ )
+        {
+            long sample = cloud.sample( 100 );
+            assertTrue( sample >= 0 );
+            total += sample;
+        }
+        // the mean of a log-normal is above the median
+        assertTrue( String.valueOf( total ), total > 100 * 1000 && total < 130 * 1000 );
+        assertEquals( 0, cloud.sample( 0 ) );
+    }
+}
@@ -0,0 +1,120 @@
+package com.maestrodev.lucee.plugins.cloud;
+
+import static org.junit.Assert.*;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Tests for {@link SshReadinessProber}
+ */
+public class SshReadinessProberTest
+{
+
+    private ServerSocket server;
+
+    @Before
+    public void setUp()
+        throws IOException
+    {
+        server = new ServerSocket( 0 );
+    }
+
+    @After
+    public void tearDown()
+        throws IOException
+    {
+        server.close();
+    }
+
+    @Test
+    public void testReady()
+        throws Exception
+    {
+        serve( "SSH-2.0-OpenSSH_5.9\r\n" );
+        BootTimeHistory history = new BootTimeHistory();
+        SshReadinessProber prober = new SshReadinessProber( history );
+
+        long millis = prober.probe( address(), "stub/1", 10000 ).get( 10, TimeUnit.SECONDS );
+        assertTrue( millis >= 0 );
+        assertEquals( millis, history.getAverage( "stub/1" ) );
+        assertEquals( (long) ( millis * 0.8 ), history.getFirstProbeDelay( "stub/1" ) );
+    }
+
+    @Test
+    public void testNotSsh()
+        throws Exception
+    {
+        serve( "HTTP/1.1 400 Bad Request\r\n\r\n" );
+        SshReadinessProber prober = new SshReadinessProber( new BootTimeHistory() );
+
+        try
+        {
+            prober.probe( address(), "stub/1", 1000 ).get( 10, TimeUnit.SECONDS );
+            fail( "Not an ssh server" );
+        }
+        catch ( ExecutionException e )
+        {
+            assertTrue( e.getCause().toString(), e.getCause() instanceof TimeoutException );
+        }
+    }
+
+    @Test
+    public void testBackoff()
+        throws Exception
+    {
+        SshReadinessProber prober = new SshReadinessProber( new BootTimeHistory() );
+        for ( int i = 0; i < 100; i++ )
+        {
+            long first = prober.backoff( 0 );
+            assertTrue( String.valueOf( first ), first >= 250 && first <= 500 );
+            long capped = prober.backoff( 30 );
+            assertTrue( String.valueOf( capped ), capped >= 5000 && capped <= 10000 );
+        }
+    }
+
+    private InetSocketAddress address()
+    {
+        return new InetSocketAddress( "127.0.0.1", server.getLocalPort() );
+    }
+
+    /**
+     * Answer every connection with the greeting and close it
+     */
+    private void serve( final String greeting )
+    {
+        Thread thread = new Thread( new Runnable()
+        {
+            public void run()
+            {
+                while ( !server.isClosed() )
+                {
+                    try
+                    {
+                        Socket socket = server.accept();
+                        OutputStream out = socket.getOutputStream();
+                        out.write( greeting.getBytes( "US-ASCII" ) );
+                        out.flush();
+                        socket.close();
+                    }
+                    catch ( IOException e )
+                    {
+                        // closed
+                    }
+                }
+            }
+        } );
+        thread.setDaemon( true );
+        thread.start();
+    }
+}
@@ -0,0 +1,149 @@
+package com.maestrodev.lucee.plugins.cloud;
+
+import static org.junit.Assert.*;
+import static org.mockito.Matchers.*;
+import static org.mockito.Mockito.*;
+
+import java.util.Collections;
+import java.util.List;
+
+import org.jclouds.compute.domain.ExecResponse;
+import org.jclouds.compute.domain.NodeMetadata;
+import org.jclouds.domain.LoginCredentials;
+import org.jclouds.ssh.SshClient;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.google.common.base.Function;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Lists;
+
+/**
+ * Tests for {@link SshSessionPool}
+ */
+public class SshSessionPoolTest
+{
+
+    private final List<SshClient> clients = Lists.newArrayList();
+
+    private final Function<NodeMetadata, SshClient> sshForNode = new Function<NodeMetadata, SshClient>()
+    {
+        public SshClient apply( NodeMetadata node )
+        {
+            SshClient client = mock( SshClient.class );
+            when( client.exec( anyString() ) ).thenReturn( new ExecResponse( "", "", 0 ) );
+            clients.add( client );
+            return client;
+        }
+    };
+
+    private NodeMetadata node;
+
+    @Before
+    public void setUp()
+    {
+        node = node( "us-east-1/i-1", "root" );
+    }
+
+    @Test
+    public void testReuse()
+    {
+        SshSessionPool pool = new SshSessionPool( 60000, 4 );
+
+        SshClient first = pool.lease( node, sshForNode );
+        first.connect();
+        first.exec( "uptime" );
+        first.disconnect();
+        SshClient second = pool.lease( node, sshForNode );
+        second.exec( "hostname" );
+        second.disconnect();
+
+        assertEquals( 1, clients.size() );
+        assertEquals( 1, pool.getOpened() );
+        assertEquals( 1, pool.getReused() );
+        verify( clients.get( 0 ) ).connect();
+        verify( clients.get( 0 ), never() ).disconnect();
+        verify( clients.get( 0 ) ).exec( "uptime" );
+        verify( clients.get( 0 ) ).exec( "hostname" );
+    }
+
+    @Test
+    public void testKeyedByCredentials()
+    {
+        SshSessionPool pool = new SshSessionPool( 60000, 4 );
+
+        pool.lease( node, sshForNode ).disconnect();
+        pool.lease( node( "us-east-1/i-1", "ubuntu" ), sshForNode ).disconnect();
+
+        assertEquals( 2, pool.getOpened() );
+        assertEquals( 2, pool.size() );
+    }
+
+    @Test
+    public void testMaxChannels()
+    {
+        SshSessionPool pool = new SshSessionPool( 60000, 2 );
+
+        pool.lease( node, sshForNode );
+        pool.lease( node, sshForNode );
+        pool.lease( node, sshForNode );
+
+        // two channels share the first connection, the third lease needs another one
+        assertEquals( 2, pool.getOpened() );
+        assertEquals( 1, pool.getReused() );
+    }
+
+    @Test
+    public void testBrokenNotReused()
+    {
+        SshSessionPool pool = new SshSessionPool( 60000, 4 );
+
+        SshClient first = pool.lease( node, sshForNode );
+        when( clients.get( 0 ).exec( "uptime" ) ).thenThrow( new IllegalStateException( "connection reset" ) );
+        try
+        {
+            first.exec( "uptime" );
+            fail();
+        }
+        catch ( IllegalStateException e )
+        {
+            first.disconnect();
+        }
+        verify( clients.get( 0 ) ).disconnect();
+
+        pool.lease( node, sshForNode ).disconnect();
+        assertEquals( 2, pool.getOpened() );
+    }
+
+    @Test
+    public void testEvict()
+    {
+        SshSessionPool pool = new SshSessionPool( 60000, 4 );
+
+        SshClient leased = pool.lease( node, sshForNode );
+        pool.lease( node( "us-east-1/i-2", "root" ), sshForNode ).disconnect();
+        pool.evict( "us-east-1/i-1" );
+
+        // in use, closed when released
+        verify( clients.get( 0 ), never() ).disconnect();
+        leased.disconnect();
+        leased.disconnect();
+        verify( clients.get( 0 ) ).disconnect();
+        assertEquals( 1, pool.size() );
+
+        assertEquals( 1, pool.evictIdle( System.currentTimeMillis() + 60000 ) );
+        verify( clients.get( 1 ) ).disconnect();
+        assertEquals( 0, pool.size() );
+    }
+
+    private static NodeMetadata node( String id, String user )
+    {
+        NodeMetadata node = mock( NodeMetadata.class );
+        when( node.getId() ).thenReturn( id );
+        when( node.getLoginPort() ).thenReturn( 22 );
+        when( node.getPublicAddresses() ).thenReturn( ImmutableSet.of( "10.0.0.1" ) );
+        when( node.getPrivateAddresses() ).thenReturn( Collections.<String> emptySet() );
+        when( node.getCredentials() ).thenReturn( LoginCredentials.builder().user( user ).password( "secret" ).build() );
+        return node;
+    }
+}
@@ -0,0 +1,271 @@
+package com.maestrodev.lucee.plugins.cloud;
+
+import static org.junit.Assert.*;
+import static org.mockito.Mockito.*;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.jclouds.compute.RunNodesException;
+import org.jclouds.compute.domain.NodeMetadata;
+import org.jclouds.compute.domain.Template;
+import org.jclouds.domain.LoginCredentials;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Sets;
+
+/**
+ * Tests for {@link StandbyPool}
+ */
+public class StandbyPoolTest
+{
+
+    private static final long HOUR = TimeUnit.HOURS.toMillis( 1 );
+
+    private final StandbyPool.Key key = new StandbyPool.Key( "stub", "id", "1", "small", "stub", "0123456789" );
+
+    private StandbyPool pool;
+
+    private FakeFactory factory;
+
+    @Before
+    public void setUp()
+    {
+        pool = new StandbyPool();
+        factory = new FakeFactory();
+    }
+
+    @Test
+    public void testRefillToHighWatermark()
+        throws Exception
+    {
+        pool.configure( key, 2, 4, HOUR, factory );
+
+        awaitAvailable( 4 );
+        assertEquals( Collections.singletonList( 4 ), factory.requested );
+        assertTrue( pool.holds( "1" ) );
+        assertFalse( pool.holds( "5" ) );
+    }
+
+    @Test
+    public void testClaimRefillsBelowLowWatermark()
+        throws Exception
+    {
+        pool.configure( key, 2, 4, HOUR, factory );
+        awaitAvailable( 4 );
+
+        // still at the low watermark, not refilled
+        Set<String> claimed = Sets.newHashSet();
+        claimed.add( pool.claim( key ).getId() );
+        claimed.add( pool.claim( key ).getId() );
+        Thread.sleep( 100 );
+        assertEquals( 2, pool.available( key ) );
+        assertEquals( 1, factory.requested.size() );
+
+        // below it, refilled up to the high watermark in one launch
+        claimed.add( pool.claim( key ).getId() );
+        awaitAvailable( 4 );
+        assertEquals( Lists.newArrayList( 4, 3 ), factory.requested );
+        assertEquals( 3, claimed.size() );
+        for ( String id : claimed )
+        {
+            assertFalse( id, pool.holds( id ) );
+        }
+    }
+
+    @Test
+    public void testClaimStatistics()
+    {
+        assertNull( pool.claim( key ) );
+        assertEquals( 1, pool.getMisses() );
+        assertEquals( 0, pool.getClaims() );
+        assertEquals( 0, pool.getMeanClaimMillis(), 0 );
+
+        pool.claimed( TimeUnit.MILLISECONDS.toNanos( 10 ) );
+        pool.claimed( TimeUnit.MILLISECONDS.toNanos( 30 ) );
+        assertEquals( 2, pool.getClaims() );
+        assertEquals( 20, pool.getMeanClaimMillis(), 0.001 );
+        assertEquals( 30, pool.getMaxClaimMillis(), 0.001 );
+    }
+
+    @Test
+    public void testIdleTtlDestroysNodes()
+        throws Exception
+    {
+        pool.configure( key, 1, 2, 1, factory );
+        awaitAvailable( 2 );
+        Thread.sleep( 10 );
+
+        pool.maintain();
+
+        assertEquals( 0, pool.available( key ) );
+        assertFalse( pool.holds( "1" ) );
+        long deadline = System.currentTimeMillis() + 5000;
+        while ( factory.destroyed.size() < 2 && System.currentTimeMillis() < deadline )
+        {
+            Thread.sleep( 10 );
+        }
+        assertEquals( ImmutableSet.of( "1", "2" ), factory.destroyed );
+
+        // not refilled until configured again
+        pool.maintain();
+        Thread.sleep( 100 );
+        assertEquals( 1, factory.requested.size() );
+    }
+
+    @Test
+    public void testIdleNodesExpireWhileKeyIsUsed()
+        throws Exception
+    {
+        pool.configure( key, 1, 2, 500, factory );
+        awaitAvailable( 2 );
+        Thread.sleep( 400 );
+        assertEquals( "1", pool.claim( key ).getId() );
+        Thread.sleep( 250 );
+
+        // the node left waited longer than the ttl, the key did not
+        pool.maintain();
+
+        assertFalse( pool.holds( "2" ) );
+        awaitAvailable( 2 );
+        assertEquals( Lists.newArrayList( 2, 2 ), factory.requested );
+        long deadline = System.currentTimeMillis() + 5000;
+        while ( factory.destroyed.isEmpty() && System.currentTimeMillis() < deadline )
+        {
+            Thread.sleep( 10 );
+        }
+        assertEquals( Collections.singleton( "2" ), factory.destroyed );
+    }
+
+    @Test
+    public void testSlowRefillDoesNotBlockOtherKeys()
+        throws Exception
+    {
+        final CountDownLatch release = new CountDownLatch( 1 );
+        FakeFactory slow = new FakeFactory()
+        {
+            @Override
+            public Set<? extends NodeMetadata> create( int count )
+                throws RunNodesException
+            {
+                try
+                {
+                    release.await( 5, TimeUnit.SECONDS );
+                }
+                catch ( InterruptedException e )
+                {
+                    Thread.currentThread().interrupt();
+                }
+                return super.create( count );
+            }
+        };
+        StandbyPool.Key other = new StandbyPool.Key( "stub", "id", "2", "small", "stub", "0123456789" );
+        pool.configure( other, 1, 1, HOUR, slow );
+
+        pool.configure( key, 1, 1, HOUR, factory );
+
+        awaitAvailable( 1 );
+        assertEquals( 0, pool.available( other ) );
+        release.countDown();
+    }
+
+    @Test
+    public void testRefillErrorDestroysFailedNodes()
+        throws Exception
+    {
+        final NodeMetadata good = node( "good" );
+        final NodeMetadata failed = node( "failed" );
+        factory = new FakeFactory()
+        {
+            @Override
+            public Set<? extends NodeMetadata> create( int count )
+                throws RunNodesException
+            {
+                requested.add( count );
+                throw new RunNodesException( "maestro", count, mock( Template.class, RETURNS_DEEP_STUBS ),
+                                             Collections.singleton( good ), Collections.<Object, Exception> emptyMap(),
+                                             ImmutableMap.of( failed, new IllegalStateException( "bootstrap" ) ) );
+            }
+        };
+
+        pool.configure( key, 1, 2, HOUR, factory );
+
+        awaitAvailable( 1 );
+        assertTrue( pool.holds( "good" ) );
+        assertEquals( Collections.singleton( "failed" ), factory.destroyed );
+    }
+
+    @Test
+    public void testKeyOfSpec()
+    {
+        LoginCredentials root = LoginCredentials.builder().user( "root" ).build();
+        LaunchSpec spec =
+            new LaunchSpec().provider( "stub" ).imageId( "1" ).flavorId( "small" ).availabilityZone( "stub" )
+                .bootstrap( "echo" ).nameTag( "web" ).loginCredentials( root );
+        // the name and intent of the task don't make the nodes different
+        assertEquals( StandbyPool.key( spec, "id" ), StandbyPool.key( spec.copy().nameTag( "db" ).intentId( "i" ),
+                                                                     "id" ) );
+        assertFalse( StandbyPool.key( spec, "id" ).equals( StandbyPool.key( spec.copy().bootstrap( "true" ), "id" ) ) );
+        assertFalse( StandbyPool.key( spec, "id" ).equals( StandbyPool.key( spec, "other" ) ) );
+    }
+
+    private void awaitAvailable( int count )
+        throws InterruptedException
+    {
+        long deadline = System.currentTimeMillis() + 5000;
+        while ( pool.available( key ) < count && System.currentTimeMillis() < deadline )
+        {
+            Thread.sleep( 10 );
+        }
+        assertEquals( count, pool.available( key ) );
+    }
+
+    private static NodeMetadata node( String id )
+    {
+        NodeMetadata node = mock( NodeMetadata.class );
+        when( node.getId() ).thenReturn( id );
+        return node;
+    }
+
+    /**
+     * Creates nodes with increasing ids
+     */
+    private static class FakeFactory
+        implements StandbyPool.NodeFactory
+    {
+        private final AtomicInteger ids = new AtomicInteger();
+
+        final List<Integer> requested = Collections.synchronizedList( Lists.<Integer> newArrayList() );
+
+        final Set<String> destroyed = Collections.synchronizedSet( Sets.<String> newHashSet() );
+
+        public Set<? extends NodeMetadata> create( int count )
+            throws RunNodesException
+        {
+            requested.add( count );
+            Set<NodeMetadata> nodes = Sets.newLinkedHashSet();
+            for ( int i = 0; i < count; i++ )
+            {
+                nodes.add( node( String.valueOf( ids.incrementAndGet() ) ) );
+            }
+            return nodes;
+        }
+
+        public void destroy( Collection<? extends NodeMetadata> nodes )
+        {
+            for ( NodeMetadata node : nodes )
+            {
+                destroyed.add( node.getId() );
+            }
+        }
+    }
+}
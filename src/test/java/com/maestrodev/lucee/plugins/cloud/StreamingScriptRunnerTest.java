@@ -0,0 +1,180 @@
+package com.maestrodev.lucee.plugins.cloud;
+
+import static com.google.common.base.Charsets.*;
+import static org.junit.Assert.*;
+import static org.mockito.Mockito.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.io.PipedInputStream;
+import java.io.PipedOutputStream;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.jclouds.compute.domain.ExecChannel;
+import org.jclouds.compute.domain.ExecResponse;
+import org.jclouds.compute.domain.NodeMetadata;
+import org.jclouds.ssh.SshClient;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.google.common.base.Strings;
+import com.google.common.base.Suppliers;
+import com.google.common.collect.Lists;
+
+/**
+ * Tests for {@link StreamingScriptRunner}
+ */
+public class StreamingScriptRunnerTest
+{
+
+    private NodeMetadata node;
+
+    private SshClient ssh;
+
+    private ExecChannel channel;
+
+    private ByteArrayOutputStream input;
+
+    private final List<List<String>> batches = Collections.synchronizedList( Lists.<List<String>> newArrayList() );
+
+    private final StreamingScriptRunner.LineSink sink = new StreamingScriptRunner.LineSink()
+    {
+        public void lines( NodeMetadata node, List<String> lines )
+        {
+            batches.add( lines );
+        }
+    };
+
+    @Before
+    public void setUp()
+    {
+        // output that does not fit is saved under target
+        System.setProperty( OutputCapture.PROPERTY_DIR, "target/streaming-test/" + System.nanoTime() );
+        node = mock( NodeMetadata.class );
+        when( node.getId() ).thenReturn( "us-east-1/i-1" );
+        input = new ByteArrayOutputStream();
+        channel = mock( ExecChannel.class );
+        when( channel.getInput() ).thenReturn( input );
+        when( channel.getError() ).thenReturn( stream( "" ) );
+        when( channel.getExitStatus() ).thenReturn( Suppliers.ofInstance( 0 ) );
+        ssh = mock( SshClient.class );
+        when( ssh.execChannel( anyString() ) ).thenReturn( channel );
+    }
+
+    @After
+    public void tearDown()
+    {
+        System.clearProperty( OutputCapture.PROPERTY_DIR );
+    }
+
+    @Test
+    public void testBatches()
+        throws Exception
+    {
+        when( channel.getOutput() ).thenReturn( stream( lines( 1, 120 ) ) );
+
+        ExecResponse response =
+            new StreamingScriptRunner( 200, 200, 50, 10000 ).run( ssh, node, "root", "echo hello", sink );
+
+        assertEquals( 0, response.getExitStatus() );
+        assertEquals( lines( 1, 120 ), response.getOutput() );
+        assertEquals( "echo hello", new String( input.toByteArray(), UTF_8 ) );
+        verify( ssh ).execChannel( "sh -s" );
+        verify( ssh ).disconnect();
+        // full batches as soon as they are full, the rest at the end
+        assertEquals( 3, batches.size() );
+        assertEquals( 50, batches.get( 0 ).size() );
+        assertEquals( 50, batches.get( 1 ).size() );
+        assertEquals( 20, batches.get( 2 ).size() );
+        assertEquals( "line 1", batches.get( 0 ).get( 0 ) );
+        assertEquals( "line 120", batches.get( 2 ).get( 19 ) );
+    }
+
+    @Test
+    public void testFlushInterval()
+        throws Exception
+    {
+        final PipedOutputStream output = new PipedOutputStream();
+        when( channel.getOutput() ).thenReturn( new PipedInputStream( output ) );
+        final CountDownLatch flushed = new CountDownLatch( 1 );
+        final boolean[] flushedBeforeEnd = new boolean[1];
+        Thread script = new Thread()
+        {
+            @Override
+            public void run()
+            {
+                try
+                {
+                    output.write( "one\ntwo\n".getBytes( UTF_8 ) );
+                    output.flush();
+                    // the script keeps running, the lines are forwarded anyway
+                    flushedBeforeEnd[0] = flushed.await( 5, TimeUnit.SECONDS );
+                    output.close();
+                }
+                catch ( Exception e )
+                {
+                    throw new IllegalStateException( e );
+                }
+            }
+        };
+        StreamingScriptRunner.LineSink countingSink = new StreamingScriptRunner.LineSink()
+        {
+            public void lines( NodeMetadata node, List<String> lines )
+            {
+                sink.lines( node, lines );
+                flushed.countDown();
+            }
+        };
+        script.start();
+
+        new StreamingScriptRunner( 10, 10, 50, 100 ).run( ssh, node, "ubuntu", "sleep 10", countingSink );
+        script.join();
+
+        assertTrue( flushedBeforeEnd[0] );
+        assertEquals( Arrays.asList( "one", "two" ), batches.get( 0 ) );
+        verify( ssh ).execChannel( "sudo sh -s" );
+    }
+
+    @Test
+    public void testTruncation()
+        throws Exception
+    {
+        String longLine = Strings.repeat( "x", 5000 );
+        when( channel.getOutput() ).thenReturn( stream( longLine + "\n" + lines( 1, 10 ) ) );
+
+        ExecResponse response = new StreamingScriptRunner( 2, 3, 100, 10000 ).run( ssh, node, "root", "", sink );
+
+        // long lines are cut in memory, only the first and last lines are kept
+        String truncated = Strings.repeat( "x", 4096 ) + "[... 904 characters truncated ...]";
+        String[] kept = response.getOutput().split( "\n" );
+        assertEquals( 6, kept.length );
+        assertEquals( truncated, kept[0] );
+        assertEquals( "line 1", kept[1] );
+        assertTrue( kept[2], kept[2].startsWith( "[... 6 lines omitted, full output in " ) );
+        assertEquals( Arrays.asList( "line 8", "line 9", "line 10" ), Arrays.asList( kept ).subList( 3, 6 ) );
+        // every line is forwarded
+        assertEquals( 11, batches.get( 0 ).size() );
+        assertEquals( truncated, batches.get( 0 ).get( 0 ) );
+    }
+
+    private static InputStream stream( String text )
+    {
+        return new ByteArrayInputStream( text.getBytes( UTF_8 ) );
+    }
+
+    private static String lines( int from, int to )
+    {
+        StringBuilder lines = new StringBuilder();
+        for ( int i = from; i <= to; i++ )
+        {
+            lines.append( "line " ).append( i ).append( '\n' );
+        }
+        return lines.toString();
+    }
+}
@@ -0,0 +1,192 @@
+package com.maestrodev.lucee.plugins.cloud;
+
+import static org.junit.Assert.*;
+import static org.mockito.Mockito.*;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.OutputStream;
+import java.util.Collections;
+import java.util.Properties;
+import java.util.concurrent.TimeUnit;
+
+import org.jclouds.compute.ComputeService;
+import org.jclouds.compute.domain.Hardware;
+import org.jclouds.compute.domain.Image;
+import org.jclouds.compute.domain.Template;
+import org.jclouds.compute.domain.TemplateBuilder;
+import org.jclouds.compute.options.TemplateOptions;
+import org.jclouds.domain.Location;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+
+import com.google.common.collect.ImmutableSet;
+
+/**
+ * Tests for {@link TemplateCache}
+ */
+public class TemplateCacheTest
+{
+
+    private static final long HOUR = TimeUnit.HOURS.toMillis( 1 );
+
+    private final TemplateCache.Key key =
+        new TemplateCache.Key( "aws-ec2", "us-east-1", "us-east-1/ami-1", "m1.small", "us-east-1a" );
+
+    private String snapshot;
+
+    private Image image;
+
+    private Hardware hardware;
+
+    private Location location;
+
+    @Before
+    public void setUp()
+    {
+        snapshot = "target/template-test/" + System.nanoTime() + ".properties";
+        image = mock( Image.class );
+        when( image.getId() ).thenReturn( "us-east-1/ami-1" );
+        hardware = mock( Hardware.class );
+        when( hardware.getId() ).thenReturn( "m1.small" );
+        location = mock( Location.class );
+        when( location.getId() ).thenReturn( "us-east-1a" );
+    }
+
+    @Test
+    public void testHitAndMiss()
+    {
+        TemplateCache cache = new TemplateCache( HOUR, null );
+        ComputeService compute = compute();
+
+        Template first = cache.resolve( key, compute );
+        Template second = cache.resolve( key, compute );
+
+        assertSame( image, first.getImage() );
+        assertSame( hardware, second.getHardware() );
+        assertSame( location, second.getLocation() );
+        // each template gets its own options
+        assertNotSame( first.getOptions(), second.getOptions() );
+        verify( compute, times( 1 ) ).templateBuilder();
+        assertEquals( 1, cache.getMisses() );
+        assertEquals( 1, cache.getHits() );
+
+        // expired
+        cache = new TemplateCache( 0, null );
+        cache.resolve( key, compute );
+        cache.resolve( key, compute );
+        assertEquals( 2, cache.getMisses() );
+        assertEquals( 0, cache.getHits() );
+    }
+
+    @Test
+    public void testSnapshotReload()
+    {
+        new TemplateCache( HOUR, snapshot ).resolve( key, compute() );
+        assertTrue( new File( snapshot ).exists() );
+
+        // a freshly started agent
+        TemplateCache cache = new TemplateCache( HOUR, snapshot );
+        ComputeService compute = compute();
+        Template template = cache.resolve( key, compute );
+
+        assertSame( image, template.getImage() );
+        assertSame( hardware, template.getHardware() );
+        assertSame( location, template.getLocation() );
+        verify( compute ).getImage( "us-east-1/ami-1" );
+        verify( compute, never() ).templateBuilder();
+        assertEquals( 1, cache.getSnapshotHits() );
+        assertEquals( 0, cache.getMisses() );
+
+        // the image is gone, resolved again
+        cache = new TemplateCache( HOUR, snapshot );
+        compute = compute();
+        when( compute.getImage( anyString() ) ).thenReturn( null );
+        cache.resolve( key, compute );
+        assertEquals( 0, cache.getSnapshotHits() );
+        assertEquals( 1, cache.getMisses() );
+    }
+
+    @Test
+    public void testCorruptSnapshot()
+        throws Exception
+    {
+        Properties corrupt = new Properties();
+        corrupt.setProperty( key.toString(), "us-east-1/ami-1|m1.small|us-east-1a|yesterday" );
+        File file = new File( snapshot );
+        file.getParentFile().mkdirs();
+        OutputStream out = new FileOutputStream( file );
+        try
+        {
+            corrupt.store( out, null );
+        }
+        finally
+        {
+            out.close();
+        }
+
+        TemplateCache cache = new TemplateCache( HOUR, snapshot );
+        ComputeService compute = compute();
+        assertSame( image, cache.resolve( key, compute ).getImage() );
+
+        // resolved again and saved over the corrupt value
+        assertEquals( 0, cache.getSnapshotHits() );
+        assertEquals( 1, cache.getMisses() );
+        cache = new TemplateCache( HOUR, snapshot );
+        cache.resolve( key, compute() );
+        assertEquals( 1, cache.getSnapshotHits() );
+    }
+
+    @Test
+    public void testInvalidate()
+    {
+        TemplateCache cache = new TemplateCache( HOUR, snapshot );
+        ComputeService compute = compute();
+        cache.resolve( key, compute );
+
+        // as done when launching nodes with the template fails with a RunNodesException
+        cache.invalidate( key );
+        cache.resolve( key, compute );
+
+        verify( compute, times( 2 ) ).templateBuilder();
+        assertEquals( 2, cache.getMisses() );
+        assertEquals( 0, cache.getHits() );
+
+        // also removed from the snapshot
+        cache.invalidate( key );
+        cache = new TemplateCache( HOUR, snapshot );
+        compute = compute();
+        cache.resolve( key, compute );
+        assertEquals( 0, cache.getSnapshotHits() );
+        verify( compute ).templateBuilder();
+    }
+
+    private ComputeService compute()
+    {
+        Template template = mock( Template.class );
+        when( template.getImage() ).thenReturn( image );
+        when( template.getHardware() ).thenReturn( hardware );
+        when( template.getLocation() ).thenReturn( location );
+        TemplateBuilder builder = mock( TemplateBuilder.class );
+        when( builder.imageId( anyString() ) ).thenReturn( builder );
+        when( builder.hardwareId( anyString() ) ).thenReturn( builder );
+        when( builder.locationId( anyString() ) ).thenReturn( builder );
+        when( builder.build() ).thenReturn( template );
+
+        ComputeService compute = mock( ComputeService.class );
+        when( compute.templateBuilder() ).thenReturn( builder );
+        when( compute.templateOptions() ).thenAnswer( new Answer<TemplateOptions>()
+        {
+            public TemplateOptions answer( InvocationOnMock invocation )
+            {
+                return new TemplateOptions();
+            }
+        } );
+        when( compute.getImage( "us-east-1/ami-1" ) ).thenReturn( image );
+        doReturn( ImmutableSet.of( hardware ) ).when( compute ).listHardwareProfiles();
+        doReturn( Collections.singleton( location ) ).when( compute ).listAssignableLocations();
+        return compute;
+    }
+}
@@ -0,0 +1,225 @@
+package com.maestrodev.lucee.plugins.cloud.aws;
+
+import static org.junit.Assert.*;
+import static org.mockito.Matchers.*;
+import static org.mockito.Mockito.*;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.ArgumentCaptor;
+
+import com.amazonaws.AmazonServiceException;
+import com.amazonaws.services.route53.AmazonRoute53;
+import com.amazonaws.services.route53.model.Change;
+import com.amazonaws.services.route53.model.ChangeAction;
+import com.amazonaws.services.route53.model.ChangeInfo;
+import com.amazonaws.services.route53.model.ChangeResourceRecordSetsRequest;
+import com.amazonaws.services.route53.model.ChangeResourceRecordSetsResult;
+import com.amazonaws.services.route53.model.GetChangeRequest;
+import com.amazonaws.services.route53.model.GetChangeResult;
+import com.amazonaws.services.route53.model.HostedZone;
+import com.amazonaws.services.route53.model.ListHostedZonesRequest;
+import com.amazonaws.services.route53.model.ListHostedZonesResult;
+import com.amazonaws.services.route53.model.ListResourceRecordSetsRequest;
+import com.amazonaws.services.route53.model.ListResourceRecordSetsResult;
+import com.amazonaws.services.route53.model.RRType;
+import com.amazonaws.services.route53.model.ResourceRecord;
+import com.amazonaws.services.route53.model.ResourceRecordSet;
+import com.google.common.collect.Lists;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.maestrodev.lucee.plugins.cloud.aws.Route53Registrar.RecordChange;
+import com.maestrodev.lucee.plugins.cloud.throttle.ApiLimiter;
+
+/**
+ * Tests for {@link Route53Registrar}
+ */
+public class Route53RegistrarTest
+{
+
+    private AmazonRoute53 route53;
+
+    private Route53Registrar registrar;
+
+    @Before
+    public void setUp()
+    {
+        route53 = mock( AmazonRoute53.class );
+        registrar = new Route53Registrar( route53, new ApiLimiter( 100, 10, 5, 1, 10 ), 10 );
+        when( route53.listHostedZones( any( ListHostedZonesRequest.class ) ) )
+            .thenReturn( zones( true, "Z1", "other.com." ) ).thenReturn( zones( false, "Z2", "example.com." ) );
+        when( route53.changeResourceRecordSets( any( ChangeResourceRecordSetsRequest.class ) ) )
+            .thenReturn( new ChangeResourceRecordSetsResult().withChangeInfo( change( "PENDING" ) ) );
+        when( route53.getChange( any( GetChangeRequest.class ) ) )
+            .thenReturn( new GetChangeResult().withChangeInfo( change( "INSYNC" ) ) );
+    }
+
+    @Test
+    public void testForCredentials()
+    {
+        String accessKey = "key-" + System.nanoTime();
+        Route53Registrar first = Route53Registrar.forCredentials( accessKey, "secret" );
+
+        assertSame( first, Route53Registrar.forCredentials( accessKey, "secret" ) );
+        // a rotated secret is not served by the client with the old one
+        assertNotSame( first, Route53Registrar.forCredentials( accessKey, "rotated" ) );
+    }
+
+    @Test
+    public void testHostedZoneCache()
+    {
+        assertEquals( "Z2", registrar.getHostedZoneId( "example.com" ) );
+        // zones seen while paging are cached too
+        assertEquals( "Z1", registrar.getHostedZoneId( "other.com." ) );
+        assertEquals( "Z2", registrar.getHostedZoneId( "example.com." ) );
+        verify( route53, times( 2 ) ).listHostedZones( any( ListHostedZonesRequest.class ) );
+
+        try
+        {
+            registrar.getHostedZoneId( "missing.com" );
+            fail( "No hosted zone expected" );
+        }
+        catch ( IllegalArgumentException e )
+        {
+            assertEquals( "No Route 53 hosted zone for domain missing.com", e.getMessage() );
+        }
+    }
+
+    @Test
+    public void testBatching()
+        throws Exception
+    {
+        List<ResourceRecordSet> existing = Lists.newArrayList();
+        List<RecordChange> changes = Lists.newArrayList();
+        for ( int i = 0; i < 150; i++ )
+        {
+            String name = "build-" + i + ".example.com";
+            existing.add( record( name + ".", "10.0.0." + i ) );
+            changes.add( new RecordChange( RecordChange.Action.UPSERT, name, Collections.singleton( "10.0.1." + i ),
+                                           60 ) );
+        }
+        when( route53.listResourceRecordSets( any( ListResourceRecordSetsRequest.class ) ) )
+            .thenReturn( new ListResourceRecordSetsResult().withResourceRecordSets( existing.subList( 0, 100 ) )
+                             .withIsTruncated( true ).withNextRecordName( "build-100.example.com." )
+                             .withNextRecordType( "A" ) )
+            .thenReturn( new ListResourceRecordSetsResult().withResourceRecordSets( existing.subList( 100, 150 ) )
+                             .withIsTruncated( false ) );
+
+        List<ListenableFuture<ChangeInfo>> futures = registrar.apply( "example.com", changes );
+
+        // the zone is listed once for all the records, a delete and a create per upsert
+        verify( route53, times( 2 ) ).listResourceRecordSets( any( ListResourceRecordSetsRequest.class ) );
+        ArgumentCaptor<ChangeResourceRecordSetsRequest> requests =
+            ArgumentCaptor.forClass( ChangeResourceRecordSetsRequest.class );
+        verify( route53, times( 3 ) ).changeResourceRecordSets( requests.capture() );
+        assertEquals( 3, futures.size() );
+        ChangeResourceRecordSetsRequest first = requests.getAllValues().get( 0 );
+        assertEquals( "Z2", first.getHostedZoneId() );
+        assertEquals( Route53Registrar.MAX_CHANGES_PER_BATCH, first.getChangeBatch().getChanges().size() );
+        assertEquals( ChangeAction.DELETE.toString(), first.getChangeBatch().getChanges().get( 0 ).getAction() );
+        assertEquals( "10.0.0.0",
+                      first.getChangeBatch().getChanges().get( 0 ).getResourceRecordSet().getResourceRecords().get( 0 )
+                          .getValue() );
+        assertEquals( ChangeAction.CREATE.toString(), first.getChangeBatch().getChanges().get( 1 ).getAction() );
+        for ( ListenableFuture<ChangeInfo> future : futures )
+        {
+            assertEquals( "INSYNC", future.get( 5, TimeUnit.SECONDS ).getStatus() );
+        }
+    }
+
+    @Test
+    public void testSingleRecordLookup()
+    {
+        when( route53.listResourceRecordSets( any( ListResourceRecordSetsRequest.class ) ) )
+            .thenReturn( new ListResourceRecordSetsResult()
+                             .withResourceRecordSets( record( "build.example.com.", "10.0.0.1" ) )
+                             .withIsTruncated( true ).withNextRecordName( "other.example.com." ) );
+
+        registrar.apply( "example.com",
+                         Collections.singleton( new RecordChange( RecordChange.Action.DELETE, "build.example.com",
+                                                                  Collections.<String> emptyList(), 60 ) ) );
+
+        ArgumentCaptor<ListResourceRecordSetsRequest> lookup =
+            ArgumentCaptor.forClass( ListResourceRecordSetsRequest.class );
+        verify( route53 ).listResourceRecordSets( lookup.capture() );
+        assertEquals( "build.example.com.", lookup.getValue().getStartRecordName() );
+        assertEquals( "1", lookup.getValue().getMaxItems() );
+        ArgumentCaptor<ChangeResourceRecordSetsRequest> request =
+            ArgumentCaptor.forClass( ChangeResourceRecordSetsRequest.class );
+        verify( route53 ).changeResourceRecordSets( request.capture() );
+        assertEquals( 1, request.getValue().getChangeBatch().getChanges().size() );
+    }
+
+    @Test
+    public void testRegisterAndUnregister()
+    {
+        // nothing to point the name to
+        assertTrue( registrar.register( "example.com", "build.example.com", Arrays.asList( (String) null ), 60 )
+            .isEmpty() );
+        verify( route53, never() ).changeResourceRecordSets( any( ChangeResourceRecordSetsRequest.class ) );
+
+        when( route53.listResourceRecordSets( any( ListResourceRecordSetsRequest.class ) ) )
+            .thenReturn( new ListResourceRecordSetsResult().withResourceRecordSets( record( "build.example.com.",
+                                                                                            "10.0.0.1" ) ) );
+        assertEquals( 1, registrar.register( "example.com", "build.example.com", Arrays.asList( "10.0.0.2", null ),
+                                             60 ).size() );
+        assertEquals( 1, registrar.unregister( "example.com", Collections.singleton( "build.example.com" ) ).size() );
+
+        ArgumentCaptor<ChangeResourceRecordSetsRequest> requests =
+            ArgumentCaptor.forClass( ChangeResourceRecordSetsRequest.class );
+        verify( route53, times( 2 ) ).changeResourceRecordSets( requests.capture() );
+        // the upsert replaces the current record with the valid addresses
+        List<Change> upsert =
+            requests.getAllValues().get( 0 ).getChangeBatch().getChanges();
+        assertEquals( 2, upsert.size() );
+        assertEquals( "10.0.0.2", upsert.get( 1 ).getResourceRecordSet().getResourceRecords().get( 0 ).getValue() );
+        assertEquals( 1, upsert.get( 1 ).getResourceRecordSet().getResourceRecords().size() );
+        List<Change> delete =
+            requests.getAllValues().get( 1 ).getChangeBatch().getChanges();
+        assertEquals( 1, delete.size() );
+        assertEquals( ChangeAction.DELETE.toString(), delete.get( 0 ).getAction() );
+    }
+
+    @Test
+    public void testPolling()
+        throws Exception
+    {
+        AmazonServiceException throttle = new AmazonServiceException( "Rate exceeded" );
+        throttle.setErrorCode( "Throttling" );
+        when( route53.getChange( any( GetChangeRequest.class ) ) )
+            .thenReturn( new GetChangeResult().withChangeInfo( change( "PENDING" ) ) ).thenThrow( throttle )
+            .thenReturn( new GetChangeResult().withChangeInfo( change( "INSYNC" ) ) );
+
+        List<ListenableFuture<ChangeInfo>> futures =
+            registrar.apply( "example.com",
+                             Collections.singleton( new RecordChange( RecordChange.Action.CREATE, "build.example.com",
+                                                                      Collections.singleton( "10.0.0.1" ), 60 ) ) );
+
+        // polled until in sync, through the throttling
+        assertEquals( "INSYNC", futures.get( 0 ).get( 5, TimeUnit.SECONDS ).getStatus() );
+        verify( route53, times( 3 ) ).getChange( any( GetChangeRequest.class ) );
+        // creates don't need the current records
+        verify( route53, never() ).listResourceRecordSets( any( ListResourceRecordSetsRequest.class ) );
+    }
+
+    private static ListHostedZonesResult zones( boolean truncated, String id, String name )
+    {
+        return new ListHostedZonesResult().withHostedZones( new HostedZone().withId( id ).withName( name ) )
+            .withIsTruncated( truncated ).withNextMarker( truncated ? "next" : null );
+    }
+
+    private static ChangeInfo change( String status )
+    {
+        return new ChangeInfo().withId( "C1" ).withStatus( status );
+    }
+
+    private static ResourceRecordSet record( String name, String address )
+    {
+        return new ResourceRecordSet( name, RRType.A ).withTTL( 60L )
+            .withResourceRecords( new ResourceRecord( address ) );
+    }
+}
@@ -0,0 +1,34 @@
+package com.maestrodev.lucee.plugins.cloud.metrics;
+
+import static org.junit.Assert.*;
+
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+/**
+ * Tests for {@link LatencyHistogram}
+ */
+public class LatencyHistogramTest
+{
+
+    @Test
+    public void testPercentiles()
+    {
+        LatencyHistogram histogram = new LatencyHistogram();
+        assertEquals( 0, histogram.getPercentileMillis( 50 ), 0 );
+
+        for ( int i = 1; i <= 100; i++ )
+        {
+            histogram.record( TimeUnit.MILLISECONDS.toNanos( i * 10 ) );
+        }
+
+        assertEquals( 100, histogram.getCount() );
+        assertEquals( 505, histogram.getMeanMillis(), 0.001 );
+        assertEquals( 1000, histogram.getMaxMillis(), 0.001 );
+        // within the 10% bucket width
+        assertEquals( 500, histogram.getPercentileMillis( 50 ), 50 );
+        assertEquals( 990, histogram.getPercentileMillis( 99 ), 99 );
+        assertEquals( 1000, histogram.getPercentileMillis( 100 ), 0.001 );
+    }
+}
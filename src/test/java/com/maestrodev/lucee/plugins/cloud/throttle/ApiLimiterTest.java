@@ -0,0 +1,133 @@
+package com.maestrodev.lucee.plugins.cloud.throttle;
+
+import static org.junit.Assert.*;
+
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+import com.amazonaws.AmazonServiceException;
+
+/**
+ * Tests for {@link ApiLimiter}
+ */
+public class ApiLimiterTest
+{
+
+    @Test
+    public void testRetryThrottled()
+        throws Exception
+    {
+        ApiLimiter limiter = new ApiLimiter( 100, 10, 5, 1, 10 );
+        final AtomicInteger attempts = new AtomicInteger();
+
+        String result = limiter.call( "test", new ApiCall<String, RuntimeException>()
+        {
+            public String call()
+            {
+                if ( attempts.incrementAndGet() < 3 )
+                {
+                    throw throttle();
+                }
+                return "done";
+            }
+        } );
+
+        assertEquals( "done", result );
+        assertEquals( 3, limiter.getCalls() );
+        assertEquals( 2, limiter.getThrottles() );
+        assertEquals( 2, limiter.getRetries() );
+        assertTrue( String.valueOf( limiter.getRate() ), limiter.getRate() < 100 );
+    }
+
+    @Test
+    public void testGiveUp()
+        throws Exception
+    {
+        ApiLimiter limiter = new ApiLimiter( 100, 10, 2, 1, 10 );
+        try
+        {
+            limiter.call( "test", new ApiCall<String, RuntimeException>()
+            {
+                public String call()
+                {
+                    throw throttle();
+                }
+            } );
+            fail();
+        }
+        catch ( AmazonServiceException e )
+        {
+            assertEquals( 2, limiter.getCalls() );
+        }
+    }
+
+    @Test
+    public void testOtherErrorsNotRetried()
+        throws Exception
+    {
+        ApiLimiter limiter = new ApiLimiter( 100, 10, 5, 1, 10 );
+        try
+        {
+            limiter.call( "test", new ApiCall<String, Exception>()
+            {
+                public String call()
+                    throws Exception
+                {
+                    throw new Exception( "InvalidAMIID.NotFound" );
+                }
+            } );
+            fail();
+        }
+        catch ( Exception e )
+        {
+            assertEquals( "InvalidAMIID.NotFound", e.getMessage() );
+            assertEquals( 1, limiter.getCalls() );
+            assertEquals( 0, limiter.getThrottles() );
+        }
+    }
+
+    @Test
+    public void testRateLimit()
+        throws Exception
+    {
+        ApiLimiter limiter = new ApiLimiter( 50, 1, 1, 1, 10 );
+        long start = System.nanoTime();
+        for ( int i = 0; i < 11; i++ )
+        {
+            limiter.acquire();
+        }
+        // the first one is free, the other ten take 200 ms at 50 per second
+        long elapsed = ( System.nanoTime() - start ) / 1000000;
+        assertTrue( String.valueOf( elapsed ), elapsed >= 180 );
+    }
+
+    @Test
+    public void testDecorrelatedJitter()
+    {
+        Random random = new Random( 1 );
+        long delay = 100;
+        for ( int i = 0; i < 100; i++ )
+        {
+            long next = ApiLimiter.nextDelay( random, 100, 5000, delay );
+            assertTrue( String.valueOf( next ), next >= 100 && next <= Math.min( 5000, delay * 3 ) );
+            delay = next;
+        }
+    }
+
+    @Test
+    public void testIsThrottle()
+    {
+        assertTrue( ApiLimiter.isThrottle( new IllegalStateException( throttle() ) ) );
+        assertTrue( ApiLimiter.isThrottle( new IllegalStateException( "error RequestLimitExceeded" ) ) );
+        assertFalse( ApiLimiter.isThrottle( new IllegalStateException( "InsufficientInstanceCapacity" ) ) );
+    }
+
+    private static AmazonServiceException throttle()
+    {
+        AmazonServiceException e = new AmazonServiceException( "Rate exceeded" );
+        e.setErrorCode( "Throttling" );
+        return e;
+    }
+}